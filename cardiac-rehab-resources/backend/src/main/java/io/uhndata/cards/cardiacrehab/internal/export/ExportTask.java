@@ -21,12 +21,18 @@
 
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.RowIterator;
 import javax.json.JsonObject;
 
 import org.apache.sling.api.resource.LoginException;
@@ -213,14 +219,7 @@ private Set<SubjectIdentifier> getChangedSubjects(String requestDateString)
     {
         try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(null)) {
             Set<SubjectIdentifier> subjects = new HashSet<>();
-            String query = String.format(
-                "SELECT subject.* FROM [cards:Form] AS form INNER JOIN [cards:Subject] AS subject"
-                    + " ON form.'subject'=subject.[jcr:uuid]"
-                    + " WHERE form.[jcr:lastModified] >= '%s' AND NOT CONTAINS(form.[statusFlags], 'INCOMPLETE')",
-                requestDateString
-            );
-
-            Iterator<Resource> results = resolver.findResources(query, "JCR-SQL2");
+            Iterator<Resource> results = findChangedSubjects(resolver, requestDateString, null);
             while (results.hasNext()) {
                 Resource subject = results.next();
                 String path = subject.getPath();
@@ -230,6 +229,8 @@ private Set<SubjectIdentifier> getChangedSubjects(String requestDateString)
             return subjects;
         } catch (LoginException e) {
             LOGGER.warn("Failed to get service session: {}", e.getMessage(), e);
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to query changed subjects: {}", e.getMessage(), e);
         }
         return Collections.emptySet();
     }
@@ -239,16 +240,8 @@ private Set<SubjectIdentifier> getChangedSubjectsBounded(String requestDateStrin
     {
         try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(null)) {
             Set<SubjectIdentifier> subjects = new HashSet<>();
-            String query = String.format(
-                "SELECT subject.* FROM [cards:Form] AS form INNER JOIN [cards:Subject] AS subject"
-                    + " ON form.'subject'=subject.[jcr:uuid]"
-                    + " WHERE form.[jcr:lastModified] >= '%s'"
-                    + " AND form.[jcr:lastModified] < '%s'"
-                    + " AND NOT CONTAINS(form.[statusFlags], 'INCOMPLETE')",
-                requestDateStringLower, requestDateStringUpper
-            );
-
-            Iterator<Resource> results = resolver.findResources(query, "JCR-SQL2");
+            Iterator<Resource> results =
+                findChangedSubjects(resolver, requestDateStringLower, requestDateStringUpper);
             while (results.hasNext()) {
                 Resource subject = results.next();
                 String path = subject.getPath();
@@ -258,10 +251,48 @@ private Set<SubjectIdentifier> getChangedSubjectsBounded(String requestDateStrin
             return subjects;
         } catch (LoginException e) {
             LOGGER.warn("Failed to get service session: {}", e.getMessage(), e);
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to query changed subjects: {}", e.getMessage(), e);
         }
         return Collections.emptySet();
     }
 
+    /**
+     * Finds the subjects with forms modified in a time interval. The dates are bound instead of inlined, so that the
+     * same query statement is used every day.
+     *
+     * @param resolver the resolver used for querying
+     * @param lower the start of the interval, inclusive
+     * @param upper the end of the interval, exclusive, or {@code null} for no upper bound
+     * @return the changed subjects, may contain duplicates
+     * @throws RepositoryException if querying fails
+     */
+    private Iterator<Resource> findChangedSubjects(final ResourceResolver resolver, final String lower,
+        final String upper) throws RepositoryException
+    {
+        final Session session = resolver.adaptTo(Session.class);
+        final Query query = session.getWorkspace().getQueryManager().createQuery(
+            "SELECT subject.* FROM [cards:Form] AS form INNER JOIN [cards:Subject] AS subject"
+                + " ON form.'subject'=subject.[jcr:uuid]"
+                + " WHERE form.[jcr:lastModified] >= $lower"
+                + (upper == null ? "" : " AND form.[jcr:lastModified] < $upper")
+                + " AND NOT CONTAINS(form.[statusFlags], 'INCOMPLETE')",
+            Query.JCR_SQL2);
+        query.bindValue("lower", session.getValueFactory().createValue(lower));
+        if (upper != null) {
+            query.bindValue("upper", session.getValueFactory().createValue(upper));
+        }
+        final List<Resource> result = new ArrayList<>();
+        final RowIterator rows = query.execute().getRows();
+        while (rows.hasNext()) {
+            final Resource subject = resolver.getResource(rows.nextRow().getPath("subject"));
+            if (subject != null) {
+                result.add(subject);
+            }
+        }
+        return result.iterator();
+    }
+
     private SubjectContents getSubjectContents(String path, String requestDateString)
     {
         String subjectDataUrl = String.format("%s.data.deep.bare.-labels.-identify.relativeDates"
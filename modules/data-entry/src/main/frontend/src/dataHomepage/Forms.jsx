@@ -31,7 +31,8 @@ function Forms(props) {
   const questionnaireID = /questionnaire=([^&]+)/.exec(location.search)?.[1];
   const pageNameWriter = usePageNameWriterContext();
 
-  const entry = /Forms\/([^.\/]+)/.exec(location.pathname);
+  // Forms may be stored in buckets, such as /Forms/3f/a2/<uuid>, but they can always be accessed as /Forms/<uuid>
+  const entry = /Forms\/(?:[0-9a-f]{2}\/[0-9a-f]{2}\/)?([^.\/]+)/.exec(location.pathname);
 
   // When moving from a specific form to the "Forms" page, ensure that the title properly changes
   useEffect(() => {
@@ -45,7 +45,7 @@ function LiveTable(props) {
 
   const { customUrl, columns, defaultLimit, joinChildren, updateData, classes,
     filters, entryType, actions, admin, disableTopPagination, disableBottomPagination,
-    onDataReceived, ...rest } = props;
+    onDataReceived, exactCount, ...rest } = props;
   const [tableData, setTableData] = useState();
   const [cachedFilters, setCachedFilters] = useState(null);
   const [paginationData, setPaginationData] = useState(
@@ -110,6 +110,10 @@ function LiveTable(props) {
     url.searchParams.set("offset", goToStart ? 0 : newPage.offset);
     url.searchParams.set("limit", newPage.limit || paginationData.limit);
     url.searchParams.set("req", ++fetchStatus.currentRequestNumber);
+    // Counting all the results costs a separate query, so the real number of results is only requested on demand
+    if (exactCount && !url.searchParams.has("count")) {
+      url.searchParams.set("count", "exact");
+    }
 
     // filters should be nullable, but if left undefined we use the cached filters
     let filters = (newPage.filters === null ? null : (newPage.filters || cachedFilters));
@@ -239,7 +243,8 @@ function LiveTable(props) {
     if (!path) return entry;
     // Display the JCR node id
     if (path == 'jcr:uuid') {
-      let el = /Forms\/(.+)/.exec(entry["@path"]);
+      // Forms may be stored in buckets, such as /Forms/3f/a2/<uuid>, only display the uuid
+      let el = /Forms\/(?:[0-9a-f]{2}\/[0-9a-f]{2}\/)?([^.\/]+)/.exec(entry["@path"]);
       if (el && el[1]) {
         return el[1];
       }
@@ -420,7 +425,8 @@ function LiveTable(props) {
 }
 
 LiveTable.defaultProps = {
-  defaultLimit: 50
+  defaultLimit: 50,
+  exactCount: false
 }
 
 export default withStyles(LiveTableStyle)(LiveTable);
@@ -62,7 +62,9 @@ let defaultCreator = (node) => {
 // Extract the subject id from the subject path
 // returns null if the parameter is not a valid subject path (expected format: Subjects/<id>)
 export function getSubjectIdFromPath (path) {
-  return /Subjects\/([^.]+)/.exec(path || '')?.[1];
+  // Top level subjects may be stored in buckets, such as /Subjects/3f/a2/<uuid>, but they can always be accessed as
+  // /Subjects/<uuid>
+  return /Subjects\/(?:[0-9a-f]{2}\/[0-9a-f]{2}\/)?([^.]+)/.exec(path || '')?.[1];
 }
 
 // Recursive function to get a flat list of parents
@@ -297,6 +299,10 @@ function SubjectHeader(props) {
     let nodeName = id.substring(id.lastIndexOf("/") + 1);
     let parentNodePath = location.pathname.substring(0, location.pathname.lastIndexOf("/" + nodeName));
     let hasParentSubject = (id.indexOf("/") > 0);
+    if (!hasParentSubject) {
+      // Skip the buckets the subject may be stored in, and go back to the Subjects page
+      parentNodePath = parentNodePath.substring(0, parentNodePath.indexOf("/Subjects") + "/Subjects".length);
+    }
     history.push(parentNodePath + (hasParentSubject ? (location.search + location.hash) : ""));
   }
 
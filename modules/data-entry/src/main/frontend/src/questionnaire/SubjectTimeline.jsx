@@ -59,8 +59,8 @@ function DateAnswerDisplay(classes, questionData, index, length, rootLevel) {
     questionTitle = questionTitle[0].toUpperCase().concat(questionTitle.substring(1));
   }
 
-  // Find the first '/' after "/Forms/" in the path
-  let formPath = questionData.answerPath.substring(0, questionData.answerPath.indexOf("/", "/Forms/".length+1))
+  // The form is the first node after "/Forms/" in the path, skipping the buckets it may be stored in
+  let formPath = /^\/Forms\/(?:[0-9a-f]{2}\/[0-9a-f]{2}\/)?[^\/]+/.exec(questionData.answerPath)?.[0];
   let formTitle = `${questionData.names?.length > 0 ? questionData.names.join(" / ") + ": " : ""}${questionData.formTitle}`;
   let divClasses = [classes.timelineDateEntry];
   if (questionData.level === -1 && rootLevel !== -1) {
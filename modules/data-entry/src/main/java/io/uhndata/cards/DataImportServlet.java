@@ -16,57 +16,98 @@
  */
 package io.uhndata.cards;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipFile;
 
-import javax.jcr.Node;
-import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.Value;
-import javax.jcr.ValueFactory;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.version.VersionManager;
+import javax.json.Json;
 import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
-import org.apache.sling.api.resource.PersistenceException;
-import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletName;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.uhndata.cards.spi.SearchUtils;
+import io.uhndata.cards.dataentry.internal.importer.BundleImporter;
+import io.uhndata.cards.dataentry.internal.importer.BundleImporter.EntryStatistics;
+import io.uhndata.cards.dataentry.internal.importer.DataImporter;
+import io.uhndata.cards.dataentry.internal.importer.FormJsonImporter;
+import io.uhndata.cards.dataentry.internal.importer.ImportAccessCheck;
+import io.uhndata.cards.dataentry.internal.importer.ImportJobs;
+import io.uhndata.cards.dataentry.internal.importer.ImportPrefetch;
+import io.uhndata.cards.dataentry.internal.importer.ImportSource;
+import io.uhndata.cards.dataentry.internal.importer.LocalImportSource;
+import io.uhndata.cards.dataentry.internal.importer.PartitionedImportEngine;
+import io.uhndata.cards.dataentry.internal.importer.PartitionedImportEngine.WorkerStatistics;
 
 /**
  * A servlet for importing CARDS data from CSV files.
+ * <p>
+ * This servlet supports the following parameters:
+ * </p>
+ * <ul>
+ * <li><tt>:data</tt>: the TSV file to import, with a header row; mandatory, unless {@code :file} or {@code :bundle} is
+ * used</li>
+ * <li><tt>:file</tt>: instead of uploading the data, the path to a file in the local drop directory of the server,
+ * relative to that directory; the file is streamed from the disk, without going through the buffering of multipart
+ * uploads; a {@code .zip} file is imported as a {@code :bundle}; see {@link LocalImportSource} for configuring the
+ * drop directory and how files are read</li>
+ * <li><tt>:questionnaire</tt>: the path to the questionnaire that the data is for; mandatory</li>
+ * <li><tt>:subjectType</tt>: the path to the subject type(s) identified in each row, from the top level subject type
+ * down to the one that the forms belong to; {@code /SubjectTypes/Patient} by default</li>
+ * <li><tt>:patch</tt>: if {@code true}, existing forms are updated instead of always creating new forms; the existing
+ * subjects and forms for all the rows are looked up with a few batched queries before importing the first row</li>
+ * <li><tt>:batchSize</tt>: if set to a positive number, the import is done in streaming mode: changes are saved, and
+ * the affected forms and subjects are checked in, after every {@code :batchSize} rows, and the progress is reported
+ * in the response after each batch; by default all rows are saved at once at the end of the import</li>
+ * <li><tt>:workers</tt>: if set to a number greater than 1, the rows are imported in parallel by that many workers,
+ * each one with its own session, at most one per available processor; rows are assigned to workers based on the
+ * identifier of their top level subject, so that no two workers modify the same subject or form; each worker saves
+ * its changes independently, every {@code :batchSize} rows if set, and statistics for each worker are reported in the
+ * response at the end of the import; the workers of all the parallel imports, including bundles, share one thread per
+ * available processor, and if they stay busy, the import is rejected with the {@code 503 Service Unavailable}
+ * status</li>
+ * <li><tt>:async</tt>: if {@code true}, the data is only stored, and imported later by a background job; the response
+ * is sent right away with the {@code 202 Accepted} status, holding the identifier of the import and the URL where its
+ * progress can be checked, see {@link DataImportStatusServlet}; the job saves its changes in batches of
+ * {@code :batchSize} rows, 1000 by default, and if it is interrupted, it is resumed after the last saved batch;
+ * {@code :workers} is ignored</li>
+ * <li><tt>:bundle</tt>: instead of {@code :data} and {@code :questionnaire}, a zip archive holding several TSV files,
+ * possibly for different questionnaires about the same subjects, along with a manifest listing the questionnaire and
+ * subject types of each file, as described in {@link BundleImporter}; the subjects for all the files are resolved
+ * first, then the files are imported concurrently, by at most {@code :workers} workers, one per available processor
+ * by default; {@code :patch} and {@code :batchSize} apply to each file, while {@code :async} is not supported</li>
+ * <li><tt>:format</tt>: if {@code ndjson}, the data holds forms in the {@code bare} JSON format, one form per line,
+ * instead of TSV rows, see {@link FormJsonImporter}; the data can also be sent directly as the request body, with the
+ * {@code application/x-ndjson} content type and the other parameters in the query string, which avoids the buffering
+ * of multipart uploads; a {@code :file} ending in {@code .ndjson} or {@code .jsonl} is also imported as forms;
+ * {@code :questionnaire} is optional, and overrides the questionnaire of each form; new forms are always created,
+ * saved in batches of {@code :batchSize} forms, 1000 by default, and the progress is reported in the response after
+ * each batch; {@code :patch}, {@code :workers} and {@code :async} are not supported</li>
+ * </ul>
  *
  * @version $Id$
  */
@@ -85,96 +126,64 @@ public class DataImportServlet extends SlingAllMethodsServlet
 {
     private static final long serialVersionUID = -5821127949309764050L;
 
-    private static final String VALUE_PROPERTY = "value";
+    private static final String BATCH_SIZE_PARAMETER = ":batchSize";
 
-    private static final String LABEL_PROPERTY = "label";
+    private static final String WORKERS_PARAMETER = ":workers";
 
-    private static final String NOTE_PROPERTY = "note";
+    private static final String BUNDLE_PARAMETER = ":bundle";
 
-    private static final String NOTE_SUFFIX = "_notes";
+    private static final String FILE_PARAMETER = ":file";
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(DataImportServlet.class);
-
-    /** Supported date formats. */
-    private static final List<SimpleDateFormat> DATE_FORMATS = Arrays.asList(
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSz"),
-        new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss.SSSz"),
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssz"),
-        new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ssz"),
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS"),
-        new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss.SSS"),
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss"),
-        new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss"),
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm"),
-        new SimpleDateFormat("yyyy-MM-dd' 'HH:mm"),
-        new SimpleDateFormat("yyyy-MM-dd"),
-        new SimpleDateFormat("M/d/y"));
-
-    /** Cached Question nodes. */
-    private final ThreadLocal<Map<String, Node>> questionCache = ThreadLocal.withInitial(HashMap::new);
-
-    /** Cached Subject nodes (for multiple forms for the same subject, for instance). */
-    private final ThreadLocal<Map<String, Node>> subjectCache = ThreadLocal.withInitial(HashMap::new);
-
-    /** Cached Question nodes. */
-    private final ThreadLocal<Set<String>> warnedCache = ThreadLocal.withInitial(HashSet::new);
-
-    private final ThreadLocal<Set<String>> nodesToCheckin = ThreadLocal.withInitial(HashSet::new);
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
 
-    /** The Resource Resolver for the current request. */
-    private final ThreadLocal<ResourceResolver> resolver = new ThreadLocal<>();
+    /** The batch size used for NDJSON imports if the request doesn't specify one. */
+    private static final long DEFAULT_FORMS_BATCH_SIZE = 1000;
 
-    /** The questionnaire to use for the uploaded CSV. */
-    private final ThreadLocal<Node> questionnaire = new ThreadLocal<>();
-
-    /** The {@code /Subjects} resource. */
-    private final ThreadLocal<Resource> subjectsHomepage = new ThreadLocal<>();
-
-    /** The {@code /Forms} resource. */
-    private final ThreadLocal<Resource> formsHomepage = new ThreadLocal<>();
-
-    /** The list of subjectTypes. */
-    private final ThreadLocal<String[]> subjectTypes = new ThreadLocal<>();
-
-    /** A query manager to handle queries. */
-    private final ThreadLocal<QueryManager> queryManager = new ThreadLocal<>();
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataImportServlet.class);
 
-    /** A local mapping for question node identifiers to answer nodes. */
-    private final ThreadLocal<Map<String, Resource>> cachedAnswers = new ThreadLocal<>();
+    @Reference
+    private ImportJobs importJobs;
 
     @Override
     protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
         throws IOException
     {
         try {
-            final ResourceResolver resourceResolver = request.getResourceResolver();
-            this.resolver.set(resourceResolver);
-            this.formsHomepage.set(resourceResolver.getResource("/Forms"));
-            this.subjectsHomepage.set(resourceResolver.getResource("/Subjects"));
-            this.queryManager.set(resourceResolver.adaptTo(Session.class).getWorkspace().getQueryManager());
+            // Validate the numeric parameters before any data is read or any output is written
+            getBatchSize(request);
+            getWorkers(request);
 
             String[] subjectTypesParam = request.getParameterValues(":subjectType");
             // If :subjectType isn't set, then /SubjectTypes/Patient should be assumed to be the default value.
             if (subjectTypesParam == null || subjectTypesParam.length == 0) {
                 subjectTypesParam = new String[] { "/SubjectTypes/Patient" };
             }
-            this.subjectTypes.set(subjectTypesParam);
 
-            parseData(request, StringUtils.equals("true", request.getParameter(":patch")));
+            final boolean patch = StringUtils.equals("true", request.getParameter(":patch"));
+            if (isFormsImport(request)) {
+                parseForms(request, response, subjectTypesParam);
+            } else if (request.getRequestParameter(BUNDLE_PARAMETER) != null
+                || StringUtils.endsWithIgnoreCase(request.getParameter(FILE_PARAMETER), ".zip")) {
+                parseBundle(request, response, patch);
+            } else if (StringUtils.equals("true", request.getParameter(":async"))) {
+                submitData(request, response, subjectTypesParam, patch);
+            } else {
+                parseData(request, response, subjectTypesParam, patch);
+            }
+        } catch (IllegalArgumentException e) {
+            if (response.isCommitted()) {
+                LOGGER.warn("Failed to import data: {}", e.getMessage());
+            } else {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            }
+        } catch (RejectedExecutionException e) {
+            // Thrown before any data is imported, when all the import workers stay busy
+            LOGGER.warn("Data import rejected: {}", e.getMessage());
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            }
         } catch (RepositoryException e) {
             LOGGER.error("Failed to import data: {}", e.getMessage(), e);
-        } finally {
-            this.subjectsHomepage.remove();
-            this.subjectTypes.remove();
-            this.subjectCache.remove();
-            this.questionnaire.remove();
-            this.questionCache.remove();
-            this.warnedCache.remove();
-            this.formsHomepage.remove();
-            this.nodesToCheckin.remove();
-            this.cachedAnswers.remove();
-            this.resolver.remove();
-            this.queryManager.remove();
         }
     }
 
@@ -183,682 +192,441 @@ protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse
      * questionnaire.
      *
      * @param request the request to process, holding the needed request data
+     * @param response the response where the import progress is reported, if the import is done in batches
+     * @param subjectTypesParam the paths to the subject types identified in each row
      * @param patch if {@code true}, try to update existing nodes when possible; if {@code false}, new forms are always
      *            created
      * @throws IOException if getting the data from the request fails
      * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
      */
-    private void parseData(final SlingHttpServletRequest request, boolean patch) throws IOException, RepositoryException
+    private void parseData(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
+        final String[] subjectTypesParam, boolean patch) throws IOException, RepositoryException
     {
-        final RequestParameter dataFile = request.getRequestParameter(":data");
-        if (dataFile == null) {
-            throw new IllegalArgumentException("Required parameter \":data\" missing");
-        }
-
-        final String questionnaireName = request.getParameter(":questionnaire");
-        if (StringUtils.isBlank(questionnaireName)) {
-            throw new IllegalArgumentException("Required parameter \":questionnaire\" missing");
-        }
-        this.questionnaire.set(this.resolver.get().getResource(questionnaireName).adaptTo(Node.class));
-
-        CSVFormat format = CSVFormat.TDF.withFirstRecordAsHeader();
-        try (CSVParser data = CSVParser.parse(dataFile.getInputStream(), StandardCharsets.UTF_8, format)) {
-            data.forEach(row -> {
-                try {
-                    this.parseRow(row, patch);
-                } catch (PersistenceException e) {
-                    LOGGER.warn("Failed to import row: {}", e.getMessage());
-                }
-            });
-        }
-        final Session session = request.getResourceResolver().adaptTo(Session.class);
-        session.save();
-        final VersionManager vm = session.getWorkspace().getVersionManager();
-        this.nodesToCheckin.get().forEach(node -> {
-            try {
-                vm.checkin(node);
-            } catch (RepositoryException e) {
-                LOGGER.warn("Failed to check in node {}: {}", node, e.getMessage(), e);
+        final ImportSource dataFile = getDataSource(request);
+        final String questionnairePath = getQuestionnaire(request);
+        final DataImporter importer =
+            new DataImporter(request.getResourceResolver(), questionnairePath, subjectTypesParam, patch);
+        if (patch) {
+            try (CSVParser data = parseCsv(dataFile)) {
+                importer.prefetch(DataImporter.asRows(data));
             }
-        });
-    }
+        }
 
-    /**
-     * Parses and stores one row of data into a {@code Form} node.
-     *
-     * @param row the row to parse
-     * @param patch if {@code true}, try to find and update an existing form; if {@code false}, a new form is created
-     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
-     */
-    private void parseRow(CSVRecord row, boolean patch) throws PersistenceException
-    {
-        this.cachedAnswers.set(new HashMap<>());
-        final Resource form = getOrCreateForm(row, patch);
-        if (form == null) {
+        final long batchSize = getBatchSize(request);
+        final int workers = getWorkers(request);
+        if (workers > 1) {
+            parseDataInParallel(importer, request, response, subjectTypesParam, questionnairePath, patch, batchSize,
+                workers);
             return;
         }
-        row.toMap().forEach((fieldName, fieldValue) -> {
-            try {
-                if (StringUtils.isBlank(fieldValue)) {
-                    return;
+        final Writer progress = batchSize > 0 ? response.getWriter() : null;
+        if (progress != null) {
+            response.setContentType("text/plain");
+            response.setCharacterEncoding("UTF-8");
+        }
+
+        long totalRows = 0;
+        long failedRows = 0;
+        long rowsInBatch = 0;
+        long batchNumber = 0;
+        try (CSVParser data = parseCsv(dataFile)) {
+            importer.getPlan().bindColumns(data.getHeaderMap().keySet());
+            for (CSVRecord row : data) {
+                if (!importer.importRow(row.getRecordNumber(), row.toMap())) {
+                    ++failedRows;
                 }
-
-                if (fieldName.endsWith(NOTE_SUFFIX)) {
-                    parseNote(fieldName.trim(), fieldValue, form);
-                } else {
-                    parseAnswer(fieldName.trim(), fieldValue, form);
+                ++totalRows;
+                if (batchSize > 0 && ++rowsInBatch >= batchSize) {
+                    importer.commit();
+                    reportProgress(progress, ++batchNumber, rowsInBatch, totalRows);
+                    rowsInBatch = 0;
                 }
-            } catch (PersistenceException | RepositoryException e) {
-                LOGGER.warn("Failed to parse row [{}]: {}", row.getRecordNumber(), e.getMessage());
             }
-        });
-        this.nodesToCheckin.get().add(form.getPath());
-    }
-
-    /**
-     * Parse and store a note to an Answer. This will reuse the answer if it already exists.
-     *
-     * @param fieldName the column name for this field
-     * @param fieldValue the raw value for this field
-     * @param form the Form that this Answer belongs to
-     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
-     * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
-     */
-    private void parseNote(String fieldName, String fieldValue, Resource form)
-        throws PersistenceException, RepositoryException
-    {
-        // Truncate the suffix from the fieldName before finding the related question
-        String fieldNamePrefix = fieldName.substring(0, fieldName.length() - NOTE_SUFFIX.length());
-        Node question = getQuestion(fieldNamePrefix);
-        if (question == null) {
-            return;
         }
-
-        Resource answer = getOrCreateAnswer(form, question);
-        answer.adaptTo(Node.class).setProperty(NOTE_PROPERTY, fieldValue);
+        importer.commit();
+        if (rowsInBatch > 0) {
+            reportProgress(progress, ++batchNumber, rowsInBatch, totalRows);
+        }
+        LOGGER.info("Imported {} rows in total, {} failed rows", totalRows, failedRows);
+        if (progress != null) {
+            progress.write(String.format("Imported %d rows in total, %d failed rows%n", totalRows, failedRows));
+            progress.flush();
+        }
     }
 
     /**
-     * Parses and stores one Answer.
+     * Checks if the request holds forms in the NDJSON format, instead of TSV data.
      *
-     * @param fieldName the column name for this field
-     * @param fieldValue the raw value for this field
-     * @param form the Form that this Answer belongs to
-     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
-     * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
+     * @param request the current request
+     * @return {@code true} if the data must be imported with {@link #parseForms}
      */
-    private void parseAnswer(String fieldName, String fieldValue, Resource form)
-        throws PersistenceException, RepositoryException
+    private boolean isFormsImport(final SlingHttpServletRequest request)
     {
-        Node question = getQuestion(fieldName);
-        if (question == null) {
-            return;
-        }
-
-        Resource answer = getOrCreateAnswer(form, question);
-
-        if (question.getProperty("maxAnswers").getLong() == 0) {
-            String[] rawValues = fieldValue.split("\n");
-            Value[] values = new Value[rawValues.length];
-            for (int i = 0; i < rawValues.length; ++i) {
-                values[i] = parseAnswerValue(rawValues[i].trim(), question);
-            }
-            answer.adaptTo(Node.class).setProperty(VALUE_PROPERTY, values);
-        } else {
-            answer.adaptTo(Node.class).setProperty(VALUE_PROPERTY, parseAnswerValue(fieldValue.trim(), question));
-        }
+        return StringUtils.startsWithIgnoreCase(request.getContentType(), NDJSON_CONTENT_TYPE)
+            || StringUtils.equals("ndjson", request.getParameter(":format"))
+            || StringUtils.endsWithAny(StringUtils.lowerCase(request.getParameter(FILE_PARAMETER)), ".ndjson",
+                ".jsonl");
     }
 
     /**
-     * Finds the question corresponding to a field in the current row.
+     * Parses forms serialized in the bare JSON format, one form per line, either from the request body, or from the
+     * uploaded or local data file. Lines are read and imported one at a time, and the progress is reported in the
+     * response after each batch.
      *
-     * @param columnName the name of the column in the CSV
-     * @return the corresponding question node, or {@code null} if no question can be automatically identified from the
-     *         given column name
+     * @param request the request to process, holding the needed request data
+     * @param response the response where the import progress is reported
+     * @param subjectTypesParam the paths to the subject types of the forms
+     * @throws IOException if getting the data from the request or writing the response fails
+     * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
      */
-    private Node getQuestion(String columnName)
+    private void parseForms(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
+        final String[] subjectTypesParam) throws IOException, RepositoryException
     {
-        Map<String, Node> cache = this.questionCache.get();
-        try {
-            if (!cache.containsKey(columnName)) {
-                String query =
-                    String.format("select n from [cards:Question] as n where isdescendantnode(n,'%s') and ",
-                        SearchUtils.escapeQueryArgument(this.questionnaire.get().getPath()));
-
-                // checking if NAME(n) = <an invalid identifier> will cause the entire query to fail
-                // instead, we'll form the query differently depending on whether or not it is a valid JCR name
-                if (SearchUtils.isValidNodeName(columnName)) {
-                    query += String.format("(n.text = '%s' or NAME(n) = '%s')",
-                        SearchUtils.escapeQueryArgument(columnName),
-                        SearchUtils.escapeQueryArgument(columnName));
-                } else {
-                    query += String.format("n.text = '%s'",
-                        SearchUtils.escapeQueryArgument(columnName));
+        final FormJsonImporter importer = new FormJsonImporter(request.getResourceResolver(), subjectTypesParam,
+            StringUtils.trimToNull(request.getParameter(":questionnaire")));
+        final long requestedBatchSize = getBatchSize(request);
+        final long batchSize = requestedBatchSize > 0 ? requestedBatchSize : DEFAULT_FORMS_BATCH_SIZE;
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        final Writer progress = response.getWriter();
+
+        long lineNumber = 0;
+        long totalForms = 0;
+        long failedForms = 0;
+        long formsInBatch = 0;
+        long batchNumber = 0;
+        try (InputStream data = StringUtils.startsWithIgnoreCase(request.getContentType(), NDJSON_CONTENT_TYPE)
+            ? request.getInputStream() : getDataSource(request).open();
+            BufferedReader lines = new BufferedReader(new InputStreamReader(data, StandardCharsets.UTF_8))) {
+            for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                ++lineNumber;
+                if (StringUtils.isBlank(line)) {
+                    continue;
                 }
-
-                Iterator<Resource> results = this.resolver.get().findResources(query, "JCR-SQL2");
-                if (!results.hasNext()) {
-                    cache.put(columnName, null);
-                } else {
-                    cache.put(columnName, results.next().adaptTo(Node.class));
+                if (!importer.importForm(lineNumber, line)) {
+                    ++failedForms;
+                }
+                ++totalForms;
+                if (++formsInBatch >= batchSize) {
+                    importer.commit();
+                    reportProgress(progress, ++batchNumber, formsInBatch, totalForms);
+                    formsInBatch = 0;
                 }
             }
-        } catch (RepositoryException e) {
-            LOGGER.warn("Unexpected exception while searching for the question [{}]: {}", columnName, e.getMessage());
         }
-
-        Node question = cache.get(columnName);
-        if (question == null) {
-            if (this.warnedCache.get().add(columnName)) {
-                LOGGER.info("Unknown field: {}", columnName);
-            }
+        importer.commit();
+        if (formsInBatch > 0) {
+            reportProgress(progress, ++batchNumber, formsInBatch, totalForms);
         }
-        return question;
+        progress.write(String.format("Imported %d forms in total, %d failed forms%n", totalForms, failedForms));
+        progress.flush();
     }
 
     /**
-     * Returns a Resource for storing an Answer corresponding to the given question. This may be an existing node, if
-     * one already exists in this form, or a newly created one otherwise.
-     * <p>
-     * FIXME This needs to be revisited to add support for repeated sections.
-     * </p>
+     * Parses the uploaded data file using several workers in parallel, each one with its own session, and reports the
+     * statistics of each worker in the response.
      *
-     * @param form the form being processed
-     * @param question the question being answered
-     * @throws RepositoryException if accessing the resource fails due to repository errors
-     * @throws PersistenceException if creating a new resource fails due to repository errors
+     * @param importer the importer prepared for the current request, used for reading the rows
+     * @param request the request to process, holding the needed request data
+     * @param response the response where the statistics are reported
+     * @param subjectTypesParam the paths to the subject types identified in each row
+     * @param questionnairePath the path to the questionnaire that the data is for
+     * @param patch if {@code true}, try to update existing nodes when possible; if {@code false}, new forms are always
+     *            created
+     * @param batchSize if positive, each worker saves its changes after every {@code batchSize} rows
+     * @param workers the number of workers to use
+     * @throws IOException if getting the data from the request or writing the response fails
      */
-    private Resource getOrCreateAnswer(final Resource form, final Node question)
-        throws RepositoryException, PersistenceException
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    private void parseDataInParallel(final DataImporter importer, final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response, final String[] subjectTypesParam, final String questionnairePath,
+        final boolean patch, final long batchSize, final int workers) throws IOException
     {
-        if (this.cachedAnswers.get().containsKey(question.getIdentifier())) {
-            return this.cachedAnswers.get().get(question.getIdentifier());
-        }
+        // The prefetch only holds paths, so it can be shared by all the workers
+        final ImportPrefetch sharedPrefetch = importer.getPrefetch();
+        // Rows are partitioned by the identifier of their top level subject, which also holds all the lower level
+        // subjects and all the forms for those subjects
+        final PartitionedImportEngine<CSVRecord> engine = new PartitionedImportEngine<>(request.getResourceResolver(),
+            workers, batchSize, row -> importer.getTopLevelSubjectId(row.toMap()), workerResolver -> {
+                final DataImporter workerImporter =
+                    new DataImporter(workerResolver, questionnairePath, subjectTypesParam, patch);
+                workerImporter.setPrefetch(sharedPrefetch);
+                return new PartitionedImportEngine.RowImporter<CSVRecord>()
+                {
+                    @Override
+                    public boolean importRow(final CSVRecord row)
+                    {
+                        return workerImporter.importRow(row.getRecordNumber(), row.toMap());
+                    }
 
-        final String query =
-            String.format("select n from [cards:Answer] as n where n.question = '%s' and isdescendantnode(n,'%s')",
-                question.getIdentifier(), form.getPath());
-        Iterator<Resource> results = this.resolver.get().findResources(query, "JCR-SQL2");
-        if (results.hasNext()) {
-            return results.next();
-        }
+                    @Override
+                    public void commit() throws RepositoryException
+                    {
+                        workerImporter.commit();
+                    }
 
-        Map<String, Object> answerProperties = new HashMap<>();
-        answerProperties.put("jcr:primaryType", getAnswerNodeType(question));
-        answerProperties.put("question", question);
-        Resource answerParent = findOrCreateParent(form, question);
-        Resource newNode = this.resolver.get().create(answerParent, UUID.randomUUID().toString(), answerProperties);
-        this.cachedAnswers.get().put(question.getIdentifier(), newNode);
-        return newNode;
-    }
+                    @Override
+                    public void rollback() throws RepositoryException
+                    {
+                        workerImporter.rollback();
+                    }
+                };
+            });
 
-    /**
-     * Gets the parent node under which an answer must be stored. This can be either the form directly, or a (possibly
-     * nested) {@code AnswerSection}.
-     *
-     * @param form the form being processed
-     * @param question the question being answered
-     * @return the resource node under which the answer must be stored
-     * @throws PersistenceException if a new resource must be created, but doing so fails
-     * @throws RepositoryException if accessing the repository fails
-     */
-    private Resource findOrCreateParent(final Resource form, final Node question)
-        throws PersistenceException, RepositoryException
-    {
-        // Find all the intermediate sections between the question and the questionnaire, bottom-to-top
-        final Iterator<Node> sections = getAncestorSections(question);
-        // Create all the needed intermediate answer sections between the form and the answer, top-to-bottom
-        Resource answerParent = form;
-        while (sections.hasNext()) {
-            answerParent = getAnswerSection(sections.next(), answerParent);
-        }
-        return answerParent;
+        List<WorkerStatistics> statistics = Collections.emptyList();
+        try (CSVParser data = parseCsv(getDataSource(request))) {
+            statistics = engine.run(data);
+        } catch (InterruptedException e) {
+            LOGGER.warn("Data import interrupted");
+            Thread.currentThread().interrupt();
+        }
+
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        final Writer writer = response.getWriter();
+        long totalRows = 0;
+        long failedRows = 0;
+        for (WorkerStatistics worker : statistics) {
+            writer.write(worker.toString());
+            writer.write(System.lineSeparator());
+            totalRows += worker.getRows();
+            failedRows += worker.getFailedRows();
+        }
+        writer.write(String.format("Imported %d rows in total, %d failed rows%n", totalRows, failedRows));
+        writer.flush();
     }
 
     /**
-     * Returns an iterator over the ancestor sections, in descending order from the questionnaire down to the question
-     * itself. The iterator may be empty, if the question is a direct child of the questionnaire.
+     * Imports a zip archive holding several data files, and reports the statistics for each file in the response. An
+     * uploaded archive is copied to a temporary file first, so that its entries can be read independently, without
+     * unpacking them; an archive from the drop directory is read in place.
      *
-     * @param question the question whose ancestors are to be retrieved
-     * @return an iterator over {@code Section} nodes, may be empty
-     * @throws RepositoryException if accessing the repository fails
+     * @param request the request to process, holding the needed request data
+     * @param response the response where the statistics are reported
+     * @param patch if {@code true}, try to update existing nodes when possible; if {@code false}, new forms are always
+     *            created
+     * @throws IOException if getting the data from the request or writing the response fails
+     * @throws RepositoryException if resolving the subjects fails
      */
-    private Iterator<Node> getAncestorSections(final Node question) throws RepositoryException
+    private void parseBundle(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
+        final boolean patch) throws IOException, RepositoryException
     {
-        Node questionParent = question.getParent();
-        final Deque<Node> sections = new LinkedList<>();
-        while (!"cards:Questionnaire".equals(questionParent.getPrimaryNodeType().getName())) {
-            sections.push(questionParent);
-            questionParent = questionParent.getParent();
+        final RequestParameter upload = request.getRequestParameter(BUNDLE_PARAMETER);
+        if (upload == null) {
+            parseBundle(request, response, patch, LocalImportSource.resolve(request.getParameter(FILE_PARAMETER))
+                .getFile());
+            return;
         }
-        return sections.iterator();
-    }
-
-    /**
-     * Finds or creates an {@code AnswerSection} node under {@code parent} corresponding to the given {@code section}.
-     *
-     * @param section the questionnaire section to be answered
-     * @param parent the parent node in which to look for the answer section, either a {@code Form} or another
-     *            {@code AnswerSection}
-     * @return a resource of type {@code cards:AnswerSection} referencing the given questionnaire section, either one
-     *         that already existed, or a newly created one
-     * @throws PersistenceException if a new resource must be created, but doing so fails
-     * @throws RepositoryException if accessing the repository fails
-     */
-    private Resource getAnswerSection(final Node section, final Resource parent)
-        throws PersistenceException, RepositoryException
-    {
-        String sectionRef = section.getProperty("jcr:uuid").getString();
-        Resource answerSection = null;
-        Resource result = null;
-        Iterator<Resource> children = parent.listChildren();
-        while (children.hasNext()) {
-            Resource child = children.next();
-            if (sectionRef.equals(child.getValueMap().get("section", ""))) {
-                answerSection = child;
-                break;
+        final Path archiveFile = Files.createTempFile("cards-import-", ".zip");
+        try {
+            try (InputStream in = upload.getInputStream()) {
+                Files.copy(in, archiveFile, StandardCopyOption.REPLACE_EXISTING);
             }
+            parseBundle(request, response, patch, archiveFile);
+        } finally {
+            Files.deleteIfExists(archiveFile);
         }
-        if (answerSection != null) {
-            result = answerSection;
-        } else {
-            Map<String, Object> answerSectionProperties = new HashMap<>();
-            answerSectionProperties.put("jcr:primaryType", "cards:AnswerSection");
-            answerSectionProperties.put("section", section);
-            result = this.resolver.get().create(parent, UUID.randomUUID().toString(), answerSectionProperties);
-        }
-        return result;
     }
 
     /**
-     * Computes the right node type for storing an Answer, based on the configuration of its Question.
+     * Imports a zip archive stored on the local disk, and reports the statistics for each file in the response.
      *
-     * @param question the question that is being answered, where the Answer configuration is defined
-     * @return a value to use for the {@code jcr:primaryType} of the Answer node to be created
-     * @throws RepositoryException if accessing the resource fails due to repository errors
+     * @param request the request to process, holding the needed request data
+     * @param response the response where the statistics are reported
+     * @param patch if {@code true}, try to update existing nodes when possible; if {@code false}, new forms are always
+     *            created
+     * @param archiveFile the archive to import
+     * @throws IOException if reading the archive or writing the response fails
+     * @throws RepositoryException if resolving the subjects fails
      */
-    private String getAnswerNodeType(final Node question) throws RepositoryException
+    private void parseBundle(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
+        final boolean patch, final Path archiveFile) throws IOException, RepositoryException
     {
-        final String dataType = question.getProperty("dataType").getString();
-        String result;
-        switch (dataType) {
-            case "long":
-                result = "cards:LongAnswer";
-                break;
-            case "double":
-                result = "cards:DoubleAnswer";
-                break;
-            case "decimal":
-                result = "cards:DecimalAnswer";
-                break;
-            case "boolean":
-                result = "cards:BooleanAnswer";
-                break;
-            case "date":
-                result = "cards:DateAnswer";
-                break;
-            case "time":
-                result = "cards:TimeAnswer";
-                break;
-            case "vocabulary":
-                result = "cards:VocabularyAnswer";
-                break;
-            case "text":
-            default:
-                result = "cards:TextAnswer";
-        }
-        return result;
+        List<EntryStatistics> statistics = Collections.emptyList();
+        try (ZipFile archive = new ZipFile(archiveFile.toFile(), StandardCharsets.UTF_8)) {
+            final BundleImporter importer =
+                new BundleImporter(request.getResourceResolver(), archive, patch, getBatchSize(request));
+            final ImportPrefetch subjects = importer.resolveSubjects();
+            final int workers = StringUtils.isBlank(request.getParameter(WORKERS_PARAMETER))
+                ? Runtime.getRuntime().availableProcessors() : getWorkers(request);
+            statistics = importer.importEntries(subjects, workers);
+        } catch (InterruptedException e) {
+            LOGGER.warn("Data import interrupted");
+            Thread.currentThread().interrupt();
+        }
+
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        final Writer writer = response.getWriter();
+        long totalRows = 0;
+        long failedRows = 0;
+        for (EntryStatistics entry : statistics) {
+            writer.write(entry.toString());
+            writer.write(System.lineSeparator());
+            totalRows += entry.getRows();
+            failedRows += entry.getFailedRows();
+        }
+        writer.write(String.format("Imported %d rows in total, %d failed rows%n", totalRows, failedRows));
+        writer.flush();
     }
 
     /**
-     * Converts a text read from the input CSV into a properly typed value to store in the repository.
+     * Stores the uploaded data file and submits a background job for importing it. Only users allowed to create forms
+     * and subjects can submit imports; the job runs with a service user, but only uses or modifies the existing
+     * subjects and forms that the submitter is allowed to, see {@link ImportAccessCheck}.
      *
-     * @param rawValue the serialized value to parse, may be {@code null}
-     * @param question the question that is being answered, where the Answer configuration is defined
-     * @return a typed Value to store in the repository
-     * @throws RepositoryException if accessing the resource fails due to repository errors
+     * @param request the request to process, holding the needed request data
+     * @param response the response where the identifier of the import job is sent
+     * @param subjectTypesParam the paths to the subject types identified in each row
+     * @param patch if {@code true}, try to update existing nodes when possible; if {@code false}, new forms are always
+     *            created
+     * @throws IOException if storing the data fails
+     * @throws RepositoryException if checking the rights of the current user fails
      */
-    private Value parseAnswerValue(String rawValue, Node question) throws RepositoryException
+    private void submitData(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
+        final String[] subjectTypesParam, final boolean patch) throws IOException, RepositoryException
     {
-        final String dataType = question.getProperty("dataType").getString();
-        Value result = null;
-        try {
-            ValueFactory valueFactory = this.resolver.get().adaptTo(Session.class).getValueFactory();
-
-            switch (dataType) {
-                case "long":
-                    result = valueFactory.createValue(Long.valueOf(rawValue));
-                    break;
-                case "double":
-                    result = valueFactory.createValue(Double.valueOf(rawValue));
-                    break;
-                case "decimal":
-                    result = valueFactory.createValue(new BigDecimal(rawValue));
-                    break;
-                case "boolean":
-                    result = valueFactory.createValue(
-                        BooleanUtils.toInteger(BooleanUtils.toBooleanObject(rawValue), 1, 0, -1));
-                    break;
-                case "date":
-                    result = valueFactory.createValue(parseDate(rawValue));
-                    break;
-                case "text":
-                default:
-                    result = valueFactory.createValue(standardizeValue(rawValue, question));
-            }
-        } catch (NumberFormatException | NullPointerException e) {
-            LOGGER.warn("Invalid value of type {}: {}", dataType, rawValue);
-        } catch (RepositoryException e) {
-            LOGGER.warn("Value factory is unexpectedly unavailable: {}", e.getMessage());
-            return null;
+        final ImportSource dataFile = getDataSource(request);
+        final String questionnairePath = getQuestionnaire(request);
+        final Session session = request.getResourceResolver().adaptTo(Session.class);
+        if (!session.hasPermission("/Forms", Session.ACTION_ADD_NODE)
+            || !session.hasPermission("/Subjects", Session.ACTION_ADD_NODE)
+            || request.getResourceResolver().getResource(questionnairePath) == null) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
         }
-        return result;
-    }
 
-    /**
-     * Parses a date from the given input string.
-     *
-     * @param str the serialized date to parse
-     * @return the parsed date, or {@code null} if the date cannot be parsed
-     */
-    private Calendar parseDate(final String str)
-    {
-        final Date date = DATE_FORMATS.stream().map(format -> {
-            try {
-                return format.parse(str);
-            } catch (Exception ex) {
-                return null;
-            }
-        }).filter(Objects::nonNull).findFirst().orElse(null);
-        if (date == null) {
-            return null;
-        }
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(date);
-        return calendar;
+        final String id;
+        try (InputStream data = dataFile.open()) {
+            id = this.importJobs.submit(data, request.getRemoteUser(), questionnairePath, subjectTypesParam, patch,
+                getBatchSize(request));
+        }
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        final Writer writer = response.getWriter();
+        writer.write(Json.createObjectBuilder()
+            .add("id", id)
+            .add("status", request.getResource().getPath() + ".importStatus.json?id=" + id)
+            .build().toString());
+        writer.flush();
     }
 
     /**
-     * Converts user-facing labels to the stored value, if the question being answered has a list of default options,
-     * and one of the options has a label or value matching (case insensitive) the parsed value. To allow for different
-     * options that differ only in their case, priority is given, in order, to:
-     * <ol>
-     * <li>Exact match of a value, which means that the input file already stored the correct value</li>
-     * <li>Case-insensitive match of a value</li>
-     * <li>Case-sensitive match of a label</li>
-     * <li>Case-insensitive match of a label</li>
-     * </ol>
+     * Gets the data to import, either a file from the drop directory, from the {@code :file} request parameter, or the
+     * uploaded file from the {@code :data} request parameter.
      *
-     * @param value the value as read from the input file
-     * @param question the question that is being answered, where the Answer configuration is defined
-     * @return an equivalent standard value to be stored, may be the same as the input value
+     * @param request the current request
+     * @return the source of the data to import
+     * @throws IOException if the requested local file cannot be accessed
      */
-    private String standardizeValue(final String value, Node question)
+    private ImportSource getDataSource(final SlingHttpServletRequest request) throws IOException
     {
-        String result = null;
-        try {
-            for (String prop : new String[] { VALUE_PROPERTY, LABEL_PROPERTY }) {
-                NodeIterator childNodes = question.getNodes();
-                while (childNodes.hasNext()) {
-                    Node childNode = childNodes.nextNode();
-                    if (!"cards:AnswerOption".equals(childNode.getPrimaryNodeType().getName())
-                        || !childNode.hasProperty(prop)) {
-                        continue;
-                    }
-                    if (StringUtils.equals(value, childNode.getProperty(prop).getString())) {
-                        // We found an exact match for a known option, no need to do any further processing
-                        return childNode.getProperty(VALUE_PROPERTY).getString();
-                    } else if (StringUtils.equalsIgnoreCase(value, childNode.getProperty(prop).getString())) {
-                        result = childNode.getProperty(VALUE_PROPERTY).getString();
-                    }
-                }
-                if (result != null) {
-                    // We found a case-insensitive value match, return it
-                    return result;
-                }
-            }
-            return value;
-        } catch (RepositoryException ex) {
-            LOGGER.warn("Unexpected error while standardizing value [{}] for question [{}]: {}", value, question,
-                ex.getMessage());
+        final String localFile = request.getParameter(FILE_PARAMETER);
+        if (StringUtils.isNotBlank(localFile)) {
+            return LocalImportSource.resolve(localFile);
         }
-        return result;
+        final RequestParameter dataFile = request.getRequestParameter(":data");
+        if (dataFile == null) {
+            throw new IllegalArgumentException("Required parameter \":data\" missing");
+        }
+        return dataFile::getInputStream;
     }
 
     /**
-     * Returns a Resource for storing a form corresponding to the given data row. This may be an existing node, if
-     * {@code patch == true} and one already exists for the targeted questionnaire and subject, or a newly created one
-     * otherwise.
+     * Gets the path to the target questionnaire from the {@code :questionnaire} request parameter.
      *
-     * @param row the input CSV row to process, where the affected Subject identifier is to be found
-     * @param patch if {@code true}, try to find an existing form; otherwise, force the creation of a new node in the
-     *            repository
-     * @return the Resource to use for storing the row
-     * @throws PersistenceException if creating a new Resource fails
+     * @param request the current request
+     * @return the path to the questionnaire
      */
-    private Resource getOrCreateForm(final CSVRecord row, boolean patch) throws PersistenceException
+    private String getQuestionnaire(final SlingHttpServletRequest request)
     {
-        final Node subject = getOrCreateSubject(row);
-        if (subject == null) {
-            LOGGER.warn("Cannot determine subject for row #{}", row.getRecordNumber());
-            return null;
-        }
-        Resource result = null;
-        if (patch) {
-            result = findForm(subject);
-        }
-        if (result == null) {
-            final Map<String, Object> formProperties = new HashMap<>();
-            formProperties.put("jcr:primaryType", "cards:Form");
-            formProperties.put("questionnaire", this.questionnaire.get());
-            formProperties.put("subject", subject);
-            result = this.resolver.get().create(this.formsHomepage.get(), UUID.randomUUID().toString(), formProperties);
-        } else {
-            try {
-                result.adaptTo(Node.class).getSession().getWorkspace().getVersionManager().checkout(result.getPath());
-            } catch (RepositoryException e) {
-                LOGGER.warn("Failed to checkout form {}: {}", result.getPath(), e.getMessage(), e);
-            }
+        final String questionnairePath = request.getParameter(":questionnaire");
+        if (StringUtils.isBlank(questionnairePath)) {
+            throw new IllegalArgumentException("Required parameter \":questionnaire\" missing");
         }
-        return result;
+        return questionnairePath;
     }
 
     /**
-     * Finds an existing form for the given questionnaire and subject.
+     * Opens the data file for reading.
      *
-     * @param subject the subject for which the Form is completed
-     * @return an existing resource matching the targeted questionnaire and subject, or {@code null} if such a resource
-     *         doesn't exist yet
+     * @param dataFile the data file to import
+     * @return a parser for the rows of the data file, must be closed by the caller
+     * @throws IOException if opening the data fails
      */
-    private Resource findForm(final Node subject)
+    private CSVParser parseCsv(final ImportSource dataFile) throws IOException
     {
-        try {
-            final String query =
-                String.format("select n from [cards:Form] as n where n.subject = '%s' and n.questionnaire = '%s'",
-                    subject.getIdentifier(), this.questionnaire.get().getIdentifier());
-            final Iterator<Resource> results = this.resolver.get().findResources(query, "JCR-SQL2");
-            if (results.hasNext()) {
-                return results.next();
-            }
-        } catch (RepositoryException e) {
-            LOGGER.warn("Unexpected exception while searching for a form: {}", e.getMessage());
-            e.printStackTrace();
-        }
-        return null;
+        return CSVParser.parse(dataFile.open(), StandardCharsets.UTF_8,
+            CSVFormat.TDF.withFirstRecordAsHeader());
     }
 
     /**
-     * Returns the Node where a specific Subject is stored. If the Subject wasn't already stored in the repository, a
-     * new node is created for it and returned.
+     * Reports that a batch of rows has been saved, both in the logs and in the response.
      *
-     * @param row the input CSV row to process, where the affected Subject identifier is to be found
-     * @return the Resource where the Subject is stored; may be an existing or a newly created resource; may be
-     *         {@code null} if a Subject identifier is not present in the row
+     * @param progress the writer where the progress is reported, may be {@code null} if the import isn't done in
+     *            batches
+     * @param batchNumber the 1-based number of the batch that was just saved
+     * @param batchRows the number of rows in the batch that was just saved
+     * @param totalRows the total number of rows processed so far
+     * @throws IOException if writing to the response fails
      */
-    private Node getOrCreateSubject(final CSVRecord row)
-    // For each subject type, identify the target subject
-    // Given a parent subject (initially null) & a subject type path:
-    // 1. get the Node for the subject type (cached for future rows)
-    // 2. read label, look for a column with that label or label + “ ID” in the row, get value
-    // 3. search for a Subject with the right type, parent, and identifier
-    // If found, use it as the current subject. If not, create it,
-    // specifying the type, parent, and identifier, and use it as the current subject.
-    // Update the parent variable to be the current subject.
-    // If there are more entries in the subject types list, recurse with the new parent and new subject type.
-    // When the whole list of subject types is processed, return current subject as the subject to use for the row.
+    private void reportProgress(final Writer progress, final long batchNumber, final long batchRows,
+        final long totalRows) throws IOException
     {
-        Node previous = null;
-        Node current = null;
-        for (String type : this.subjectTypes.get()) {
-            current = getOrCreateSubject(row, type, current);
-            // If this subject identifier is empty, then the last used subject type
-            // e.g. If a patient and tumor is specified but no tumor region, then we instead want to create/use
-            // the tumor ID
-            if (current == null) {
-                return previous;
-            }
-            previous = current;
+        LOGGER.info("Imported batch {} with {} rows, {} rows imported so far", batchNumber, batchRows, totalRows);
+        if (progress != null) {
+            progress.write(String.format("Batch %d: imported %d rows, %d rows in total%n",
+                batchNumber, batchRows, totalRows));
+            progress.flush();
         }
-        return current;
     }
 
-    private Node getOrCreateSubject(CSVRecord row, String type, Node parent)
-    {
-        // Find the subject corresponding to this
-        Node typeNode = this.resolver.get().getResource(type).adaptTo(Node.class);
-        String subjectId = findSubjectId(row, typeNode);
-        if (StringUtils.isBlank(subjectId)) {
-            return null;
-        }
-        String subjectTypeString = type;
-        String subjectKey = subjectId.concat(subjectTypeString);
-        if (parent != null) {
-            try {
-                subjectKey = parent.getProperty("identifier").getString().concat(subjectKey);
-            } catch (RepositoryException ex) {
-                // No change
-            }
-        }
-
-        Node subject = findSubject(subjectKey, subjectId, typeNode, parent);
-        if (subject != null) {
-            return subject;
-        }
-
-        // Create a new subject
-        return createSubject(subjectKey, subjectId, typeNode, parent);
-    }
-
-    /***
-     * Find a subject with the given parameters.
+    /**
+     * Reads the requested batch size from the {@code :batchSize} request parameter.
      *
-     * @param subjectKey A key for this subject to search the cache for
-     * @param subjectId The identifier of the subject
-     * @param typeNode The Node of the cards:SubjectType for the subject
-     * @param parent The parent cards:Subject for this subject
-     * @return A subject Node if it exists, or null.
+     * @param request the current request
+     * @return a positive number if the import must be saved in batches of that size, or {@code 0} if all the rows must
+     *         be saved at once
+     * @throws IllegalArgumentException if the parameter is not a number, or is negative
      */
-    private Node findSubject(String subjectKey, String subjectId, Node typeNode, Node parent)
+    private long getBatchSize(final SlingHttpServletRequest request)
     {
-        // Load a cached version if we already have one
-        Map<String, Node> cache = this.subjectCache.get();
-        if (cache.containsKey(subjectKey)) {
-            return cache.get(subjectKey);
+        final String batchSize = request.getParameter(BATCH_SIZE_PARAMETER);
+        if (StringUtils.isBlank(batchSize)) {
+            return 0;
         }
-
-        String query = String.format("select n from [cards:Subject] as n where n.identifier = '%s'",
-            SearchUtils.escapeQueryArgument(subjectId));
+        long result = -1;
         try {
-            if (typeNode != null) {
-                query += " and n.type = '" + typeNode.getProperty("jcr:uuid").getValue() + "'";
-            }
-            if (parent != null) {
-                query += " and ischildnode(n, '" + parent.getPath() + "')";
-            }
-        } catch (RepositoryException ex) {
-            // No change to query
-        }
-
-        try {
-            Query queryObj = this.queryManager.get().createQuery(query, "JCR-SQL2");
-            queryObj.setLimit(1);
-            NodeIterator nodeResult = queryObj.execute().getNodes();
-
-            // If a result was found, cache it and return
-            if (nodeResult.hasNext()) {
-                Node subject = nodeResult.nextNode();
-                cache.put(subjectKey, subject);
-                return subject;
-            }
-        } catch (RepositoryException ex) {
-            // Could not find subject, return null
-        }
-        return null;
-    }
-
-    /***
-     * Create a new subject.
-     *
-     * @param subjectId The identifier for the subject
-     * @param typeNode The node of the cards:SubjectType for this subject
-     * @param parent The parent of this subject
-     * @param subjectKey A string to identify this subject by in the cache
-     * @return A new subject Node if one could be made, or null.
-     */
-    private Node createSubject(String subjectKey, String subjectId, Node typeNode, Node parent)
-    {
-        final Map<String, Object> subjectProperties = new HashMap<>();
-        subjectProperties.put("jcr:primaryType", "cards:Subject");
-        subjectProperties.put("identifier", subjectId);
-        subjectProperties.put("type", typeNode);
-        if (parent != null) {
-            subjectProperties.put("parents", parent);
+            result = Long.parseLong(batchSize.trim());
+        } catch (NumberFormatException e) {
+            // Reported below
         }
-        try {
-            Resource parentResource = parent != null
-                ? this.resolver.get().getResource(parent.getPath())
-                : this.subjectsHomepage.get();
-            Node subject = this.resolver.get().create(parentResource, UUID.randomUUID().toString(), subjectProperties)
-                .adaptTo(Node.class);
-            this.subjectCache.get().put(subjectKey, subject);
-            this.nodesToCheckin.get().add(subject.getPath());
-            return subject;
-        } catch (PersistenceException e) {
-            LOGGER.warn("Failed to create new subject {}: {}", subjectKey, e.getMessage(), e);
-        } catch (RepositoryException e) {
-            LOGGER.warn("Failed to check in new subject {}: {}", subjectKey, e.getMessage(), e);
+        if (result < 0) {
+            throw new IllegalArgumentException("Invalid value for the \"" + BATCH_SIZE_PARAMETER + "\" parameter: "
+                + batchSize);
         }
-        return null;
+        return result;
     }
 
     /**
-     * Looks for a Subject Identifier in the given data row.
+     * Reads the requested number of parallel workers from the {@code :workers} request parameter.
      *
-     * @param row the input CSV row to process, where the affected Subject identifier is to be found
-     * @param typeNode Subject type node
-     * @return a subject identifier, or {@code null} if one cannot be found
+     * @param request the current request
+     * @return the number of workers to use, between 1 and the number of available processors
+     * @throws IllegalArgumentException if the parameter is not a number
      */
-    private String findSubjectId(CSVRecord row, Node typeNode)
+    private int getWorkers(final SlingHttpServletRequest request)
     {
-        String label;
-        try {
-            label = typeNode.getProperty("label").getString();
-        } catch (RepositoryException ex) {
-            return null;
+        final String workers = request.getParameter(WORKERS_PARAMETER);
+        if (StringUtils.isBlank(workers)) {
+            return 1;
         }
-
-        String result = null;
-        String[] suffixes = { "", " ID" };
-        for (String suffix : suffixes) {
-            try {
-                result = row.get(label + suffix);
-                if (StringUtils.isNotBlank(result)) {
-                    break;
-                }
-            } catch (IllegalArgumentException ex) {
-                // Column is not mapped, continue;
-            }
+        try {
+            return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), Integer.parseInt(workers.trim())));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for the \"" + WORKERS_PARAMETER + "\" parameter: "
+                + workers);
         }
-        return result;
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import io.uhndata.cards.dataentry.internal.importer.ImportJobStatus;
+import io.uhndata.cards.dataentry.internal.importer.ImportJobs;
+
+/**
+ * A servlet reporting the progress of a background data import, submitted with {@code :async=true} to the
+ * {@link DataImportServlet}. The response is a JSON object holding the state of the import, the number of rows
+ * processed and saved so far, the number of failed rows, the total number of rows, the current throughput, and the
+ * estimated number of seconds left. Only the user that submitted the import, and administrators, can see its status.
+ * <p>
+ * This servlet supports the following parameters:
+ * </p>
+ * <ul>
+ * <li><tt>id</tt>: the identifier of the import, as returned when submitting it; mandatory</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+@Component(service = { Servlet.class })
+@SlingServletResourceTypes(
+    resourceTypes = { "cards/FormsHomepage" },
+    selectors = { "importStatus" },
+    extensions = { "json" })
+public class DataImportStatusServlet extends SlingSafeMethodsServlet
+{
+    private static final long serialVersionUID = 6019283455762039140L;
+
+    @Reference
+    private ImportJobs importJobs;
+
+    @Override
+    public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException
+    {
+        final ImportJobStatus status = this.importJobs.getStatus(request.getParameter("id"));
+        if (status == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final String user = request.getRemoteUser();
+        if (!"admin".equals(user) && !StringUtils.equals(user, status.getUser())) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        final Writer out = response.getWriter();
+        out.write(status.toJson().toString());
+    }
+}
@@ -22,47 +22,125 @@
 import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.Property;
+import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.Workspace;
+import javax.jcr.Value;
 import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
 import javax.json.Json;
-import javax.json.JsonObject;
 import javax.json.stream.JsonGenerator;
 import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.dataentry.internal.answervalues.AnswerValues;
+import io.uhndata.cards.dataentry.internal.counts.FormCounters;
+import io.uhndata.cards.internal.PaginationCursor;
+import io.uhndata.cards.serialize.DereferencedNodes;
+import io.uhndata.cards.serialize.IncludedNodes;
+import io.uhndata.cards.serialize.JsonProjection;
+import io.uhndata.cards.serialize.ResourceJsonWriter;
+import io.uhndata.cards.serialize.SerializationScope;
+import io.uhndata.cards.spi.JcrQueryBuilder;
+import io.uhndata.cards.utils.QueryProfile;
+
 /**
  * A servlet that lists resources of a specific type, depending on which "homepage" resource the request is targeting.
  * <p>
  * This servlet supports the following parameters:
  * </p>
  * <ul>
- * <li><tt>offset</tt>: a 0-based number representing how many resources to skip; 0 by default</li>
+ * <li><tt>offset</tt>: a 0-based number representing how many resources to skip; 0 by default; since all the skipped
+ * resources must still be read, deep pages are slow, use {@code cursor} instead when possible</li>
+ * <li><tt>cursor</tt>: keyset pagination: the value of {@code next} from the previous page, or empty for the first
+ * page; the page starts right after the last resource of the previous page, found with a condition on the creation
+ * date, so deep pages cost the same as the first one; {@code offset} is ignored, and {@code totalrows} only counts
+ * the resources from the start of this page</li>
  * <li><tt>limit</tt>: a number representing how many resources to include at most in the result; 10 by default</li>
  * <li><tt>filter</tt>: a (lucene-like) search term, such as {@code germline}, {@code cancer OR tumor},
  * {@code (*blastoma OR *noma OR tumor*) recurrent}; no filter set by default</li>
  * <li><tt>includeallstatus</tt>: if true, incomplete forms will be included. Otherwise, they will be excluded unless
- * searched for directly using `fieldname="statusFlags"`
+ * searched for directly using `fieldname="statusFlags"`</li>
+ * <li><tt>count</tt>: how to compute {@code totalrows}:
+ * <ul>
+ * <li>{@code approximate}, the default: up to 10 pages of resources are fetched, and if there are more, the total is
+ * reported as approximate</li>
+ * <li>{@code estimate}: for simple form listings, only filtered by questionnaire or status, the total comes from the
+ * form counters maintained by {@link FormCounters}, otherwise from the size reported by the query index for the page
+ * query itself, if it supports it; estimates are cheap, but they also count the resources that the current user cannot
+ * access, and are marked with {@code totalIsEstimate}</li>
+ * <li>{@code exact}: the total is counted by a separate query, executed concurrently with fetching the page, or, for
+ * administrators and members of the {@code administrators} group, taken from the form counters; totals over
+ * {@value #MAX_EXACT_COUNT} are reported as approximate; since this costs a second query, it should only be requested
+ * when needed; at most {@value #COUNT_THREADS} counts run at the same time, concurrent requests for the same count by
+ * the same user share it, and when too many counts are waiting, the total is computed as with {@code approximate}</li>
  * </ul>
+ * When the total is known, only the requested page is fetched instead of 10 pages.</li>
+ * <li><tt>fields</tt>: only include these fields of each resource, instead of its full serialization, for example
+ * {@code fields=@path,jcr:created,questionnaire/title,subject/fullIdentifier}; see {@link JsonProjection}</li>
+ * <li><tt>normalize</tt>: if true, referenced nodes, such as the questionnaire and subject of forms, are not embedded
+ * in each resource, but serialized only once in a separate {@code included} object, keyed by their identifier, which
+ * the resources hold instead; see {@link IncludedNodes}</li>
+ * <li><tt>debug</tt>: if {@code explain}, the response also holds a {@code debug} object with the executed query,
+ * its plan, the number of rows read, the time spent in each phase, and how many serializations of referenced nodes
+ * were reused, shared by all the rows; see {@link QueryProfile} and {@link DereferencedNodes}</li>
+ * </ul>
+ * <p>
+ * Forms can also be filtered by their answers, with {@code joinchildren=cards:Answer} and the {@code filternames},
+ * {@code filtervalues}, {@code filtertypes}, {@code filtercomparators}, {@code filterempty} and {@code filternotempty}
+ * parameters. Once all forms hold the {@link AnswerValues denormalized answer values}, conditions on answer values are
+ * checked directly on the form node, instead of joining each form with its answers. Conditions on notes, and checks
+ * that a question is not answered, still use joins.
+ * </p>
+ * <p>
+ * Besides the matching resources, the response holds a {@code next} cursor pointing after the last returned resource,
+ * or {@code null} if there are no more resources, which can be used for requesting the next page.
+ * </p>
  *
  * @version $Id$
  */
@@ -80,46 +158,212 @@ public class PaginationServlet extends SlingSafeMethodsServlet
 
     private static final int QUERY_SIZE_MULTIPLIER = 10;
 
+    /** Above this number of resources, exact counting stops, and the total is reported as approximate. */
+    private static final long MAX_EXACT_COUNT = 100_000;
+
+    /** How long to wait for an exact count after the page was fetched, in seconds. */
+    private static final long COUNT_TIMEOUT = 30;
+
+    /** How many exact counts can run at the same time, for all requests. */
+    private static final int COUNT_THREADS = 4;
+
+    /** How many exact counts can wait for a thread; when full, no exact count is computed. */
+    private static final int COUNT_QUEUE_SIZE = 16;
+
+    private static final String COUNT_ESTIMATE = "estimate";
+
+    private static final String COUNT_EXACT = "exact";
+
+    private static final String STATUS_FLAGS = "statusFlags";
+
+    /** The group whose members can see all the forms, like the administrator. */
+    private static final String ADMINISTRATORS_GROUP = "administrators";
+
     // Allowed JCR-SQL2 operators (from https://docs.adobe.com/docs/en/spec/jcr/2.0/6_Query.html#6.7.17%20Operator)
     private static final List<String> COMPARATORS =
         Arrays.asList("=", "<>", "<", "<=", ">", ">=", "LIKE", "notes contain");
 
+    private static final String NOTES_CONTAIN = "notes contain";
+
     private static final String SUBJECT_IDENTIFIER = "cards:Subject";
     private static final String QUESTIONNAIRE_IDENTIFIER = "cards:Questionnaire";
     private static final String CREATED_DATE_IDENTIFIER = "cards:CreatedDate";
 
+    @Reference
+    private transient FormCounters formCounters;
+
+    @Reference
+    private transient ResourceJsonWriter jsonWriter;
+
+    /** Runs the exact counting queries concurrently with fetching the requested page. */
+    private final transient ThreadPoolExecutor countExecutor = new ThreadPoolExecutor(COUNT_THREADS, COUNT_THREADS,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(COUNT_QUEUE_SIZE), new ThreadPoolExecutor.AbortPolicy());
+
+    /** The exact counts running or waiting for a thread, keyed by user and query, shared by concurrent requests. */
+    private final transient Map<String, PendingCount> pendingCounts = new HashMap<>();
+
+    /**
+     * An exact count, shared by all the requests waiting for it. The count is cancelled once all of them gave up.
+     */
+    private static final class PendingCount extends FutureTask<Long>
+    {
+        /** The key of this count in {@link PaginationServlet#pendingCounts}, or {@code null} if it is not shared. */
+        private final String key;
+
+        /** The resolver of the separate session executing the count. */
+        private final ResourceResolver resolver;
+
+        /** Set when the count is cancelled, checked between rows instead of interrupting the counting thread. */
+        private final AtomicBoolean abandoned;
+
+        /** How many requests are still waiting for this count. */
+        private int waiters = 1;
+
+        PendingCount(final String key, final ResourceResolver resolver, final JcrQueryBuilder countQuery)
+        {
+            this(key, resolver, countQuery, new AtomicBoolean());
+        }
+
+        private PendingCount(final String key, final ResourceResolver resolver, final JcrQueryBuilder countQuery,
+            final AtomicBoolean abandoned)
+        {
+            super(() -> {
+                final Query query = countQuery.prepare(resolver.adaptTo(Session.class));
+                query.setLimit(MAX_EXACT_COUNT + 1);
+                final RowIterator rows = query.execute().getRows();
+                long count = 0;
+                while (rows.hasNext() && !abandoned.get()) {
+                    rows.nextRow();
+                    ++count;
+                }
+                return count;
+            });
+            this.key = key;
+            this.resolver = resolver;
+            this.abandoned = abandoned;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+            this.abandoned.set(true);
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done()
+        {
+            // Called once the count is finished, failed, or was cancelled, even before it started
+            this.resolver.close();
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        // Counts still waiting for a thread must be cancelled, so that their sessions are closed
+        this.countExecutor.shutdownNow().forEach(task -> ((Future<?>) task).cancel(false));
+    }
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
             throws IOException, IllegalArgumentException
     {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
+        try (QueryProfile profile =
+            QueryProfile.start("pagination", QueryProfile.isExplainRequested(request.getParameter("debug")))) {
+            writeListing(request, response, profile);
+        }
+    }
+
+    private void writeListing(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
+        final QueryProfile profile) throws IOException
+    {
         final long limit = getLongValueOrDefault(request.getParameter("limit"), 10);
-        final long offset = getLongValueOrDefault(request.getParameter("offset"), 0);
+        final String cursorParameter = request.getParameter("cursor");
+        final PaginationCursor cursor;
+        try {
+            cursor = StringUtils.isBlank(cursorParameter) ? null : PaginationCursor.decode(cursorParameter);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        // In keyset mode, the start of the page is given by the cursor, not by an offset
+        final long offset = cursorParameter != null ? 0 : getLongValueOrDefault(request.getParameter("offset"), 0);
 
-        String finalquery = createQuery(request);
+        final JcrQueryBuilder query;
+        try {
+            query = createQuery(request, cursor, true);
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        // The total number of matching resources, if known in advance, and whether it is just an estimate
+        final String countMode = request.getParameter("count");
+        long total = -1;
+        boolean totalIsEstimate = false;
+        PendingCount exactTotal = null;
+        if (COUNT_ESTIMATE.equals(countMode) || COUNT_EXACT.equals(countMode)) {
+            // The counters include all forms, so they are only exact for those who can see all forms
+            totalIsEstimate = COUNT_ESTIMATE.equals(countMode);
+            total = countWithCounters(request, totalIsEstimate || canSeeAllForms(request.getResourceResolver()));
+            if (total < 0 && !totalIsEstimate) {
+                exactTotal = startExactCount(request);
+            }
+        }
 
         Iterator<Resource> results;
         //Using a QueryManager doesn't always work, but it is faster
         Session session = null;
         try {
-            //Get a QueryManager object
             ResourceResolver resolver = request.getResourceResolver();
             session = resolver.adaptTo(Session.class);
-            Workspace workspace = session.getWorkspace();
-            QueryManager queryManager = workspace.getQueryManager();
 
             //Create the Query object
-            Query filterQuery = queryManager.createQuery(finalquery, "JCR-SQL2");
+            final Query filterQuery;
+            final QueryProfile.Timer prepareTimer = profile.time(QueryProfile.PREPARE);
+            try {
+                filterQuery = query.prepare(session);
+            } finally {
+                prepareTimer.stop();
+            }
+            profile.addQuery(query.getStatement(), Query.JCR_SQL2, session,
+                query.getBindings(session.getValueFactory()));
+
+            // The size reported by the index is capped by the query's limit, so when the total is estimated from
+            // the index, the limit is only applied while reading the results
+            final boolean estimateFromIndex = total < 0 && totalIsEstimate;
 
             //Set the limit and offset here to improve query performance
-            filterQuery.setLimit((QUERY_SIZE_MULTIPLIER * limit) + 1);
+            if (!estimateFromIndex) {
+                filterQuery.setLimit(getFetchLimit(limit, cursor, total >= 0 || exactTotal != null));
+            }
             filterQuery.setOffset(offset);
 
             //Execute the query
-            QueryResult filterResult = filterQuery.execute();
-            results = new ResourceIterator(request.getResourceResolver(), filterResult.getNodes());
+            final QueryResult filterResult;
+            final QueryProfile.Timer executeTimer = profile.time(QueryProfile.EXECUTE);
+            try {
+                filterResult = filterQuery.execute();
+            } finally {
+                executeTimer.stop();
+            }
+            final NodeIterator nodes = filterResult.getNodes();
+            if (estimateFromIndex) {
+                // Reuse this execution instead of running the query again just for its size
+                total = nodes.getSize();
+                results = limit(new ResourceIterator(request.getResourceResolver(), nodes),
+                    getFetchLimit(limit, cursor, total >= 0));
+            } else {
+                results = new ResourceIterator(request.getResourceResolver(), nodes);
+            }
+            results = profile.fetch(results);
         } catch (Exception e) {
+            if (exactTotal != null) {
+                releaseCount(exactTotal);
+            }
             return;
         }
 
@@ -127,14 +371,42 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         final Writer out = response.getWriter();
         try (JsonGenerator jsonGen = Json.createGenerator(out)) {
             jsonGen.writeStartObject();
-            long[] limits = writeResources(jsonGen, results, offset, limit);
-            writeSummary(jsonGen, request, limits);
+            final PaginationCursor.Builder next = new PaginationCursor.Builder(cursor);
+            final long[] limits;
+            // Referenced nodes are serialized once for all the rows
+            try (SerializationScope scope = new SerializationScope()) {
+                final IncludedNodes included =
+                    Boolean.parseBoolean(request.getParameter("normalize")) ? IncludedNodes.enable(scope) : null;
+                limits = writeResources(jsonGen, results, offset, limit, cursor, next,
+                    JsonProjection.parse(request.getParameterValues("fields")), scope);
+                if (included != null) {
+                    jsonGen.write("included", included.toJson());
+                }
+            }
+            if (exactTotal != null) {
+                final QueryProfile.Timer countTimer = profile.time("count");
+                try {
+                    total = getExactCount(exactTotal);
+                } finally {
+                    countTimer.stop();
+                }
+            }
+            writeSummary(jsonGen, request, limits, total, totalIsEstimate, exactTotal != null);
+            if (limits[3] > limits[2] && next.build() != null) {
+                jsonGen.write("next", next.build().encode());
+            } else {
+                jsonGen.writeNull("next");
+            }
+            if (profile.isExplain()) {
+                jsonGen.write("debug", profile.toJson());
+            }
             jsonGen.writeEnd().flush();
         }
     }
 
     @SuppressWarnings({"checkstyle:ExecutableStatementCount"})
-    private String createQuery(final SlingHttpServletRequest request)
+    private JcrQueryBuilder createQuery(final SlingHttpServletRequest request, final PaginationCursor cursor,
+        final boolean ordered)
     {
         // If we want this query to be fast, we need to use the exact nodetype requested.
         final Node node = request.getResource().adaptTo(Node.class);
@@ -145,29 +417,34 @@ private String createQuery(final SlingHttpServletRequest request)
         } catch (Exception e) {
             nodeType = request.getResource().getResourceType().replace('/', ':').replaceFirst("sHomepage$", "");
         }
-        final StringBuilder query =
-            // We select all child nodes of the homepage having the right type
-            new StringBuilder("select n.* from [").append(nodeType).append("] as n");
+        // We select all child nodes of the homepage having the right type
+        final JcrQueryBuilder query = JcrQueryBuilder.select(nodeType, "n");
 
-        // If child nodes are required for this query, also grab them
+        // If child nodes are required for this query, also grab them, unless their values are also stored on the form
+        final String joinchildren = request.getParameter("joinchildren");
+        final boolean useAnswerValues =
+            "cards:Answer".equals(joinchildren) && AnswerValues.isReady(request.getResource());
         final String[] filternames = request.getParameterValues("filternames");
-        query.append(createJoins(
-            request.getParameter("joinchildren"),
-            request.getParameterValues("filternames"),
+        final String[] filtercomparators = request.getParameterValues("filtercomparators");
+        createJoins(query,
+            joinchildren,
+            filternames,
+            filtercomparators,
             request.getParameterValues("filterempty"),
-            request.getParameterValues("filternotempty")
-            ));
+            request.getParameterValues("filternotempty"),
+            useAnswerValues
+            );
 
         // Check only for the descendants of the requested homepage
-        query.append(" where isdescendantnode(n, '" + request.getResource().getPath() + "')");
+        query.whereDescendantOf("n", request.getResource().getPath());
 
-        // Full text search; \ and ' must be escaped
+        // Full text search
         final String filter = request.getParameter("filter");
         if (StringUtils.isNotBlank(filter)) {
-            query.append(" and contains(n.*, '" + this.sanitizeField(filter) + "')");
+            query.where("contains(n.*, ?)", filter);
         }
 
-        // Exact condition on parent node; \ and ' must be escaped. The value must be wrapped in 's
+        // Exact condition on parent node
         final String fieldname = request.getParameter("fieldname");
         final String fieldvalue = request.getParameter("fieldvalue");
         // TODO, if more request options are required: convert includeAllStatus into a request mode
@@ -179,111 +456,100 @@ private String createQuery(final SlingHttpServletRequest request)
                 // Default comparator is =
                 fieldcomparator = "=";
             }
-            query.append(
-                String.format(
-                    " and n.'%s'%s'%s'",
-                    this.sanitizeField(fieldname),
-                    this.sanitizeComparator(fieldcomparator),
-                    this.sanitizeField(fieldvalue)
-                )
-            );
+            query.where(JcrQueryBuilder.property("n", fieldname) + " " + this.sanitizeComparator(fieldcomparator)
+                + " ?", StringUtils.defaultString(fieldvalue));
         }
         // Only display `INCOMPLETE` forms if we are explicitly checking the status of forms,
         // or if the user requested forms with all statuses
-        if (!("statusFlags".equals(fieldname) || includeAllStatus)) {
-            query.append(" and not n.'statusFlags'='INCOMPLETE'");
+        if (!(STATUS_FLAGS.equals(fieldname) || includeAllStatus)) {
+            query.where("not n.[statusFlags] = ?", "INCOMPLETE");
         }
 
         // Condition on child nodes. See parseFilter for details.
         final String[] filtervalues = request.getParameterValues("filtervalues");
         final String[] filtertypes = request.getParameterValues("filtertypes");
-        final String[] filtercomparators = request.getParameterValues("filtercomparators");
         final String[] filterempty = request.getParameterValues("filterempty");
         final String[] filternotempty = request.getParameterValues("filternotempty");
         final boolean sortDescending = Boolean.valueOf(request.getParameter("descending"));
-        query.append(parseFilter(filternames, filtervalues, filtertypes, filtercomparators));
-        query.append(parseExistence(filterempty, filternotempty));
-        query.append(" order by n.'jcr:created'").append(sortDescending ? " DESC" : " ASC");
-        String finalquery = query.toString();
-        LOGGER.debug("Computed final query: {}", finalquery);
+        parseFilter(query, filternames, filtervalues, filtertypes, filtercomparators, useAnswerValues);
+        parseExistence(query, filterempty, filternotempty, useAnswerValues);
+        if (cursor != null) {
+            // Keyset pagination: continue from the creation date of the last resource of the previous page; resources
+            // created at the same time are included, and the ones already returned are skipped later
+            query.where("n.[jcr:created]" + (sortDescending ? " <= ?" : " >= ?"), toCalendar(cursor.getCreated()));
+        }
+        if (ordered) {
+            query.orderBy("n.[jcr:created]" + (sortDescending ? " DESC" : " ASC"));
+        }
+        LOGGER.debug("Computed final query: {}", query.getStatement());
 
-        return finalquery;
+        return query;
     }
 
     /**
      * Parse out filter data into a series of JCR_SQL2 joins. This should be used in conjunction with parseFilter later
      * on.
      *
+     * @param query the query being built
      * @param nodetype node types to join
      * @param filternames user input field names
+     * @param comparators user input comparators for the field names
      * @param empties user input fields to assert emptiness of
      * @param notempties user input fields to assert non-emptiness of
-     * @return the input fields and assertions as a series of sql joins
+     * @param useAnswerValues whether conditions on answer values are checked on the form node, without joins
      */
-    private String createJoins(final String nodetype, final String[] filternames, final String[] empties,
-        final String[] notempties)
+    private void createJoins(final JcrQueryBuilder query, final String nodetype, final String[] filternames,
+        final String[] comparators, final String[] empties, final String[] notempties, final boolean useAnswerValues)
     {
         if (StringUtils.isBlank(nodetype)) {
             // Unknown join type: do not parse
-            return "";
+            return;
         }
 
-        String sanitizednodetype = nodetype.replaceAll("[\\\\\\]]", "\\\\$0");
-        StringBuilder joindata = new StringBuilder();
-
-        // Parse out the fields to later impose conditions on
-        joindata.append(createSingleJoin(filternames, "child", sanitizednodetype));
+        // Parse out the fields to later impose conditions on; only notes are not stored on the form
+        createSingleJoin(query, filternames, "child", nodetype, i -> !useAnswerValues
+            || comparators != null && i < comparators.length && NOTES_CONTAIN.equals(comparators[i]));
 
-        // Parse out the fields to assert the nonexistence of
-        joindata.append(createSingleJoin(empties, "empty", sanitizednodetype));
+        // Parse out the fields to assert the nonexistence of; this requires an answer node without a value
+        createSingleJoin(query, empties, "empty", nodetype, i -> true);
 
         // Parse out the fields to assert the existence of
-        joindata.append(createSingleJoin(notempties, "notempty", sanitizednodetype));
-
-        return joindata.toString();
+        createSingleJoin(query, notempties, "notempty", nodetype, i -> !useAnswerValues);
     }
 
     /**
      * Parse out filter data into a series of JCR_SQL2 joins.
      *
+     * @param query the query being built
      * @param joins node types to join
      * @param childprefix prefix to give the child, to which a number will be appended to
      * @param nodetype Node type to join on
-     * @return the input field as a series of sql joins
+     * @param needsJoin checks whether the condition on the child with the given index requires a join
      */
-    private String createSingleJoin(final String[] joins, final String childprefix, final String nodetype)
+    private void createSingleJoin(final JcrQueryBuilder query, final String[] joins, final String childprefix,
+        final String nodetype, final IntPredicate needsJoin)
     {
         // Don't attempt to append joins if we're not given anything
         if (joins == null) {
-            return "";
+            return;
         }
 
         // Append an inner join for each pipe-delimited identifier in joins
-        StringBuilder joindata = new StringBuilder();
         for (int i = 0; i < joins.length; i++) {
             // Skip this join if it is on cards:Subject, which does not require a child inner join
             if (SUBJECT_IDENTIFIER.equals(joins[i])
                 || QUESTIONNAIRE_IDENTIFIER.equals(joins[i])
-                || CREATED_DATE_IDENTIFIER.equals(joins[i])) {
+                || CREATED_DATE_IDENTIFIER.equals(joins[i])
+                || !needsJoin.test(i)) {
                 continue;
             }
 
-            joindata.append(
-                String.format(
-                    " inner join [%s] as %s%d on isdescendantnode(%s%d, n)",
-                    nodetype,
-                    childprefix,
-                    i,
-                    childprefix,
-                    i
-                )
-            );
+            query.innerJoin(nodetype, childprefix + i, String.format("isdescendantnode(%s%d, n)", childprefix, i));
         }
-
-        return joindata.toString();
     }
 
-    private String generateDateCompareQuery(String jcrVariable, String thisDayStr, String operator)
+    private void generateDateCompareQuery(final JcrQueryBuilder query, String jcrVariable, String thisDayStr,
+        String operator)
     {
         /*
          * IF (=) THEN CHECK (>= day AND < nextDay)
@@ -294,72 +560,48 @@ private String generateDateCompareQuery(String jcrVariable, String thisDayStr, S
          * IF (>=) THEN CHECK (>= day)
          */
         final ZonedDateTime thisDay = ZonedDateTime.parse(thisDayStr);
-        final ZonedDateTime nextDay = thisDay.plusDays(1);
-        final String nextDayStr = nextDay.toString();
-        String compareQuery;
+        final Calendar day = GregorianCalendar.from(thisDay);
+        final Calendar nextDay = GregorianCalendar.from(thisDay.plusDays(1));
         switch (operator) {
             case "=":
-                compareQuery = String.format("(%s>='%s' and %s<'%s')",
-                    jcrVariable,
-                    thisDayStr,
-                    jcrVariable,
-                    nextDayStr
-                );
+                query.where(String.format("(%s>=? and %s<?)", jcrVariable, jcrVariable), day, nextDay);
                 break;
             case "<>":
-                compareQuery = String.format("(%s<'%s' or %s>='%s')",
-                    jcrVariable,
-                    thisDayStr,
-                    jcrVariable,
-                    nextDayStr
-                );
+                query.where(String.format("(%s<? or %s>=?)", jcrVariable, jcrVariable), day, nextDay);
                 break;
             case "<":
-                compareQuery = String.format("(%s<'%s')",
-                    jcrVariable,
-                    thisDayStr
-                );
+                query.where(jcrVariable + "<?", day);
                 break;
             case ">":
-                compareQuery = String.format("(%s>='%s')",
-                    jcrVariable,
-                    nextDayStr
-                );
+                query.where(jcrVariable + ">=?", nextDay);
                 break;
             case "<=":
-                compareQuery = String.format("(%s<'%s')",
-                    jcrVariable,
-                    nextDayStr
-                );
+                query.where(jcrVariable + "<?", nextDay);
                 break;
             case ">=":
-                compareQuery = String.format("(%s>='%s')",
-                    jcrVariable,
-                    thisDayStr
-                );
+                query.where(jcrVariable + ">=?", day);
                 break;
             default:
-                compareQuery = null;
                 break;
         }
-        return compareQuery;
     }
 
     /**
      * Parse out filter data into a series of JCR_SQL2 conditionals.
      *
+     * @param query the query being built
      * @param fields user input field names
      * @param values user input field values
      * @param comparator user input comparators
+     * @param useAnswerValues whether conditions on answer values are checked on the form node, without joins
      * @throws IllegalArgumentException when the number of input fields are not equal
      */
-    @SuppressWarnings({"checkstyle:CyclomaticComplexity", "checkstyle:NPathComplexity"})
-    private String parseFilter(final String[] fields, final String[] values,
-        final String[] types, final String[] comparator) throws IllegalArgumentException
+    private void parseFilter(final JcrQueryBuilder query, final String[] fields, final String[] values,
+        final String[] types, final String[] comparator, final boolean useAnswerValues) throws IllegalArgumentException
     {
         // If we don't have either names or values, we should fail to filter
         if (fields == null || values == null) {
-            return "";
+            return;
         }
 
         // Parse out multiple fields, split by pipes (|)
@@ -383,162 +625,135 @@ private String parseFilter(final String[] fields, final String[] values,
         }
 
         // Build the filter conditionals by imposing conditions on the inner joined cards:Answer children
-        StringBuilder filterdata = new StringBuilder();
-        // TODO: Double check the sanitization on the comparator
         for (int i = 0; i < fields.length; i++) {
             // If the question is cards:Subject, we match on the parent rather than the child
             if (SUBJECT_IDENTIFIER.equals(fields[i])) {
-                filterdata.append(
-                    String.format(" and n.'subject'%s'%s'",
-                        this.sanitizeComparator(comparators[i]),
-                        this.sanitizeField(values[i])
-                    )
-                );
+                query.where("n.[subject] " + this.sanitizeComparator(comparators[i]) + " ?", values[i]);
             } else if (QUESTIONNAIRE_IDENTIFIER.equals(fields[i])) {
-                filterdata.append(
-                    String.format(" and n.'questionnaire'%s'%s'",
-                        this.sanitizeComparator(comparators[i]),
-                        this.sanitizeField(values[i])
-                    )
-                );
+                query.where("n.[questionnaire] " + this.sanitizeComparator(comparators[i]) + " ?", values[i]);
             } else if (CREATED_DATE_IDENTIFIER.equals(fields[i])) {
-                filterdata.append(" and ");
-                filterdata.append(
-                    generateDateCompareQuery(
-                        "n.'jcr:created'",
-                        this.sanitizeField(values[i]),
-                        this.sanitizeComparator(comparators[i])
-                    )
-                );
+                generateDateCompareQuery(query, "n.[jcr:created]", values[i],
+                    this.sanitizeComparator(comparators[i]));
+            } else if (useAnswerValues && !NOTES_CONTAIN.equals(comparators[i])) {
+                // The values of any of the given (comma delimited) questions must match
+                final String[] possibleQuestions = fields[i].split(",");
+                final String type = types != null && i < types.length ? types[i] : null;
+                query.where(answerValuesCondition(possibleQuestions,
+                    " " + this.sanitizeComparator(comparators[i]) + " ?"),
+                    Collections.nCopies(possibleQuestions.length, toAnswerValue(values[i], type)).toArray());
             } else {
                 // Condition 1: the question uuid must match one of the given (comma delimited)
-                String[] possibleQuestions = fields[i].split(",");
-                filterdata.append(" and (");
-                for (int j = 0; j < possibleQuestions.length; j++) {
-                    filterdata.append(
-                        String.format(
-                            " child%d.'question'='%s'",
-                            i,
-                            this.sanitizeField(possibleQuestions[j])
-                        )
-                    );
-                    // Add an 'or' if there are more possible conditions
-                    if (j + 1 != possibleQuestions.length) {
-                        filterdata.append(" or");
-                    }
-                }
+                final String[] possibleQuestions = fields[i].split(",");
+                final String child = "child" + i;
+                query.where("(" + String.join(" or ",
+                    Collections.nCopies(possibleQuestions.length, child + ".[question]=?")) + ")",
+                    (Object[]) possibleQuestions);
                 // Condition 2: the value must exactly match
-                if (comparators[i].equals("notes contain")) {
-                    filterdata.append(
-                        String.format(
-                            ") and contains(child%d.'note', '*%s*')",
-                            i,
-                            this.sanitizeField(values[i])
-                        )
-                    );
+                if (comparators[i].equals(NOTES_CONTAIN)) {
+                    query.where("contains(" + child + ".[note], ?)", "*" + values[i] + "*");
                 } else {
-                    filterdata.append(
-                        String.format(
-                            ") and child%d.'value'%s" + (("date".equals(types[i]))
-                                ? ("cast('%sT00:00:00.000"
-                                + new SimpleDateFormat("XXX").format(new Date()) + "' as date)")
-                                : ("boolean".equals(types[i])) ? "%s" : "'%s'"),
-                            i,
-                            this.sanitizeComparator(comparators[i]),
-                            this.sanitizeField(values[i])
-                        )
-                    );
+                    final String type = types != null && i < types.length ? types[i] : null;
+                    query.where(child + ".[value] " + this.sanitizeComparator(comparators[i]) + " ?",
+                        toAnswerValue(values[i], type));
                 }
             }
         }
-        return filterdata.toString();
+    }
+
+    /**
+     * Builds a condition on the answer values stored on the form node, true if the values of any of the given questions
+     * satisfy a comparison.
+     *
+     * @param questions the identifiers of the questions
+     * @param comparison the comparison to apply to the values of each question, such as {@code " = ?"}
+     * @return a JCR-SQL2 constraint
+     */
+    private String answerValuesCondition(final String[] questions, final String comparison)
+    {
+        return "(" + Arrays.stream(questions)
+            .map(question -> JcrQueryBuilder.property("n", AnswerValues.getPropertyName(question)) + comparison)
+            .collect(Collectors.joining(" or ")) + ")";
+    }
+
+    /**
+     * Converts a filter value to the type of the answers it is compared to.
+     *
+     * @param value the filter value
+     * @param type the type of the question, may be {@code null}
+     * @return a calendar for dates, a long or boolean for booleans, or the value itself for other types
+     */
+    private Object toAnswerValue(final String value, final String type)
+    {
+        if ("date".equals(type)) {
+            // Dates are compared in the current timezone
+            return toCalendar(value + "T00:00:00.000" + new SimpleDateFormat("XXX").format(new Date()));
+        } else if ("boolean".equals(type)) {
+            // Booleans are stored as numbers, but may also be given as true/false
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return Boolean.parseBoolean(value);
+            }
+        }
+        return value;
+    }
+
+    private Calendar toCalendar(final String date)
+    {
+        return GregorianCalendar.from(ZonedDateTime.parse(date));
     }
 
     /**
      * Parse out empty & not empty fields into a series of JCR_SQL2 conditionals.
      *
+     * @param query the query being built
      * @param empties user input field names to assert the nonexistance of content for
      * @param notempties user input field names to assert the existance of content for
-     * @return JCR_SQL conditionals for the input
+     * @param useAnswerValues whether the existence of answer values is checked on the form node, without joins
      */
-    private String parseExistence(final String[] empties, final String[] notempties)
+    private void parseExistence(final JcrQueryBuilder query, final String[] empties, final String[] notempties,
+        final boolean useAnswerValues)
         throws IllegalArgumentException
     {
-        StringBuilder joindata = new StringBuilder();
-        joindata.append(parseComparison(empties, "empty", " IS NULL"));
-        joindata.append(parseComparison(notempties, "notempty", " IS NOT NULL"));
-        return joindata.toString();
+        parseComparison(query, empties, "empty", " IS NULL", false);
+        parseComparison(query, notempties, "notempty", " IS NOT NULL", useAnswerValues);
     }
 
     /**
      * Parse out a field and its unary comparison into a series of JCR_SQL2 conditionals.
      *
+     * @param query the query being built
      * @param fieldnames user input field names
      * @param childprefix prefix for the child nodes
      * @param comparison unary comparitor to assert
-     * @return JCR_SQL conditionals for the input
+     * @param useAnswerValues whether the comparison is checked on the answer values stored on the form node, without
+     *            joins
      */
-    private String parseComparison(final String[] fieldnames, final String childprefix, final String comparison)
+    private void parseComparison(final JcrQueryBuilder query, final String[] fieldnames, final String childprefix,
+        final String comparison, final boolean useAnswerValues)
     {
         // If no comparison is entered, do nothing
         if (fieldnames == null) {
-            return "";
+            return;
         }
 
-        // Build the conditionals (e.g. and child0.'question'='uuid' and child0.'value' IS NOT NULL...)
-        StringBuilder joindata = new StringBuilder();
+        // Build the conditionals (e.g. and (child0.[question]=$v1 and child0.[value] IS NOT NULL or ...))
         for (int i = 0; i < fieldnames.length; i++) {
-            String sanitizedFieldName = sanitizeField(fieldnames[i]);
             // cards:Subject is handled differently, since it is on the Form itself
             if (fieldnames[i].equals(SUBJECT_IDENTIFIER)) {
-                joindata.append(
-                    String.format(
-                        " and n.'subject'%s",
-                        comparison
-                    )
-                );
+                query.where("n.[subject]" + comparison);
             } else if (fieldnames[i].equals(QUESTIONNAIRE_IDENTIFIER)) {
-                joindata.append(
-                    String.format(
-                        " and n.'questionnaire'%s",
-                        comparison
-                    )
-                );
+                query.where("n.[questionnaire]" + comparison);
+            } else if (useAnswerValues) {
+                query.where(answerValuesCondition(fieldnames[i].split(","), comparison));
             } else {
                 final String[] possibleQuestions = fieldnames[i].split(",");
-                joindata.append(" and (");
-                for (int j = 0; j < possibleQuestions.length; j++) {
-                    joindata.append(
-                        String.format(
-                            " %s%d.'question'='%s' and %s%d.'value'%s",
-                            childprefix,
-                            i,
-                            this.sanitizeField(possibleQuestions[j]),
-                            childprefix,
-                            i,
-                            comparison
-                        )
-                    );
-                    // Add an 'or' if there are more possible conditions
-                    if (j + 1 != possibleQuestions.length) {
-                        joindata.append(" or");
-                    }
-                }
-                joindata.append(")");
+                final String child = childprefix + i;
+                query.where("(" + String.join(" or ", Collections.nCopies(possibleQuestions.length,
+                    child + ".[question]=? and " + child + ".[value]" + comparison)) + ")",
+                    (Object[]) possibleQuestions);
             }
         }
-        return joindata.toString();
-    }
-
-    /**
-     * Sanitize a field name for an input query.
-     *
-     * @param fieldname the field name to sanitize
-     * @return a sanitized version of the input
-     */
-    private String sanitizeField(String fieldname)
-    {
-        return fieldname.replaceAll("['\\\\]", "\\\\$0");
     }
 
     /**
@@ -569,21 +784,266 @@ private String sanitizeComparator(String comparator)
      *            returned
      * @param totalMatchingNodes the total number of accessible nodes matching the request, may be {@code 0} if no nodes
      *            match the filters, or the current user cannot access the nodes
+     * @param total the separately counted total, {@code -1} if it wasn't counted, or {@code MAX_EXACT_COUNT + 1} if
+     *            there are too many nodes to count
+     * @param totalIsEstimate whether the separately counted total is only an estimate
+     * @param pageOnly whether only the requested page was fetched, so {@code limits} can't be used for estimating the
+     *            total
      */
-    private void writeSummary(final JsonGenerator jsonGen, final SlingHttpServletRequest request, final long[] limits)
+    private void writeSummary(final JsonGenerator jsonGen, final SlingHttpServletRequest request, final long[] limits,
+        final long total, final boolean totalIsEstimate, final boolean pageOnly)
     {
-        final boolean totalIsApproximate = (limits[3] > (QUERY_SIZE_MULTIPLIER * limits[1]));
         jsonGen.write("req", request.getParameter("req"));
         jsonGen.write("offset", limits[0]);
         jsonGen.write("limit", limits[1]);
         jsonGen.write("returnedrows", limits[2]);
-        jsonGen.write("totalrows", totalIsApproximate
-            ? ((QUERY_SIZE_MULTIPLIER * limits[1]) + limits[0]) : (limits[0] + limits[3]));
-        jsonGen.write("totalIsApproximate", totalIsApproximate);
+        if (total >= 0) {
+            final boolean totalIsApproximate = total > MAX_EXACT_COUNT;
+            jsonGen.write("totalrows", totalIsApproximate ? MAX_EXACT_COUNT : total);
+            jsonGen.write("totalIsApproximate", totalIsApproximate);
+            jsonGen.write("totalIsEstimate", totalIsEstimate);
+        } else if (pageOnly) {
+            // The count failed, and all we know is whether there are more resources after this page
+            jsonGen.write("totalrows", limits[0] + limits[3]);
+            jsonGen.write("totalIsApproximate", limits[3] > limits[2]);
+        } else {
+            final boolean totalIsApproximate = (limits[3] > (QUERY_SIZE_MULTIPLIER * limits[1]));
+            jsonGen.write("totalrows", totalIsApproximate
+                ? ((QUERY_SIZE_MULTIPLIER * limits[1]) + limits[0]) : (limits[0] + limits[3]));
+            jsonGen.write("totalIsApproximate", totalIsApproximate);
+        }
+    }
+
+    /**
+     * Counts forms using the form counters, if the request only filters forms by questionnaire or status.
+     *
+     * @param request the current request
+     * @param countersAllowed whether the counters may be used, since they also count forms that the current user may
+     *            not be allowed to see
+     * @return the number of matching forms, or {@code -1} if the counters cannot be used for this request
+     */
+    private long countWithCounters(final SlingHttpServletRequest request, final boolean countersAllowed)
+    {
+        if (!countersAllowed || !this.formCounters.isReady()
+            || !"cards/FormsHomepage".equals(request.getResource().getResourceType())
+            || StringUtils.isNotBlank(request.getParameter("filter")) || request.getParameter("filternames") != null
+            || request.getParameter("filterempty") != null || request.getParameter("filternotempty") != null) {
+            return -1;
+        }
+        final String fieldname = request.getParameter("fieldname");
+        final String fieldvalue = request.getParameter("fieldvalue");
+        final String fieldcomparator = StringUtils.defaultIfBlank(request.getParameter("fieldcomparator"), "=");
+        String questionnaire = null;
+        String requiredFlag = null;
+        if (StringUtils.isNotBlank(fieldname)) {
+            if (!"=".equals(fieldcomparator) || fieldvalue == null) {
+                return -1;
+            } else if ("questionnaire".equals(fieldname)) {
+                questionnaire = fieldvalue;
+            } else if (STATUS_FLAGS.equals(fieldname)) {
+                requiredFlag = fieldvalue;
+            } else {
+                return -1;
+            }
+        }
+        // Same as the query: incomplete forms are excluded unless explicitly requested
+        final String excludedFlag = STATUS_FLAGS.equals(fieldname)
+            || Boolean.parseBoolean(request.getParameter("includeallstatus")) ? null : "INCOMPLETE";
+        return this.formCounters.count(questionnaire, requiredFlag, excludedFlag);
+    }
+
+    /**
+     * Checks if the current user can see all the forms, as counted by the form counters: the administrator, and the
+     * members of the {@value #ADMINISTRATORS_GROUP} group.
+     *
+     * @param resolver the resource resolver of the current request
+     * @return {@code true} if the user is an administrator
+     */
+    private boolean canSeeAllForms(final ResourceResolver resolver)
+    {
+        try {
+            final Session session = resolver.adaptTo(Session.class);
+            if (!(session instanceof JackrabbitSession)) {
+                return false;
+            }
+            final Authorizable user =
+                ((JackrabbitSession) session).getUserManager().getAuthorizable(session.getUserID());
+            if (user == null || user.isGroup()) {
+                return false;
+            }
+            if (((User) user).isAdmin()) {
+                return true;
+            }
+            for (Iterator<Group> groups = user.memberOf(); groups.hasNext();) {
+                if (ADMINISTRATORS_GROUP.equals(groups.next().getID())) {
+                    return true;
+                }
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to check the groups of the current user: {}", e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * How many resources to fetch for a page.
+     *
+     * @param limit the requested page size
+     * @param cursor the cursor of the previous page, if any
+     * @param totalIsKnown whether the total is known or counted separately, so that there's no need to fetch more than
+     *            the requested page, instead of 10 pages
+     * @return a number of resources
+     */
+    private long getFetchLimit(final long limit, final PaginationCursor cursor, final boolean totalIsKnown)
+    {
+        // The resources from the previous page sharing the cursor's creation date are found again, and skipped
+        return (totalIsKnown ? limit : QUERY_SIZE_MULTIPLIER * limit) + 1
+            + (cursor == null ? 0 : cursor.getPaths().size());
+    }
+
+    /**
+     * Stops iterating after a number of results.
+     *
+     * @param results the results to iterate
+     * @param max the maximum number of results to return
+     * @return an iterator over at most {@code max} results
+     */
+    private static <T> Iterator<T> limit(final Iterator<T> results, final long max)
+    {
+        return new Iterator<T>()
+        {
+            private long remaining = max;
+
+            @Override
+            public boolean hasNext()
+            {
+                return this.remaining > 0 && results.hasNext();
+            }
+
+            @Override
+            public T next()
+            {
+                if (this.remaining <= 0) {
+                    throw new NoSuchElementException();
+                }
+                --this.remaining;
+                return results.next();
+            }
+        };
+    }
+
+    /**
+     * Starts counting all the resources matching the request in the background, in a separate session, while the
+     * current session fetches the requested page. If the same user is already waiting for the same count, that count
+     * is shared instead of starting a new one.
+     *
+     * @param request the current request
+     * @return the pending count, to {@link #getExactCount wait for} or {@link #releaseCount release}, or {@code null}
+     *         if counting cannot be started
+     */
+    private PendingCount startExactCount(final SlingHttpServletRequest request)
+    {
+        final JcrQueryBuilder countQuery = createQuery(request, null, false);
+        final String key = getCountKey(request.getResourceResolver(), countQuery);
+        final ResourceResolver countResolver;
+        try {
+            countResolver = request.getResourceResolver().clone(null);
+        } catch (LoginException e) {
+            LOGGER.warn("Failed to open a session for counting results: {}", e.getMessage());
+            return null;
+        }
+        final PendingCount result = new PendingCount(key, countResolver, countQuery);
+        if (key != null) {
+            synchronized (this.pendingCounts) {
+                final PendingCount existing = this.pendingCounts.putIfAbsent(key, result);
+                if (existing != null) {
+                    ++existing.waiters;
+                    // Never started, only closes its session
+                    result.cancel(false);
+                    return existing;
+                }
+            }
+        }
+        try {
+            this.countExecutor.execute(result);
+        } catch (RejectedExecutionException e) {
+            // Too many counts waiting, or shutting down; the requests that joined this count get no count either
+            LOGGER.warn("Failed to start counting results: {}", e.getMessage());
+            if (key != null) {
+                synchronized (this.pendingCounts) {
+                    this.pendingCounts.remove(key, result);
+                }
+            }
+            result.cancel(false);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Identifies a count, so that concurrent requests from the same user for the same count can share it.
+     *
+     * @param resolver the resource resolver of the current request
+     * @param countQuery the counting query
+     * @return the user, statement and bound values of the count, or {@code null} if the count cannot be shared
+     */
+    private String getCountKey(final ResourceResolver resolver, final JcrQueryBuilder countQuery)
+    {
+        final StringBuilder key = new StringBuilder(String.valueOf(resolver.getUserID()))
+            .append('\n').append(countQuery.getStatement());
+        try {
+            for (Value value : countQuery.getBindings(resolver.adaptTo(Session.class).getValueFactory()).values()) {
+                key.append('\n').append(value.getType()).append(':').append(value.getString());
+            }
+        } catch (RepositoryException e) {
+            return null;
+        }
+        return key.toString();
+    }
+
+    /**
+     * Waits for the background count to finish, then {@link #releaseCount releases} it.
+     *
+     * @param count the pending count
+     * @return the number of matching resources, or {@code -1} if counting failed or took too long
+     */
+    private long getExactCount(final PendingCount count)
+    {
+        try {
+            return count.get(COUNT_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            LOGGER.warn("Failed to count the results: {}", e.getMessage());
+        } finally {
+            releaseCount(count);
+        }
+        return -1;
+    }
+
+    /**
+     * Stops waiting for a count. Once no request is waiting for it, the count is forgotten, and cancelled if it is not
+     * finished yet.
+     *
+     * @param count the pending count
+     */
+    private void releaseCount(final PendingCount count)
+    {
+        synchronized (this.pendingCounts) {
+            if (--count.waiters > 0) {
+                return;
+            }
+            if (count.key != null) {
+                this.pendingCounts.remove(count.key, count);
+            }
+        }
+        // Interrupting a query may leave the session or the index files in a bad state, the count stops by itself
+        count.cancel(false);
     }
 
     private long[] writeResources(final JsonGenerator jsonGen, final Iterator<Resource> nodes,
-        final long offset, final long limit)
+        final long offset, final long limit, final PaginationCursor cursor, final PaginationCursor.Builder next,
+        final JsonProjection projection, final SerializationScope scope)
     {
         final long[] counts = new long[4];
         counts[0] = offset;
@@ -597,10 +1057,20 @@ private long[] writeResources(final JsonGenerator jsonGen, final Iterator<Resour
 
         while (nodes.hasNext()) {
             Resource n = nodes.next();
+            if (cursor != null && cursor.getPaths().contains(n.getPath())) {
+                // Already returned in the previous page
+                continue;
+            }
             if (limitCounter > 0) {
-                jsonGen.write(n.adaptTo(JsonObject.class));
+                if (projection == null) {
+                    // Stream the resource to the response instead of building its JSON in memory
+                    this.jsonWriter.write(n, jsonGen, scope);
+                } else {
+                    jsonGen.write(projection.project(n));
+                }
                 --limitCounter;
                 ++counts[2];
+                recordPosition(n, next);
             }
             ++counts[3];
         }
@@ -610,6 +1080,24 @@ private long[] writeResources(final JsonGenerator jsonGen, final Iterator<Resour
         return counts;
     }
 
+    /**
+     * Records the position of a resource written in the page, for computing the {@code next} cursor.
+     *
+     * @param resource the resource that was written
+     * @param next the cursor being computed
+     */
+    private void recordPosition(final Resource resource, final PaginationCursor.Builder next)
+    {
+        try {
+            final Node node = resource.adaptTo(Node.class);
+            if (node != null && node.hasProperty("jcr:created")) {
+                next.add(node.getProperty("jcr:created").getString(), resource.getPath());
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to read the creation date of {}: {}", resource.getPath(), e.getMessage());
+        }
+    }
+
     private long getLongValueOrDefault(final String stringValue, final long defaultValue)
     {
         long value = defaultValue;
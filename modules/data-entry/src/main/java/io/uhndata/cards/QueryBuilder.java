@@ -19,14 +19,17 @@
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
@@ -43,9 +46,15 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.uhndata.cards.spi.QuickSearchEngine;
+import io.uhndata.cards.serialize.DereferencedNodes;
+import io.uhndata.cards.serialize.IncludedNodes;
+import io.uhndata.cards.serialize.JsonProjection;
+import io.uhndata.cards.serialize.ResourceJsonWriter;
+import io.uhndata.cards.serialize.SerializationScope;
+import io.uhndata.cards.internal.QuickSearchDispatcher;
 import io.uhndata.cards.spi.SearchParameters;
 import io.uhndata.cards.spi.SearchParametersFactory;
+import io.uhndata.cards.utils.QueryProfile;
 
 /**
  * A HTL Use-API that can run a JCR query and output the results as JSON. The query to execute is taken from the request
@@ -58,6 +67,26 @@
  *
  * <p>Or, send a HTTP request to {@code /query?query=select%20*%20from%20[cards:Form]}.</p>
  *
+ * <p>Only the results on the page selected by the {@code offset} and {@code limit} parameters are serialized. Unless
+ * {@code showTotalRows=false} is passed, all the other results are still counted, to compute {@code totalrows}; with
+ * {@code showTotalRows=false}, only the requested page is read.</p>
+ *
+ * <p>The optional {@code fields} parameter restricts the serialization of the results to the listed fields, for
+ * example {@code fields=@path,title}; see {@link JsonProjection}. It is ignored for quick searches.</p>
+ *
+ * <p>Quick searches run all the engines concurrently, see {@link QuickSearchDispatcher}. The optional {@code timeout}
+ * parameter sets how long each engine has to find results, in milliseconds, 2000 by default; engines exceeding it only
+ * contribute the results found so far. The output then also holds an {@code engines} array, with the time taken and
+ * the number of results found by each engine.</p>
+ *
+ * <p>If the optional {@code normalize} parameter is {@code true}, referenced nodes are serialized only once, in a
+ * separate {@code included} object, instead of in each result; see {@link IncludedNodes}. It is ignored for quick
+ * searches, whose engines run in other threads.</p>
+ *
+ * <p>If the optional {@code debug} parameter is {@code explain}, the output also holds a {@code debug} object with the
+ * executed queries, their plans, the number of rows read, the time spent in each phase, and how many serializations of
+ * referenced nodes were reused, shared by all the results; see {@link QueryProfile} and {@link DereferencedNodes}.</p>
+ *
  * @version $Id$
  */
 public class QueryBuilder implements Use
@@ -80,8 +109,20 @@ public class QueryBuilder implements Use
     /* Resource types allowed for a search. */
     private String[] resourceTypes;
 
-    /** Quick search engines. */
-    private List<QuickSearchEngine> searchEngines;
+    /** Runs quick searches. */
+    private QuickSearchDispatcher quickSearchDispatcher;
+
+    /* How long quick search engines have to find results, in milliseconds. */
+    private long quickSearchTimeout;
+
+    /** Profiles the queries executed for the current request. */
+    private QueryProfile profile;
+
+    /** Serializes the results. */
+    private ResourceJsonWriter jsonWriter;
+
+    /** Shared by the serializations of all the results. */
+    private SerializationScope serializationScope;
 
     @SuppressWarnings({"checkstyle:ExecutableStatementCount"})
     @Override
@@ -90,15 +131,19 @@ public void init(Bindings bindings)
         SlingHttpServletRequest request = (SlingHttpServletRequest) bindings.get("request");
         this.resourceResolver = (ResourceResolver) bindings.get("resolver");
         final SlingScriptHelper slingHelper = (SlingScriptHelper) bindings.get("sling");
-        this.searchEngines = Arrays.asList(slingHelper.getServices(QuickSearchEngine.class, null));
+        this.quickSearchDispatcher = slingHelper.getService(QuickSearchDispatcher.class);
+        this.jsonWriter = slingHelper.getService(ResourceJsonWriter.class);
 
-        try {
+        try (QueryProfile profile =
+            QueryProfile.start("query", QueryProfile.isExplainRequested(request.getParameter("debug")))) {
+            this.profile = profile;
             final String jcrQuery = request.getParameter("query");
             final String luceneQuery = request.getParameter("lucene");
             final String fullTextQuery = request.getParameter("fulltext");
             final String quickQuery = request.getParameter("quick");
             final long offset = getLongValueOrDefault(request.getParameter("offset"), 0);
             final boolean serializeChildren = getLongValueOrDefault(request.getParameter("serializeChildren"), 0) != 0;
+            final JsonProjection projection = JsonProjection.parse(request.getParameterValues("fields"));
             String requestID = request.getParameter("req");
             if (StringUtils.isBlank(requestID)) {
                 requestID = "";
@@ -110,24 +155,42 @@ public void init(Bindings bindings)
             this.resourceTypes = request.getParameterValues("allowedResourceTypes");
             this.shouldEscape = !("true".equals(doNotEscape));
             this.showTotalRows = StringUtils.isBlank(showTotalRowsParam) || "true".equals(showTotalRowsParam);
-
-            // Try to use a JCR-SQL2 query first
-            Iterator<JsonObject> results;
-            if (StringUtils.isNotBlank(jcrQuery)) {
-                results = QueryBuilder.adaptNodes(queryJCR(this.urlDecode(jcrQuery)), serializeChildren);
-            } else if (StringUtils.isNotBlank(luceneQuery)) {
-                results = QueryBuilder.adaptNodes(queryLucene(this.urlDecode(luceneQuery)), serializeChildren);
-            } else if (StringUtils.isNotBlank(fullTextQuery)) {
-                results = QueryBuilder.adaptNodes(fullTextSearch(this.urlDecode(fullTextQuery)), serializeChildren);
-            } else if (StringUtils.isNotBlank(quickQuery)) {
-                results = quickSearch(this.urlDecode(quickQuery));
-            } else {
-                results = Collections.emptyIterator();
+            this.quickSearchTimeout =
+                getLongValueOrDefault(request.getParameter("timeout"), QuickSearchDispatcher.DEFAULT_TIMEOUT);
+
+            final JsonObjectBuilder builder = Json.createObjectBuilder();
+            // Referenced nodes are serialized once for all the results
+            this.serializationScope = new SerializationScope();
+            try {
+                // Referenced nodes are collected while the results are serialized
+                final IncludedNodes included = Boolean.parseBoolean(request.getParameter("normalize"))
+                    ? IncludedNodes.enable(this.serializationScope) : null;
+                // Try to use a JCR-SQL2 query first, and output the results into our content
+                if (StringUtils.isNotBlank(jcrQuery)) {
+                    this.addResults(builder, this.urlDecode(jcrQuery), requestID, offset, serializeChildren,
+                        projection);
+                } else if (StringUtils.isNotBlank(luceneQuery)) {
+                    this.addResults(builder, luceneQuery(this.urlDecode(luceneQuery)), requestID, offset,
+                        serializeChildren, projection);
+                } else if (StringUtils.isNotBlank(fullTextQuery)) {
+                    this.addResults(builder, fullTextQuery(this.urlDecode(fullTextQuery)), requestID, offset,
+                        serializeChildren, projection);
+                } else if (StringUtils.isNotBlank(quickQuery)) {
+                    final QuickSearchDispatcher.Results results = quickSearch(this.urlDecode(quickQuery));
+                    this.addObjects(builder, results.getMatches().iterator(), requestID, offset);
+                    builder.add("engines", results.getEngines());
+                } else {
+                    this.addObjects(builder, Collections.emptyIterator(), requestID, offset);
+                }
+                if (included != null) {
+                    builder.add("included", included.toJson());
+                }
+            } finally {
+                this.serializationScope.close();
+            }
+            if (profile.isExplain()) {
+                builder.add("debug", profile.toJson());
             }
-
-            // output the results into our content
-            JsonObjectBuilder builder = Json.createObjectBuilder();
-            this.addObjects(builder, results, requestID, offset);
             this.content = builder.build().toString();
         } catch (Exception e) {
             this.logger.error("Failed to query resources: {}", e.getMessage(), e);
@@ -148,31 +211,29 @@ private String urlDecode(String param) throws UnsupportedEncodingException
     }
 
     /**
-     * Finds content matching the given lucene query.
+     * Builds a JCR-SQL2 query finding content matching the given lucene query.
      *
      * @param query a lucene query
-     * @return the content matching the query
+     * @return a JCR-SQL2 query
      */
-    private Iterator<Resource> queryLucene(String query) throws RepositoryException
+    private String luceneQuery(String query)
     {
-        // Wrap our lucene query in JCR-SQL2 syntax for the resource resolver to understand
-        return queryJCR(
-            String.format("select n.* from [nt:base] as n where native('lucene', '%s')"
-                + " and n.'sling:resourceSuperType' = 'cards/Resource'", query.replace("'", "''")));
+        // Wrap our lucene query in JCR-SQL2 syntax for the query manager to understand
+        return String.format("select n.* from [nt:base] as n where native('lucene', '%s')"
+            + " and n.'sling:resourceSuperType' = 'cards/Resource'", query.replace("'", "''"));
     }
 
     /**
-     * Finds content using the given full text search.
+     * Builds a JCR-SQL2 query finding content using the given full text search.
      *
      * @param query text to search
      *
-     * @return the content matching the query
+     * @return a JCR-SQL2 query
      */
-    private Iterator<Resource> fullTextSearch(String query) throws RepositoryException
+    private String fullTextQuery(String query)
     {
-        // Wrap our full-text query in JCR-SQL2 syntax for the resource resolver to understand
-        return queryJCR(
-            String.format("select n.* from [nt:base] as n where contains(*, '%s')", this.fullTextEscape(query)));
+        // Wrap our full-text query in JCR-SQL2 syntax for the query manager to understand
+        return String.format("select n.* from [nt:base] as n where contains(*, '%s')", this.fullTextEscape(query));
     }
 
     /**
@@ -199,15 +260,14 @@ private String fullTextEscape(String input)
      *
      * @param query text to search
      *
-     * @return the content matching the query
+     * @return the merged results of all the engines, and how each engine performed
      */
-    private Iterator<JsonObject> quickSearch(String query) throws RepositoryException, UnsupportedEncodingException
+    private QuickSearchDispatcher.Results quickSearch(String query)
     {
         List<String> allowedResourceTypes = Collections.singletonList("cards:Form");
         if (this.resourceTypes != null && this.resourceTypes.length > 0) {
             allowedResourceTypes = Arrays.asList(this.resourceTypes);
         }
-        List<JsonObject> resultsList = new ArrayList<>();
 
         final SearchParameters searchParameters = SearchParametersFactory.newSearchParameters()
             .withType("quick")
@@ -216,64 +276,120 @@ private Iterator<JsonObject> quickSearch(String query) throws RepositoryExceptio
             .withMaxResults(this.limit)
             .build();
 
-        for (String type : allowedResourceTypes) {
-            this.searchEngines.stream()
-                .filter(engine -> engine.isTypeSupported(type))
-                .forEach(engine -> engine.quickSearch(searchParameters, this.resourceResolver, resultsList));
-        }
-        return resultsList.listIterator();
+        return this.quickSearchDispatcher.search(allowedResourceTypes, searchParameters, this.resourceResolver,
+            this.quickSearchTimeout);
     }
 
     /**
-     * Finds content matching the given JCR_SQL2 query.
+     * Executes a JCR-SQL2 query, and writes the requested page of results, along with metadata about the request and
+     * response. Only the resources on the requested page are serialized. If the total number of results isn't needed,
+     * the offset and limit are passed to the query, so that only the requested page is read, and {@code totalrows} is
+     * the offset plus the number of returned results. Otherwise, the resources before and after the page are only
+     * counted.
      *
-     * @param query a JCR-SQL2 query
-     * @return the content matching the query
+     * @param json the JSON object where the results should be serialized
+     * @param statement a JCR-SQL2 query
+     * @param req the current request number
+     * @param offset the requested offset, may be the default value of {0}
+     * @param serializeChildren If true, this also includes the immediate children of each node
+     * @param projection if not {@code null}, only the requested fields are serialized, and children are only included
+     *            if requested as fields
+     * @throws RepositoryException if the query is invalid
      */
-    private Iterator<Resource> queryJCR(String query) throws RepositoryException
+    private void addResults(final JsonObjectBuilder json, final String statement, final String req, final long offset,
+        final boolean serializeChildren, final JsonProjection projection) throws RepositoryException
     {
-        return this.resourceResolver.findResources(query, "JCR-SQL2");
+        final long skip = offset < 0 ? 0 : offset;
+        final long pageSize = this.limit < 0 ? 0 : this.limit;
+        long returnedrows = 0;
+        long totalrows = 0;
+        final JsonArrayBuilder rows = Json.createArrayBuilder();
+
+        if (pageSize > 0 || this.showTotalRows) {
+            final Session session = this.resourceResolver.adaptTo(Session.class);
+            final Query query;
+            final QueryProfile.Timer prepareTimer = this.profile.time(QueryProfile.PREPARE);
+            try {
+                query = session.getWorkspace().getQueryManager().createQuery(statement, Query.JCR_SQL2);
+            } finally {
+                prepareTimer.stop();
+            }
+            if (!this.showTotalRows) {
+                query.setOffset(skip);
+                query.setLimit(pageSize);
+                totalrows = skip;
+            }
+            this.profile.addQuery(statement, Query.JCR_SQL2, session, null);
+            final NodeIterator nodes;
+            final QueryProfile.Timer executeTimer = this.profile.time(QueryProfile.EXECUTE);
+            try {
+                nodes = query.execute().getNodes();
+            } finally {
+                executeTimer.stop();
+            }
+            @SuppressWarnings("unchecked")
+            final Iterator<Node> results = this.profile.fetch((Iterator<Node>) nodes);
+            long skipCounter = this.showTotalRows ? skip : 0;
+            while (results.hasNext()) {
+                final Node node = results.next();
+                ++totalrows;
+                // Results outside the requested page are only counted
+                if (skipCounter > 0) {
+                    --skipCounter;
+                } else if (returnedrows < pageSize) {
+                    rows.add(serialize(this.resourceResolver.getResource(node.getPath()), serializeChildren,
+                        projection));
+                    ++returnedrows;
+                }
+            }
+        }
+
+        json.add("rows", rows.build());
+        json.add("req", req);
+        json.add("offset", offset);
+        json.add("limit", this.limit);
+        json.add("returnedrows", returnedrows);
+        json.add("totalrows", totalrows);
     }
 
     /**
-     * Convert an iterator of nodes into an iterator of JsonObjects.
-     * @param nodes the iterator to convert
-     * @param serializeChildren If true, this also includes the immediate children of each node
-     * @return An iterator of the input nodes
+     * Convert a resource into a JsonObject.
+     *
+     * @param resource the resource to convert
+     * @param serializeChildren If true, this also includes the immediate children of the resource
+     * @param projection if not {@code null}, only the requested fields are serialized, and children are only included
+     *            if requested as fields
+     * @return the serialized resource
      */
-    private static Iterator<JsonObject> adaptNodes(Iterator<Resource> resources, boolean serializeChildren)
+    private JsonObject serialize(final Resource resource, final boolean serializeChildren,
+        final JsonProjection projection)
     {
-        ArrayList<JsonObject> list = new ArrayList<>();
-        while (resources.hasNext()) {
-            Resource resource = resources.next();
-
+        if (projection != null) {
+            return projection.project(resource);
+        } else if (serializeChildren && resource.hasChildren()) {
             // If there are children we can add, we'll add them as child properties of the JsonObject
-            if (serializeChildren && resource.hasChildren()) {
-                Iterator<Resource> children = resource.listChildren();
-                JsonObjectBuilder builder = Json.createObjectBuilder();
-
-                // First convert the original JsonObject into a JsonObjectBuilder we can adjust
-                JsonObject original = resource.adaptTo(JsonObject.class);
-                for (Map.Entry<String, JsonValue> entry : original.entrySet()) {
-                    builder.add(entry.getKey(), entry.getValue());
-                }
+            Iterator<Resource> children = resource.listChildren();
+            JsonObjectBuilder builder = Json.createObjectBuilder();
 
-                // Next, add each child
-                while (children.hasNext()) {
-                    Resource child = children.next();
-                    builder.add(child.getName(), child.adaptTo(JsonObject.class));
-                }
+            // First convert the original JsonObject into a JsonObjectBuilder we can adjust
+            JsonObject original = this.jsonWriter.serialize(resource, this.serializationScope);
+            for (Map.Entry<String, JsonValue> entry : original.entrySet()) {
+                builder.add(entry.getKey(), entry.getValue());
+            }
 
-                list.add(builder.build());
-            } else {
-                list.add(resource.adaptTo(JsonObject.class));
+            // Next, add each child
+            while (children.hasNext()) {
+                Resource child = children.next();
+                builder.add(child.getName(), this.jsonWriter.serialize(child, this.serializationScope));
             }
+
+            return builder.build();
         }
-        return list.iterator();
+        return this.jsonWriter.serialize(resource, this.serializationScope);
     }
 
     /**
-     * Write the contents of the input nodes, subject to the an offset and a limit. Write metadata about the request
+     * Write the contents of the input objects, subject to the an offset and a limit. Write metadata about the request
      * and response. This includes the number of returned and total matching nodes, and copying some request parameters.
      *
      * @param jsonGen the JSON object generator where the results should be serialized
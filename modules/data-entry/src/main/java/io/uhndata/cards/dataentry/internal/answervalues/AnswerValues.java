@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.answervalues;
+
+import org.apache.sling.api.resource.Resource;
+
+/**
+ * Denormalized answer values: each form holds a copy of the values of its answers, in properties named after the
+ * question, such as {@code cards:answer_<question uuid>}, always multi-valued, holding the values of all the answers to
+ * that question found in the form, including in repeated sections. These properties are maintained at commit time by
+ * {@link AnswerValuesEditor}, and indexed by the {@code forms} Lucene index, so that listings filtered by answer values
+ * can use simple conditions on the form node, instead of joining each form with its answers.
+ * <p>
+ * Forms saved before these properties were introduced are updated by {@link AnswerValuesMigration}, which marks the
+ * forms homepage once all forms hold their answer values. Until then, queries must keep using joins.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class AnswerValues
+{
+    /** The prefix of the properties holding answer values, followed by the identifier of the question. */
+    public static final String PREFIX = "cards:answer_";
+
+    /**
+     * Set on forms whose answer values are up to date, and on the forms homepage once all forms are up to date.
+     */
+    public static final String INDEXED = "cards:answerValuesIndexed";
+
+    private AnswerValues()
+    {
+        // Utility class, no instances
+    }
+
+    /**
+     * Gets the name of the form property holding the values of the answers to a question.
+     *
+     * @param questionIdentifier the identifier of the question
+     * @return a property name
+     */
+    public static String getPropertyName(final String questionIdentifier)
+    {
+        return PREFIX + questionIdentifier;
+    }
+
+    /**
+     * Checks if a property holds answer values.
+     *
+     * @param propertyName the name of a property
+     * @return {@code true} if this is a denormalized answer values property
+     */
+    public static boolean isAnswerValues(final String propertyName)
+    {
+        return propertyName.startsWith(PREFIX);
+    }
+
+    /**
+     * Checks if all the forms stored under a homepage hold their answer values, so that they can be queried instead of
+     * the answers.
+     *
+     * @param homepage the forms homepage
+     * @return {@code true} if the answer values can be used in queries
+     */
+    public static boolean isReady(final Resource homepage)
+    {
+        return homepage != null && homepage.isResourceType("cards/FormsHomepage")
+            && homepage.getValueMap().get(INDEXED, false);
+    }
+}
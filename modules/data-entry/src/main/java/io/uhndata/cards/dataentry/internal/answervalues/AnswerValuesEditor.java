@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.answervalues;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.PropertyStates;
+import org.apache.jackrabbit.oak.spi.commit.DefaultEditor;
+import org.apache.jackrabbit.oak.spi.commit.Editor;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+/**
+ * An {@link Editor} that copies the values of the answers of each changed form onto the form node itself, as described
+ * in {@link AnswerValues}. Only the {@code /Forms} subtree is visited, and whenever anything changed in a form, all the
+ * answer values of that form are recomputed when leaving it. Properties are only written if their value changed.
+ *
+ * @version $Id$
+ */
+public class AnswerValuesEditor extends DefaultEditor
+{
+    private static final String PRIMARY_TYPE = "jcr:primaryType";
+
+    private static final String PROP_QUESTION = "question";
+
+    private static final String PROP_VALUE = "value";
+
+    // The builder for the current node
+    private final NodeBuilder currentNodeBuilder;
+
+    // Whether the current node is the root of the repository
+    private final boolean isRoot;
+
+    // Whether the current node is a form
+    private final boolean isForm;
+
+    /**
+     * Simple constructor.
+     *
+     * @param nodeBuilder the builder for the current node
+     * @param isRoot whether the current node is the root of the repository
+     */
+    public AnswerValuesEditor(final NodeBuilder nodeBuilder, final boolean isRoot)
+    {
+        this.currentNodeBuilder = nodeBuilder;
+        this.isRoot = isRoot;
+        this.isForm = "cards:Form".equals(nodeBuilder.getName(PRIMARY_TYPE));
+    }
+
+    @Override
+    public Editor childNodeAdded(final String name, final NodeState after)
+        throws CommitFailedException
+    {
+        return childNodeChanged(name, null, after);
+    }
+
+    @Override
+    public Editor childNodeChanged(final String name, final NodeState before, final NodeState after)
+        throws CommitFailedException
+    {
+        if (this.isForm || this.isRoot && !"Forms".equals(name)) {
+            // Forms are processed as a whole when leaving them, and answers are only stored under /Forms
+            return null;
+        }
+        return new AnswerValuesEditor(this.currentNodeBuilder.getChildNode(name), false);
+    }
+
+    @Override
+    public void leave(final NodeState before, final NodeState after)
+        throws CommitFailedException
+    {
+        if (!this.isForm) {
+            return;
+        }
+        final Map<String, List<Object>> values = new LinkedHashMap<>();
+        final Map<String, Type<?>> types = new LinkedHashMap<>();
+        collectValues(this.currentNodeBuilder, values, types);
+
+        // Remove the values of questions no longer answered
+        final List<String> stale = new ArrayList<>();
+        for (PropertyState property : this.currentNodeBuilder.getProperties()) {
+            final String name = property.getName();
+            if (AnswerValues.isAnswerValues(name)
+                && !values.containsKey(name.substring(AnswerValues.PREFIX.length()))) {
+                stale.add(name);
+            }
+        }
+        stale.forEach(this.currentNodeBuilder::removeProperty);
+
+        values.forEach((question, questionValues) -> {
+            final PropertyState property = PropertyStates.createProperty(AnswerValues.getPropertyName(question),
+                questionValues, types.get(question).getArrayType());
+            if (!property.equals(this.currentNodeBuilder.getProperty(property.getName()))) {
+                this.currentNodeBuilder.setProperty(property);
+            }
+        });
+        if (!this.currentNodeBuilder.getBoolean(AnswerValues.INDEXED)) {
+            this.currentNodeBuilder.setProperty(AnswerValues.INDEXED, true);
+        }
+    }
+
+    /**
+     * Collects the values of all the answers found in a form or answer section, including nested sections.
+     *
+     * @param parent the form or answer section to look into
+     * @param values the collected values, by question identifier
+     * @param types the type of the values of each question, taken from the first answer found
+     */
+    private void collectValues(final NodeBuilder parent, final Map<String, List<Object>> values,
+        final Map<String, Type<?>> types)
+    {
+        for (String childName : parent.getChildNodeNames()) {
+            final NodeBuilder child = parent.getChildNode(childName);
+            final PropertyState question = child.getProperty(PROP_QUESTION);
+            if (question != null) {
+                final PropertyState value = child.getProperty(PROP_VALUE);
+                if (value == null || value.getType().getBaseType() == Type.BINARY) {
+                    continue;
+                }
+                final String questionIdentifier = question.getValue(Type.STRING);
+                // All the values of a question must have the same type
+                final Type<?> type = types.computeIfAbsent(questionIdentifier, k -> value.getType().getBaseType());
+                final List<Object> questionValues = values.computeIfAbsent(questionIdentifier, k -> new ArrayList<>());
+                for (int i = 0; i < value.count(); ++i) {
+                    questionValues.add(value.getValue(type, i));
+                }
+            } else if ("cards:AnswerSection".equals(child.getName(PRIMARY_TYPE))) {
+                collectValues(child, values, types);
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.answervalues;
+
+import java.util.Collections;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.VersionManager;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.event.jobs.consumer.JobExecutionContext;
+import org.apache.sling.event.jobs.consumer.JobExecutionResult;
+import org.apache.sling.event.jobs.consumer.JobExecutor;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.dataentry.internal.layout.ContentLayoutMigration;
+
+/**
+ * Adds the {@link AnswerValues denormalized answer values} to the forms saved before they were introduced. The
+ * migration runs as a background job, submitted when this component is activated if the forms homepage is not yet
+ * marked as {@link AnswerValues#INDEXED indexed}. Each form lacking its answer values is touched, which makes
+ * {@link AnswerValuesEditor} compute them. Forms that are already checked out are only touched. Checked in forms are
+ * read-only, so they are checked out for this, and checked in again afterwards, which intentionally adds one version
+ * to each of them, holding the same answers plus their answer values; this only happens once per form. If it is
+ * interrupted, the job is resumed later, and only the forms still lacking their answer values are touched.
+ * <p>
+ * The {@link ContentLayoutMigration content layout migration} may move forms into buckets that were already visited, so
+ * the forms are visited again until a whole pass finds nothing left to touch, and the forms homepage is only marked as
+ * indexed if the layout migration isn't pending.
+ * </p>
+ * <p>
+ * The migration is executed with the {@code cards-migration} service user.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = JobExecutor.class, immediate = true,
+    property = { JobExecutor.PROPERTY_TOPICS + "=" + AnswerValuesMigration.TOPIC })
+public class AnswerValuesMigration implements JobExecutor
+{
+    /** The topic of the migration job. */
+    public static final String TOPIC = "io/uhndata/cards/dataentry/answer-values-migration";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnswerValuesMigration.class);
+
+    private static final String HOMEPAGE = "/Forms";
+
+    /** How often progress is logged, in forms. */
+    private static final int LOG_INTERVAL = 500;
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private JobManager jobManager;
+
+    @Activate
+    protected void activate()
+    {
+        if (this.jobManager.getJob(TOPIC, Collections.emptyMap()) == null) {
+            try (ResourceResolver resolver = getResolver()) {
+                if (!AnswerValues.isReady(resolver.getResource(HOMEPAGE))) {
+                    this.jobManager.addJob(TOPIC, null);
+                }
+            } catch (LoginException e) {
+                LOGGER.warn("Failed to check if answer values must be migrated: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public JobExecutionResult process(final Job job, final JobExecutionContext context)
+    {
+        try (ResourceResolver resolver = getResolver()) {
+            final Session session = resolver.adaptTo(Session.class);
+            if (!session.nodeExists(HOMEPAGE)) {
+                return context.result().message("No forms homepage").cancelled();
+            }
+            final Node homepage = session.getNode(HOMEPAGE);
+            final VersionManager versionManager = session.getWorkspace().getVersionManager();
+            long migrated = 0;
+            long before;
+            do {
+                before = migrated;
+                migrated = migrate(homepage, versionManager, context, migrated);
+            } while (migrated > before && !context.isStopped());
+            if (context.isStopped()) {
+                // Interrupted by a shutdown, will be resumed later
+                return context.result().message("Stopped").failed();
+            }
+            if (this.jobManager.getJob(ContentLayoutMigration.TOPIC, Collections.emptyMap()) != null) {
+                // Forms may still be moved into buckets already visited, retried later
+                return context.result().message("Waiting for the content layout migration").failed();
+            }
+            homepage.setProperty(AnswerValues.INDEXED, true);
+            session.save();
+            LOGGER.info("Answer values migration done, {} forms updated", migrated);
+            return context.result().succeeded();
+        } catch (LoginException | RepositoryException e) {
+            LOGGER.error("Answer values migration failed: {}", e.getMessage(), e);
+            return context.result().message(e.getMessage()).failed();
+        }
+    }
+
+    private ResourceResolver getResolver() throws LoginException
+    {
+        return this.resolverFactory.getServiceResourceResolver(
+            Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, "answers"));
+    }
+
+    /**
+     * Touches all the forms lacking their answer values stored under a node, looking into buckets.
+     *
+     * @param parent the forms homepage, or a bucket
+     * @param versionManager the version manager used for checking out forms
+     * @param context the job context, checked between forms
+     * @param migratedSoFar the number of forms updated so far, used for logging progress
+     * @return the total number of forms updated so far
+     * @throws RepositoryException if updating a form fails
+     */
+    private long migrate(final Node parent, final VersionManager versionManager, final JobExecutionContext context,
+        final long migratedSoFar) throws RepositoryException
+    {
+        long migrated = migratedSoFar;
+        for (NodeIterator children = parent.getNodes(); children.hasNext() && !context.isStopped();) {
+            final Node child = children.nextNode();
+            if (child.isNodeType("cards:Bucket")) {
+                migrated = migrate(child, versionManager, context, migrated);
+            } else if (child.isNodeType("cards:Form") && !child.hasProperty(AnswerValues.INDEXED)) {
+                touch(child, versionManager);
+                if (++migrated % LOG_INTERVAL == 0) {
+                    LOGGER.info("Added answer values to {} forms so far", migrated);
+                }
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * Makes a change in a form, so that its answer values are computed when the change is saved.
+     *
+     * @param form the form to update
+     * @param versionManager the version manager used for checking out the form
+     * @throws RepositoryException if updating the form fails
+     */
+    private void touch(final Node form, final VersionManager versionManager) throws RepositoryException
+    {
+        final String path = form.getPath();
+        final boolean checkedIn = !form.isCheckedOut();
+        if (checkedIn) {
+            versionManager.checkout(path);
+        }
+        try {
+            // Replaced with true by AnswerValuesEditor
+            form.setProperty(AnswerValues.INDEXED, false);
+            form.getSession().save();
+        } catch (RepositoryException e) {
+            form.getSession().refresh(false);
+            throw e;
+        } finally {
+            if (checkedIn) {
+                versionManager.checkin(path);
+            }
+        }
+    }
+}
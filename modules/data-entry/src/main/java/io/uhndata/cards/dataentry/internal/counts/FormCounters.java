@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.counts;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.dataentry.internal.layout.ContentLayout;
+
+/**
+ * Maintains the number of forms for each questionnaire and status flag, so that the total number of forms in a
+ * listing can be known without counting them with a query. The counters are computed once, by a background scan of all
+ * the forms, and then kept up to date by comparing the forms before and after each commit, so only committed changes
+ * are counted.
+ * <p>
+ * The counters include all the forms in the repository, regardless of the access rights of the current user.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { Observer.class, FormCounters.class }, immediate = true)
+public class FormCounters implements Observer
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(FormCounters.class);
+
+    private static final String FORMS = "Forms";
+
+    private static final String PRIMARY_TYPE = "jcr:primaryType";
+
+    private static final String QUESTIONNAIRE = "questionnaire";
+
+    private static final String STATUS_FLAGS = "statusFlags";
+
+    /** The counters, by questionnaire identifier. */
+    private final Map<String, QuestionnaireCounters> counters = new ConcurrentHashMap<>();
+
+    /** The forms as of the previous commit, only accessed while processing a commit. */
+    private NodeState previous;
+
+    private volatile boolean ready;
+
+    private volatile Thread initialCount;
+
+    /** The counters for the forms of one questionnaire. */
+    private static final class QuestionnaireCounters
+    {
+        private final LongAdder total = new LongAdder();
+
+        private final Map<String, LongAdder> flags = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Checks if the counters are available: they are not until the initial scan is done.
+     *
+     * @return {@code true} if the counters can be used
+     */
+    public boolean isReady()
+    {
+        return this.ready;
+    }
+
+    /**
+     * Counts forms.
+     *
+     * @param questionnaire the identifier of the questionnaire of the forms to count, or {@code null} to count the
+     *            forms of all questionnaires
+     * @param requiredFlag if not {@code null}, only the forms with this status flag are counted
+     * @param excludedFlag if not {@code null}, the forms with this status flag are not counted
+     * @return the number of matching forms, or {@code -1} if the counters are not ready yet
+     */
+    public long count(final String questionnaire, final String requiredFlag, final String excludedFlag)
+    {
+        if (!this.ready) {
+            return -1;
+        }
+        long result = 0;
+        for (Map.Entry<String, QuestionnaireCounters> entry : this.counters.entrySet()) {
+            if (questionnaire == null || questionnaire.equals(entry.getKey())) {
+                final QuestionnaireCounters questionnaireCounters = entry.getValue();
+                long count = requiredFlag == null ? questionnaireCounters.total.sum() : getFlag(questionnaireCounters,
+                    requiredFlag);
+                if (excludedFlag != null) {
+                    count -= getFlag(questionnaireCounters, excludedFlag);
+                }
+                result += count;
+            }
+        }
+        return Math.max(0, result);
+    }
+
+    @Override
+    public synchronized void contentChanged(final NodeState root, final CommitInfo info)
+    {
+        final NodeState forms = root.getChildNode(FORMS);
+        if (this.previous == null) {
+            // The first state seen is counted fully, in the background; later changes are counted as they come
+            this.previous = forms;
+            startInitialCount(forms);
+            return;
+        }
+        forms.compareAgainstBaseState(this.previous, new FormsDiff());
+        this.previous = forms;
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        final Thread thread = this.initialCount;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void startInitialCount(final NodeState forms)
+    {
+        final Thread thread = new Thread(() -> {
+            final long start = System.currentTimeMillis();
+            if (countAll(forms)) {
+                this.ready = true;
+                LOGGER.info("Form counters ready after {} ms", System.currentTimeMillis() - start);
+            }
+            this.initialCount = null;
+        }, "Form counters initialization");
+        thread.setDaemon(true);
+        this.initialCount = thread;
+        thread.start();
+    }
+
+    /**
+     * Counts all the forms under a homepage or bucket.
+     *
+     * @param parent the homepage or a bucket
+     * @return {@code false} if counting was interrupted
+     */
+    private boolean countAll(final NodeState parent)
+    {
+        for (ChildNodeEntry child : parent.getChildNodeEntries()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            final NodeState state = child.getNodeState();
+            if (isForm(state)) {
+                update(state, 1);
+            } else if (isBucket(state) && !countAll(state)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void update(final NodeState form, final int delta)
+    {
+        final PropertyState questionnaire = form.getProperty(QUESTIONNAIRE);
+        if (questionnaire == null) {
+            return;
+        }
+        final QuestionnaireCounters questionnaireCounters =
+            this.counters.computeIfAbsent(questionnaire.getValue(Type.STRING), key -> new QuestionnaireCounters());
+        questionnaireCounters.total.add(delta);
+        for (String flag : getFlags(form)) {
+            questionnaireCounters.flags.computeIfAbsent(flag, key -> new LongAdder()).add(delta);
+        }
+    }
+
+    private static Iterable<String> getFlags(final NodeState form)
+    {
+        final PropertyState flags = form.getProperty(STATUS_FLAGS);
+        if (flags == null) {
+            return Collections.emptyList();
+        }
+        return flags.isArray() ? flags.getValue(Type.STRINGS) : Collections.singletonList(flags.getValue(Type.STRING));
+    }
+
+    private static long getFlag(final QuestionnaireCounters questionnaireCounters, final String flag)
+    {
+        final LongAdder result = questionnaireCounters.flags.get(flag);
+        return result == null ? 0 : result.sum();
+    }
+
+    private static boolean isForm(final NodeState state)
+    {
+        return "cards:Form".equals(state.getName(PRIMARY_TYPE));
+    }
+
+    private static boolean isBucket(final NodeState state)
+    {
+        return ContentLayout.BUCKET_TYPE.equals(state.getName(PRIMARY_TYPE));
+    }
+
+    private static boolean sameCounts(final NodeState before, final NodeState after)
+    {
+        return Objects.equals(before.getProperty(QUESTIONNAIRE), after.getProperty(QUESTIONNAIRE))
+            && Objects.equals(before.getProperty(STATUS_FLAGS), after.getProperty(STATUS_FLAGS));
+    }
+
+    /** Updates the counters with the forms added, removed, or changed by a commit. */
+    private final class FormsDiff extends DefaultNodeStateDiff
+    {
+        @Override
+        public boolean childNodeAdded(final String name, final NodeState after)
+        {
+            if (isForm(after)) {
+                update(after, 1);
+            } else if (isBucket(after)) {
+                after.compareAgainstBaseState(EmptyNodeState.EMPTY_NODE, this);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean childNodeDeleted(final String name, final NodeState before)
+        {
+            if (isForm(before)) {
+                update(before, -1);
+            } else if (isBucket(before)) {
+                EmptyNodeState.EMPTY_NODE.compareAgainstBaseState(before, this);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean childNodeChanged(final String name, final NodeState before, final NodeState after)
+        {
+            if (isForm(before) || isForm(after)) {
+                // Changes to the answers don't matter, only the questionnaire and status of the form are counted
+                if (!sameCounts(before, after)) {
+                    update(before, -1);
+                    update(after, 1);
+                }
+            } else if (isBucket(after)) {
+                after.compareAgainstBaseState(before, this);
+            }
+            return true;
+        }
+    }
+}
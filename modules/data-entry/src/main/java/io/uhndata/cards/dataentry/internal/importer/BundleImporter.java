@@ -0,0 +1,445 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports a bundle of data files for several questionnaires about the same subjects, packaged as a zip archive. Next to
+ * the data files, the archive must hold a {@value #MANIFEST} file, a JSON array with one object for each data file:
+ *
+ * <pre>
+ * [
+ *   {"file": "demographics.tsv", "questionnaire": "/Questionnaires/Demographics"},
+ *   {"file": "tumors.tsv", "questionnaire": "/Questionnaires/Tumor",
+ *     "subjectTypes": ["/SubjectTypes/Patient", "/SubjectTypes/Patient/Tumor"]}
+ * ]
+ * </pre>
+ * <p>
+ * The import is done in two phases. First, all the subjects referenced in all the files are resolved, with batched
+ * queries, and the missing ones are created and saved, on the calling thread. Then, since the subjects are all known
+ * and they won't be modified, the files are imported concurrently, each one by a worker with its own session. Data
+ * files are streamed directly from the archive, which is never unpacked in memory or on the disk.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class BundleImporter
+{
+    /** The name of the manifest file in the archive. */
+    public static final String MANIFEST = "manifest.json";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundleImporter.class);
+
+    private static final String DEFAULT_SUBJECT_TYPE = "/SubjectTypes/Patient";
+
+    private final ResourceResolver resolver;
+
+    private final ZipFile archive;
+
+    private final boolean patch;
+
+    private final long batchSize;
+
+    private final List<Entry> entries;
+
+    /**
+     * One data file listed in the manifest.
+     */
+    public static final class Entry
+    {
+        private final String file;
+
+        private final String questionnaire;
+
+        private final String[] subjectTypes;
+
+        Entry(final String file, final String questionnaire, final String[] subjectTypes)
+        {
+            this.file = file;
+            this.questionnaire = questionnaire;
+            this.subjectTypes = subjectTypes;
+        }
+
+        /**
+         * The name of the data file in the archive.
+         *
+         * @return a file name
+         */
+        public String getFile()
+        {
+            return this.file;
+        }
+
+        /**
+         * The path to the questionnaire that the data file is for.
+         *
+         * @return a questionnaire path
+         */
+        public String getQuestionnaire()
+        {
+            return this.questionnaire;
+        }
+
+        /**
+         * The paths to the subject types identified in each row, from the top level subject type down.
+         *
+         * @return subject type paths
+         */
+        public String[] getSubjectTypes()
+        {
+            return this.subjectTypes;
+        }
+    }
+
+    /**
+     * Statistics about the import of one data file.
+     */
+    public static final class EntryStatistics
+    {
+        private final String file;
+
+        private long rows;
+
+        private long failedRows;
+
+        private long elapsedMillis;
+
+        private String error;
+
+        EntryStatistics(final String file)
+        {
+            this.file = file;
+        }
+
+        /**
+         * The name of the data file in the archive.
+         *
+         * @return a file name
+         */
+        public String getFile()
+        {
+            return this.file;
+        }
+
+        /**
+         * The number of rows successfully saved.
+         *
+         * @return a number of rows
+         */
+        public long getRows()
+        {
+            return this.rows;
+        }
+
+        /**
+         * The number of rows that could not be imported.
+         *
+         * @return a number of rows
+         */
+        public long getFailedRows()
+        {
+            return this.failedRows;
+        }
+
+        /**
+         * How long importing the file took.
+         *
+         * @return a duration, in milliseconds
+         */
+        public long getElapsedMillis()
+        {
+            return this.elapsedMillis;
+        }
+
+        /**
+         * The error that stopped the import of the file, if any.
+         *
+         * @return an error message, or {@code null} if the whole file was processed
+         */
+        public String getError()
+        {
+            return this.error;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: imported %d rows, %d failed rows, %d ms%s", this.file, this.rows,
+                this.failedRows, this.elapsedMillis, this.error == null ? "" : ", stopped by error: " + this.error);
+        }
+    }
+
+    /**
+     * Basic constructor, reading the manifest of the bundle.
+     *
+     * @param resolver the resource resolver of the current request, cloned for each worker
+     * @param archive the uploaded archive
+     * @param patch if {@code true}, existing forms are updated instead of always creating new forms
+     * @param batchSize if positive, changes are saved after every {@code batchSize} rows of each file; otherwise, each
+     *            file is saved at once
+     * @throws IOException if reading the manifest fails
+     * @throws IllegalArgumentException if the manifest is missing or invalid
+     */
+    public BundleImporter(final ResourceResolver resolver, final ZipFile archive, final boolean patch,
+        final long batchSize) throws IOException
+    {
+        this.resolver = resolver;
+        this.archive = archive;
+        this.patch = patch;
+        this.batchSize = batchSize;
+        this.entries = Collections.unmodifiableList(readManifest(archive));
+    }
+
+    /**
+     * The data files listed in the manifest.
+     *
+     * @return a list of entries, in the order of the manifest
+     */
+    public List<Entry> getEntries()
+    {
+        return this.entries;
+    }
+
+    /**
+     * The first phase of the import: finds all the existing subjects referenced in all the data files, and creates the
+     * missing ones.
+     *
+     * @return all the subjects, to be passed to {@link #importEntries}
+     * @throws IOException if reading the data fails
+     * @throws RepositoryException if accessing the repository fails
+     */
+    public ImportPrefetch resolveSubjects() throws IOException, RepositoryException
+    {
+        final Session session = this.resolver.adaptTo(Session.class);
+        final ImportPrefetch subjects = ImportPrefetch.create();
+        for (Entry entry : this.entries) {
+            final DataImporter importer =
+                new DataImporter(this.resolver, entry.questionnaire, entry.subjectTypes, false);
+            try (CSVParser data = parse(entry)) {
+                subjects.loadSubjects(session, entry.subjectTypes,
+                    importer.getSubjectIdentifiers(DataImporter.asRows(data)));
+            }
+            importer.setPrefetch(subjects);
+            long rowsInBatch = 0;
+            try (CSVParser data = parse(entry)) {
+                for (CSVRecord row : data) {
+                    importer.resolveSubjects(row.toMap());
+                    if (this.batchSize > 0 && ++rowsInBatch >= this.batchSize) {
+                        importer.commit();
+                        rowsInBatch = 0;
+                    }
+                }
+            }
+            importer.commit();
+        }
+        return subjects;
+    }
+
+    /**
+     * The second phase of the import: imports all the data files concurrently.
+     *
+     * @param subjects all the subjects, as returned by {@link #resolveSubjects}
+     * @param workers the maximum number of files to import at the same time; the worker threads count towards the
+     *            limit shared by all the parallel imports, see {@link ImportWorkers}
+     * @return the statistics for each data file, in the order of the manifest
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+     * @throws RejectedExecutionException if too many imports are already running, and no files were imported
+     */
+    public List<EntryStatistics> importEntries(final ImportPrefetch subjects, final int workers)
+        throws InterruptedException
+    {
+        final int threads = Math.max(1, Math.min(Math.min(workers, this.entries.size()), ImportWorkers.MAX_WORKERS));
+        ImportWorkers.acquire(threads);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<EntryStatistics>> futures = new ArrayList<>(this.entries.size());
+            for (Entry entry : this.entries) {
+                futures.add(executor.submit(() -> importEntry(entry, subjects)));
+            }
+            final List<EntryStatistics> result = new ArrayList<>(this.entries.size());
+            for (Future<EntryStatistics> future : futures) {
+                try {
+                    result.add(future.get());
+                } catch (ExecutionException e) {
+                    LOGGER.error("Bundle import worker failed: {}", e.getMessage(), e);
+                }
+            }
+            return Collections.unmodifiableList(result);
+        } finally {
+            executor.shutdownNow();
+            ImportWorkers.release(threads);
+        }
+    }
+
+    /**
+     * Imports one data file, with a new session.
+     *
+     * @param entry the data file to import
+     * @param subjects all the subjects, shared by all the workers
+     * @return the statistics for this file
+     */
+    private EntryStatistics importEntry(final Entry entry, final ImportPrefetch subjects)
+    {
+        final long start = System.currentTimeMillis();
+        final EntryStatistics statistics = new EntryStatistics(entry.file);
+        ResourceResolver workerResolver = null;
+        long pendingRows = 0;
+        try {
+            workerResolver = this.resolver.clone(null);
+            final DataImporter importer =
+                new DataImporter(workerResolver, entry.questionnaire, entry.subjectTypes, this.patch);
+            final ImportPrefetch prefetch = subjects.withSubjectsOnly();
+            if (this.patch) {
+                prefetch.loadForms(workerResolver.adaptTo(Session.class), importer.getPlan().getQuestionnaire());
+            }
+            importer.setPrefetch(prefetch);
+            try (CSVParser data = parse(entry)) {
+                importer.getPlan().bindColumns(data.getHeaderMap().keySet());
+                for (CSVRecord row : data) {
+                    if (importer.importRow(row.getRecordNumber(), row.toMap())) {
+                        ++pendingRows;
+                    } else {
+                        ++statistics.failedRows;
+                    }
+                    if (this.batchSize > 0 && pendingRows >= this.batchSize) {
+                        commit(importer, statistics, pendingRows);
+                        pendingRows = 0;
+                    }
+                }
+            }
+            commit(importer, statistics, pendingRows);
+            pendingRows = 0;
+        } catch (LoginException | RepositoryException | IOException | IllegalArgumentException e) {
+            LOGGER.error("Failed to import {}: {}", entry.file, e.getMessage(), e);
+            statistics.error = e.getMessage();
+            statistics.failedRows += pendingRows;
+        } finally {
+            if (workerResolver != null) {
+                workerResolver.close();
+            }
+            statistics.elapsedMillis = System.currentTimeMillis() - start;
+            LOGGER.info("{}", statistics);
+        }
+        return statistics;
+    }
+
+    private void commit(final DataImporter importer, final EntryStatistics statistics, final long pendingRows)
+    {
+        try {
+            importer.commit();
+            statistics.rows += pendingRows;
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to save a batch of {} rows from {}: {}", pendingRows, statistics.file, e.getMessage(),
+                e);
+            statistics.failedRows += pendingRows;
+            try {
+                importer.rollback();
+            } catch (RepositoryException ex) {
+                LOGGER.warn("Failed to discard the changes for {}: {}", statistics.file, ex.getMessage());
+            }
+        }
+    }
+
+    private CSVParser parse(final Entry entry) throws IOException
+    {
+        final ZipEntry zipEntry = this.archive.getEntry(entry.file);
+        return CSVParser.parse(this.archive.getInputStream(zipEntry), StandardCharsets.UTF_8,
+            CSVFormat.TDF.withFirstRecordAsHeader());
+    }
+
+    private static List<Entry> readManifest(final ZipFile archive) throws IOException
+    {
+        final ZipEntry manifest = archive.getEntry(MANIFEST);
+        if (manifest == null) {
+            throw new IllegalArgumentException("The archive doesn't contain a " + MANIFEST + " file");
+        }
+        final JsonArray files;
+        try (InputStream in = archive.getInputStream(manifest); JsonReader reader = Json.createReader(in)) {
+            files = reader.readArray();
+        } catch (JsonException | IllegalStateException e) {
+            throw new IllegalArgumentException("Invalid " + MANIFEST + ": " + e.getMessage());
+        }
+
+        final List<Entry> result = new ArrayList<>(files.size());
+        for (JsonValue value : files) {
+            if (value.getValueType() != JsonValue.ValueType.OBJECT) {
+                throw new IllegalArgumentException("Invalid " + MANIFEST + ": expected an object, got " + value);
+            }
+            final JsonObject file = (JsonObject) value;
+            final String name = file.getString("file", null);
+            final String questionnaire = file.getString("questionnaire", null);
+            if (StringUtils.isAnyBlank(name, questionnaire)) {
+                throw new IllegalArgumentException(
+                    "Invalid " + MANIFEST + ": each entry needs a file and a questionnaire");
+            }
+            if (archive.getEntry(name) == null) {
+                throw new IllegalArgumentException("The archive doesn't contain the file " + name);
+            }
+            result.add(new Entry(name, questionnaire, getSubjectTypes(file.get("subjectTypes"))));
+        }
+        return result;
+    }
+
+    private static String[] getSubjectTypes(final JsonValue value)
+    {
+        if (value == null || value.getValueType() == JsonValue.ValueType.NULL) {
+            return new String[] { DEFAULT_SUBJECT_TYPE };
+        }
+        if (value.getValueType() == JsonValue.ValueType.STRING) {
+            return new String[] { ((JsonString) value).getString() };
+        }
+        if (value.getValueType() == JsonValue.ValueType.ARRAY && !((JsonArray) value).isEmpty()) {
+            return ((JsonArray) value).getValuesAs(JsonString.class).stream().map(JsonString::getString)
+                .toArray(String[]::new);
+        }
+        throw new IllegalArgumentException("Invalid " + MANIFEST + ": invalid subject types " + value);
+    }
+}
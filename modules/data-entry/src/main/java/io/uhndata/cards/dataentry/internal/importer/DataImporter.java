@@ -0,0 +1,887 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.version.VersionManager;
+
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.dataentry.internal.importer.QuestionnaireImportPlan.QuestionPlan;
+import io.uhndata.cards.dataentry.internal.layout.ContentLayout;
+import io.uhndata.cards.spi.SearchUtils;
+
+/**
+ * Imports rows of data for one questionnaire into forms, creating subjects as needed. Each row is a map from column
+ * names to raw values: subjects are identified by columns named after the label of their subject type, and answers by
+ * columns named after the name or text of their question.
+ * <p>
+ * An importer holds the state of one import, and must only be used by one thread, with the resource resolver it was
+ * created for. Changes are only saved when {@link #commit()} is called.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class DataImporter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataImporter.class);
+
+    private static final String VALUE_PROPERTY = "value";
+
+    private static final String NOTE_PROPERTY = "note";
+
+    /** The privileges needed for adding forms to an existing subject. */
+    private static final String[] SUBJECT_PRIVILEGES = { "jcr:read" };
+
+    /** The privileges needed for adding a child subject to an existing subject. */
+    private static final String[] PARENT_SUBJECT_PRIVILEGES = { "jcr:read", "jcr:addChildNodes" };
+
+    /** The privileges needed for updating an existing form. */
+    private static final String[] FORM_PRIVILEGES = { "jcr:read", "jcr:modifyProperties", "jcr:addChildNodes" };
+
+    /** Cached Subject nodes (for multiple forms for the same subject, for instance). */
+    private final Map<String, Node> subjectCache = new HashMap<>();
+
+    /** Forms and subjects modified since the last commit, to be checked in after saving. */
+    private final Set<String> nodesToCheckin = new HashSet<>();
+
+    /** The Resource Resolver used for accessing the repository. */
+    private final ResourceResolver resolver;
+
+    /** The questionnaire that the data is for. */
+    private final Node questionnaire;
+
+    /** The import plan compiled from the questionnaire. */
+    private final QuestionnaireImportPlan plan;
+
+    /** The {@code /Subjects} resource. */
+    private final Resource subjectsHomepage;
+
+    /** The {@code /Forms} resource. */
+    private final Resource formsHomepage;
+
+    /** The list of subjectTypes. */
+    private final String[] subjectTypes;
+
+    /** The top level subject type, used for partitioning rows. */
+    private final Node topLevelSubjectType;
+
+    /** Whether existing forms are updated, or new forms are always created. */
+    private final boolean patch;
+
+    /** A query manager to handle queries. */
+    private final QueryManager queryManager;
+
+    /** The existing subjects and forms, prefetched in patch mode. */
+    private ImportPrefetch prefetch;
+
+    /** The answers of the forms updated in patch mode, by form path. */
+    private final Map<String, FormAnswerIndex> formIndexes = new HashMap<>();
+
+    /** A local mapping for question node identifiers to answer nodes, for the current row. */
+    private final Map<String, Resource> cachedAnswers = new HashMap<>();
+
+    /** Checks the rights of the user on whose behalf data is imported, if different from the session's user. */
+    private ImportAccessCheck accessCheck;
+
+    /** The existing nodes that the user is already known to be allowed to use, along with the needed privileges. */
+    private final Set<String> allowedNodes = new HashSet<>();
+
+    /**
+     * Prepares an import. Everything needed about the questionnaire is computed only once, before processing the
+     * first row.
+     *
+     * @param resolver the resource resolver to use for accessing the repository
+     * @param questionnairePath the path to the questionnaire that the data is for
+     * @param subjectTypes the paths to the subject types identified in each row, from the top level subject type down
+     *            to the one that the forms belong to
+     * @param patch if {@code true}, try to update existing forms when possible; if {@code false}, new forms are always
+     *            created
+     * @throws RepositoryException if accessing the repository fails
+     */
+    public DataImporter(final ResourceResolver resolver, final String questionnairePath, final String[] subjectTypes,
+        final boolean patch) throws RepositoryException
+    {
+        final Resource questionnaireResource = resolver.getResource(questionnairePath);
+        if (questionnaireResource == null) {
+            throw new IllegalArgumentException("Unknown questionnaire: " + questionnairePath);
+        }
+        this.resolver = resolver;
+        this.formsHomepage = resolver.getResource("/Forms");
+        this.subjectsHomepage = resolver.getResource("/Subjects");
+        this.queryManager = resolver.adaptTo(Session.class).getWorkspace().getQueryManager();
+        this.subjectTypes = subjectTypes;
+        this.topLevelSubjectType = resolver.getResource(subjectTypes[0]).adaptTo(Node.class);
+        this.patch = patch;
+        this.questionnaire = questionnaireResource.adaptTo(Node.class);
+        this.plan = QuestionnaireImportPlan.compile(this.questionnaire);
+    }
+
+    /**
+     * The import plan compiled from the target questionnaire.
+     *
+     * @return the import plan
+     */
+    public QuestionnaireImportPlan getPlan()
+    {
+        return this.plan;
+    }
+
+    /**
+     * The subjects and forms prefetched for this import, if any.
+     *
+     * @return the prefetched subjects and forms, or {@code null} if nothing was prefetched
+     */
+    public ImportPrefetch getPrefetch()
+    {
+        return this.prefetch;
+    }
+
+    /**
+     * Uses already prefetched subjects and forms, for example prefetched by a different importer for the same data.
+     *
+     * @param prefetch the prefetched subjects and forms, may be {@code null}
+     */
+    public void setPrefetch(final ImportPrefetch prefetch)
+    {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Imports data on behalf of a different user than the one of the session, only modifying the existing subjects and
+     * forms that this user is allowed to modify. Rows targeting other subjects or forms are skipped.
+     *
+     * @param accessCheck checks the rights of the user on whose behalf data is imported, may be {@code null} if the
+     *            data is imported for the user of the session
+     */
+    public void setAccessCheck(final ImportAccessCheck accessCheck)
+    {
+        this.accessCheck = accessCheck;
+    }
+
+    /**
+     * Looks up all the existing subjects and forms for the given rows with a few batched queries, so that patching
+     * rows doesn't have to query the repository for each row. The prefetched data is used by this importer from now
+     * on, and can be shared with other importers.
+     *
+     * @param rows all the rows that will be imported
+     * @return the prefetched subjects and forms
+     * @throws RepositoryException if querying the repository fails
+     */
+    public ImportPrefetch prefetch(final Iterable<Map<String, String>> rows) throws RepositoryException
+    {
+        this.prefetch = ImportPrefetch.load(this.resolver.adaptTo(Session.class), this.questionnaire,
+            this.subjectTypes, getSubjectIdentifiers(rows));
+        return this.prefetch;
+    }
+
+    /**
+     * Collects the identifiers of all the subjects referenced in the given rows.
+     *
+     * @param rows the rows to process
+     * @return the subject identifiers, one set for each of the subject types of this import, in the same order
+     */
+    public List<Set<String>> getSubjectIdentifiers(final Iterable<Map<String, String>> rows)
+    {
+        final List<Node> typeNodes = new ArrayList<>(this.subjectTypes.length);
+        final List<Set<String>> identifiers = new ArrayList<>(this.subjectTypes.length);
+        for (String type : this.subjectTypes) {
+            typeNodes.add(this.resolver.getResource(type).adaptTo(Node.class));
+            identifiers.add(new HashSet<>());
+        }
+        for (Map<String, String> row : rows) {
+            // Same as in getOrCreateSubject, lower level subjects are only used if all their ancestors are set
+            for (int i = 0; i < this.subjectTypes.length; ++i) {
+                final String subjectId = findSubjectId(row, typeNodes.get(i));
+                if (StringUtils.isBlank(subjectId)) {
+                    break;
+                }
+                identifiers.get(i).add(subjectId);
+            }
+        }
+        return identifiers;
+    }
+
+    /**
+     * Finds, or creates if needed, all the subjects referenced in a row, without creating a form. Just like forms,
+     * new subjects are saved by the next {@link #commit()}.
+     *
+     * @param row the row to process
+     * @return {@code true} if the subject of the row was found or created, {@code false} otherwise
+     */
+    public boolean resolveSubjects(final Map<String, String> row)
+    {
+        try {
+            return getOrCreateSubject(row) != null;
+        } catch (PersistenceException e) {
+            LOGGER.warn("Failed to resolve the subjects of a row: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Looks for the identifier of the top level subject in the given data row.
+     *
+     * @param row the input row to process
+     * @return a subject identifier, or {@code null} if one cannot be found
+     */
+    public String getTopLevelSubjectId(final Map<String, String> row)
+    {
+        return findSubjectId(row, this.topLevelSubjectType);
+    }
+
+    /**
+     * Adapts parsed CSV records to the rows expected by this importer. Records are converted lazily, while iterating.
+     *
+     * @param records the parsed records
+     * @return the records as maps from column names to raw values
+     */
+    public static Iterable<Map<String, String>> asRows(final Iterable<CSVRecord> records)
+    {
+        return () -> {
+            final Iterator<CSVRecord> iterator = records.iterator();
+            return new Iterator<Map<String, String>>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Map<String, String> next()
+                {
+                    return iterator.next().toMap();
+                }
+            };
+        };
+    }
+
+    /**
+     * Saves all the pending changes, then checks in all the forms and subjects modified since the previous save.
+     *
+     * @throws RepositoryException if saving the changes fails
+     */
+    public void commit() throws RepositoryException
+    {
+        final Session session = this.resolver.adaptTo(Session.class);
+        session.save();
+        final VersionManager vm = session.getWorkspace().getVersionManager();
+        this.nodesToCheckin.forEach(node -> {
+            try {
+                vm.checkin(node);
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to check in node {}: {}", node, e.getMessage(), e);
+            }
+        });
+        this.nodesToCheckin.clear();
+        // Saved forms may not be needed again, don't keep their answers in memory
+        this.formIndexes.clear();
+    }
+
+    /**
+     * Discards all the pending changes, and forgets about the subjects and forms created since the previous save.
+     *
+     * @throws RepositoryException if accessing the repository fails
+     */
+    public void rollback() throws RepositoryException
+    {
+        this.resolver.adaptTo(Session.class).refresh(false);
+        this.subjectCache.clear();
+        this.nodesToCheckin.clear();
+        this.formIndexes.clear();
+    }
+
+    /**
+     * Parses and stores one row of data into a {@code Form} node, without saving it. Errors are logged and the row, or
+     * the affected fields, are skipped.
+     *
+     * @param rowNumber the number of the row in the input file, used for logging
+     * @param row the row to import, a map from column names to raw values
+     * @return {@code true} if the row was imported, {@code false} if it had to be skipped
+     */
+    public boolean importRow(final long rowNumber, final Map<String, String> row)
+    {
+        this.cachedAnswers.clear();
+        final Resource form;
+        try {
+            form = getOrCreateForm(row);
+        } catch (PersistenceException e) {
+            LOGGER.warn("Failed to import row: {}", e.getMessage());
+            return false;
+        }
+        if (form == null) {
+            LOGGER.warn("Cannot determine subject for row #{}", rowNumber);
+            return false;
+        }
+        row.forEach((fieldName, fieldValue) -> {
+            try {
+                if (StringUtils.isBlank(fieldValue)) {
+                    return;
+                }
+
+                final QuestionPlan question = this.plan.getQuestionForColumn(fieldName);
+                if (question == null) {
+                    return;
+                }
+                if (QuestionnaireImportPlan.isNoteColumn(fieldName.trim())) {
+                    parseNote(question, fieldValue, form);
+                } else {
+                    parseAnswer(question, fieldValue, form);
+                }
+            } catch (PersistenceException | RepositoryException e) {
+                LOGGER.warn("Failed to parse row [{}]: {}", rowNumber, e.getMessage());
+            }
+        });
+        this.nodesToCheckin.add(form.getPath());
+        return true;
+    }
+
+    /**
+     * Finds or creates the form for a subject, without importing any answers, for importers that fill in the form
+     * themselves. The form is checked in by the next {@link #commit()}.
+     *
+     * @param subjectIdentifiers the identifiers of the subject and of its ancestors, from the top level subject down,
+     *            one for each of the first subject types of this import
+     * @return the form, or {@code null} if the subject cannot be determined
+     * @throws PersistenceException if creating the form fails
+     * @throws RepositoryException if accessing the subject types fails
+     */
+    public Resource getOrCreateFormForSubject(final List<String> subjectIdentifiers)
+        throws PersistenceException, RepositoryException
+    {
+        if (subjectIdentifiers.isEmpty() || subjectIdentifiers.size() > this.subjectTypes.length) {
+            return null;
+        }
+        final Map<String, String> row = new HashMap<>();
+        for (int i = 0; i < subjectIdentifiers.size(); ++i) {
+            final Node type = this.resolver.getResource(this.subjectTypes[i]).adaptTo(Node.class);
+            row.put(type.getProperty("label").getString(), subjectIdentifiers.get(i));
+        }
+        final Resource form = getOrCreateForm(row);
+        if (form != null) {
+            this.nodesToCheckin.add(form.getPath());
+        }
+        return form;
+    }
+
+    /**
+     * Removes a form created since the previous save, for example when the data for it turns out to be invalid.
+     *
+     * @param form the form to remove
+     * @throws PersistenceException if removing the form fails
+     */
+    public void discardForm(final Resource form) throws PersistenceException
+    {
+        this.nodesToCheckin.remove(form.getPath());
+        this.formIndexes.remove(form.getPath());
+        this.resolver.delete(form);
+    }
+
+    /**
+     * Parse and store a note to an Answer. This will reuse the answer if it already exists.
+     *
+     * @param question the question whose notes are stored in this field
+     * @param fieldValue the raw value for this field
+     * @param form the Form that this Answer belongs to
+     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
+     * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
+     */
+    private void parseNote(QuestionPlan question, String fieldValue, Resource form)
+        throws PersistenceException, RepositoryException
+    {
+        Resource answer = getOrCreateAnswer(form, question);
+        answer.adaptTo(Node.class).setProperty(NOTE_PROPERTY, fieldValue);
+    }
+
+    /**
+     * Parses and stores one Answer.
+     *
+     * @param question the question answered in this field
+     * @param fieldValue the raw value for this field
+     * @param form the Form that this Answer belongs to
+     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
+     * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
+     */
+    private void parseAnswer(QuestionPlan question, String fieldValue, Resource form)
+        throws PersistenceException, RepositoryException
+    {
+        Resource answer = getOrCreateAnswer(form, question);
+
+        if (question.isMultiValued()) {
+            String[] rawValues = fieldValue.split("\n");
+            Value[] values = new Value[rawValues.length];
+            for (int i = 0; i < rawValues.length; ++i) {
+                values[i] = question.parseValue(rawValues[i].trim());
+            }
+            answer.adaptTo(Node.class).setProperty(VALUE_PROPERTY, values);
+        } else {
+            answer.adaptTo(Node.class).setProperty(VALUE_PROPERTY, question.parseValue(fieldValue.trim()));
+        }
+    }
+
+    /**
+     * Returns a Resource for storing an Answer corresponding to the given question. This may be an existing node, if
+     * one already exists in this form, or a newly created one otherwise.
+     * <p>
+     * FIXME This needs to be revisited to add support for repeated sections.
+     * </p>
+     *
+     * @param form the form being processed
+     * @param question the question being answered
+     * @throws RepositoryException if accessing the resource fails due to repository errors
+     * @throws PersistenceException if creating a new resource fails due to repository errors
+     */
+    private Resource getOrCreateAnswer(final Resource form, final QuestionPlan question)
+        throws RepositoryException, PersistenceException
+    {
+        if (this.cachedAnswers.containsKey(question.getIdentifier())) {
+            return this.cachedAnswers.get(question.getIdentifier());
+        }
+
+        final FormAnswerIndex index = getFormAnswerIndex(form);
+        if (index != null) {
+            final Resource existing = index.getAnswer(question.getIdentifier());
+            if (existing != null) {
+                return existing;
+            }
+        } else {
+            final String query =
+                String.format("select n from [cards:Answer] as n where n.question = '%s' and isdescendantnode(n,'%s')",
+                    question.getIdentifier(), form.getPath());
+            Iterator<Resource> results = this.resolver.findResources(query, "JCR-SQL2");
+            if (results.hasNext()) {
+                return results.next();
+            }
+        }
+
+        Map<String, Object> answerProperties = new HashMap<>();
+        answerProperties.put("jcr:primaryType", question.getAnswerNodeType());
+        answerProperties.put("question", question.getQuestion());
+        Resource answerParent = findOrCreateParent(form, question, index);
+        Resource newNode = this.resolver.create(answerParent, UUID.randomUUID().toString(), answerProperties);
+        this.cachedAnswers.put(question.getIdentifier(), newNode);
+        if (index != null) {
+            index.addAnswer(question.getIdentifier(), newNode);
+        }
+        return newNode;
+    }
+
+    /**
+     * Gets the index of the answers in a form, in patch mode.
+     *
+     * @param form the form being processed
+     * @return the index of the form, built when first needed, or {@code null} if existing subjects and forms weren't
+     *         prefetched
+     */
+    private FormAnswerIndex getFormAnswerIndex(final Resource form)
+    {
+        if (this.prefetch == null) {
+            return null;
+        }
+        return this.formIndexes.computeIfAbsent(form.getPath(), path -> FormAnswerIndex.build(form));
+    }
+
+    /**
+     * Gets the parent node under which an answer must be stored. This can be either the form directly, or a (possibly
+     * nested) {@code AnswerSection}.
+     *
+     * @param form the form being processed
+     * @param question the question being answered
+     * @param index the index of the answers in the form, may be {@code null}
+     * @return the resource node under which the answer must be stored
+     * @throws PersistenceException if a new resource must be created, but doing so fails
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private Resource findOrCreateParent(final Resource form, final QuestionPlan question, final FormAnswerIndex index)
+        throws PersistenceException, RepositoryException
+    {
+        // Create all the needed intermediate answer sections between the form and the answer, top-to-bottom
+        final List<Node> sections = question.getSections();
+        final List<String> sectionRefs = question.getSectionIdentifiers();
+        Resource answerParent = form;
+        for (int i = 0; i < sections.size(); ++i) {
+            answerParent = getAnswerSection(sections.get(i), sectionRefs.get(i), answerParent, index);
+        }
+        return answerParent;
+    }
+
+    /**
+     * Finds or creates an {@code AnswerSection} node under {@code parent} corresponding to the given {@code section}.
+     *
+     * @param section the questionnaire section to be answered
+     * @param sectionRef the {@code jcr:uuid} of the questionnaire section
+     * @param parent the parent node in which to look for the answer section, either a {@code Form} or another
+     *            {@code AnswerSection}
+     * @param index the index of the answers in the form, may be {@code null}
+     * @return a resource of type {@code cards:AnswerSection} referencing the given questionnaire section, either one
+     *         that already existed, or a newly created one
+     * @throws PersistenceException if a new resource must be created, but doing so fails
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private Resource getAnswerSection(final Node section, final String sectionRef, final Resource parent,
+        final FormAnswerIndex index) throws PersistenceException, RepositoryException
+    {
+        Resource answerSection = null;
+        Resource result = null;
+        if (index != null) {
+            answerSection = index.getAnswerSection(parent, sectionRef);
+        } else {
+            Iterator<Resource> children = parent.listChildren();
+            while (children.hasNext()) {
+                Resource child = children.next();
+                if (sectionRef.equals(child.getValueMap().get("section", ""))) {
+                    answerSection = child;
+                    break;
+                }
+            }
+        }
+        if (answerSection != null) {
+            result = answerSection;
+        } else {
+            Map<String, Object> answerSectionProperties = new HashMap<>();
+            answerSectionProperties.put("jcr:primaryType", "cards:AnswerSection");
+            answerSectionProperties.put("section", section);
+            result = this.resolver.create(parent, UUID.randomUUID().toString(), answerSectionProperties);
+            if (index != null) {
+                index.addAnswerSection(parent, sectionRef, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a Resource for storing a form corresponding to the given data row. This may be an existing node, if
+     * {@code patch == true} and one already exists for the targeted questionnaire and subject, or a newly created one
+     * otherwise.
+     *
+     * @param row the input row to process, where the affected Subject identifier is to be found
+     * @return the Resource to use for storing the row, or {@code null} if the subject cannot be determined
+     * @throws PersistenceException if creating a new Resource fails
+     */
+    private Resource getOrCreateForm(final Map<String, String> row) throws PersistenceException
+    {
+        final Node subject = getOrCreateSubject(row);
+        if (subject == null) {
+            return null;
+        }
+        Resource result = null;
+        if (this.patch) {
+            result = findForm(subject);
+        }
+        if (result == null) {
+            final Map<String, Object> formProperties = new HashMap<>();
+            formProperties.put("jcr:primaryType", "cards:Form");
+            formProperties.put("questionnaire", this.questionnaire);
+            formProperties.put("subject", subject);
+            final String name = UUID.randomUUID().toString();
+            result = this.resolver.create(ContentLayout.getParent(this.resolver, this.formsHomepage, name), name,
+                formProperties);
+            if (this.prefetch != null) {
+                // Later rows for the same subject will update this form
+                try {
+                    this.prefetch.addForm(subject.getIdentifier(), result.getPath());
+                } catch (RepositoryException e) {
+                    LOGGER.warn("Failed to access subject {}: {}", subject, e.getMessage());
+                }
+            }
+        } else {
+            checkAccess(result.adaptTo(Node.class), FORM_PRIVILEGES);
+            try {
+                result.adaptTo(Node.class).getSession().getWorkspace().getVersionManager().checkout(result.getPath());
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to checkout form {}: {}", result.getPath(), e.getMessage(), e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds an existing form for the given questionnaire and subject.
+     *
+     * @param subject the subject for which the Form is completed
+     * @return an existing resource matching the targeted questionnaire and subject, or {@code null} if such a resource
+     *         doesn't exist yet
+     */
+    private Resource findForm(final Node subject)
+    {
+        try {
+            if (this.prefetch != null) {
+                final String formPath = this.prefetch.getFormPath(subject.getIdentifier());
+                return formPath == null ? null : this.resolver.getResource(formPath);
+            }
+
+            final String query =
+                String.format("select n from [cards:Form] as n where n.subject = '%s' and n.questionnaire = '%s'",
+                    subject.getIdentifier(), this.questionnaire.getIdentifier());
+            final Iterator<Resource> results = this.resolver.findResources(query, "JCR-SQL2");
+            if (results.hasNext()) {
+                return results.next();
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Unexpected exception while searching for a form: {}", e.getMessage());
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the Node where a specific Subject is stored. If the Subject wasn't already stored in the repository, a
+     * new node is created for it and returned.
+     *
+     * @param row the input CSV row to process, where the affected Subject identifier is to be found
+     * @return the Resource where the Subject is stored; may be an existing or a newly created resource; may be
+     *         {@code null} if a Subject identifier is not present in the row
+     * @throws PersistenceException if the user is not allowed to use an existing subject
+     */
+    private Node getOrCreateSubject(final Map<String, String> row) throws PersistenceException
+    // For each subject type, identify the target subject
+    // Given a parent subject (initially null) & a subject type path:
+    // 1. get the Node for the subject type (cached for future rows)
+    // 2. read label, look for a column with that label or label + “ ID” in the row, get value
+    // 3. search for a Subject with the right type, parent, and identifier
+    // If found, use it as the current subject. If not, create it,
+    // specifying the type, parent, and identifier, and use it as the current subject.
+    // Update the parent variable to be the current subject.
+    // If there are more entries in the subject types list, recurse with the new parent and new subject type.
+    // When the whole list of subject types is processed, return current subject as the subject to use for the row.
+    {
+        Node previous = null;
+        Node current = null;
+        for (String type : this.subjectTypes) {
+            current = getOrCreateSubject(row, type, current);
+            // If this subject identifier is empty, then the last used subject type
+            // e.g. If a patient and tumor is specified but no tumor region, then we instead want to create/use
+            // the tumor ID
+            if (current == null) {
+                return previous;
+            }
+            previous = current;
+        }
+        return current;
+    }
+
+    private Node getOrCreateSubject(Map<String, String> row, String type, Node parent) throws PersistenceException
+    {
+        // Find the subject corresponding to this
+        Node typeNode = this.resolver.getResource(type).adaptTo(Node.class);
+        String subjectId = findSubjectId(row, typeNode);
+        if (StringUtils.isBlank(subjectId)) {
+            return null;
+        }
+        String parentIdentifier = null;
+        if (parent != null) {
+            try {
+                parentIdentifier = parent.getProperty("identifier").getString();
+            } catch (RepositoryException ex) {
+                // No change
+            }
+        }
+        String subjectKey = ImportPrefetch.getSubjectKey(parentIdentifier, subjectId, type);
+
+        Node subject = findSubject(subjectKey, subjectId, typeNode, parent);
+        if (subject != null) {
+            checkAccess(subject, SUBJECT_PRIVILEGES);
+            return subject;
+        }
+
+        // Create a new subject
+        if (parent != null) {
+            checkAccess(parent, PARENT_SUBJECT_PRIVILEGES);
+        }
+        return createSubject(subjectKey, subjectId, typeNode, parent);
+    }
+
+    /***
+     * Find a subject with the given parameters.
+     *
+     * @param subjectKey A key for this subject to search the cache for
+     * @param subjectId The identifier of the subject
+     * @param typeNode The Node of the cards:SubjectType for the subject
+     * @param parent The parent cards:Subject for this subject
+     * @return A subject Node if it exists, or null.
+     */
+    private Node findSubject(String subjectKey, String subjectId, Node typeNode, Node parent)
+    {
+        // Load a cached version if we already have one
+        Map<String, Node> cache = this.subjectCache;
+        if (cache.containsKey(subjectKey)) {
+            return cache.get(subjectKey);
+        }
+
+        if (this.prefetch != null) {
+            // All the existing subjects are already known, no need to query
+            final String subjectPath = this.prefetch.getSubjectPath(subjectKey);
+            final Resource subject = subjectPath == null ? null : this.resolver.getResource(subjectPath);
+            if (subject != null) {
+                cache.put(subjectKey, subject.adaptTo(Node.class));
+                return cache.get(subjectKey);
+            }
+            return null;
+        }
+
+        String query = String.format("select n from [cards:Subject] as n where n.identifier = '%s'",
+            SearchUtils.escapeQueryArgument(subjectId));
+        try {
+            if (typeNode != null) {
+                query += " and n.type = '" + typeNode.getProperty("jcr:uuid").getValue() + "'";
+            }
+            if (parent != null) {
+                query += " and ischildnode(n, '" + parent.getPath() + "')";
+            }
+        } catch (RepositoryException ex) {
+            // No change to query
+        }
+
+        try {
+            Query queryObj = this.queryManager.createQuery(query, "JCR-SQL2");
+            queryObj.setLimit(1);
+            NodeIterator nodeResult = queryObj.execute().getNodes();
+
+            // If a result was found, cache it and return
+            if (nodeResult.hasNext()) {
+                Node subject = nodeResult.nextNode();
+                cache.put(subjectKey, subject);
+                return subject;
+            }
+        } catch (RepositoryException ex) {
+            // Could not find subject, return null
+        }
+        return null;
+    }
+
+    /***
+     * Create a new subject.
+     *
+     * @param subjectId The identifier for the subject
+     * @param typeNode The node of the cards:SubjectType for this subject
+     * @param parent The parent of this subject
+     * @param subjectKey A string to identify this subject by in the cache
+     * @return A new subject Node if one could be made, or null.
+     */
+    private Node createSubject(String subjectKey, String subjectId, Node typeNode, Node parent)
+    {
+        final Map<String, Object> subjectProperties = new HashMap<>();
+        subjectProperties.put("jcr:primaryType", "cards:Subject");
+        subjectProperties.put("identifier", subjectId);
+        subjectProperties.put("type", typeNode);
+        if (parent != null) {
+            subjectProperties.put("parents", parent);
+        }
+        try {
+            if (parent != null && !parent.isCheckedOut()) {
+                // The parent subject may have been checked in by a previous batch
+                parent.getSession().getWorkspace().getVersionManager().checkout(parent.getPath());
+                this.nodesToCheckin.add(parent.getPath());
+            }
+            final String name = UUID.randomUUID().toString();
+            Resource parentResource = parent != null
+                ? this.resolver.getResource(parent.getPath())
+                : ContentLayout.getParent(this.resolver, this.subjectsHomepage, name);
+            Node subject = this.resolver.create(parentResource, name, subjectProperties).adaptTo(Node.class);
+            this.subjectCache.put(subjectKey, subject);
+            this.nodesToCheckin.add(subject.getPath());
+            if (this.prefetch != null) {
+                // Other rows, or other importers sharing the prefetch, will use this subject
+                this.prefetch.addSubject(subjectKey, subject.getPath(), subject.getIdentifier());
+            }
+            return subject;
+        } catch (PersistenceException e) {
+            LOGGER.warn("Failed to create new subject {}: {}", subjectKey, e.getMessage(), e);
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to check in new subject {}: {}", subjectKey, e.getMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Checks that the user on whose behalf data is imported is allowed to use an existing node. Nodes created by this
+     * import and not saved yet are always allowed.
+     *
+     * @param node the node to check
+     * @param privileges the names of the privileges needed on the node
+     * @throws PersistenceException if the user is not allowed to use the node, or checking fails
+     */
+    private void checkAccess(final Node node, final String... privileges) throws PersistenceException
+    {
+        if (this.accessCheck == null || node.isNew()) {
+            return;
+        }
+        try {
+            final String key = node.getPath() + String.join(",", privileges);
+            if (this.allowedNodes.contains(key)) {
+                return;
+            }
+            if (!this.accessCheck.hasPrivileges(node.getPath(), privileges)) {
+                throw new PersistenceException("Not allowed to modify " + node.getPath());
+            }
+            this.allowedNodes.add(key);
+        } catch (RepositoryException e) {
+            throw new PersistenceException("Failed to check access to " + node + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Looks for a Subject Identifier in the given data row.
+     *
+     * @param row the input row to process, where the affected Subject identifier is to be found
+     * @param typeNode Subject type node
+     * @return a subject identifier, or {@code null} if one cannot be found
+     */
+    private static String findSubjectId(Map<String, String> row, Node typeNode)
+    {
+        String label;
+        try {
+            label = typeNode.getProperty("label").getString();
+        } catch (RepositoryException ex) {
+            return null;
+        }
+
+        String result = null;
+        String[] suffixes = { "", " ID" };
+        for (String suffix : suffixes) {
+            result = row.get(label + suffix);
+            if (StringUtils.isNotBlank(result)) {
+                break;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * The answers and answer sections of a form, indexed by the identifier of their question or section, built by walking
+ * the form once. New answers and sections created while importing must be {@link #addAnswer added} to the index.
+ *
+ * @version $Id$
+ */
+public final class FormAnswerIndex
+{
+    private static final String QUESTION_PROPERTY = "question";
+
+    private static final String SECTION_PROPERTY = "section";
+
+    /** Answers, by question identifier. */
+    private final Map<String, Resource> answers = new HashMap<>();
+
+    /** Answer sections, by parent path and section identifier. */
+    private final Map<String, Resource> sections = new HashMap<>();
+
+    private FormAnswerIndex()
+    {
+        // Instances are only created by build()
+    }
+
+    /**
+     * Walks a form and indexes all its answers and answer sections.
+     *
+     * @param form the form to index
+     * @return the index of the form
+     */
+    public static FormAnswerIndex build(final Resource form)
+    {
+        final FormAnswerIndex result = new FormAnswerIndex();
+        result.index(form);
+        return result;
+    }
+
+    /**
+     * Gets the answer to a question.
+     *
+     * @param questionIdentifier the identifier of the question
+     * @return the first answer to the question found in the form, or {@code null} if the question isn't answered
+     */
+    public Resource getAnswer(final String questionIdentifier)
+    {
+        return this.answers.get(questionIdentifier);
+    }
+
+    /**
+     * Records a new answer.
+     *
+     * @param questionIdentifier the identifier of the question
+     * @param answer the new answer
+     */
+    public void addAnswer(final String questionIdentifier, final Resource answer)
+    {
+        this.answers.putIfAbsent(questionIdentifier, answer);
+    }
+
+    /**
+     * Gets the answer section for a section, under a specific parent.
+     *
+     * @param parent the form or answer section where the answer section is
+     * @param sectionIdentifier the identifier of the section
+     * @return the first matching answer section, or {@code null} if there isn't any
+     */
+    public Resource getAnswerSection(final Resource parent, final String sectionIdentifier)
+    {
+        return this.sections.get(getSectionKey(parent, sectionIdentifier));
+    }
+
+    /**
+     * Records a new answer section.
+     *
+     * @param parent the form or answer section where the answer section was created
+     * @param sectionIdentifier the identifier of the section
+     * @param answerSection the new answer section
+     */
+    public void addAnswerSection(final Resource parent, final String sectionIdentifier, final Resource answerSection)
+    {
+        this.sections.putIfAbsent(getSectionKey(parent, sectionIdentifier), answerSection);
+    }
+
+    private void index(final Resource parent)
+    {
+        final Iterator<Resource> children = parent.listChildren();
+        while (children.hasNext()) {
+            final Resource child = children.next();
+            final ValueMap properties = child.getValueMap();
+            if (properties.containsKey(QUESTION_PROPERTY)) {
+                this.answers.putIfAbsent(properties.get(QUESTION_PROPERTY, ""), child);
+            } else if (properties.containsKey(SECTION_PROPERTY)) {
+                this.sections.putIfAbsent(getSectionKey(parent, properties.get(SECTION_PROPERTY, "")), child);
+                index(child);
+            }
+        }
+    }
+
+    private static String getSectionKey(final Resource parent, final String sectionIdentifier)
+    {
+        return parent.getPath() + '|' + sectionIdentifier;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.dataentry.internal.importer.QuestionnaireImportPlan.QuestionPlan;
+import io.uhndata.cards.spi.SearchUtils;
+
+/**
+ * Imports forms serialized in the {@code bare} JSON format, one form per line, as in newline-delimited JSON. Each line
+ * is read with a streaming parser, and the answer sections and answers are created as soon as they are parsed, without
+ * building the JSON document in memory.
+ * <p>
+ * In each form, the {@code questionnaire} and {@code subject} keys must come before any answer, since the form can only
+ * be created once they are known. The questionnaire is identified by its title, as in the bare format, or by its path.
+ * The subject is the full identifier of the subject, with the identifiers of its ancestors separated by {@code " / "},
+ * matching the subject types of the import from the top level subject type down. New forms are always created.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class FormJsonImporter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(FormJsonImporter.class);
+
+    private static final String SUBJECT_SEPARATOR = " / ";
+
+    private static final String VALUE_PROPERTY = "value";
+
+    private static final String NOTE_PROPERTY = "note";
+
+    private final ResourceResolver resolver;
+
+    private final String[] subjectTypes;
+
+    private final String questionnaire;
+
+    /** One importer for each questionnaire found in the data, by title or path; {@code null} for unknown ones. */
+    private final Map<String, DataImporter> importers = new HashMap<>();
+
+    /** The sections of each questionnaire, by parent identifier and section label. */
+    private final Map<String, Map<String, Node>> sections = new HashMap<>();
+
+    /**
+     * Basic constructor.
+     *
+     * @param resolver the resource resolver to use for accessing the repository
+     * @param subjectTypes the paths to the subject types of the forms, from the top level subject type down
+     * @param questionnaire the path to the questionnaire to use for all the forms, ignoring the questionnaire specified
+     *            in the data, may be {@code null}
+     */
+    public FormJsonImporter(final ResourceResolver resolver, final String[] subjectTypes, final String questionnaire)
+    {
+        this.resolver = resolver;
+        this.subjectTypes = subjectTypes;
+        this.questionnaire = questionnaire;
+    }
+
+    /**
+     * Parses and stores one form, without saving it. If the form cannot be fully imported, whatever was already created
+     * for it is removed.
+     *
+     * @param lineNumber the number of the line in the input, used for logging
+     * @param line one line of input, holding a JSON object
+     * @return {@code true} if the form was imported, {@code false} if it had to be skipped
+     */
+    public boolean importForm(final long lineNumber, final String line)
+    {
+        final FormState state = new FormState();
+        try (JsonParser parser = Json.createParser(new StringReader(line))) {
+            if (parser.next() != Event.START_OBJECT) {
+                LOGGER.warn("Line #{} is not a JSON object", lineNumber);
+                return false;
+            }
+            for (Event event = parser.next(); event != Event.END_OBJECT; event = parser.next()) {
+                final String key = parser.getString();
+                final Event value = parser.next();
+                if (state.form == null && (value == Event.START_OBJECT || value == Event.START_ARRAY)) {
+                    // The first answer or section, the form is needed from now on
+                    if (!createForm(lineNumber, state)) {
+                        return false;
+                    }
+                }
+                if (state.form == null) {
+                    readFormProperty(key, value, parser, state);
+                } else {
+                    importChild(parser, key, value, state, state.form, state.importer.getPlan().getQuestionnaire());
+                }
+            }
+            return state.form != null || createForm(lineNumber, state);
+        } catch (JsonException | IllegalStateException | PersistenceException | RepositoryException e) {
+            LOGGER.warn("Failed to import line #{}: {}", lineNumber, e.getMessage());
+            discard(state);
+            return false;
+        }
+    }
+
+    /**
+     * Saves all the pending changes, then checks in all the forms and subjects created since the previous save.
+     *
+     * @throws RepositoryException if saving the changes fails
+     */
+    public void commit() throws RepositoryException
+    {
+        for (DataImporter importer : this.importers.values()) {
+            if (importer != null) {
+                importer.commit();
+            }
+        }
+    }
+
+    /** The form being imported. */
+    private static final class FormState
+    {
+        private String questionnaire;
+
+        private List<String> subject;
+
+        private DataImporter importer;
+
+        private Resource form;
+    }
+
+    private void readFormProperty(final String key, final Event value, final JsonParser parser, final FormState state)
+    {
+        if (value != Event.VALUE_STRING) {
+            // Other form properties, such as the creation date, are set by the repository
+            return;
+        }
+        if ("questionnaire".equals(key)) {
+            state.questionnaire = parser.getString();
+        } else if ("subject".equals(key)) {
+            state.subject = Arrays.asList(parser.getString().split(SUBJECT_SEPARATOR));
+        }
+    }
+
+    private boolean createForm(final long lineNumber, final FormState state)
+        throws PersistenceException, RepositoryException
+    {
+        state.importer = getImporter(this.questionnaire != null ? this.questionnaire : state.questionnaire);
+        if (state.importer == null) {
+            LOGGER.warn("Unknown questionnaire on line #{}: {}", lineNumber, state.questionnaire);
+            return false;
+        }
+        if (state.subject != null) {
+            state.form = state.importer.getOrCreateFormForSubject(state.subject);
+        }
+        if (state.form == null) {
+            LOGGER.warn("Cannot determine subject for line #{}", lineNumber);
+            return false;
+        }
+        return true;
+    }
+
+    private void discard(final FormState state)
+    {
+        if (state.form == null) {
+            return;
+        }
+        try {
+            state.importer.discardForm(state.form);
+        } catch (PersistenceException e) {
+            LOGGER.warn("Failed to discard the partially imported form {}: {}", state.form.getPath(), e.getMessage());
+        }
+    }
+
+    /**
+     * Imports one entry of a form or answer section: either an answer, an answer section, or a list of answer sections
+     * for a recurrent section. Anything else is skipped.
+     *
+     * @param parser the parser, positioned on the value of the entry
+     * @param key the key of the entry, a section label or a question name
+     * @param value the type of the value of the entry
+     * @param state the form being imported
+     * @param parent the form or answer section being imported
+     * @param parentSection the questionnaire or section corresponding to the parent
+     * @throws PersistenceException if creating nodes fails
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private void importChild(final JsonParser parser, final String key, final Event value, final FormState state,
+        final Resource parent, final Node parentSection) throws PersistenceException, RepositoryException
+    {
+        if (value != Event.START_OBJECT && value != Event.START_ARRAY) {
+            return;
+        }
+        final Node section = getSection(state.importer.getPlan(), parentSection, key);
+        if (section != null) {
+            if (value == Event.START_OBJECT) {
+                importSection(parser, state, parent, section);
+            } else {
+                // A recurrent section, with one object for each answer section
+                for (Event event = parser.next(); event != Event.END_ARRAY; event = parser.next()) {
+                    if (event == Event.START_OBJECT) {
+                        importSection(parser, state, parent, section);
+                    } else if (event == Event.START_ARRAY) {
+                        parser.skipArray();
+                    }
+                }
+            }
+            return;
+        }
+        final QuestionPlan question = state.importer.getPlan().getQuestion(key);
+        if (question != null && value == Event.START_OBJECT) {
+            importAnswer(parser, parent, question);
+            return;
+        }
+        LOGGER.info("Unknown field: {}", key);
+        skip(parser, value);
+    }
+
+    private void importSection(final JsonParser parser, final FormState state, final Resource parent,
+        final Node section) throws PersistenceException, RepositoryException
+    {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("jcr:primaryType", "cards:AnswerSection");
+        properties.put("section", section);
+        final Resource answerSection = this.resolver.create(parent, UUID.randomUUID().toString(), properties);
+        for (Event event = parser.next(); event != Event.END_OBJECT; event = parser.next()) {
+            final String key = parser.getString();
+            importChild(parser, key, parser.next(), state, answerSection, section);
+        }
+    }
+
+    private void importAnswer(final JsonParser parser, final Resource parent, final QuestionPlan question)
+        throws PersistenceException, RepositoryException
+    {
+        final List<Value> values = new ArrayList<>();
+        String note = null;
+        for (Event event = parser.next(); event != Event.END_OBJECT; event = parser.next()) {
+            final String key = parser.getString();
+            final Event value = parser.next();
+            if (VALUE_PROPERTY.equals(key) && value == Event.START_ARRAY) {
+                for (Event item = parser.next(); item != Event.END_ARRAY; item = parser.next()) {
+                    addValue(parser, item, question, values);
+                }
+            } else if (VALUE_PROPERTY.equals(key)) {
+                addValue(parser, value, question, values);
+            } else if (NOTE_PROPERTY.equals(key) && value == Event.VALUE_STRING) {
+                note = parser.getString();
+            } else {
+                // The question text and other informative properties are not needed
+                skip(parser, value);
+            }
+        }
+
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("jcr:primaryType", question.getAnswerNodeType());
+        properties.put("question", question.getQuestion());
+        final Node answer =
+            this.resolver.create(parent, UUID.randomUUID().toString(), properties).adaptTo(Node.class);
+        if (question.isMultiValued()) {
+            answer.setProperty(VALUE_PROPERTY, values.toArray(new Value[0]));
+        } else if (!values.isEmpty()) {
+            if (values.size() > 1) {
+                LOGGER.warn("Only the first of {} values kept for question {}", values.size(),
+                    question.getQuestion().getPath());
+            }
+            answer.setProperty(VALUE_PROPERTY, values.get(0));
+        }
+        if (note != null) {
+            answer.setProperty(NOTE_PROPERTY, note);
+        }
+    }
+
+    private static void addValue(final JsonParser parser, final Event event, final QuestionPlan question,
+        final List<Value> values)
+    {
+        final String raw;
+        switch (event) {
+            case VALUE_STRING:
+            case VALUE_NUMBER:
+                raw = parser.getString();
+                break;
+            case VALUE_TRUE:
+                raw = Boolean.TRUE.toString();
+                break;
+            case VALUE_FALSE:
+                raw = Boolean.FALSE.toString();
+                break;
+            case START_OBJECT:
+            case START_ARRAY:
+                skip(parser, event);
+                return;
+            default:
+                return;
+        }
+        final Value value = question.parseValue(isBoolean(question) ? toBooleanText(raw) : raw);
+        if (value != null) {
+            values.add(value);
+        }
+    }
+
+    private static boolean isBoolean(final QuestionPlan question)
+    {
+        return "cards:BooleanAnswer".equals(question.getAnswerNodeType());
+    }
+
+    private static String toBooleanText(final String raw)
+    {
+        // Boolean answers are serialized as 1 for yes and 0 for no
+        if ("1".equals(raw)) {
+            return Boolean.TRUE.toString();
+        } else if ("0".equals(raw)) {
+            return Boolean.FALSE.toString();
+        }
+        return raw;
+    }
+
+    private static void skip(final JsonParser parser, final Event value)
+    {
+        if (value == Event.START_OBJECT) {
+            parser.skipObject();
+        } else if (value == Event.START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+
+    /**
+     * Finds or creates the importer for a questionnaire.
+     *
+     * @param reference the title or the path of the questionnaire
+     * @return an importer, or {@code null} if the questionnaire doesn't exist
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private DataImporter getImporter(final String reference) throws RepositoryException
+    {
+        if (reference == null) {
+            return null;
+        }
+        if (!this.importers.containsKey(reference)) {
+            final String path = reference.startsWith("/") ? reference : findQuestionnaire(reference);
+            this.importers.put(reference,
+                path == null || this.resolver.getResource(path) == null ? null
+                    : new DataImporter(this.resolver, path, this.subjectTypes, false));
+        }
+        return this.importers.get(reference);
+    }
+
+    private String findQuestionnaire(final String title)
+    {
+        final Iterator<Resource> results = this.resolver.findResources(
+            String.format("select * from [cards:Questionnaire] as n where n.title = '%s'",
+                SearchUtils.escapeQueryArgument(title)),
+            "JCR-SQL2");
+        return results.hasNext() ? results.next().getPath() : null;
+    }
+
+    /**
+     * Finds a section by its label, or by its node name for sections without a label, as in the bare format.
+     *
+     * @param plan the import plan of the questionnaire
+     * @param parent the questionnaire or section where the section is expected
+     * @param label the label or name of the section
+     * @return the section, or {@code null} if {@code parent} doesn't have such a section
+     * @throws RepositoryException if accessing the questionnaire fails
+     */
+    private Node getSection(final QuestionnaireImportPlan plan, final Node parent, final String label)
+        throws RepositoryException
+    {
+        final Node questionnaireNode = plan.getQuestionnaire();
+        Map<String, Node> index = this.sections.get(questionnaireNode.getIdentifier());
+        if (index == null) {
+            index = new HashMap<>();
+            indexSections(questionnaireNode, index);
+            this.sections.put(questionnaireNode.getIdentifier(), index);
+        }
+        return index.get(parent.getIdentifier() + '/' + label);
+    }
+
+    private static void indexSections(final Node parent, final Map<String, Node> index) throws RepositoryException
+    {
+        final NodeIterator children = parent.getNodes();
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            if (child.isNodeType("cards:Section")) {
+                final String label = child.hasProperty("label") ? child.getProperty("label").getString()
+                    : child.getName();
+                index.putIfAbsent(parent.getIdentifier() + '/' + label, child);
+                indexSections(child, index);
+            }
+        }
+    }
+}
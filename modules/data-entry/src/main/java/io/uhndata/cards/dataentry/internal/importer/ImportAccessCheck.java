@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.security.Principal;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.Privilege;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlManager;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+
+/**
+ * Checks the access rights of the user on whose behalf data is imported, when the import runs with a different
+ * session, for example a background job running with a service user. {@link DataImporter} only modifies existing
+ * subjects and forms that this user is allowed to modify.
+ *
+ * @version $Id$
+ */
+@FunctionalInterface
+public interface ImportAccessCheck
+{
+    /**
+     * Checks if the user holds some privileges on an existing node.
+     *
+     * @param path the path of the node
+     * @param privileges the names of the privileges to check, for example {@code jcr:read}
+     * @return {@code true} if the user holds all the privileges on the node, {@code false} otherwise
+     * @throws RepositoryException if checking the privileges fails
+     */
+    boolean hasPrivileges(String path, String... privileges) throws RepositoryException;
+
+    /**
+     * Creates an access check evaluating the privileges of a user, including those granted to its groups, through the
+     * access control manager of another session. That session must be allowed to read the user and its groups, and to
+     * read the access control policies of the checked nodes.
+     *
+     * @param session the session used for checking privileges, usually a service session
+     * @param userId the identifier of the user whose privileges are checked
+     * @return an access check for the user
+     * @throws RepositoryException if the user doesn't exist, or cannot be accessed
+     */
+    static ImportAccessCheck forUser(final Session session, final String userId) throws RepositoryException
+    {
+        final JackrabbitSession jackrabbitSession = (JackrabbitSession) session;
+        final Authorizable user = userId == null ? null : jackrabbitSession.getUserManager().getAuthorizable(userId);
+        if (user == null || user.isGroup()) {
+            throw new RepositoryException("Unknown user: " + userId);
+        }
+        final Set<Principal> principals = new HashSet<>();
+        principals.add(user.getPrincipal());
+        principals.add(jackrabbitSession.getPrincipalManager().getEveryone());
+        for (Iterator<Group> groups = user.memberOf(); groups.hasNext();) {
+            principals.add(groups.next().getPrincipal());
+        }
+        final JackrabbitAccessControlManager accessControlManager =
+            (JackrabbitAccessControlManager) session.getAccessControlManager();
+        return (path, privileges) -> {
+            final Privilege[] resolved = new Privilege[privileges.length];
+            for (int i = 0; i < privileges.length; ++i) {
+                resolved[i] = accessControlManager.privilegeFromName(privileges[i]);
+            }
+            return accessControlManager.hasPrivileges(path, principals, resolved);
+        };
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobExecutionContext;
+import org.apache.sling.event.jobs.consumer.JobExecutionResult;
+import org.apache.sling.event.jobs.consumer.JobExecutor;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the import jobs submitted through {@link ImportJobs}. Rows are saved in batches, and each batch is saved
+ * together with the number of rows saved so far, in a checkpoint node under {@value #CHECKPOINTS_PATH}. If the job is
+ * interrupted, for example by a crash or a restart, the job is executed again, and the rows already saved are skipped.
+ * Since the checkpoint is saved atomically with the rows, a batch is never imported twice.
+ * <p>
+ * Jobs are executed with the {@code cards-import} service user, but on behalf of the user who submitted the import:
+ * existing subjects and forms are only used or modified if the submitter is allowed to, as checked by
+ * {@link ImportAccessCheck}, and rows targeting other subjects or forms fail.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = JobExecutor.class, property = { JobExecutor.PROPERTY_TOPICS + "=" + ImportJobs.TOPIC })
+public class ImportJobExecutor implements JobExecutor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImportJobExecutor.class);
+
+    /** The batch size used if the job doesn't specify one. */
+    private static final long DEFAULT_BATCH_SIZE = 1000;
+
+    /** Where the checkpoints of the running jobs are stored, one child node for each job, named after the job. */
+    private static final String CHECKPOINTS_PATH = "/var/cards/import-jobs";
+
+    private static final String COMMITTED_ROWS_PROPERTY = "committedRows";
+
+    private static final String COMMITTED_FAILED_ROWS_PROPERTY = "committedFailedRows";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private ImportJobs importJobs;
+
+    @Override
+    public JobExecutionResult process(final Job job, final JobExecutionContext context)
+    {
+        final String id = job.getProperty(ImportJobs.ID_PROPERTY, String.class);
+        final Path directory;
+        final ImportJobStatus status;
+        try {
+            directory = this.importJobs.getDirectory(id);
+            status = ImportJobStatus.load(directory);
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.error("Cannot read the status of import job {}: {}", id, e.getMessage());
+            return context.result().message(e.getMessage()).cancelled();
+        }
+        if (status == null) {
+            // The spool is on the local disk, the data may have been removed, or the job may run on another instance
+            final String message = "The data of import job " + id + " was not found in " + directory;
+            LOGGER.error(message);
+            return context.result().message(message).cancelled();
+        }
+        if (ImportJobStatus.SUCCEEDED.equals(status.getState())) {
+            // Nothing to do, the job was already finished
+            return context.result().succeeded();
+        }
+
+        this.importJobs.started(status);
+        try {
+            if (!runImport(job, context, directory, status)) {
+                // Interrupted by a shutdown, will be resumed later
+                status.fail("Stopped");
+                return context.result().message("Stopped").failed();
+            }
+            Files.deleteIfExists(directory.resolve(ImportJobs.DATA_FILE));
+            return context.result().succeeded();
+        } catch (LoginException | RepositoryException | IOException | IllegalArgumentException e) {
+            LOGGER.error("Import job {} failed: {}", id, e.getMessage(), e);
+            status.fail(e.getMessage());
+            return context.result().message(e.getMessage()).failed();
+        } finally {
+            this.importJobs.stopped(status);
+            try {
+                status.save(directory);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to save the status of import job {}: {}", id, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Imports the rows not imported yet.
+     *
+     * @return {@code true} if all the rows were imported, {@code false} if the job was stopped before the end
+     */
+    private boolean runImport(final Job job, final JobExecutionContext context, final Path directory,
+        final ImportJobStatus status) throws LoginException, RepositoryException, IOException
+    {
+        final Path dataFile = directory.resolve(ImportJobs.DATA_FILE);
+        final long requestedBatchSize = job.getProperty(ImportJobs.BATCH_SIZE_PROPERTY, 0L);
+        final long batchSize = requestedBatchSize > 0 ? requestedBatchSize : DEFAULT_BATCH_SIZE;
+        try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(
+            Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, "import"))) {
+            final DataImporter importer = new DataImporter(resolver,
+                job.getProperty(ImportJobs.QUESTIONNAIRE_PROPERTY, String.class),
+                job.getProperty(ImportJobs.SUBJECT_TYPES_PROPERTY, String[].class),
+                job.getProperty(ImportJobs.PATCH_PROPERTY, Boolean.FALSE));
+            // The service user may access more than the submitter, only modify what the submitter is allowed to
+            final Session session = resolver.adaptTo(Session.class);
+            importer.setAccessCheck(ImportAccessCheck.forUser(session, status.getUser()));
+
+            // The saved status may be older than the checkpoint saved with the data, the repository is authoritative
+            final Node checkpoint = getCheckpoint(session, status.getId());
+            if (checkpoint.hasProperty(COMMITTED_ROWS_PROPERTY)) {
+                status.resume(checkpoint.getProperty(COMMITTED_ROWS_PROPERTY).getLong(),
+                    checkpoint.getProperty(COMMITTED_FAILED_ROWS_PROPERTY).getLong());
+            }
+
+            // A first pass over the data counts the rows, and collects the subjects to prefetch in patch mode
+            long total = status.getTotalRows();
+            if (job.getProperty(ImportJobs.PATCH_PROPERTY, false)) {
+                try (CSVParser data = parse(dataFile)) {
+                    importer.prefetch(DataImporter.asRows(data));
+                    total = data.getRecordNumber();
+                }
+            } else if (total < 0) {
+                try (CSVParser data = parse(dataFile)) {
+                    total = 0;
+                    for (Iterator<CSVRecord> rows = data.iterator(); rows.hasNext(); rows.next()) {
+                        ++total;
+                    }
+                }
+            }
+            status.start(total);
+            status.save(directory);
+            context.initProgress((int) Math.min(Integer.MAX_VALUE, total), -1);
+            context.incrementProgressCount((int) Math.min(Integer.MAX_VALUE, status.getCommittedRows()));
+
+            final long skip = status.getCommittedRows();
+            long rowsInBatch = 0;
+            try (CSVParser data = parse(dataFile)) {
+                importer.getPlan().bindColumns(data.getHeaderMap().keySet());
+                for (CSVRecord row : data) {
+                    if (row.getRecordNumber() <= skip) {
+                        // Already imported before the job was interrupted
+                        continue;
+                    }
+                    if (context.isStopped()) {
+                        break;
+                    }
+                    status.rowProcessed(!importer.importRow(row.getRecordNumber(), row.toMap()));
+                    if (++rowsInBatch >= batchSize) {
+                        checkpoint(importer, checkpoint, context, directory, status, rowsInBatch);
+                        rowsInBatch = 0;
+                    }
+                }
+            }
+            if (rowsInBatch > 0) {
+                checkpoint(importer, checkpoint, context, directory, status, rowsInBatch);
+            }
+            if (context.isStopped()) {
+                return false;
+            }
+
+            // Only forget the checkpoint once the saved status says that the job is done
+            status.succeed();
+            status.save(directory);
+            checkpoint.remove();
+            session.save();
+            return true;
+        }
+    }
+
+    private void checkpoint(final DataImporter importer, final Node checkpoint, final JobExecutionContext context,
+        final Path directory, final ImportJobStatus status, final long rowsInBatch)
+        throws RepositoryException, IOException
+    {
+        // Saved by the commit together with the rows, so that a crash cannot separate the rows from the checkpoint
+        checkpoint.setProperty(COMMITTED_ROWS_PROPERTY, status.getProcessedRows());
+        checkpoint.setProperty(COMMITTED_FAILED_ROWS_PROPERTY, status.getFailedRows());
+        importer.commit();
+        status.checkpoint();
+        status.save(directory);
+        context.incrementProgressCount((int) rowsInBatch);
+        final long eta = status.getEstimatedSecondsLeft();
+        if (eta >= 0) {
+            context.updateProgress(eta);
+        }
+    }
+
+    private static Node getCheckpoint(final Session session, final String id) throws RepositoryException
+    {
+        final Node checkpoints = session.getNode(CHECKPOINTS_PATH);
+        return checkpoints.hasNode(id) ? checkpoints.getNode(id) : checkpoints.addNode(id);
+    }
+
+    private static CSVParser parse(final Path dataFile) throws IOException
+    {
+        return CSVParser.parse(dataFile, StandardCharsets.UTF_8, CSVFormat.TDF.withFirstRecordAsHeader());
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonWriter;
+
+/**
+ * The status of an import job, persisted next to the spooled data for reporting progress. The checkpoint of the import,
+ * the number of rows already saved in the repository, is also saved in the repository together with the imported
+ * rows; when a job is resumed after a crash or a restart, the checkpoint is {@link #resume restored} from there, since
+ * the copy saved here may be older.
+ *
+ * @version $Id$
+ */
+public final class ImportJobStatus
+{
+    /** The job is waiting to be executed. */
+    public static final String QUEUED = "queued";
+
+    /** The job is being executed. */
+    public static final String RUNNING = "running";
+
+    /** All the rows were imported. */
+    public static final String SUCCEEDED = "succeeded";
+
+    /** The last execution of the job failed, it may be retried later. */
+    public static final String FAILED = "failed";
+
+    private static final String FILE_NAME = "status.json";
+
+    private final String id;
+
+    private final String user;
+
+    private String state = QUEUED;
+
+    private String message = "";
+
+    private long totalRows = -1;
+
+    private long processedRows;
+
+    private long committedRows;
+
+    private long failedRows;
+
+    private long committedFailedRows;
+
+    private long runStartedAt;
+
+    private long runStartRows;
+
+    private long updatedAt = System.currentTimeMillis();
+
+    /**
+     * Creates the status of a new job.
+     *
+     * @param id the identifier of the import job
+     * @param user the user that submitted the job
+     */
+    public ImportJobStatus(final String id, final String user)
+    {
+        this.id = id;
+        this.user = user;
+    }
+
+    /**
+     * Loads the status of an import job.
+     *
+     * @param directory the directory of the job
+     * @return the loaded status, or {@code null} if the directory doesn't hold a status
+     * @throws IOException if reading the status fails
+     */
+    public static ImportJobStatus load(final Path directory) throws IOException
+    {
+        final Path file = directory.resolve(FILE_NAME);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            JsonReader reader = Json.createReader(in)) {
+            final JsonObject json = reader.readObject();
+            final ImportJobStatus result = new ImportJobStatus(json.getString("id"), json.getString("user"));
+            result.state = json.getString("state");
+            result.message = json.getString("message", "");
+            result.totalRows = json.getJsonNumber("totalRows").longValue();
+            // Only what was saved in the repository survives a restart
+            result.committedRows = json.getJsonNumber("committedRows").longValue();
+            result.committedFailedRows = json.getJsonNumber("committedFailedRows").longValue();
+            result.processedRows = result.committedRows;
+            result.failedRows = result.committedFailedRows;
+            result.updatedAt = json.getJsonNumber("updatedAt").longValue();
+            return result;
+        }
+    }
+
+    /**
+     * Saves this status. The file is replaced atomically, so that a crash while saving doesn't lose the checkpoint.
+     *
+     * @param directory the directory of the job
+     * @throws IOException if writing the status fails
+     */
+    public synchronized void save(final Path directory) throws IOException
+    {
+        this.updatedAt = System.currentTimeMillis();
+        final Path temporary = directory.resolve(FILE_NAME + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8);
+            JsonWriter writer = Json.createWriter(out)) {
+            writer.writeObject(Json.createObjectBuilder()
+                .add("id", this.id)
+                .add("user", this.user)
+                .add("state", this.state)
+                .add("message", this.message)
+                .add("totalRows", this.totalRows)
+                .add("committedRows", this.committedRows)
+                .add("committedFailedRows", this.committedFailedRows)
+                .add("updatedAt", this.updatedAt)
+                .build());
+        }
+        Files.move(temporary, directory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The identifier of the import job.
+     *
+     * @return the job identifier
+     */
+    public String getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * The user that submitted the job.
+     *
+     * @return a user name
+     */
+    public String getUser()
+    {
+        return this.user;
+    }
+
+    /**
+     * The current state of the job.
+     *
+     * @return one of {@link #QUEUED}, {@link #RUNNING}, {@link #SUCCEEDED}, or {@link #FAILED}
+     */
+    public synchronized String getState()
+    {
+        return this.state;
+    }
+
+    /**
+     * The number of rows already saved in the repository, to be skipped when resuming the job.
+     *
+     * @return a number of rows
+     */
+    public synchronized long getCommittedRows()
+    {
+        return this.committedRows;
+    }
+
+    /**
+     * The number of failed rows among the rows already saved in the repository.
+     *
+     * @return a number of rows
+     */
+    public synchronized long getCommittedFailedRows()
+    {
+        return this.committedFailedRows;
+    }
+
+    /**
+     * The number of rows processed so far, including the rows not saved yet.
+     *
+     * @return a number of rows
+     */
+    public synchronized long getProcessedRows()
+    {
+        return this.processedRows;
+    }
+
+    /**
+     * The number of failed rows among the rows processed so far.
+     *
+     * @return a number of rows
+     */
+    public synchronized long getFailedRows()
+    {
+        return this.failedRows;
+    }
+
+    /**
+     * The total number of rows in the data, if known.
+     *
+     * @return a number of rows, or {@code -1} if not known yet
+     */
+    public synchronized long getTotalRows()
+    {
+        return this.totalRows;
+    }
+
+    /**
+     * Marks the start of an execution of the job.
+     *
+     * @param total the total number of rows in the data
+     */
+    public synchronized void start(final long total)
+    {
+        this.state = RUNNING;
+        this.message = "";
+        this.totalRows = total;
+        this.runStartedAt = System.currentTimeMillis();
+        this.runStartRows = this.processedRows;
+    }
+
+    /**
+     * Records that a row was processed.
+     *
+     * @param failed whether importing the row failed
+     */
+    public synchronized void rowProcessed(final boolean failed)
+    {
+        ++this.processedRows;
+        if (failed) {
+            ++this.failedRows;
+        }
+    }
+
+    /**
+     * Restores the checkpoint saved in the repository, discarding the progress of the interrupted execution.
+     *
+     * @param committed the number of rows already saved in the repository
+     * @param committedFailed the number of failed rows among them
+     */
+    public synchronized void resume(final long committed, final long committedFailed)
+    {
+        this.committedRows = committed;
+        this.committedFailedRows = committedFailed;
+        this.processedRows = committed;
+        this.failedRows = committedFailed;
+    }
+
+    /**
+     * Records that all the rows processed so far have been saved.
+     */
+    public synchronized void checkpoint()
+    {
+        this.committedRows = this.processedRows;
+        this.committedFailedRows = this.failedRows;
+    }
+
+    /**
+     * Marks the successful end of the job.
+     */
+    public synchronized void succeed()
+    {
+        this.state = SUCCEEDED;
+    }
+
+    /**
+     * Marks a failed execution of the job.
+     *
+     * @param reason a message explaining the failure
+     */
+    public synchronized void fail(final String reason)
+    {
+        this.state = FAILED;
+        this.message = reason == null ? "" : reason;
+    }
+
+    /**
+     * The throughput of the current execution of the job.
+     *
+     * @return the number of rows processed per second, or {@code 0} if the job isn't running
+     */
+    public synchronized double getRowsPerSecond()
+    {
+        final long elapsed = System.currentTimeMillis() - this.runStartedAt;
+        if (!RUNNING.equals(this.state) || elapsed <= 0) {
+            return 0;
+        }
+        return (this.processedRows - this.runStartRows) * 1000.0 / elapsed;
+    }
+
+    /**
+     * The estimated time until the job is done, based on the throughput of the current execution.
+     *
+     * @return a number of seconds, or {@code -1} if it cannot be estimated
+     */
+    public synchronized long getEstimatedSecondsLeft()
+    {
+        final double speed = getRowsPerSecond();
+        if (speed <= 0 || this.totalRows < 0) {
+            return -1;
+        }
+        return Math.round(Math.max(0, this.totalRows - this.processedRows) / speed);
+    }
+
+    /**
+     * Serializes this status for reporting it to the user.
+     *
+     * @return a JSON object
+     */
+    public synchronized JsonObject toJson()
+    {
+        final JsonObjectBuilder result = Json.createObjectBuilder()
+            .add("id", this.id)
+            .add("state", this.state)
+            .add("processedRows", this.processedRows)
+            .add("committedRows", this.committedRows)
+            .add("failedRows", this.failedRows)
+            .add("totalRows", this.totalRows)
+            .add("rowsPerSecond", getRowsPerSecond())
+            .add("eta", getEstimatedSecondsLeft())
+            .add("updatedAt", this.updatedAt);
+        if (!this.message.isEmpty()) {
+            result.add("message", this.message);
+        }
+        return result.build();
+    }
+}
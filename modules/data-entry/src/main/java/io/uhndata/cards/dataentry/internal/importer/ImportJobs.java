@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+/**
+ * Submits data imports as background jobs, and keeps track of their status. The uploaded data is spooled to the local
+ * disk, in a directory configured through the {@code DATA_IMPORT_SPOOL} environment variable, or in
+ * {@code import-jobs} under the Sling home by default. Each job has its own subdirectory, holding the data and the
+ * {@link ImportJobStatus status} of the job.
+ *
+ * @version $Id$
+ */
+@Component(service = ImportJobs.class)
+public class ImportJobs
+{
+    /** The topic of the import jobs. */
+    public static final String TOPIC = "io/uhndata/cards/dataentry/import";
+
+    /** Job property holding the identifier of the import. */
+    public static final String ID_PROPERTY = "importId";
+
+    /** Job property holding the path to the questionnaire. */
+    public static final String QUESTIONNAIRE_PROPERTY = "questionnaire";
+
+    /** Job property holding the paths to the subject types. */
+    public static final String SUBJECT_TYPES_PROPERTY = "subjectTypes";
+
+    /** Job property holding the patch flag. */
+    public static final String PATCH_PROPERTY = "patch";
+
+    /** Job property holding the batch size. */
+    public static final String BATCH_SIZE_PROPERTY = "batchSize";
+
+    /** The name of the spooled data file. */
+    public static final String DATA_FILE = "data.tsv";
+
+    /** The status of the jobs currently running on this instance, more up to date than the saved status. */
+    private final Map<String, ImportJobStatus> running = new ConcurrentHashMap<>();
+
+    @Reference
+    private JobManager jobManager;
+
+    /**
+     * Spools the data to import, and submits a new import job.
+     *
+     * @param data the data to import, a TSV file with a header row
+     * @param user the user submitting the import
+     * @param questionnaire the path to the questionnaire that the data is for
+     * @param subjectTypes the paths to the subject types identified in each row
+     * @param patch if {@code true}, existing forms are updated instead of always creating new forms
+     * @param batchSize how many rows to save at once
+     * @return the identifier of the new import job, to be used for querying its status
+     * @throws IOException if spooling the data fails
+     */
+    public String submit(final InputStream data, final String user, final String questionnaire,
+        final String[] subjectTypes, final boolean patch, final long batchSize) throws IOException
+    {
+        final String id = UUID.randomUUID().toString();
+        final Path directory = getDirectory(id);
+        Files.createDirectories(directory);
+        Files.copy(data, directory.resolve(DATA_FILE), StandardCopyOption.REPLACE_EXISTING);
+        new ImportJobStatus(id, user).save(directory);
+
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(ID_PROPERTY, id);
+        properties.put(QUESTIONNAIRE_PROPERTY, questionnaire);
+        properties.put(SUBJECT_TYPES_PROPERTY, subjectTypes);
+        properties.put(PATCH_PROPERTY, patch);
+        properties.put(BATCH_SIZE_PROPERTY, batchSize);
+        final Job job = this.jobManager.addJob(TOPIC, properties);
+        if (job == null) {
+            throw new IOException("Failed to submit the import job");
+        }
+        return id;
+    }
+
+    /**
+     * Gets the status of an import job.
+     *
+     * @param id the identifier of the import, as returned by {@link #submit}
+     * @return the status of the job, or {@code null} if the identifier is invalid or unknown
+     * @throws IOException if reading the status fails
+     */
+    public ImportJobStatus getStatus(final String id) throws IOException
+    {
+        if (!isValidId(id)) {
+            return null;
+        }
+        final ImportJobStatus result = this.running.get(id);
+        return result != null ? result : ImportJobStatus.load(getDirectory(id));
+    }
+
+    /**
+     * Gets the directory holding the data and status of an import job.
+     *
+     * @param id the identifier of the import
+     * @return a path on the local disk
+     */
+    Path getDirectory(final String id)
+    {
+        if (!isValidId(id)) {
+            throw new IllegalArgumentException("Invalid import identifier: " + id);
+        }
+        return getSpoolDirectory().resolve(id);
+    }
+
+    /**
+     * Registers the live status of a job that started running on this instance.
+     *
+     * @param status the status of the job
+     */
+    void started(final ImportJobStatus status)
+    {
+        this.running.put(status.getId(), status);
+    }
+
+    /**
+     * Unregisters the live status of a job that stopped running on this instance.
+     *
+     * @param status the status of the job
+     */
+    void stopped(final ImportJobStatus status)
+    {
+        this.running.remove(status.getId());
+    }
+
+    private static Path getSpoolDirectory()
+    {
+        final String configured = System.getenv("DATA_IMPORT_SPOOL");
+        if (configured != null && !configured.trim().isEmpty()) {
+            return Paths.get(configured.trim());
+        }
+        return Paths.get(System.getProperty("sling.home", System.getProperty("java.io.tmpdir")), "import-jobs");
+    }
+
+    private static boolean isValidId(final String id)
+    {
+        if (id == null) {
+            return false;
+        }
+        try {
+            // Only identifiers generated by submit are accepted, so that arbitrary paths cannot be accessed
+            return UUID.fromString(id).toString().equals(id);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
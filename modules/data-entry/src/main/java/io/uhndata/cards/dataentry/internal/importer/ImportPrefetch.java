@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.QueryManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.spi.SearchUtils;
+
+/**
+ * The subjects and forms already existing in the repository for the rows of an upload, found with a few batched queries
+ * before importing the first row. Only paths and identifiers are stored, so a prefetch can be shared by several
+ * sessions, and it is safe to use from several threads.
+ *
+ * @version $Id$
+ */
+public final class ImportPrefetch
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImportPrefetch.class);
+
+    /** How many identifiers are looked up in a single query. */
+    private static final int QUERY_BATCH_SIZE = 100;
+
+    /** The paths of existing subjects, by subject key, as computed by {@link #getSubjectKey}. */
+    private final Map<String, String> subjects;
+
+    /** The identifiers ({@code jcr:uuid}) of all the known subjects, used for looking up their forms. */
+    private final Set<String> subjectUuids;
+
+    /** The paths of existing forms for the target questionnaire, by the identifier of their subject. */
+    private final Map<String, String> forms = new ConcurrentHashMap<>();
+
+    private ImportPrefetch(final Map<String, String> subjects, final Set<String> subjectUuids)
+    {
+        this.subjects = subjects;
+        this.subjectUuids = subjectUuids;
+    }
+
+    /**
+     * Creates an empty prefetch, to be filled with {@link #loadSubjects} and {@link #loadForms}.
+     *
+     * @return an empty prefetch
+     */
+    public static ImportPrefetch create()
+    {
+        return new ImportPrefetch(new ConcurrentHashMap<>(), ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Computes the key identifying a subject during an import.
+     *
+     * @param parentIdentifier the identifier of the parent subject, may be {@code null} for top level subjects
+     * @param subjectId the identifier of the subject
+     * @param type the path to the type of the subject
+     * @return a key unique for each subject
+     */
+    public static String getSubjectKey(final String parentIdentifier, final String subjectId, final String type)
+    {
+        return (parentIdentifier == null ? "" : parentIdentifier) + subjectId + type;
+    }
+
+    /**
+     * Looks up all the existing subjects with the given identifiers, and all their forms for the target questionnaire.
+     *
+     * @param session the session to use for querying the repository
+     * @param questionnaire the questionnaire that data is imported for
+     * @param subjectTypes the paths to the subject types identified in each row, from the top level subject type down
+     * @param identifiers the subject identifiers found in the upload, one set for each of the {@code subjectTypes}
+     * @return the prefetched subjects and forms
+     * @throws RepositoryException if querying the repository fails
+     */
+    public static ImportPrefetch load(final Session session, final Node questionnaire, final String[] subjectTypes,
+        final List<Set<String>> identifiers) throws RepositoryException
+    {
+        final ImportPrefetch result = create();
+        result.loadSubjects(session, subjectTypes, identifiers);
+        result.loadForms(session, questionnaire);
+        return result;
+    }
+
+    /**
+     * Looks up all the existing subjects with the given identifiers, adding them to the already known subjects.
+     *
+     * @param session the session to use for querying the repository
+     * @param subjectTypes the paths to the subject types identified in each row, from the top level subject type down
+     * @param identifiers the subject identifiers found in the upload, one set for each of the {@code subjectTypes}
+     * @throws RepositoryException if querying the repository fails
+     */
+    public void loadSubjects(final Session session, final String[] subjectTypes, final List<Set<String>> identifiers)
+        throws RepositoryException
+    {
+        final QueryManager queryManager = session.getWorkspace().getQueryManager();
+        for (int i = 0; i < subjectTypes.length && i < identifiers.size(); ++i) {
+            final String type = subjectTypes[i];
+            final String typeUuid = session.getNode(type).getIdentifier();
+            final boolean topLevel = i == 0;
+            forEachBatch(identifiers.get(i), batch -> {
+                final NodeIterator found = queryManager.createQuery(String.format(
+                    "select n from [cards:Subject] as n where n.type = '%s' and (%s)",
+                    typeUuid, matchAny("n.identifier", batch)), "JCR-SQL2").execute().getNodes();
+                while (found.hasNext()) {
+                    final Node subject = found.nextNode();
+                    final String parentIdentifier =
+                        topLevel ? null : subject.getParent().getProperty("identifier").getString();
+                    this.subjects.putIfAbsent(
+                        getSubjectKey(parentIdentifier, subject.getProperty("identifier").getString(), type),
+                        subject.getPath());
+                    this.subjectUuids.add(subject.getIdentifier());
+                }
+            });
+        }
+        LOGGER.debug("Prefetched {} subjects", this.subjects.size());
+    }
+
+    /**
+     * Looks up the existing forms for the target questionnaire of all the known subjects.
+     *
+     * @param session the session to use for querying the repository
+     * @param questionnaire the questionnaire that data is imported for
+     * @throws RepositoryException if querying the repository fails
+     */
+    public void loadForms(final Session session, final Node questionnaire) throws RepositoryException
+    {
+        final QueryManager queryManager = session.getWorkspace().getQueryManager();
+        final String questionnaireUuid = questionnaire.getIdentifier();
+        forEachBatch(new ArrayList<>(this.subjectUuids), batch -> {
+            final NodeIterator found = queryManager.createQuery(String.format(
+                "select n from [cards:Form] as n where n.questionnaire = '%s' and (%s)",
+                questionnaireUuid, matchAny("n.subject", batch)), "JCR-SQL2").execute().getNodes();
+            while (found.hasNext()) {
+                final Node form = found.nextNode();
+                this.forms.putIfAbsent(form.getProperty("subject").getString(), form.getPath());
+            }
+        });
+        LOGGER.debug("Prefetched {} forms", this.forms.size());
+    }
+
+    /**
+     * Creates a new prefetch sharing the subjects of this one, without any forms, for importing data for a different
+     * questionnaire about the same subjects. Subjects added to either prefetch are visible in both.
+     *
+     * @return a new prefetch
+     */
+    public ImportPrefetch withSubjectsOnly()
+    {
+        return new ImportPrefetch(this.subjects, this.subjectUuids);
+    }
+
+    /**
+     * Gets the path of an existing subject.
+     *
+     * @param subjectKey the key of the subject, as computed by {@link #getSubjectKey}
+     * @return the path of the subject, or {@code null} if such a subject didn't exist when the prefetch was loaded
+     */
+    public String getSubjectPath(final String subjectKey)
+    {
+        return this.subjects.get(subjectKey);
+    }
+
+    /**
+     * Gets the path of an existing form for the target questionnaire.
+     *
+     * @param subjectIdentifier the identifier ({@code jcr:uuid}) of the subject that the form belongs to
+     * @return the path of the form, or {@code null} if no such form exists
+     */
+    public String getFormPath(final String subjectIdentifier)
+    {
+        return this.forms.get(subjectIdentifier);
+    }
+
+    /**
+     * Records a subject created during the import, so that later rows, or other importers sharing this prefetch, use
+     * it. A previously recorded path for the same subject is replaced, since it may belong to a discarded change.
+     *
+     * @param subjectKey the key of the subject, as computed by {@link #getSubjectKey}
+     * @param subjectPath the path of the new subject
+     * @param subjectIdentifier the identifier ({@code jcr:uuid}) of the new subject
+     */
+    public void addSubject(final String subjectKey, final String subjectPath, final String subjectIdentifier)
+    {
+        this.subjects.put(subjectKey, subjectPath);
+        this.subjectUuids.add(subjectIdentifier);
+    }
+
+    /**
+     * Records a form created during the import, so that later rows for the same subject update it. A previously
+     * recorded path for the same subject is replaced, since it may belong to a discarded change.
+     *
+     * @param subjectIdentifier the identifier ({@code jcr:uuid}) of the subject that the form belongs to
+     * @param formPath the path of the new form
+     */
+    public void addForm(final String subjectIdentifier, final String formPath)
+    {
+        this.forms.put(subjectIdentifier, formPath);
+    }
+
+    /**
+     * A query to run for each batch of values.
+     */
+    @FunctionalInterface
+    private interface BatchQuery
+    {
+        void run(List<String> batch) throws RepositoryException;
+    }
+
+    private static void forEachBatch(final Collection<String> values, final BatchQuery query)
+        throws RepositoryException
+    {
+        final List<String> batch = new ArrayList<>(QUERY_BATCH_SIZE);
+        final Iterator<String> it = values.iterator();
+        while (it.hasNext()) {
+            batch.add(it.next());
+            if (batch.size() >= QUERY_BATCH_SIZE || !it.hasNext()) {
+                query.run(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private static String matchAny(final String property, final List<String> values)
+    {
+        final StringBuilder result = new StringBuilder();
+        for (String value : values) {
+            if (result.length() > 0) {
+                result.append(" or ");
+            }
+            result.append(property).append(" = '").append(SearchUtils.escapeQueryArgument(value)).append('\'');
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where the data to import is read from. Since imports may read the data in several passes, for example for
+ * prefetching existing subjects before importing rows, a source can be opened several times.
+ *
+ * @version $Id$
+ */
+@FunctionalInterface
+public interface ImportSource
+{
+    /**
+     * Opens a new stream for reading the data from the start.
+     *
+     * @return a stream, must be closed by the caller
+     * @throws IOException if opening the data fails
+     */
+    InputStream open() throws IOException;
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the worker threads of all the parallel imports running at the same time, {@link PartitionedImportEngine} and
+ * {@link BundleImporter} alike, to the number of available processors. An import waits a while for enough threads to
+ * be available for all its workers, and is rejected if the server stays too busy.
+ *
+ * @version $Id$
+ */
+final class ImportWorkers
+{
+    /** The maximum number of worker threads, for all the imports running at the same time. */
+    static final int MAX_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    /** How long an import waits for enough worker threads before it is rejected. */
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+
+    /** The worker threads still available. */
+    private static final Semaphore AVAILABLE_WORKERS = new Semaphore(MAX_WORKERS, true);
+
+    private ImportWorkers()
+    {
+        // Utility class, no instances
+    }
+
+    /**
+     * Reserves worker threads, waiting until enough are available. Each successful call must be followed by a
+     * {@link #release} call with the same count.
+     *
+     * @param count the number of worker threads needed, at most {@link #MAX_WORKERS}
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     * @throws RejectedExecutionException if the worker threads are not available in time
+     */
+    static void acquire(final int count) throws InterruptedException
+    {
+        if (!AVAILABLE_WORKERS.tryAcquire(count, ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new RejectedExecutionException("Too many imports are running, try again later");
+        }
+    }
+
+    /**
+     * Releases worker threads reserved with {@link #acquire}.
+     *
+     * @param count the number of worker threads to release
+     */
+    static void release(final int count)
+    {
+        AVAILABLE_WORKERS.release(count);
+    }
+}
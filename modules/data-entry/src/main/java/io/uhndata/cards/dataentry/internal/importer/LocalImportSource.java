@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Reads the data to import from a file in the local drop directory of the server, instead of uploading it. The data is
+ * streamed from the disk, so large files don't have to go through the multipart request handling of the servlet
+ * container, which buffers the whole upload before the import can start.
+ * <p>
+ * This is configured through environment variables:
+ * </p>
+ * <ul>
+ * <li>{@code DATA_IMPORT_DIRECTORY}: the drop directory; only files inside this directory can be imported, and if it
+ * isn't set, importing local files is disabled</li>
+ * <li>{@code DATA_IMPORT_READ_BUFFER}: the size of the read buffer, in bytes, 1MB by default</li>
+ * <li>{@code DATA_IMPORT_MEMORY_MAPPED}: if {@code true}, files are memory mapped instead of read through a buffer,
+ * which avoids copying the data into the Java heap, at the cost of using more virtual memory</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+public final class LocalImportSource implements ImportSource
+{
+    /** The default size of the read buffer. */
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /** How much of a memory mapped file is mapped at once. */
+    private static final long MAPPED_REGION_SIZE = 256L * 1024 * 1024;
+
+    private final Path file;
+
+    private final int bufferSize;
+
+    private final boolean memoryMapped;
+
+    /**
+     * Basic constructor.
+     *
+     * @param file the file to read
+     * @param bufferSize the size of the read buffer, in bytes
+     * @param memoryMapped whether to memory map the file instead of reading it through a buffer
+     */
+    public LocalImportSource(final Path file, final int bufferSize, final boolean memoryMapped)
+    {
+        this.file = file;
+        this.bufferSize = bufferSize;
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Finds a file in the drop directory, with the configured read settings.
+     *
+     * @param name the path to the file, relative to the drop directory
+     * @return a source for the file
+     * @throws IOException if the file cannot be accessed
+     * @throws IllegalArgumentException if importing local files is disabled, or if the file is not inside the drop
+     *             directory
+     */
+    public static LocalImportSource resolve(final String name) throws IOException
+    {
+        final String directory = System.getenv("DATA_IMPORT_DIRECTORY");
+        if (StringUtils.isBlank(directory)) {
+            throw new IllegalArgumentException("Importing local files is not enabled");
+        }
+        final Path root = Paths.get(directory.trim()).toRealPath();
+        // Resolving the real path also follows symbolic links, which must not lead outside the drop directory either
+        final Path file = root.resolve(name).normalize();
+        if (!file.startsWith(root) || !Files.isRegularFile(file) || !file.toRealPath().startsWith(root)) {
+            throw new IllegalArgumentException("Invalid file to import: " + name);
+        }
+        return new LocalImportSource(file.toRealPath(), getBufferSize(),
+            "true".equalsIgnoreCase(StringUtils.trim(System.getenv("DATA_IMPORT_MEMORY_MAPPED"))));
+    }
+
+    /**
+     * The file to read.
+     *
+     * @return a path on the local disk
+     */
+    public Path getFile()
+    {
+        return this.file;
+    }
+
+    @Override
+    public InputStream open() throws IOException
+    {
+        if (this.memoryMapped) {
+            return new MappedInputStream(FileChannel.open(this.file, StandardOpenOption.READ));
+        }
+        return new BufferedInputStream(Files.newInputStream(this.file), this.bufferSize);
+    }
+
+    private static int getBufferSize()
+    {
+        final String configured = System.getenv("DATA_IMPORT_READ_BUFFER");
+        if (StringUtils.isBlank(configured)) {
+            return DEFAULT_BUFFER_SIZE;
+        }
+        try {
+            return Math.max(8192, Integer.parseInt(configured.trim()));
+        } catch (NumberFormatException e) {
+            return DEFAULT_BUFFER_SIZE;
+        }
+    }
+
+    /**
+     * Reads a file through memory mapped regions, mapping the next region once the previous one was read. Files larger
+     * than what a single mapping supports can be read this way.
+     */
+    private static final class MappedInputStream extends InputStream
+    {
+        private final FileChannel channel;
+
+        private final long size;
+
+        private long mappedUntil;
+
+        private MappedByteBuffer region;
+
+        MappedInputStream(final FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return nextRegion() ? this.region.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException
+        {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextRegion()) {
+                return -1;
+            }
+            final int count = Math.min(length, this.region.remaining());
+            this.region.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return this.region == null ? 0 : this.region.remaining();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.region = null;
+            this.channel.close();
+        }
+
+        /**
+         * Makes sure that there is data left to read in the current region, mapping the next region if needed.
+         *
+         * @return {@code true} if there is data to read, {@code false} at the end of the file
+         * @throws IOException if mapping the file fails
+         */
+        private boolean nextRegion() throws IOException
+        {
+            if (this.region != null && this.region.hasRemaining()) {
+                return true;
+            }
+            if (this.mappedUntil >= this.size) {
+                return false;
+            }
+            final long length = Math.min(MAPPED_REGION_SIZE, this.size - this.mappedUntil);
+            this.region = this.channel.map(FileChannel.MapMode.READ_ONLY, this.mappedUntil, length);
+            this.mappedUntil += length;
+            return true;
+        }
+    }
+}
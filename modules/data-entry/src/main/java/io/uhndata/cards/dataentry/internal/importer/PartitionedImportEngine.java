@@ -0,0 +1,480 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports rows in parallel, using a pool of worker threads, each one with its own session. Rows are read on the calling
+ * thread, and dispatched to workers based on a partition key, so that all the rows with the same key, for example all
+ * the rows for the same subject, are imported by the same worker, and no two workers modify the same nodes. Each worker
+ * saves its changes independently, and if a save fails because of a conflicting change, the rows of that batch are
+ * imported again on top of a refreshed session, up to {@link #MAX_RETRIES} times. A row that fails to import, or that
+ * the importer skips, is counted as failed, and the worker moves on to the next row.
+ * <p>
+ * The worker threads of all the imports running at the same time are limited to the number of available processors,
+ * see {@link ImportWorkers}; an import waits a while for enough threads to be available for all its workers, and is
+ * rejected if they don't become available in time.
+ * </p>
+ *
+ * @param <T> the type of rows being imported
+ * @version $Id$
+ */
+public final class PartitionedImportEngine<T>
+{
+    /** How many times a batch is retried after a conflicting save. */
+    public static final int MAX_RETRIES = 3;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedImportEngine.class);
+
+    /** How many rows can wait in the queue of a worker before the reader is blocked. */
+    private static final int QUEUE_CAPACITY = 1000;
+
+    /** Marks the end of the rows in a worker's queue. */
+    private static final Object END = new Object();
+
+    /** How long the reader waits for room in a worker's queue before checking that the worker is still alive. */
+    private static final long OFFER_TIMEOUT_SECONDS = 1;
+
+    private final ResourceResolver resolver;
+
+    private final int workerCount;
+
+    private final long batchSize;
+
+    private final Function<T, String> partitionKey;
+
+    private final RowImporterFactory<T> importerFactory;
+
+    /**
+     * Creates the row importer used by a worker.
+     *
+     * @param <T> the type of rows being imported
+     */
+    @FunctionalInterface
+    public interface RowImporterFactory<T>
+    {
+        /**
+         * Creates a new row importer, invoked on the worker thread.
+         *
+         * @param workerResolver the resource resolver owned by this worker
+         * @return a row importer using the given resolver
+         * @throws RepositoryException if accessing the repository fails
+         */
+        RowImporter<T> create(ResourceResolver workerResolver) throws RepositoryException;
+    }
+
+    /**
+     * The operations needed for importing rows in a worker thread. Each worker uses its own importer, and all the
+     * methods are invoked on the worker thread: any number of {@link #importRow}, {@link #commit} and
+     * {@link #rollback} calls, and {@link #close} last.
+     *
+     * @param <T> the type of rows being imported
+     */
+    public interface RowImporter<T>
+    {
+        /**
+         * Imports one row, without saving it.
+         *
+         * @param row the row to import
+         * @return {@code true} if the row was imported, {@code false} if it had to be skipped
+         */
+        boolean importRow(T row);
+
+        /**
+         * Saves all the pending changes.
+         *
+         * @throws RepositoryException if saving fails; an {@link InvalidItemStateException} signals a conflict with
+         *             changes saved by a different session, and the batch will be retried
+         */
+        void commit() throws RepositoryException;
+
+        /**
+         * Discards all the pending changes, along with any state referencing unsaved nodes.
+         *
+         * @throws RepositoryException if accessing the repository fails
+         */
+        void rollback() throws RepositoryException;
+
+        /**
+         * Releases any resources held by the importer, after all the rows have been imported.
+         */
+        default void close()
+        {
+            // Nothing to release by default
+        }
+    }
+
+    /**
+     * Statistics about the work done by one worker.
+     */
+    public static final class WorkerStatistics
+    {
+        private final int worker;
+
+        private long rows;
+
+        private long failedRows;
+
+        private long batches;
+
+        private long conflicts;
+
+        private long retries;
+
+        private long elapsedMillis;
+
+        WorkerStatistics(final int worker)
+        {
+            this.worker = worker;
+        }
+
+        /**
+         * The number of the worker, starting at 0.
+         *
+         * @return the worker number
+         */
+        public int getWorker()
+        {
+            return this.worker;
+        }
+
+        /**
+         * The number of rows successfully saved.
+         *
+         * @return a number of rows
+         */
+        public long getRows()
+        {
+            return this.rows;
+        }
+
+        /**
+         * The number of rows that could not be saved.
+         *
+         * @return a number of rows
+         */
+        public long getFailedRows()
+        {
+            return this.failedRows;
+        }
+
+        /**
+         * The number of batches successfully saved.
+         *
+         * @return a number of batches
+         */
+        public long getBatches()
+        {
+            return this.batches;
+        }
+
+        /**
+         * The number of saves that failed because of conflicting changes.
+         *
+         * @return a number of conflicts
+         */
+        public long getConflicts()
+        {
+            return this.conflicts;
+        }
+
+        /**
+         * The number of times a batch was imported again after a conflict.
+         *
+         * @return a number of retries
+         */
+        public long getRetries()
+        {
+            return this.retries;
+        }
+
+        /**
+         * How long this worker ran.
+         *
+         * @return a duration, in milliseconds
+         */
+        public long getElapsedMillis()
+        {
+            return this.elapsedMillis;
+        }
+
+        /**
+         * The throughput of this worker.
+         *
+         * @return the number of rows saved per second
+         */
+        public double getRowsPerSecond()
+        {
+            return this.elapsedMillis > 0 ? this.rows * 1000.0 / this.elapsedMillis : this.rows;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("Worker %d: imported %d rows in %d batches, %d failed rows, %d ms, %.1f rows/s,"
+                + " %d conflicts, %d retries", this.worker, this.rows, this.batches, this.failedRows,
+                this.elapsedMillis, getRowsPerSecond(), this.conflicts, this.retries);
+        }
+    }
+
+    /**
+     * Basic constructor.
+     *
+     * @param resolver the resource resolver of the current request, cloned for each worker
+     * @param workerCount the number of workers to use, at least 1; at most the number of available processors will be
+     *            used
+     * @param batchSize if positive, each worker saves its changes after every {@code batchSize} rows; otherwise, each
+     *            worker saves all its rows at once at the end
+     * @param partitionKey computes the partition key of a row; rows with the same key are always imported by the same
+     *            worker; a {@code null} key is allowed
+     * @param importerFactory creates the row importer to use in each worker
+     */
+    public PartitionedImportEngine(final ResourceResolver resolver, final int workerCount, final long batchSize,
+        final Function<T, String> partitionKey, final RowImporterFactory<T> importerFactory)
+    {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("At least one worker is needed, got " + workerCount);
+        }
+        this.resolver = resolver;
+        this.workerCount = Math.min(workerCount, ImportWorkers.MAX_WORKERS);
+        this.batchSize = batchSize;
+        this.partitionKey = partitionKey;
+        this.importerFactory = importerFactory;
+    }
+
+    /**
+     * Imports all the rows, returning once all the workers are done.
+     *
+     * @param rows the rows to import, read on the calling thread
+     * @return the statistics of each worker
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+     * @throws RejectedExecutionException if too many imports are already running, and no rows were imported
+     */
+    public List<WorkerStatistics> run(final Iterable<T> rows) throws InterruptedException
+    {
+        final List<BlockingQueue<Object>> queues = new ArrayList<>(this.workerCount);
+        final List<Future<WorkerStatistics>> workers = new ArrayList<>(this.workerCount);
+        // All the workers must run at the same time, since the reader may wait for any of them
+        ImportWorkers.acquire(this.workerCount);
+        final ExecutorService executor = Executors.newFixedThreadPool(this.workerCount);
+        try {
+            for (int i = 0; i < this.workerCount; ++i) {
+                final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+                final WorkerStatistics statistics = new WorkerStatistics(i);
+                queues.add(queue);
+                workers.add(executor.submit(() -> work(queue, statistics)));
+            }
+            try {
+                for (T row : rows) {
+                    final String key = this.partitionKey.apply(row);
+                    final int worker = key == null ? 0 : Math.floorMod(key.hashCode(), this.workerCount);
+                    if (!offer(queues.get(worker), workers.get(worker), row)) {
+                        LOGGER.error("Import worker {} stopped unexpectedly, the remaining rows are not imported",
+                            worker);
+                        break;
+                    }
+                }
+            } finally {
+                for (int i = 0; i < this.workerCount; ++i) {
+                    offer(queues.get(i), workers.get(i), END);
+                }
+            }
+            final List<WorkerStatistics> result = new ArrayList<>(this.workerCount);
+            for (Future<WorkerStatistics> worker : workers) {
+                try {
+                    result.add(worker.get());
+                } catch (ExecutionException e) {
+                    LOGGER.error("Import worker failed: {}", e.getMessage(), e);
+                }
+            }
+            return Collections.unmodifiableList(result);
+        } finally {
+            executor.shutdownNow();
+            ImportWorkers.release(this.workerCount);
+        }
+    }
+
+    /**
+     * Adds a row to the queue of a worker, waiting for room in the queue as long as the worker is alive.
+     *
+     * @param queue the queue of the worker
+     * @param worker the worker consuming the queue
+     * @param item the row to import, or the end marker
+     * @return {@code true} if the row was queued, {@code false} if the worker stopped
+     * @throws InterruptedException if the calling thread is interrupted while waiting for room in the queue
+     */
+    private static boolean offer(final BlockingQueue<Object> queue, final Future<?> worker, final Object item)
+        throws InterruptedException
+    {
+        while (!queue.offer(item, OFFER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            if (worker.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The main loop of a worker: imports rows from its queue until the end marker is found, saving in batches.
+     *
+     * @param queue the queue of rows assigned to this worker
+     * @param statistics where to record the work done
+     * @return the statistics
+     * @throws InterruptedException if the worker is interrupted while waiting for rows
+     */
+    @SuppressWarnings("unchecked")
+    private WorkerStatistics work(final BlockingQueue<Object> queue, final WorkerStatistics statistics)
+        throws InterruptedException
+    {
+        final long start = System.currentTimeMillis();
+        final List<T> batch = new ArrayList<>();
+        ResourceResolver workerResolver = null;
+        RowImporter<T> importer = null;
+        try {
+            workerResolver = this.resolver.clone(null);
+            importer = this.importerFactory.create(workerResolver);
+        } catch (LoginException | RepositoryException e) {
+            LOGGER.error("Failed to start import worker {}: {}", statistics.worker, e.getMessage(), e);
+        }
+        try {
+            for (Object next = queue.take(); next != END; next = queue.take()) {
+                if (importer == null) {
+                    // Keep draining the queue, so that the reader isn't blocked
+                    ++statistics.failedRows;
+                    continue;
+                }
+                final T row = (T) next;
+                try {
+                    if (importer.importRow(row)) {
+                        batch.add(row);
+                    } else {
+                        ++statistics.failedRows;
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Worker {} failed to import a row: {}", statistics.worker, e.getMessage(), e);
+                    ++statistics.failedRows;
+                }
+                if (this.batchSize > 0 && batch.size() >= this.batchSize) {
+                    commit(importer, batch, statistics);
+                }
+            }
+            if (importer != null && !batch.isEmpty()) {
+                commit(importer, batch, statistics);
+            }
+        } finally {
+            if (importer != null) {
+                importer.close();
+            }
+            if (workerResolver != null) {
+                workerResolver.close();
+            }
+            statistics.elapsedMillis = System.currentTimeMillis() - start;
+            LOGGER.info("{}", statistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * Saves a batch of rows, importing them again if the save conflicts with changes from another session.
+     *
+     * @param importer the importer of the worker
+     * @param batch the rows imported since the previous save, cleared once done
+     * @param statistics where to record the work done
+     */
+    private void commit(final RowImporter<T> importer, final List<T> batch, final WorkerStatistics statistics)
+    {
+        for (int attempt = 0;; ++attempt) {
+            try {
+                importer.commit();
+                ++statistics.batches;
+                statistics.rows += batch.size();
+                break;
+            } catch (InvalidItemStateException e) {
+                ++statistics.conflicts;
+                // Either way, the changes conflicting with the other session must be discarded
+                if (!rollback(importer, statistics) || attempt >= MAX_RETRIES) {
+                    LOGGER.warn("Giving up on a batch of {} rows after {} conflicts: {}", batch.size(),
+                        attempt + 1, e.getMessage());
+                    statistics.failedRows += batch.size();
+                    break;
+                }
+                ++statistics.retries;
+                try {
+                    // Rows that are skipped now, for example because of a conflicting change, are not retried again
+                    for (Iterator<T> rows = batch.iterator(); rows.hasNext();) {
+                        if (!importer.importRow(rows.next())) {
+                            rows.remove();
+                            ++statistics.failedRows;
+                        }
+                    }
+                } catch (RuntimeException ex) {
+                    LOGGER.warn("Failed to import again a batch of {} rows: {}", batch.size(), ex.getMessage(), ex);
+                    statistics.failedRows += batch.size();
+                    rollback(importer, statistics);
+                    break;
+                }
+            } catch (RepositoryException | RuntimeException e) {
+                LOGGER.warn("Failed to save a batch of {} rows: {}", batch.size(), e.getMessage(), e);
+                statistics.failedRows += batch.size();
+                rollback(importer, statistics);
+                break;
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Discards the pending changes of a worker.
+     *
+     * @param importer the importer of the worker
+     * @param statistics the statistics of the worker, used for identifying it in the logs
+     * @return {@code true} if the changes were discarded, {@code false} in case of errors
+     */
+    private boolean rollback(final RowImporter<T> importer, final WorkerStatistics statistics)
+    {
+        try {
+            importer.rollback();
+            return true;
+        } catch (RepositoryException | RuntimeException e) {
+            LOGGER.warn("Failed to discard the changes of worker {}: {}", statistics.worker, e.getMessage(), e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.importer;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.utils.DateParser;
+
+/**
+ * An import plan compiled once from a {@code cards:Questionnaire} before importing data for it. The questionnaire is
+ * traversed only once, and everything that the import needs to know about each question is precomputed: the answer node
+ * type, how raw values are parsed, the chain of ancestor sections, and the answer options that raw values can be
+ * standardized to. Looking up the question for a column, and processing a cell, are then simple map lookups, without
+ * any further queries or repository access.
+ * <p>
+ * A plan holds nodes and a value factory bound to the session that it was compiled with, so it must only be used with
+ * that session.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class QuestionnaireImportPlan
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuestionnaireImportPlan.class);
+
+    private static final String VALUE_PROPERTY = "value";
+
+    private static final String LABEL_PROPERTY = "label";
+
+    private static final String NOTE_SUFFIX = "_notes";
+
+    /** The questionnaire this plan was compiled from. */
+    private final Node questionnaire;
+
+    /** All the questions in the questionnaire, by node name. */
+    private final Map<String, QuestionPlan> questionsByName = new HashMap<>();
+
+    /** All the questions in the questionnaire, by question text. */
+    private final Map<String, QuestionPlan> questionsByText = new HashMap<>();
+
+    /** Cached column to question mappings, {@code null} values are cached as well. */
+    private final Map<String, QuestionPlan> columns = new HashMap<>();
+
+    /**
+     * Converts a raw value read from the input file into a typed value to store in the repository.
+     */
+    @FunctionalInterface
+    private interface ValueParser
+    {
+        /**
+         * Parses a raw value.
+         *
+         * @param rawValue the serialized value to parse, must not be {@code null}
+         * @param question the question being answered
+         * @return a typed value, or {@code null} if the value cannot be parsed
+         * @throws RepositoryException if creating the value fails
+         */
+        Value parse(String rawValue, QuestionPlan question) throws RepositoryException;
+    }
+
+    /**
+     * Everything needed for importing answers to one question.
+     */
+    public static final class QuestionPlan
+    {
+        private final Node question;
+
+        private final String identifier;
+
+        private final String dataType;
+
+        private final String answerNodeType;
+
+        private final boolean multiValued;
+
+        private final List<Node> sections;
+
+        private final List<String> sectionIdentifiers;
+
+        private final ValueParser parser;
+
+        private final ValueFactory valueFactory;
+
+        /** Option values, mapped to themselves. */
+        private final Map<String, String> exactValues = new HashMap<>();
+
+        /** Lower-cased option values, mapped to the actual value. */
+        private final Map<String, String> foldedValues = new HashMap<>();
+
+        /** Option labels, mapped to the option value. */
+        private final Map<String, String> exactLabels = new HashMap<>();
+
+        /** Lower-cased option labels, mapped to the option value. */
+        private final Map<String, String> foldedLabels = new HashMap<>();
+
+        QuestionPlan(final Node question, final List<Node> sections) throws RepositoryException
+        {
+            this.question = question;
+            this.identifier = question.getIdentifier();
+            this.dataType = question.getProperty("dataType").getString();
+            this.answerNodeType = QuestionnaireImportPlan.getAnswerNodeType(this.dataType);
+            this.multiValued = question.getProperty("maxAnswers").getLong() == 0;
+            this.sections = Collections.unmodifiableList(new ArrayList<>(sections));
+            final List<String> sectionIds = new ArrayList<>(sections.size());
+            for (Node section : sections) {
+                sectionIds.add(section.getProperty("jcr:uuid").getString());
+            }
+            this.sectionIdentifiers = Collections.unmodifiableList(sectionIds);
+            this.parser = getParser(this.dataType);
+            this.valueFactory = question.getSession().getValueFactory();
+            compileOptions();
+        }
+
+        /**
+         * The question node.
+         *
+         * @return a {@code cards:Question} node
+         */
+        public Node getQuestion()
+        {
+            return this.question;
+        }
+
+        /**
+         * The identifier of the question node, as referenced by answers.
+         *
+         * @return the question identifier
+         */
+        public String getIdentifier()
+        {
+            return this.identifier;
+        }
+
+        /**
+         * The node type to use for answers to this question.
+         *
+         * @return a value to use for the {@code jcr:primaryType} of new answers
+         */
+        public String getAnswerNodeType()
+        {
+            return this.answerNodeType;
+        }
+
+        /**
+         * Whether this question accepts more than one value.
+         *
+         * @return {@code true} if the answer is multi-valued
+         */
+        public boolean isMultiValued()
+        {
+            return this.multiValued;
+        }
+
+        /**
+         * The sections between the questionnaire and the question, in descending order from the questionnaire down to
+         * the question itself.
+         *
+         * @return a list of {@code cards:Section} nodes, may be empty
+         */
+        public List<Node> getSections()
+        {
+            return this.sections;
+        }
+
+        /**
+         * The {@code jcr:uuid} of each of the {@link #getSections() ancestor sections}, in the same order.
+         *
+         * @return a list of section identifiers, may be empty
+         */
+        public List<String> getSectionIdentifiers()
+        {
+            return this.sectionIdentifiers;
+        }
+
+        /**
+         * Converts a text read from the input file into a properly typed value to store in the repository.
+         *
+         * @param rawValue the serialized value to parse, may be {@code null}
+         * @return a typed Value to store in the repository, or {@code null} if the value is invalid
+         */
+        public Value parseValue(final String rawValue)
+        {
+            try {
+                return this.parser.parse(rawValue, this);
+            } catch (NumberFormatException | NullPointerException e) {
+                LOGGER.warn("Invalid value of type {}: {}", this.dataType, rawValue);
+            } catch (RepositoryException e) {
+                LOGGER.warn("Value factory is unexpectedly unavailable: {}", e.getMessage());
+            }
+            return null;
+        }
+
+        /**
+         * Converts user-facing labels to the stored value, if the question has a list of default options, and one of
+         * the options has a label or value matching (case insensitive) the parsed value. To allow for different options
+         * that differ only in their case, priority is given, in order, to:
+         * <ol>
+         * <li>Exact match of a value, which means that the input file already stored the correct value</li>
+         * <li>Case-insensitive match of a value</li>
+         * <li>Case-sensitive match of a label</li>
+         * <li>Case-insensitive match of a label</li>
+         * </ol>
+         *
+         * @param value the value as read from the input file
+         * @return an equivalent standard value to be stored, may be the same as the input value
+         */
+        public String standardizeValue(final String value)
+        {
+            if (this.exactValues.isEmpty() || value == null) {
+                return value;
+            }
+            final String folded = value.toLowerCase(Locale.ROOT);
+            String result = this.exactValues.get(value);
+            if (result == null) {
+                result = this.foldedValues.get(folded);
+            }
+            if (result == null) {
+                result = this.exactLabels.get(value);
+            }
+            if (result == null) {
+                result = this.foldedLabels.get(folded);
+            }
+            return result == null ? value : result;
+        }
+
+        private void compileOptions() throws RepositoryException
+        {
+            final NodeIterator childNodes = this.question.getNodes();
+            while (childNodes.hasNext()) {
+                final Node childNode = childNodes.nextNode();
+                if (!"cards:AnswerOption".equals(childNode.getPrimaryNodeType().getName())
+                    || !childNode.hasProperty(VALUE_PROPERTY)) {
+                    continue;
+                }
+                final String value = childNode.getProperty(VALUE_PROPERTY).getString();
+                this.exactValues.putIfAbsent(value, value);
+                this.foldedValues.put(value.toLowerCase(Locale.ROOT), value);
+                if (childNode.hasProperty(LABEL_PROPERTY)) {
+                    final String label = childNode.getProperty(LABEL_PROPERTY).getString();
+                    this.exactLabels.putIfAbsent(label, value);
+                    this.foldedLabels.put(label.toLowerCase(Locale.ROOT), value);
+                }
+            }
+        }
+    }
+
+    private QuestionnaireImportPlan(final Node questionnaire)
+    {
+        this.questionnaire = questionnaire;
+    }
+
+    /**
+     * Compiles an import plan for a questionnaire.
+     *
+     * @param questionnaire the {@code cards:Questionnaire} node that data will be imported for
+     * @return a new import plan
+     * @throws RepositoryException if accessing the questionnaire fails
+     */
+    public static QuestionnaireImportPlan compile(final Node questionnaire) throws RepositoryException
+    {
+        final QuestionnaireImportPlan result = new QuestionnaireImportPlan(questionnaire);
+        result.compileChildren(questionnaire, new ArrayList<>());
+        return result;
+    }
+
+    /**
+     * The questionnaire this plan was compiled from.
+     *
+     * @return a {@code cards:Questionnaire} node
+     */
+    public Node getQuestionnaire()
+    {
+        return this.questionnaire;
+    }
+
+    /**
+     * All the questions in the questionnaire.
+     *
+     * @return an unmodifiable collection of question plans
+     */
+    public Collection<QuestionPlan> getQuestions()
+    {
+        return Collections.unmodifiableCollection(this.questionsByName.values());
+    }
+
+    /**
+     * Finds a question by its node name.
+     *
+     * @param name the name of the question node
+     * @return the corresponding question, or {@code null} if the questionnaire doesn't have such a question
+     */
+    public QuestionPlan getQuestion(final String name)
+    {
+        return this.questionsByName.get(name);
+    }
+
+    /**
+     * Checks if a column holds notes instead of answer values.
+     *
+     * @param columnName the name of the column in the input file
+     * @return {@code true} if the column holds notes
+     */
+    public static boolean isNoteColumn(final String columnName)
+    {
+        return columnName.endsWith(NOTE_SUFFIX);
+    }
+
+    /**
+     * Resolves the questions for all the columns of the input file, so that unknown columns are reported once, before
+     * the first row is imported.
+     *
+     * @param columnNames the header of the input file
+     */
+    public void bindColumns(final Collection<String> columnNames)
+    {
+        columnNames.forEach(this::getQuestionForColumn);
+    }
+
+    /**
+     * Finds the question corresponding to a column. For notes columns, the question whose notes are stored in the
+     * column is returned.
+     *
+     * @param columnName the name of the column in the input file
+     * @return the corresponding question, or {@code null} if no question can be automatically identified from the given
+     *         column name
+     */
+    public QuestionPlan getQuestionForColumn(final String columnName)
+    {
+        if (this.columns.containsKey(columnName)) {
+            return this.columns.get(columnName);
+        }
+        String questionKey = columnName.trim();
+        if (isNoteColumn(questionKey)) {
+            // Truncate the suffix from the column name before finding the related question
+            questionKey = questionKey.substring(0, questionKey.length() - NOTE_SUFFIX.length());
+        }
+        QuestionPlan result = this.questionsByName.get(questionKey);
+        if (result == null) {
+            result = this.questionsByText.get(questionKey);
+        }
+        if (result == null) {
+            LOGGER.info("Unknown field: {}", questionKey);
+        }
+        this.columns.put(columnName, result);
+        return result;
+    }
+
+    private void compileChildren(final Node parent, final List<Node> sections) throws RepositoryException
+    {
+        final NodeIterator children = parent.getNodes();
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            if (child.isNodeType("cards:Question")) {
+                final QuestionPlan question = new QuestionPlan(child, sections);
+                this.questionsByName.putIfAbsent(child.getName(), question);
+                if (child.hasProperty("text")) {
+                    this.questionsByText.putIfAbsent(child.getProperty("text").getString(), question);
+                }
+            } else if (child.isNodeType("cards:Section")) {
+                sections.add(child);
+                compileChildren(child, sections);
+                sections.remove(sections.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Computes the right node type for storing an Answer, based on the data type of its Question.
+     *
+     * @param dataType the data type of the question that is being answered
+     * @return a value to use for the {@code jcr:primaryType} of the Answer node to be created
+     */
+    private static String getAnswerNodeType(final String dataType)
+    {
+        String result;
+        switch (dataType) {
+            case "long":
+                result = "cards:LongAnswer";
+                break;
+            case "double":
+                result = "cards:DoubleAnswer";
+                break;
+            case "decimal":
+                result = "cards:DecimalAnswer";
+                break;
+            case "boolean":
+                result = "cards:BooleanAnswer";
+                break;
+            case "date":
+                result = "cards:DateAnswer";
+                break;
+            case "time":
+                result = "cards:TimeAnswer";
+                break;
+            case "vocabulary":
+                result = "cards:VocabularyAnswer";
+                break;
+            case "text":
+            default:
+                result = "cards:TextAnswer";
+        }
+        return result;
+    }
+
+    /**
+     * Selects the parser to use for the raw values of a question, based on its data type.
+     *
+     * @param dataType the data type of the question that is being answered
+     * @return a value parser
+     */
+    private static ValueParser getParser(final String dataType)
+    {
+        ValueParser result;
+        switch (dataType) {
+            case "long":
+                result = (raw, question) -> question.valueFactory.createValue(Long.valueOf(raw));
+                break;
+            case "double":
+                result = (raw, question) -> question.valueFactory.createValue(Double.valueOf(raw));
+                break;
+            case "decimal":
+                result = (raw, question) -> question.valueFactory.createValue(new BigDecimal(raw));
+                break;
+            case "boolean":
+                result = (raw, question) -> question.valueFactory.createValue(
+                    BooleanUtils.toInteger(BooleanUtils.toBooleanObject(raw), 1, 0, -1));
+                break;
+            case "date":
+                // Each question gets its own parser, which remembers the date format used in its column
+                final DateParser dates = new DateParser();
+                result = (raw, question) -> question.valueFactory.createValue(dates.parse(raw));
+                break;
+            case "text":
+            default:
+                result = (raw, question) -> question.valueFactory.createValue(question.standardizeValue(raw));
+        }
+        return result;
+    }
+}
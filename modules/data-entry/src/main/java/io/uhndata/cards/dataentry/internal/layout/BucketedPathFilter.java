@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.layout;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the flat paths of forms and top level subjects working in the bucketed layout. A request for a missing
+ * {@code /Forms/<uuid>} or {@code /Subjects/<uuid>}, along with any selectors, extension, or descendant path, is
+ * forwarded to the node stored in its bucket, if there is one. When the bucketed layout is enabled, a {@code POST}
+ * creating a new node through its flat path, as done by the user interface, is forwarded to the bucketed path, after
+ * creating the bucket.
+ *
+ * @version $Id$
+ */
+@Component(service = Filter.class, property = { "sling.filter.scope=REQUEST" })
+public class BucketedPathFilter implements Filter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BucketedPathFilter.class);
+
+    /** Matches a path under one of the homepages: the homepage, the first node name, and the rest of the path. */
+    private static final Pattern PATH = Pattern.compile("^(/Forms|/Subjects)/([^/.]+)(.*)$");
+
+    @Override
+    public void init(final FilterConfig filterConfig)
+    {
+        // Nothing to initialize
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+        throws IOException, ServletException
+    {
+        if (request instanceof SlingHttpServletRequest) {
+            final String target = getBucketedTarget((SlingHttpServletRequest) request);
+            if (target != null) {
+                request.getRequestDispatcher(target).forward(request, response);
+                return;
+            }
+        }
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy()
+    {
+        // Nothing to clean up
+    }
+
+    /**
+     * Computes where a request for a missing resource must be forwarded.
+     *
+     * @param request the current request
+     * @return the bucketed path, followed by the selectors, extension and suffix of the request, or {@code null} if
+     *         the request must be processed as is
+     */
+    private String getBucketedTarget(final SlingHttpServletRequest request)
+    {
+        if (!ResourceUtil.isNonExistingResource(request.getResource()) || request.getPathInfo() == null) {
+            return null;
+        }
+        final Matcher matcher = PATH.matcher(request.getPathInfo());
+        if (!matcher.matches() || ContentLayout.isBucketName(matcher.group(2))) {
+            return null;
+        }
+        final String homepage = matcher.group(1);
+        final String name = matcher.group(2);
+        final ResourceResolver resolver = request.getResourceResolver();
+        if (resolver.getResource(homepage + "/" + name) != null) {
+            // Stored in the flat layout, what's missing is something else below it
+            return null;
+        }
+        final String bucketedPath = ContentLayout.getBucketedPath(homepage, name);
+        if (resolver.getResource(bucketedPath) == null && !prepareNewNode(request, homepage, name, matcher.group(3))) {
+            return null;
+        }
+        return bucketedPath + matcher.group(3);
+    }
+
+    /**
+     * Creates the bucket for a new node posted through its flat path.
+     *
+     * @param request the current request
+     * @param homepage the path of the homepage
+     * @param name the name of the new node
+     * @param rest the rest of the request path, after the node name
+     * @return {@code true} if the request creates a new node and its bucket is ready, {@code false} otherwise
+     */
+    private boolean prepareNewNode(final SlingHttpServletRequest request, final String homepage, final String name,
+        final String rest)
+    {
+        if (!"POST".equals(request.getMethod()) || !ContentLayout.isBucketed() || rest.contains("/")) {
+            return false;
+        }
+        final ResourceResolver resolver = request.getResourceResolver();
+        final Resource homepageResource = resolver.getResource(homepage);
+        if (homepageResource == null) {
+            return false;
+        }
+        try {
+            ContentLayout.getParent(resolver, homepageResource, name);
+            resolver.commit();
+            return true;
+        } catch (PersistenceException e) {
+            LOGGER.warn("Failed to create the bucket for {}: {}", name, e.getMessage());
+            resolver.revert();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.layout;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * The layout of the forms and subjects in the repository. By default, all forms are stored directly under
+ * {@code /Forms}, and all top level subjects directly under {@code /Subjects}. With hundreds of thousands of siblings,
+ * listing, updating and storing these homepages becomes slow, so an alternative, bucketed layout can be enabled by
+ * setting the {@code CONTENT_LAYOUT} environment variable to {@code bucketed}. New forms and top level subjects are
+ * then stored two levels deeper, in {@code cards:Bucket} folders named after a hash of the node name, for example
+ * {@code /Forms/3f/a2/<uuid>}. Lower level subjects are always stored under their parent subject.
+ * <p>
+ * Nodes stored in buckets can still be accessed through their flat path, such as {@code /Forms/<uuid>}, see
+ * {@link BucketedPathFilter}, and existing nodes can be moved into buckets with {@link ContentLayoutMigration}.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class ContentLayout
+{
+    /** The homepages where the bucketed layout applies. */
+    public static final String[] HOMEPAGES = { "/Forms", "/Subjects" };
+
+    /** The node type of the intermediate folders. */
+    public static final String BUCKET_TYPE = "cards:Bucket";
+
+    /** Matches the name of a bucket folder. */
+    private static final Pattern BUCKET_NAME = Pattern.compile("[0-9a-f]{2}");
+
+    private ContentLayout()
+    {
+        // Utility class, no instances
+    }
+
+    /**
+     * Checks if new forms and subjects must be stored in buckets.
+     *
+     * @return {@code true} if the bucketed layout is enabled
+     */
+    public static boolean isBucketed()
+    {
+        return "bucketed".equalsIgnoreCase(System.getenv("CONTENT_LAYOUT"));
+    }
+
+    /**
+     * Checks if a node name is the name of a bucket folder. Forms and subjects are named with UUIDs, so they can never
+     * be mistaken for buckets.
+     *
+     * @param name a node name
+     * @return {@code true} if the name looks like the name of a bucket
+     */
+    public static boolean isBucketName(final String name)
+    {
+        return BUCKET_NAME.matcher(name).matches();
+    }
+
+    /**
+     * Computes the path of the bucket holding a node. The same name is always stored in the same bucket.
+     *
+     * @param name the name of a form or top level subject
+     * @return a relative path made of two bucket names, for example {@code 3f/a2}
+     */
+    public static String getBucket(final String name)
+    {
+        final String hash = UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+        return hash.substring(0, 2) + "/" + hash.substring(2, 4);
+    }
+
+    /**
+     * Computes the path where a node is stored in the bucketed layout.
+     *
+     * @param homepagePath the path of the homepage, for example {@code /Forms}
+     * @param name the name of a form or top level subject
+     * @return an absolute path
+     */
+    public static String getBucketedPath(final String homepagePath, final String name)
+    {
+        return homepagePath + "/" + getBucket(name) + "/" + name;
+    }
+
+    /**
+     * Gets the parent under which a new form or top level subject must be created: the homepage itself by default, or
+     * a bucket, created if needed, if the bucketed layout is enabled. The new buckets are not saved.
+     *
+     * @param resolver the resource resolver to use for creating buckets
+     * @param homepage the homepage, {@code /Forms} or {@code /Subjects}
+     * @param name the name of the node to create
+     * @return the parent resource for the new node
+     * @throws PersistenceException if creating a bucket fails
+     */
+    public static Resource getParent(final ResourceResolver resolver, final Resource homepage, final String name)
+        throws PersistenceException
+    {
+        if (!isBucketed()) {
+            return homepage;
+        }
+        Resource result = homepage;
+        for (String bucket : getBucket(name).split("/")) {
+            final Resource child = result.getChild(bucket);
+            result = child != null ? child
+                : resolver.create(result, bucket, Collections.singletonMap("jcr:primaryType", BUCKET_TYPE));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.layout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.event.jobs.consumer.JobExecutionContext;
+import org.apache.sling.event.jobs.consumer.JobExecutionResult;
+import org.apache.sling.event.jobs.consumer.JobExecutor;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the forms and top level subjects stored in the flat layout into buckets, when the bucketed
+ * {@link ContentLayout layout} is enabled. The migration runs as a background job, submitted when this component is
+ * activated if there are nodes left to move, and moves nodes in batches, saving after each batch. If it is
+ * interrupted, the job is resumed later, and only the nodes still stored in the flat layout are moved.
+ * <p>
+ * The migration is executed with the {@code cards-migration} service user, which can move nodes. Nodes keep their
+ * names and identifiers, so references to them, as well as their flat paths, keep working.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = JobExecutor.class, immediate = true,
+    property = { JobExecutor.PROPERTY_TOPICS + "=" + ContentLayoutMigration.TOPIC })
+public class ContentLayoutMigration implements JobExecutor
+{
+    /** The topic of the migration job. */
+    public static final String TOPIC = "io/uhndata/cards/dataentry/layout-migration";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentLayoutMigration.class);
+
+    /** How many nodes are moved before saving. */
+    private static final int BATCH_SIZE = 500;
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private JobManager jobManager;
+
+    @Activate
+    protected void activate()
+    {
+        if (ContentLayout.isBucketed() && this.jobManager.getJob(TOPIC, Collections.emptyMap()) == null) {
+            this.jobManager.addJob(TOPIC, null);
+        }
+    }
+
+    @Override
+    public JobExecutionResult process(final Job job, final JobExecutionContext context)
+    {
+        if (!ContentLayout.isBucketed()) {
+            return context.result().message("The bucketed layout is not enabled").cancelled();
+        }
+        try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(
+            Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, "layout"))) {
+            long moved = 0;
+            for (String homepage : ContentLayout.HOMEPAGES) {
+                moved += migrate(resolver, homepage, context);
+                if (context.isStopped()) {
+                    // Interrupted by a shutdown, will be resumed later
+                    return context.result().message("Stopped").failed();
+                }
+            }
+            LOGGER.info("Content layout migration done, {} nodes moved", moved);
+            return context.result().succeeded();
+        } catch (LoginException | RepositoryException e) {
+            LOGGER.error("Content layout migration failed: {}", e.getMessage(), e);
+            return context.result().message(e.getMessage()).failed();
+        }
+    }
+
+    /**
+     * Moves all the nodes stored directly under a homepage into buckets.
+     *
+     * @param resolver the resource resolver of the service user
+     * @param homepagePath the path of the homepage
+     * @param context the job context, checked between batches
+     * @return the number of nodes moved
+     * @throws RepositoryException if moving nodes fails
+     */
+    private long migrate(final ResourceResolver resolver, final String homepagePath,
+        final JobExecutionContext context) throws RepositoryException
+    {
+        final Resource homepage = resolver.getResource(homepagePath);
+        if (homepage == null) {
+            return 0;
+        }
+        final Session session = resolver.adaptTo(Session.class);
+        long moved = 0;
+        for (List<String> batch = getBatch(session, homepagePath); !batch.isEmpty() && !context.isStopped();
+            batch = getBatch(session, homepagePath)) {
+            try {
+                for (String name : batch) {
+                    final Resource bucket = ContentLayout.getParent(resolver, homepage, name);
+                    session.move(homepagePath + "/" + name, bucket.getPath() + "/" + name);
+                }
+                session.save();
+                moved += batch.size();
+                LOGGER.info("Moved {} nodes from {} into buckets, {} so far", batch.size(), homepagePath, moved);
+            } catch (PersistenceException e) {
+                session.refresh(false);
+                throw new RepositoryException(e.getMessage(), e);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Finds the next nodes to move. The children of the homepage are listed directly: a query would be answered by an
+     * asynchronous index, which may still list the nodes moved by the previous batch.
+     *
+     * @param session the session of the service user
+     * @param homepagePath the path of the homepage
+     * @return the names of at most {@link #BATCH_SIZE} nodes still stored directly under the homepage, may be empty
+     * @throws RepositoryException if accessing the homepage fails
+     */
+    private List<String> getBatch(final Session session, final String homepagePath) throws RepositoryException
+    {
+        final String type = "/Forms".equals(homepagePath) ? "cards:Form" : "cards:Subject";
+        final List<String> result = new ArrayList<>();
+        final NodeIterator nodes = session.getNode(homepagePath).getNodes();
+        while (nodes.hasNext() && result.size() < BATCH_SIZE) {
+            final Node node = nodes.nextNode();
+            if (!node.isNodeType(ContentLayout.BUCKET_TYPE) && node.isNodeType(type)) {
+                result.add(node.getName());
+            }
+        }
+        return result;
+    }
+}
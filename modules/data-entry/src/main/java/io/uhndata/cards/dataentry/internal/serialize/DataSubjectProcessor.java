@@ -28,10 +28,8 @@
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import javax.jcr.query.Query;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
 
@@ -39,24 +37,26 @@
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.serialize.SerializationContext;
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.spi.JcrQueryBuilder;
+import io.uhndata.cards.utils.DateParser;
 
 /**
- * Serialize a subject along with its forms. The name of this processor is {@code data}.
+ * Serialize a subject along with its forms. The name of this processor is {@code data}. The forms can be filtered with
+ * {@code dataFilter:<filter>=<value>} selectors; the {@code createdAfter}, {@code createdBefore},
+ * {@code modifiedAfter} and {@code modifiedBefore} filters take a date, in any format supported by {@link DateParser},
+ * and are ignored if the date is not valid.
  *
  * @version $Id$
  */
 @Component(immediate = true)
 public class DataSubjectProcessor implements ResourceJsonProcessor
 {
-    private ThreadLocal<ResourceResolver> resolver = new ThreadLocal<>();
-
-    private ThreadLocal<String> selectors = new ThreadLocal<>();
-
-    private ThreadLocal<String> rootNode = new ThreadLocal<>();
-
-    private ThreadLocal<Map<String, String>> filters = new ThreadLocal<>();
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataSubjectProcessor.class);
 
     @Override
     public String getName()
@@ -71,15 +71,9 @@ public int getPriority()
     }
 
     @Override
-    public void start(Resource resource)
+    public void start(final Resource resource, final SerializationContext context)
     {
-        // We will need the resource resolver to query for forms
-        this.resolver.set(resource.getResourceResolver());
-        // We want to forward the selectors to the forms serialization as well
-        this.selectors.set(resource.getResourceMetadata().getResolutionPathInfo());
-        // We only serialize data for the serialized subject, not other nodes
-        this.rootNode.set(resource.getPath());
-        final Map<String, String> filtersMap = new HashMap<>();
+        final Map<String, String> filtersMap = context.getState(this, HashMap::new);
         // Split by unescaped dots. A backslash escapes a dot, but two backslashes are just one escaped backslash.
         // Match by:
         // - no preceding backslash, i.e. start counting at the first backslash (?<!\)
@@ -88,13 +82,12 @@ public void start(Resource resource)
         // Each backslash, except the \., is escaped twice, once as a special escape char inside a Java string, and
         // once as a special escape char inside a RegExp. The one before the dot is escaped only once as a special
         // char inside a Java string, since it must retain its escaping meaning in the RegExp.
-        Arrays.asList(this.selectors.get().split("(?<!\\\\)(?:\\\\\\\\)*\\.")).stream()
+        final String selectors = resource.getResourceMetadata().getResolutionPathInfo();
+        Arrays.asList(selectors.split("(?<!\\\\)(?:\\\\\\\\)*\\.")).stream()
             .filter(s -> StringUtils.startsWith(s, "dataFilter:"))
             .map(s -> StringUtils.substringAfter(s, "dataFilter:"))
             .forEach(s -> filtersMap.put(StringUtils.substringBefore(s, "="),
                 StringUtils.substringAfter(s, "=").replaceAll("\\\\\\.", ".")));
-        this.filters.set(filtersMap);
-
     }
 
     @Override
@@ -104,82 +97,99 @@ public boolean canProcess(Resource resource)
     }
 
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(final Node node, final JsonObjectBuilder json, final Function<Node, JsonValue> serializeNode,
+        final SerializationContext context)
     {
         try {
+            final Resource subject = context.getResource();
             // Only the original subject node will have its data appended
-            if (!node.getPath().equals(this.rootNode.get())) {
+            if (!node.getPath().equals(subject.getPath())) {
                 return;
             }
-            Iterator<Resource> forms = this.resolver.get().findResources(generateDataQuery(node), Query.JCR_SQL2);
+            final Map<String, String> filters = context.getState(this, HashMap::new);
+            final ResourceResolver resolver = subject.getResourceResolver();
+            // We want to forward the selectors to the forms serialization as well
+            final String selectors = subject.getResourceMetadata().getResolutionPathInfo();
+            final Iterator<Resource> forms = generateDataQuery(node, filters).execute(resolver);
             final Map<String, JsonArrayBuilder> formsJsons = new HashMap<>();
-
-            // Since the adaptTo serialization process uses ThreadLocal variables, we need to serialize other resources
-            // in a separate thread in order to not pollute the current state. We must extract the needed state from the
-            // current ThreadLocals to be used in the sub-thread.
-            final ResourceResolver currentResolver = this.resolver.get();
-            final String currentSelectors = this.selectors.get();
-            final Thread serializer = new Thread(() -> forms
-                .forEachRemaining(f -> storeForm(currentResolver.resolve(f.getPath() + currentSelectors), formsJsons)));
-            serializer.start();
-            // Wait for the serialization of forms to finish
-            serializer.join();
-            // Now the data JSONs should be available, add them to the subject's JSON
+            // Forms are serialized in their own context, nested in the current serialization
+            forms.forEachRemaining(f -> storeForm(resolver.resolve(f.getPath() + selectors), formsJsons, context));
             formsJsons.forEach(json::add);
             final JsonObjectBuilder filtersJson = Json.createObjectBuilder();
-            this.filters.get().forEach(filtersJson::add);
+            filters.forEach(filtersJson::add);
             json.add("dataFilters", filtersJson);
             json.add("exportDate",
                 new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").format(Calendar.getInstance().getTime()));
-        } catch (RepositoryException | InterruptedException e) {
+        } catch (RepositoryException e) {
             // Really shouldn't happen
         }
     }
 
-    private void storeForm(final Resource form, final Map<String, JsonArrayBuilder> formsJsons)
+    private void storeForm(final Resource form, final Map<String, JsonArrayBuilder> formsJsons,
+        final SerializationContext context)
     {
         try {
             final Node questionnaire = form.adaptTo(Node.class).getProperty("questionnaire").getNode();
             final String questionnaireTitle = questionnaire.getProperty("title").getString();
             final JsonArrayBuilder arrayForQuestionnaire =
                 formsJsons.computeIfAbsent(questionnaireTitle, k -> Json.createArrayBuilder());
-            arrayForQuestionnaire.add(form.adaptTo(JsonObject.class));
+            arrayForQuestionnaire.add(context.serialize(form));
         } catch (RepositoryException e) {
             // Really shouldn't happen
         }
     }
 
-    private String generateDataQuery(final Node subject) throws RepositoryException
+    private JcrQueryBuilder generateDataQuery(final Node subject, final Map<String, String> filters)
+        throws RepositoryException
     {
-        final StringBuilder result =
-            new StringBuilder("select * from [cards:Form] as n where n.subject = '" + subject.getIdentifier() + "'");
-        this.filters.get().forEach((key, value) -> {
+        final JcrQueryBuilder result =
+            JcrQueryBuilder.select("cards:Form", "n").where("n.[subject] = ?", subject.getIdentifier());
+        filters.forEach((key, value) -> {
             switch (key) {
                 case "createdAfter":
-                    result.append(" and n.[jcr:created] >= '").append(value).append('\'');
+                    whereDate(result, "n.[jcr:created] >= ?", key, value);
                     break;
                 case "createdBefore":
-                    result.append(" and n.[jcr:created] < '").append(value).append('\'');
+                    whereDate(result, "n.[jcr:created] < ?", key, value);
                     break;
                 case "createdBy":
-                    result.append(" and n.[jcr:createdBy] = '").append(value).append('\'');
+                    result.where("n.[jcr:createdBy] = ?", value);
                     break;
                 case "status":
-                    result.append(" and contains(n.[statusFlags], '").append(value).append("')");
+                    result.where("contains(n.[statusFlags], ?)", value);
                     break;
                 case "statusNot":
-                    result.append(" and not contains(n.[statusFlags], '").append(value).append("')");
+                    result.where("not contains(n.[statusFlags], ?)", value);
                     break;
                 case "modifiedAfter":
-                    result.append(" and n.[jcr:lastModified] >= '").append(value).append('\'');
+                    whereDate(result, "n.[jcr:lastModified] >= ?", key, value);
                     break;
                 case "modifiedBefore":
-                    result.append(" and n.[jcr:lastModified] < '").append(value).append('\'');
+                    whereDate(result, "n.[jcr:lastModified] < ?", key, value);
                     break;
                 default:
                     break;
             }
         });
-        return result.toString();
+        return result;
+    }
+
+    /**
+     * Adds a condition on a date, binding the date as a date, so that it is compared as a date and not as a string.
+     *
+     * @param query the query being built
+     * @param constraint the condition, with one placeholder for the date
+     * @param filter the name of the filter, used in logs
+     * @param value the date, as entered by the user
+     */
+    private void whereDate(final JcrQueryBuilder query, final String constraint, final String filter,
+        final String value)
+    {
+        final Calendar date = DateParser.parseDate(value);
+        if (date == null) {
+            LOGGER.warn("Ignoring the {} data filter, invalid date: {}", filter, value);
+        } else {
+            query.where(constraint, date);
+        }
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.serialize;
+
+import java.util.function.Function;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.json.JsonValue;
+
+import org.apache.sling.api.resource.Resource;
+import org.osgi.service.component.annotations.Component;
+
+import io.uhndata.cards.dataentry.internal.answervalues.AnswerValues;
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+
+/**
+ * Removes the {@link AnswerValues denormalized answer values} from the serialization of forms, since they only
+ * duplicate the answers, and are only meant to be used in queries. The name of this processor is
+ * {@code hideAnswerValues}, and it is enabled by default; to include the answer values, disable it with the
+ * {@code -hideAnswerValues} selector.
+ *
+ * @version $Id$
+ */
+@Component(immediate = true)
+public class HideAnswerValuesProcessor implements ResourceJsonProcessor
+{
+    @Override
+    public String getName()
+    {
+        return "hideAnswerValues";
+    }
+
+    @Override
+    public int getPriority()
+    {
+        return 5;
+    }
+
+    @Override
+    public boolean isStreamable()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isEnabledByDefault(Resource resource)
+    {
+        return true;
+    }
+
+    @Override
+    public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
+        final Function<Node, JsonValue> serializeNode)
+    {
+        try {
+            if (property != null && (AnswerValues.isAnswerValues(property.getName())
+                || AnswerValues.INDEXED.equals(property.getName()))) {
+                return null;
+            }
+        } catch (RepositoryException e) {
+            // Really shouldn't happen
+        }
+        return input;
+    }
+}
@@ -51,6 +51,18 @@ public int getPriority()
         return 50;
     }
 
+    @Override
+    public boolean isStreamable()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable()
+    {
+        return true;
+    }
+
     @Override
     public boolean canProcess(Resource resource)
     {
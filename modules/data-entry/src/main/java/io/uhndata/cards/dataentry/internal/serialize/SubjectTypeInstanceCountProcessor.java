@@ -30,6 +30,7 @@
 import org.apache.sling.api.resource.Resource;
 import org.osgi.service.component.annotations.Component;
 
+import io.uhndata.cards.serialize.SerializationContext;
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
 
 /**
@@ -41,9 +42,6 @@
 @Component(immediate = true)
 public class SubjectTypeInstanceCountProcessor implements ResourceJsonProcessor
 {
-    /** An original resource path. */
-    private ThreadLocal<String> originalPath = new ThreadLocal<>();
-
     @Override
     public String getName()
     {
@@ -57,9 +55,9 @@ public int getPriority()
     }
 
     @Override
-    public void start(Resource resource)
+    public boolean isStreamable()
     {
-        this.originalPath.set(resource.getPath());
+        return true;
     }
 
     @Override
@@ -76,11 +74,12 @@ public boolean canProcess(Resource resource)
     }
 
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(final Node node, final JsonObjectBuilder json, final Function<Node, JsonValue> serializeNode,
+        final SerializationContext context)
     {
         try {
             // Only the original subject type node will have its data appended
-            if (!node.getPath().equals(this.originalPath.get())) {
+            if (!node.getPath().equals(context.getResource().getPath())) {
                 return;
             }
             Query queryObj = node.getSession().getWorkspace().getQueryManager().createQuery(generateDataQuery(node),
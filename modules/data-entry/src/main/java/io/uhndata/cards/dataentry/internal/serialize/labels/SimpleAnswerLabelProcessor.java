@@ -64,6 +64,12 @@ public int getPriority()
         return 75;
     }
 
+    @Override
+    public boolean isStreamable()
+    {
+        return true;
+    }
+
     @Override
     public boolean isEnabledByDefault(Resource resource)
     {
@@ -37,6 +37,7 @@
 import io.uhndata.cards.spi.QuickSearchEngine;
 import io.uhndata.cards.spi.SearchParameters;
 import io.uhndata.cards.spi.SearchUtils;
+import io.uhndata.cards.utils.QueryProfile;
 
 
 /**
@@ -66,7 +67,8 @@ public void quickSearch(final SearchParameters query, final ResourceResolver res
         }
 
         final String xpathQuery = getXPathQuery(query.getQuery());
-        Iterator<Resource> foundResources = resourceResolver.findResources(xpathQuery.toString(), "xpath");
+        Iterator<Resource> foundResources =
+            QueryProfile.findResources(resourceResolver, xpathQuery.toString(), "xpath");
 
         while (foundResources.hasNext()) {
             try {
@@ -99,15 +101,7 @@ public void quickSearch(final SearchParameters query, final ResourceResolver res
 
     private String getXPathQuery(final String textQuery)
     {
-        final String escapedQuery = SearchUtils.escapeLikeText(textQuery.toLowerCase());
-        final StringBuilder xpathQuery = new StringBuilder();
-        xpathQuery.append("/jcr:root/Forms//*[jcr:like(fn:lower-case(@value),'%");
-        xpathQuery.append(escapedQuery);
-        xpathQuery.append("%') or jcr:like(fn:lower-case(@note),'%");
-        xpathQuery.append(escapedQuery);
-        xpathQuery.append("%')]");
-
-        return xpathQuery.toString();
+        return "/jcr:root/Forms//*[" + SearchUtils.getSubstringCondition(textQuery, "value", "note") + "]";
     }
 
     /**
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+
+/**
+ * A position in a list of resources ordered by their creation date, used for keyset pagination: instead of skipping
+ * all the resources before the requested page, the next page is selected with a range condition on the creation date,
+ * which costs the same regardless of how deep the page is. Since several resources may share the same creation date,
+ * the cursor also holds the paths of the already returned resources with the last creation date, which must be skipped
+ * by the next page.
+ * <p>
+ * Cursors are sent to clients as opaque URL-safe strings.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class PaginationCursor
+{
+    private static final String CREATED = "created";
+
+    private static final String PATHS = "paths";
+
+    private final String created;
+
+    private final List<String> paths;
+
+    /**
+     * Computes the cursor pointing after the last resource of a page, while the page is being written.
+     */
+    public static final class Builder
+    {
+        private String created;
+
+        private final List<String> paths = new ArrayList<>();
+
+        /**
+         * Basic constructor.
+         *
+         * @param start the cursor that the page started from, may be {@code null} for the first page
+         */
+        public Builder(final PaginationCursor start)
+        {
+            if (start != null) {
+                this.created = start.created;
+                this.paths.addAll(start.paths);
+            }
+        }
+
+        /**
+         * Records a resource written in the page.
+         *
+         * @param resourceCreated the creation date of the resource
+         * @param path the path of the resource
+         */
+        public void add(final String resourceCreated, final String path)
+        {
+            if (!resourceCreated.equals(this.created)) {
+                this.created = resourceCreated;
+                this.paths.clear();
+            }
+            this.paths.add(path);
+        }
+
+        /**
+         * Builds the cursor pointing after the last written resource.
+         *
+         * @return a cursor, or {@code null} if nothing was written
+         */
+        public PaginationCursor build()
+        {
+            return this.created == null ? null : new PaginationCursor(this.created, this.paths);
+        }
+    }
+
+    /**
+     * Basic constructor.
+     *
+     * @param created the creation date of the last returned resource, in the ISO 8601 format used by JCR
+     * @param paths the paths of the returned resources having that creation date
+     */
+    public PaginationCursor(final String created, final List<String> paths)
+    {
+        this.created = created;
+        this.paths = Collections.unmodifiableList(new ArrayList<>(paths));
+    }
+
+    /**
+     * Decodes a cursor received from a client.
+     *
+     * @param encoded a cursor, as returned by {@link #encode()}
+     * @return the decoded cursor
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public static PaginationCursor decode(final String encoded)
+    {
+        try (JsonReader reader = Json.createReader(
+            new StringReader(new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8)))) {
+            final JsonObject json = reader.readObject();
+            final List<String> paths = new ArrayList<>();
+            json.getJsonArray(PATHS).getValuesAs(JsonString.class).forEach(path -> paths.add(path.getString()));
+            return new PaginationCursor(json.getString(CREATED), paths);
+        } catch (JsonException | ClassCastException | NullPointerException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+
+    /**
+     * Encodes this cursor for sending it to a client.
+     *
+     * @return an opaque URL-safe string
+     */
+    public String encode()
+    {
+        final JsonArrayBuilder pathsJson = Json.createArrayBuilder();
+        this.paths.forEach(pathsJson::add);
+        final String json = Json.createObjectBuilder()
+            .add(CREATED, this.created)
+            .add(PATHS, pathsJson)
+            .build().toString();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The creation date of the last returned resource.
+     *
+     * @return a date in the ISO 8601 format used by JCR
+     */
+    public String getCreated()
+    {
+        return this.created;
+    }
+
+    /**
+     * The paths of the already returned resources created at {@link #getCreated()}.
+     *
+     * @return an unmodifiable list of paths
+     */
+    public List<String> getPaths()
+    {
+        return this.paths;
+    }
+}
@@ -24,6 +24,7 @@
 
 import javax.json.JsonObject;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.service.component.annotations.Component;
@@ -31,6 +32,7 @@
 import io.uhndata.cards.spi.QuickSearchEngine;
 import io.uhndata.cards.spi.SearchParameters;
 import io.uhndata.cards.spi.SearchUtils;
+import io.uhndata.cards.utils.QueryProfile;
 
 /**
  * Finds {@code [cards:Questionnaire]}s with question or answer options matching the given full text search.
@@ -60,7 +62,8 @@ public void quickSearch(final SearchParameters query, final ResourceResolver res
         }
 
         final String xpathQuery = getXPathQuery(query.getQuery());
-        Iterator<Resource> foundResources = resourceResolver.findResources(xpathQuery.toString(), "xpath");
+        Iterator<Resource> foundResources =
+            QueryProfile.findResources(resourceResolver, xpathQuery.toString(), "xpath");
 
         while (foundResources.hasNext()) {
             // No need to go through all results list if we do not add total results number
@@ -96,7 +99,8 @@ public void quickSearch(final SearchParameters query, final ResourceResolver res
                 path = thisResource.getPath();
             }
 
-            if (matchedValue != null) {
+            // The index may find approximate matches
+            if (StringUtils.containsIgnoreCase(matchedValue, query.getQuery())) {
                 output.add(SearchUtils.addMatchMetadata(
                     matchedValue, query.getQuery(), question, questionnaire.adaptTo(JsonObject.class), false, path));
             }
@@ -105,17 +109,8 @@ public void quickSearch(final SearchParameters query, final ResourceResolver res
 
     private String getXPathQuery(final String textQuery)
     {
-        final String escapedQuery = SearchUtils.escapeLikeText(textQuery.toLowerCase());
-        final StringBuilder xpathQuery = new StringBuilder();
-        xpathQuery.append("/jcr:root/Questionnaires//*[jcr:like(fn:lower-case(@value),'%");
-        xpathQuery.append(escapedQuery);
-        xpathQuery.append("%') or jcr:like(fn:lower-case(@text),'%");
-        xpathQuery.append(escapedQuery);
-        xpathQuery.append("%') or jcr:like(fn:lower-case(@title),'%");
-        xpathQuery.append(escapedQuery);
-        xpathQuery.append("%')]");
-
-        return xpathQuery.toString();
+        return "/jcr:root/Questionnaires//*["
+            + SearchUtils.getSubstringCondition(textQuery, "value", "text", "title") + "]";
     }
 
     private Resource getQuestion(final Resource answerValue)
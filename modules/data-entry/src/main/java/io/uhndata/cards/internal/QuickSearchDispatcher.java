@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.Session;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.spi.QuickSearchEngine;
+import io.uhndata.cards.spi.SearchParameters;
+import io.uhndata.cards.spi.SearchUtils;
+import io.uhndata.cards.utils.QueryProfile;
+
+/**
+ * Runs a quick search with all the {@link QuickSearchEngine engines} supporting the requested resource types
+ * concurrently, on a bounded thread pool, so that a slow engine doesn't delay the others. Each engine works in its own
+ * session, cloned from the requester's session, and has until a deadline to find results; engines still running at the
+ * deadline are stopped the next time they find a result, and the results they found so far are kept. When too many
+ * engines are already waiting for a thread, the engine is skipped, and reported as incomplete. The results of all
+ * engines are then merged, most {@link SearchUtils#getRelevance relevant} first, keeping the order of the engines and
+ * of their results among equally relevant matches.
+ *
+ * @version $Id$
+ */
+@Component(service = QuickSearchDispatcher.class, immediate = true)
+public class QuickSearchDispatcher
+{
+    /** The default time each engine has to find results, in milliseconds. */
+    public static final long DEFAULT_TIMEOUT = 2000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuickSearchDispatcher.class);
+
+    /** How many engines can run at the same time, for all requests. */
+    private static final int THREADS = 4;
+
+    /** How many engines can wait for a thread; when full, further engines are skipped. */
+    private static final int QUEUE_SIZE = 64;
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC,
+        policyOption = ReferencePolicyOption.GREEDY)
+    private volatile List<QuickSearchEngine> engines;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(QUEUE_SIZE), new ThreadPoolExecutor.AbortPolicy());
+
+    /**
+     * The merged results of a quick search.
+     */
+    public static final class Results
+    {
+        private final List<JsonObject> matches;
+
+        private final JsonArray engines;
+
+        Results(final List<JsonObject> matches, final JsonArray engines)
+        {
+            this.matches = matches;
+            this.engines = engines;
+        }
+
+        /**
+         * The results of all engines, most relevant first.
+         *
+         * @return a list of matches, may be empty
+         */
+        public List<JsonObject> getMatches()
+        {
+            return this.matches;
+        }
+
+        /**
+         * How each engine performed: its name, the searched type, the time it took in milliseconds, the number of
+         * results it found, and whether it finished before the deadline.
+         *
+         * @return an array with one object for each engine
+         */
+        public JsonArray getEngines()
+        {
+            return this.engines;
+        }
+    }
+
+    /**
+     * The results of one engine. Once the engine's deadline has passed, the list is closed, and the engine is stopped
+     * the next time it tries to add a result.
+     */
+    private static final class EngineOutput extends AbstractList<JsonObject>
+    {
+        private final List<JsonObject> results = new ArrayList<>();
+
+        private boolean closed;
+
+        @Override
+        public synchronized JsonObject get(final int index)
+        {
+            return this.results.get(index);
+        }
+
+        @Override
+        public synchronized int size()
+        {
+            return this.results.size();
+        }
+
+        @Override
+        public synchronized void add(final int index, final JsonObject element)
+        {
+            if (this.closed) {
+                throw new CancellationException("Quick search deadline exceeded");
+            }
+            this.results.add(index, element);
+        }
+
+        synchronized List<JsonObject> close()
+        {
+            this.closed = true;
+            return new ArrayList<>(this.results);
+        }
+    }
+
+    /**
+     * A running engine.
+     */
+    private static final class EngineTask
+    {
+        private final QuickSearchEngine engine;
+
+        private final String type;
+
+        private final EngineOutput output = new EngineOutput();
+
+        private final long start = System.nanoTime();
+
+        /** When the engine finished, or {@code 0} while it is still running. */
+        private volatile long end;
+
+        /** The running engine, or {@code null} if it could not be started. */
+        private Future<?> future;
+
+        EngineTask(final QuickSearchEngine engine, final String type)
+        {
+            this.engine = engine;
+            this.type = type;
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        // Engines still waiting for a thread must be cancelled, so that their sessions are closed
+        this.executor.shutdownNow().forEach(task -> ((Future<?>) task).cancel(false));
+    }
+
+    /**
+     * Runs a quick search.
+     *
+     * @param types the resource types to search, in the format {@code cards:Resource}
+     * @param parameters the search parameters
+     * @param resolver the resource resolver of the requester
+     * @param timeout how long each engine has to find results, in milliseconds
+     * @return the merged results
+     */
+    public Results search(final List<String> types, final SearchParameters parameters, final ResourceResolver resolver,
+        final long timeout)
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final QueryProfile profile = QueryProfile.current();
+        final List<EngineTask> tasks = new ArrayList<>();
+        for (String type : types) {
+            for (QuickSearchEngine engine : this.engines) {
+                if (engine.isTypeSupported(type)) {
+                    final EngineTask task = new EngineTask(engine, type);
+                    if (start(task, parameters, resolver, profile)) {
+                        tasks.add(task);
+                    }
+                }
+            }
+        }
+
+        final List<JsonObject> matches = new ArrayList<>();
+        final JsonArrayBuilder enginesJson = Json.createArrayBuilder();
+        for (EngineTask task : tasks) {
+            final boolean complete = await(task, deadline);
+            final List<JsonObject> found = task.output.close();
+            final long end = task.end;
+            matches.addAll(found);
+            enginesJson.add(Json.createObjectBuilder()
+                .add("engine", task.engine.getClass().getSimpleName())
+                .add("type", task.type)
+                .add("time", ((end > 0 ? end : System.nanoTime()) - task.start) / 1_000_000.0)
+                .add("results", found.size())
+                .add("complete", complete));
+        }
+        // The sort is stable, so equally relevant matches keep the order of the engines
+        matches.sort(Comparator.comparingInt(SearchUtils::getRelevance).reversed());
+        return new Results(matches, enginesJson.build());
+    }
+
+    private boolean start(final EngineTask task, final SearchParameters parameters, final ResourceResolver resolver,
+        final QueryProfile profile)
+    {
+        final ResourceResolver engineResolver;
+        try {
+            // Sessions cannot be shared between threads
+            engineResolver = resolver.clone(null);
+        } catch (LoginException e) {
+            LOGGER.warn("Failed to open a session for quick search: {}", e.getMessage());
+            return false;
+        }
+        // Whoever sets this first owns the session: the engine, or a cancellation before the engine started
+        final AtomicBoolean started = new AtomicBoolean();
+        final FutureTask<Void> future = new FutureTask<Void>(() -> {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            final QueryProfile.Scope scope = profile == null ? null : profile.attach();
+            try {
+                task.engine.quickSearch(parameters, engineResolver, task.output);
+            } catch (CancellationException e) {
+                // The deadline passed, the results found so far are used
+            } finally {
+                task.end = System.nanoTime();
+                if (profile != null) {
+                    profile.explainQueries(engineResolver.adaptTo(Session.class));
+                    scope.detach();
+                }
+                engineResolver.close();
+            }
+        }, null)
+        {
+            @Override
+            protected void done()
+            {
+                if (started.compareAndSet(false, true)) {
+                    engineResolver.close();
+                }
+            }
+        };
+        try {
+            this.executor.execute(future);
+            task.future = future;
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Too many quick searches running, skipping {}", task.engine.getClass().getSimpleName());
+            future.cancel(false);
+        }
+        return true;
+    }
+
+    private boolean await(final EngineTask task, final long deadline)
+    {
+        if (task.future == null) {
+            return false;
+        }
+        try {
+            task.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.warn("Quick search failed in {}: {}", task.engine.getClass().getSimpleName(),
+                e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            LOGGER.debug("Quick search deadline exceeded in {}", task.engine.getClass().getSimpleName());
+        }
+        // Not interrupted, since that may break its session; the engine stops when it tries to add its next result
+        task.future.cancel(false);
+        return false;
+    }
+}
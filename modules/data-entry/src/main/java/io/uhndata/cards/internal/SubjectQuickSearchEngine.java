@@ -24,6 +24,7 @@
 
 import javax.json.JsonObject;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.service.component.annotations.Component;
@@ -31,6 +32,7 @@
 import io.uhndata.cards.spi.QuickSearchEngine;
 import io.uhndata.cards.spi.SearchParameters;
 import io.uhndata.cards.spi.SearchUtils;
+import io.uhndata.cards.utils.QueryProfile;
 
 
 /**
@@ -57,12 +59,10 @@ public void quickSearch(final SearchParameters query, final ResourceResolver res
             return;
         }
 
-        final StringBuilder xpathQuery = new StringBuilder();
-        xpathQuery.append("/jcr:root/Subjects//*[jcr:like(fn:lower-case(@identifier),'%");
-        xpathQuery.append(SearchUtils.escapeLikeText(query.getQuery().toLowerCase()));
-        xpathQuery.append("%')]");
+        final String xpathQuery =
+            "/jcr:root/Subjects//*[" + SearchUtils.getSubstringCondition(query.getQuery(), "identifier") + "]";
 
-        Iterator<Resource> foundResources = resourceResolver.findResources(xpathQuery.toString(), "xpath");
+        Iterator<Resource> foundResources = QueryProfile.findResources(resourceResolver, xpathQuery, "xpath");
 
         while (foundResources.hasNext()) {
             // No need to go through results list if we do not want total number of matches
@@ -73,7 +73,8 @@ public void quickSearch(final SearchParameters query, final ResourceResolver res
 
             String resourceValue = thisResource.getValueMap().get("identifier", String.class);
 
-            if (resourceValue != null) {
+            // The index may find approximate matches
+            if (StringUtils.containsIgnoreCase(resourceValue, query.getQuery())) {
                 output.add(SearchUtils.addMatchMetadata(
                     resourceValue, query.getQuery(), "identifier", thisResource.adaptTo(JsonObject.class), false, ""));
             }
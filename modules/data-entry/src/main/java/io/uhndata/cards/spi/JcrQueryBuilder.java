@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.spi;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.query.Query;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import io.uhndata.cards.ResourceIterator;
+
+/**
+ * Builds JCR-SQL2 queries where values are passed as bind variables instead of being inlined in the query. This
+ * removes the need for escaping values, and gives the same query statement for all the requests that only differ by
+ * the searched values, so the repository sees one statement per query shape instead of one per request.
+ * <p>
+ * Constraints are written in JCR-SQL2, with {@code ?} as placeholders for values, which are replaced by numbered bind
+ * variables. Names and paths cannot be bound in JCR-SQL2, so they are quoted and inlined by the dedicated methods. For
+ * example:
+ * </p>
+ *
+ * <pre>
+ * JcrQueryBuilder.select("cards:Form", "n")
+ *     .whereDescendantOf("n", "/Forms")
+ *     .where(JcrQueryBuilder.property("n", "questionnaire") + " = ?", questionnaireId)
+ *     .where("not n.[statusFlags] = ?", "INCOMPLETE")
+ *     .orderBy("n.[jcr:created] DESC")
+ *     .execute(resolver);
+ * </pre>
+ * <p>
+ * Values can be strings, calendars, booleans, numbers, or JCR values.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class JcrQueryBuilder
+{
+    private static final String VARIABLE_PREFIX = "v";
+
+    private final StringBuilder source = new StringBuilder();
+
+    private final List<String> constraints = new ArrayList<>();
+
+    private final List<Object> values = new ArrayList<>();
+
+    private final List<String> orderings = new ArrayList<>();
+
+    private JcrQueryBuilder()
+    {
+        // Instances are created with select
+    }
+
+    /**
+     * Starts a query selecting nodes of a type.
+     *
+     * @param nodeType the type of the selected nodes, for example {@code cards:Form}
+     * @param selector the name used for the selected nodes in constraints, for example {@code n}
+     * @return a new query builder
+     */
+    public static JcrQueryBuilder select(final String nodeType, final String selector)
+    {
+        final JcrQueryBuilder result = new JcrQueryBuilder();
+        result.source.append("select ").append(selector).append(".* from ").append(quoteName(nodeType))
+            .append(" as ").append(selector);
+        return result;
+    }
+
+    /**
+     * Quotes a name, such as a node type or a property name, for inlining it in a query.
+     *
+     * @param name the name to quote
+     * @return the quoted name
+     */
+    public static String quoteName(final String name)
+    {
+        return "[" + name.replace("]", "]]") + "]";
+    }
+
+    /**
+     * Refers to a property of the nodes of a selector.
+     *
+     * @param selector the name of the selector
+     * @param name the name of the property, which will be quoted
+     * @return the property reference, to be used in a constraint
+     */
+    public static String property(final String selector, final String name)
+    {
+        return selector + "." + quoteName(name);
+    }
+
+    /**
+     * Joins the nodes of another type.
+     *
+     * @param nodeType the type of the joined nodes
+     * @param selector the name used for the joined nodes in constraints
+     * @param joinCondition the join condition, for example {@code isdescendantnode(child, n)}
+     * @return this builder
+     */
+    public JcrQueryBuilder innerJoin(final String nodeType, final String selector, final String joinCondition)
+    {
+        this.source.append(" inner join ").append(quoteName(nodeType)).append(" as ").append(selector).append(" on ")
+            .append(joinCondition);
+        return this;
+    }
+
+    /**
+     * Only selects the descendants of a node.
+     *
+     * @param selector the name of the selector to restrict
+     * @param path the path of the ancestor node, which will be quoted
+     * @return this builder
+     */
+    public JcrQueryBuilder whereDescendantOf(final String selector, final String path)
+    {
+        this.constraints.add("isdescendantnode(" + selector + ", '" + path.replace("'", "''") + "')");
+        return this;
+    }
+
+    /**
+     * Adds a constraint, all the constraints must be satisfied.
+     *
+     * @param constraint a JCR-SQL2 constraint, with {@code ?} placeholders for the values
+     * @param constraintValues the values, one for each placeholder
+     * @return this builder
+     * @throws IllegalArgumentException if the number of values doesn't match the number of placeholders, or if a value
+     *             is {@code null}
+     */
+    public JcrQueryBuilder where(final String constraint, final Object... constraintValues)
+    {
+        final StringBuilder result = new StringBuilder();
+        int used = 0;
+        for (char c : constraint.toCharArray()) {
+            if (c == '?') {
+                if (used >= constraintValues.length || constraintValues[used] == null) {
+                    throw new IllegalArgumentException("Missing value for the constraint " + constraint);
+                }
+                this.values.add(constraintValues[used++]);
+                result.append('$').append(VARIABLE_PREFIX).append(this.values.size());
+            } else {
+                result.append(c);
+            }
+        }
+        if (used != constraintValues.length) {
+            throw new IllegalArgumentException("Too many values for the constraint " + constraint);
+        }
+        this.constraints.add(result.toString());
+        return this;
+    }
+
+    /**
+     * Adds an ordering, the results are sorted by the orderings in the order they are added.
+     *
+     * @param ordering a JCR-SQL2 ordering, for example {@code n.[jcr:created] DESC}
+     * @return this builder
+     */
+    public JcrQueryBuilder orderBy(final String ordering)
+    {
+        this.orderings.add(ordering);
+        return this;
+    }
+
+    /**
+     * The query statement, with bind variables instead of values.
+     *
+     * @return a JCR-SQL2 query
+     */
+    public String getStatement()
+    {
+        final StringBuilder result = new StringBuilder(this.source);
+        if (!this.constraints.isEmpty()) {
+            result.append(" where ").append(String.join(" and ", this.constraints));
+        }
+        if (!this.orderings.isEmpty()) {
+            result.append(" order by ").append(String.join(", ", this.orderings));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Creates the query in a session, and binds the values.
+     *
+     * @param session the session where the query will be executed
+     * @return a query ready to be executed, which can be further customized with a limit and offset
+     * @throws RepositoryException if the query is invalid
+     */
+    public Query prepare(final Session session) throws RepositoryException
+    {
+        final Query query = session.getWorkspace().getQueryManager().createQuery(getStatement(), Query.JCR_SQL2);
+        for (Map.Entry<String, Value> binding : getBindings(session.getValueFactory()).entrySet()) {
+            query.bindValue(binding.getKey(), binding.getValue());
+        }
+        return query;
+    }
+
+    /**
+     * The values bound to the variables of the query statement.
+     *
+     * @param valueFactory the value factory of the session where the query will be executed
+     * @return the values, by variable name, in the order they appear in the statement
+     */
+    public Map<String, Value> getBindings(final ValueFactory valueFactory)
+    {
+        final Map<String, Value> result = new LinkedHashMap<>();
+        for (int i = 0; i < this.values.size(); ++i) {
+            result.put(VARIABLE_PREFIX + (i + 1), toValue(valueFactory, this.values.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Executes the query.
+     *
+     * @param resolver the resource resolver of the session where the query will be executed
+     * @return the matching resources
+     * @throws RepositoryException if the query is invalid
+     */
+    public Iterator<Resource> execute(final ResourceResolver resolver) throws RepositoryException
+    {
+        return new ResourceIterator(resolver, prepare(resolver.adaptTo(Session.class)).execute().getNodes());
+    }
+
+    private static Value toValue(final ValueFactory valueFactory, final Object value)
+    {
+        final Value result;
+        if (value instanceof Value) {
+            result = (Value) value;
+        } else if (value instanceof Calendar) {
+            result = valueFactory.createValue((Calendar) value);
+        } else if (value instanceof Boolean) {
+            result = valueFactory.createValue((Boolean) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            result = valueFactory.createValue(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            result = valueFactory.createValue(((Number) value).longValue());
+        } else {
+            result = valueFactory.createValue(String.valueOf(value));
+        }
+        return result;
+    }
+}
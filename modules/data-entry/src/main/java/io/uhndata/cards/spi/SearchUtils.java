@@ -18,6 +18,9 @@
  */
 package io.uhndata.cards.spi;
 
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
@@ -51,6 +54,11 @@
 
     private static final String CARDS_QUERY_MATCH_PATH_KEY = "@path";
 
+    // The shortest and longest words that can be found through the n-gram quickSearch index
+    private static final int MIN_NGRAM_SIZE = 3;
+
+    private static final int MAX_NGRAM_SIZE = 20;
+
     private SearchUtils()
     {
         // This is a utility class, it should not be instantiated
@@ -78,6 +86,41 @@ public static String escapeQueryArgument(final String input)
         return input.replace("'", "''");
     }
 
+    /**
+     * Builds an XPath condition matching nodes where any of the given properties contains a text, ignoring case. When
+     * possible, the condition is a full text search served by the n-gram {@code quickSearch} index, where substrings of
+     * values are indexed, looking for each word of the text as one of these substrings. Words shorter or longer than
+     * the indexed n-grams can't be found in that index, so for texts containing such words, a slower {@code jcr:like}
+     * condition is used instead. Since the index only approximates substring matching, the values of the matched nodes
+     * must still be checked.
+     * <p>
+     * The {@code quickSearch} index is updated asynchronously, every few seconds, so values saved right before the
+     * search may not be found yet.
+     * </p>
+     *
+     * @param text the text to search for, as entered by the user
+     * @param properties the names of the properties to search in
+     * @return an XPath condition, to be used between square brackets
+     */
+    public static String getSubstringCondition(final String text, final String... properties)
+    {
+        final String[] words = StringUtils.split(text);
+        final boolean indexed = words.length > 0 && Arrays.stream(words)
+            .allMatch(word -> word.length() >= MIN_NGRAM_SIZE && word.length() <= MAX_NGRAM_SIZE);
+        // All the words, each one looked up as is among the indexed n-grams, escaped for the full text syntax, then for
+        // an XPath string literal
+        final String terms = Arrays.stream(words)
+            .map(word -> word.toLowerCase().replaceAll("([\\\\\"-])", "\\\\$1"))
+            .collect(Collectors.joining(" "))
+            .replace("'", "''");
+        final String likeText = escapeLikeText(text.toLowerCase());
+        return Arrays.stream(properties)
+            .map(property -> indexed
+                ? "jcr:contains(@" + property + ", '" + terms + "')"
+                : "jcr:like(fn:lower-case(@" + property + "),'%" + likeText + "%')")
+            .collect(Collectors.joining(" or "));
+    }
+
     /**
      * Searches through a list of Strings and returns the first String in that list for which in itself contains a given
      * substring.
@@ -166,6 +209,30 @@ private static JsonObject getMatchMetadata(String resourceValue, String query, S
         return builder.build();
     }
 
+    /**
+     * Computes how relevant a quick search match is, based on its {@link #addMatchMetadata match metadata}: exact
+     * matches come first, followed by matches at the start of the value, then matches anywhere in the value, and
+     * finally matches in notes.
+     *
+     * @param match a quick search result, with match metadata
+     * @return a relevance score, higher is more relevant, {@code 0} if the result has no match metadata
+     */
+    public static int getRelevance(final JsonObject match)
+    {
+        final JsonObject metadata = match.getJsonObject(CARDS_QUERY_MATCH_KEY);
+        if (metadata == null) {
+            return 0;
+        }
+        if (metadata.getBoolean(CARDS_QUERY_MATCH_NOTES_KEY, false)) {
+            return 1;
+        }
+        final boolean atStart = metadata.getString(CARDS_QUERY_MATCH_BEFORE_KEY, "").isEmpty();
+        if (atStart && metadata.getString(CARDS_QUERY_MATCH_AFTER_KEY, "").isEmpty()) {
+            return 4;
+        }
+        return atStart ? 3 : 2;
+    }
+
     /**
      * Check whether the given name is a valid node name.
      * @param name Node name to check
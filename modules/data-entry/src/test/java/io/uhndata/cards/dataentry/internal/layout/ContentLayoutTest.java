@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.layout;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ContentLayout}.
+ *
+ * @version $Id$
+ */
+public class ContentLayoutTest
+{
+    @Test
+    public void bucketIsMadeOfTwoBucketNames()
+    {
+        final String[] buckets = ContentLayout.getBucket(UUID.randomUUID().toString()).split("/");
+        Assert.assertEquals(2, buckets.length);
+        Assert.assertTrue(ContentLayout.isBucketName(buckets[0]));
+        Assert.assertTrue(ContentLayout.isBucketName(buckets[1]));
+    }
+
+    @Test
+    public void sameNameIsAlwaysInTheSameBucket()
+    {
+        final String name = UUID.randomUUID().toString();
+        Assert.assertEquals(ContentLayout.getBucket(name), ContentLayout.getBucket(name));
+    }
+
+    @Test
+    public void bucketDoesNotChangeBetweenReleases()
+    {
+        // Existing content is stored in buckets computed with this hash, it must never change
+        Assert.assertEquals("61/13", ContentLayout.getBucket("3c0c1f4d-a7a3-4e0e-9f5e-8f4b2d3c7e11"));
+    }
+
+    @Test
+    public void namesAreSpreadAcrossBuckets()
+    {
+        final Set<String> buckets = new HashSet<>();
+        for (int i = 0; i < 1000; ++i) {
+            buckets.add(ContentLayout.getBucket(UUID.randomUUID().toString()));
+        }
+        // 1000 random names in 65536 buckets very rarely collide more than a few times
+        Assert.assertTrue(buckets.size() > 950);
+    }
+
+    @Test
+    public void uuidsAreNotBucketNames()
+    {
+        Assert.assertFalse(ContentLayout.isBucketName(UUID.randomUUID().toString()));
+        Assert.assertFalse(ContentLayout.isBucketName("3G"));
+        Assert.assertFalse(ContentLayout.isBucketName("3f0"));
+    }
+
+    @Test
+    public void bucketedPathIsUnderTheHomepage()
+    {
+        final String name = UUID.randomUUID().toString();
+        Assert.assertEquals("/Forms/" + ContentLayout.getBucket(name) + "/" + name,
+            ContentLayout.getBucketedPath("/Forms", name));
+    }
+}
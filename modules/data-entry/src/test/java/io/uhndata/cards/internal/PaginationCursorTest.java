@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PaginationCursor}.
+ *
+ * @version $Id$
+ */
+public class PaginationCursorTest
+{
+    private static final String CREATED = "2021-03-14T10:15:30.123-05:00";
+
+    @Test
+    public void encodedCursorIsDecoded()
+    {
+        final PaginationCursor cursor =
+            new PaginationCursor(CREATED, Arrays.asList("/Forms/ab/cd/f1", "/Forms/ab/cd/f2"));
+        final PaginationCursor decoded = PaginationCursor.decode(cursor.encode());
+        Assert.assertEquals(CREATED, decoded.getCreated());
+        Assert.assertEquals(Arrays.asList("/Forms/ab/cd/f1", "/Forms/ab/cd/f2"), decoded.getPaths());
+    }
+
+    @Test
+    public void nonAsciiPathsAreDecoded()
+    {
+        final PaginationCursor cursor = new PaginationCursor(CREATED, Collections.singletonList("/Forms/évaluation"));
+        Assert.assertEquals(Collections.singletonList("/Forms/évaluation"),
+            PaginationCursor.decode(cursor.encode()).getPaths());
+    }
+
+    @Test
+    public void encodedCursorIsUrlSafe()
+    {
+        // Enough paths so that all the base64 characters are likely to be used
+        final PaginationCursor cursor = new PaginationCursor(CREATED,
+            Arrays.asList("/Forms/??>>", "/Forms/~~~", "/Forms/ÿÿÿ", "/Forms/a b+c"));
+        Assert.assertTrue(cursor.encode().matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    public void pathsAreUnmodifiable()
+    {
+        final PaginationCursor cursor = new PaginationCursor(CREATED, Arrays.asList("/Forms/f1"));
+        try {
+            cursor.getPaths().add("/Forms/f2");
+            Assert.fail("The paths of a cursor must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void builderKeepsOnlyThePathsWithTheLastCreationDate()
+    {
+        final PaginationCursor.Builder builder = new PaginationCursor.Builder(null);
+        builder.add("2021-03-14T10:00:00.000Z", "/Forms/f1");
+        builder.add(CREATED, "/Forms/f2");
+        builder.add(CREATED, "/Forms/f3");
+        final PaginationCursor cursor = builder.build();
+        Assert.assertEquals(CREATED, cursor.getCreated());
+        Assert.assertEquals(Arrays.asList("/Forms/f2", "/Forms/f3"), cursor.getPaths());
+    }
+
+    @Test
+    public void builderContinuesFromTheStartCursor()
+    {
+        final PaginationCursor.Builder builder =
+            new PaginationCursor.Builder(new PaginationCursor(CREATED, Arrays.asList("/Forms/f1")));
+        builder.add(CREATED, "/Forms/f2");
+        Assert.assertEquals(Arrays.asList("/Forms/f1", "/Forms/f2"), builder.build().getPaths());
+    }
+
+    @Test
+    public void emptyPageHasNoCursor()
+    {
+        Assert.assertNull(new PaginationCursor.Builder(null).build());
+    }
+
+    @Test
+    public void invalidCursorsAreRejected()
+    {
+        assertInvalid("not base64!");
+        assertInvalid(encode("not json"));
+        assertInvalid(encode("[]"));
+        assertInvalid(encode("{}"));
+        assertInvalid(encode("{\"created\":\"" + CREATED + "\"}"));
+        assertInvalid(encode("{\"created\":1,\"paths\":[]}"));
+        assertInvalid(encode("{\"created\":\"" + CREATED + "\",\"paths\":[1]}"));
+    }
+
+    private static String encode(final String json)
+    {
+        return Base64.getUrlEncoder().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertInvalid(final String encoded)
+    {
+        try {
+            PaginationCursor.decode(encoded);
+            Assert.fail("Invalid cursor accepted: " + encoded);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
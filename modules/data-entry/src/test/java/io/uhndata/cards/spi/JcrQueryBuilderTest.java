@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.spi;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Map;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+
+import org.apache.jackrabbit.value.ValueFactoryImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link JcrQueryBuilder}.
+ *
+ * @version $Id$
+ */
+public class JcrQueryBuilderTest
+{
+    private final ValueFactory valueFactory = ValueFactoryImpl.getInstance();
+
+    @Test
+    public void placeholdersAreReplacedByNumberedVariables()
+    {
+        final JcrQueryBuilder query = JcrQueryBuilder.select("cards:Form", "n")
+            .where("n.[questionnaire] = ?", "q1")
+            .where("n.[a] = ? or n.[b] = ?", "a", "b");
+        Assert.assertEquals(
+            "select n.* from [cards:Form] as n where n.[questionnaire] = $v1 and n.[a] = $v2 or n.[b] = $v3",
+            query.getStatement());
+    }
+
+    @Test
+    public void valuesAreBoundInOrder() throws RepositoryException
+    {
+        final Map<String, Value> bindings = JcrQueryBuilder.select("cards:Form", "n")
+            .where("n.[questionnaire] = ?", "q1")
+            .where("n.[a] = ? or n.[b] = ?", "a", "b")
+            .getBindings(this.valueFactory);
+        Assert.assertEquals(Arrays.asList("v1", "v2", "v3"), Arrays.asList(bindings.keySet().toArray()));
+        Assert.assertEquals("q1", bindings.get("v1").getString());
+        Assert.assertEquals("a", bindings.get("v2").getString());
+        Assert.assertEquals("b", bindings.get("v3").getString());
+    }
+
+    @Test
+    public void valuesAreNotInlined()
+    {
+        final String statement = JcrQueryBuilder.select("cards:Form", "n")
+            .where("n.[name] = ?", "O'Brien ? $v9")
+            .getStatement();
+        Assert.assertEquals("select n.* from [cards:Form] as n where n.[name] = $v1", statement);
+    }
+
+    @Test
+    public void valuesKeepTheirType() throws RepositoryException
+    {
+        final Calendar date = Calendar.getInstance();
+        final Value stringValue = this.valueFactory.createValue("text");
+        final Map<String, Value> bindings = JcrQueryBuilder.select("cards:Answer", "a")
+            .where("a.[s] = ? and a.[d] = ? and a.[b] = ?", "s", date, true)
+            .where("a.[l] = ? and a.[i] = ? and a.[f] = ?", 42L, 7, 1.5)
+            .where("a.[v] = ?", stringValue)
+            .getBindings(this.valueFactory);
+        Assert.assertEquals(PropertyType.STRING, bindings.get("v1").getType());
+        Assert.assertEquals(PropertyType.DATE, bindings.get("v2").getType());
+        Assert.assertEquals(date.getTimeInMillis(), bindings.get("v2").getDate().getTimeInMillis());
+        Assert.assertEquals(PropertyType.BOOLEAN, bindings.get("v3").getType());
+        Assert.assertEquals(PropertyType.LONG, bindings.get("v4").getType());
+        Assert.assertEquals(42L, bindings.get("v4").getLong());
+        Assert.assertEquals(PropertyType.LONG, bindings.get("v5").getType());
+        Assert.assertEquals(PropertyType.DOUBLE, bindings.get("v6").getType());
+        Assert.assertEquals(1.5, bindings.get("v6").getDouble(), 0);
+        Assert.assertSame(stringValue, bindings.get("v7"));
+    }
+
+    @Test
+    public void sameShapeGivesTheSameStatement()
+    {
+        Assert.assertEquals(
+            JcrQueryBuilder.select("cards:Form", "n").where("n.[questionnaire] = ?", "q1").getStatement(),
+            JcrQueryBuilder.select("cards:Form", "n").where("n.[questionnaire] = ?", "q2").getStatement());
+    }
+
+    @Test
+    public void namesAndPathsAreQuoted()
+    {
+        final String statement = JcrQueryBuilder.select("cards:Form", "n")
+            .innerJoin("cards:Answer", "a", "isdescendantnode(a, n)")
+            .whereDescendantOf("n", "/Forms/O'Brien")
+            .where(JcrQueryBuilder.property("a", "odd]name") + " = ?", "x")
+            .orderBy("n.[jcr:created] DESC")
+            .getStatement();
+        Assert.assertEquals("select n.* from [cards:Form] as n inner join [cards:Answer] as a on isdescendantnode(a, n)"
+            + " where isdescendantnode(n, '/Forms/O''Brien') and a.[odd]]name] = $v1 order by n.[jcr:created] DESC",
+            statement);
+    }
+
+    @Test
+    public void queryWithoutConstraintsHasNoBindings()
+    {
+        final JcrQueryBuilder query = JcrQueryBuilder.select("cards:Form", "n");
+        Assert.assertEquals("select n.* from [cards:Form] as n", query.getStatement());
+        Assert.assertTrue(query.getBindings(this.valueFactory).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingValueIsRejected()
+    {
+        JcrQueryBuilder.select("cards:Form", "n").where("n.[a] = ? and n.[b] = ?", "a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullValueIsRejected()
+    {
+        JcrQueryBuilder.select("cards:Form", "n").where("n.[a] = ?", (Object) null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void extraValueIsRejected()
+    {
+        JcrQueryBuilder.select("cards:Form", "n").where("n.[a] = ?", "a", "b");
+    }
+}
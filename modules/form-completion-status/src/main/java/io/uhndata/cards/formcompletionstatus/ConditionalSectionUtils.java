@@ -17,8 +17,6 @@
 package io.uhndata.cards.formcompletionstatus;
 
 import java.math.BigDecimal;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Calendar;
@@ -43,10 +41,15 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.utils.DateParser;
+
 public final class ConditionalSectionUtils
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(ConditionalSectionUtils.class);
 
+    /** Parses the dates stored in answers and conditions; thread safe, so it can be shared. */
+    private static final DateParser DATES = new DateParser();
+
     private static final String PROP_QUESTION = "question";
 
     private static final String PROP_IS_REFERENCE = "isReference";
@@ -182,16 +185,13 @@ private static NodeBuilder getAnswerForQuestion(final NodeBuilder parent, final
      */
     private static Calendar parseDate(final String str)
     {
-        try {
-            final SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd");
-            final Date date = fmt.parse(str.split("T")[0]);
-            final Calendar calendar = Calendar.getInstance();
-            calendar.setTime(date);
-            return calendar;
-        } catch (final ParseException e) {
+        // Only the date part is compared, the time is ignored
+        final int timeStart = str.indexOf('T');
+        final Calendar calendar = DATES.parse(timeStart < 0 ? str : str.substring(0, timeStart));
+        if (calendar == null) {
             LOGGER.warn("PARSING DATE FAILED: Invalid date {}", str);
-            return null;
         }
+        return calendar;
     }
 
     private static boolean isLikeString(final PropertyState ps)
@@ -360,12 +360,11 @@ private static Object getObjectFromValue(Value val) throws RepositoryException,
                 ret = val.getBoolean();
                 break;
             case PropertyType.DATE:
-                Calendar calendar = parseDate(Integer.toString(val.getDate().get(Calendar.YEAR))
-                    + "-"
-                    + Integer.toString(val.getDate().get(Calendar.MONTH) + 1)
-                    + "-"
-                    + Integer.toString(val.getDate().get(Calendar.DAY_OF_MONTH))
-                    + "T00:00");
+                // Only the date part is compared, at the start of the day in the local time zone
+                final Calendar date = val.getDate();
+                final Calendar calendar = Calendar.getInstance();
+                calendar.clear();
+                calendar.set(date.get(Calendar.YEAR), date.get(Calendar.MONTH), date.get(Calendar.DAY_OF_MONTH));
                 ret = calendar;
                 break;
             default:
@@ -17,11 +17,13 @@
 package io.uhndata.cards.uix;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
@@ -89,10 +91,19 @@ public void init(Bindings bindings)
     private void findExtensions(final String extensionPointId) throws RepositoryException
     {
         LOGGER.debug("Looking for extensions for [{}]", extensionPointId);
-        final Iterator<Resource> result = this.resourceResolver.findResources(
-            "select n from [cards:Extension] as n where n.'cards:extensionPointId' = '" + extensionPointId + "'",
-            "JCR-SQL2");
-        result.forEachRemaining(extension -> this.matchingExtensions.add(extension));
+        // The identifier is bound instead of inlined, so all extension points share the same query
+        final Session session = this.resourceResolver.adaptTo(Session.class);
+        final Query query = session.getWorkspace().getQueryManager().createQuery(
+            "select n.* from [cards:Extension] as n where n.[cards:extensionPointId] = $extensionPointId",
+            Query.JCR_SQL2);
+        query.bindValue("extensionPointId", session.getValueFactory().createValue(extensionPointId));
+        final NodeIterator result = query.execute().getNodes();
+        while (result.hasNext()) {
+            final Resource extension = this.resourceResolver.getResource(result.nextNode().getPath());
+            if (extension != null) {
+                this.matchingExtensions.add(extension);
+            }
+        }
         LOGGER.debug("Found [{}] extensions", this.matchingExtensions.size());
     }
 
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.json.JsonValue;
+
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.utils.QueryProfile;
+
+/**
+ * Remembers the serialization of referenced nodes, so that a node referenced many times, such as the questionnaire of
+ * each form in a listing, or the question of each answer in a form, is only serialized once. Serializations are only
+ * reused between serializations done with the same processors, and only if they don't depend on where the node was
+ * referenced, i.e. if no node was {@link SerializationContext#getRecursionCutoffs() cut off} to avoid infinite
+ * recursion while serializing it.
+ * <p>
+ * Serializations are shared by all the serializations done in the same {@link SerializationScope scope}, for example by
+ * all the rows of a listing. Without a scope, they are only shared during the serialization of one resource. When the
+ * scope is closed, the number of reused and new serializations are added to the current {@link QueryProfile query
+ * profile}, as the {@code dereferenceHits} and {@code dereferenceMisses} counters.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class DereferencedNodes implements AutoCloseable
+{
+    /** How many referenced nodes are remembered. */
+    private static final int MAX_REMEMBERED_NODES = 500;
+
+    /** The owner of the processors key in the serialization context's state. */
+    private static final Object PROCESSORS_KEY = new Object();
+
+    /** The most recently used serializations, keyed by the enabled processors and the node identifier. */
+    private final Map<String, RememberedNode> nodes = new LinkedHashMap<String, RememberedNode>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, RememberedNode> eldest)
+        {
+            return size() > MAX_REMEMBERED_NODES;
+        }
+    };
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * A remembered serialization.
+     */
+    private static final class RememberedNode
+    {
+        private final JsonValue value;
+
+        /** The nodes this serialization depends on, or {@code null} if they were not collected. */
+        private final Set<String> dependencies;
+
+        RememberedNode(final JsonValue value, final Set<String> dependencies)
+        {
+            this.value = value;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private DereferencedNodes()
+    {
+        // Instances are created with current
+    }
+
+    /**
+     * Gets the remembered serializations to use in a serialization: the ones shared in its scope, if it has one, or
+     * else the ones of that serialization only.
+     *
+     * @param context the state of the current serialization
+     * @return the remembered serializations
+     */
+    public static DereferencedNodes current(final SerializationContext context)
+    {
+        return context.getSharedState(DereferencedNodes.class, DereferencedNodes::new);
+    }
+
+    /**
+     * Serializes a referenced node, or reuses its serialization if it was already serialized with the same processors.
+     *
+     * @param node the referenced node
+     * @param serializeNode the function serializing a node
+     * @param context the state of the current serialization
+     * @return the serialization of the node, may be {@code null}
+     * @throws RepositoryException if accessing the node fails
+     */
+    public JsonValue dereference(final Node node, final Function<Node, JsonValue> serializeNode,
+        final SerializationContext context) throws RepositoryException
+    {
+        final String key = context.getState(PROCESSORS_KEY, () -> context.getProcessors().stream()
+            .map(ResourceJsonProcessor::getName).collect(Collectors.joining(",", "", "/"))) + node.getIdentifier();
+        final Set<String> outerDependencies = context.getDependencies();
+        final RememberedNode remembered = this.nodes.get(key);
+        // A cached serialization must know all the nodes it depends on
+        if (remembered != null && (outerDependencies == null || remembered.dependencies != null)) {
+            ++this.hits;
+            if (outerDependencies != null) {
+                outerDependencies.addAll(remembered.dependencies);
+            }
+            return remembered.value;
+        }
+
+        ++this.misses;
+        final int recursionCutoffs = context.getRecursionCutoffs();
+        final Set<String> dependencies = outerDependencies == null ? null : new HashSet<>();
+        final JsonValue result;
+        context.setDependencies(dependencies);
+        try {
+            result = serializeNode.apply(node);
+        } finally {
+            context.setDependencies(outerDependencies);
+            if (outerDependencies != null) {
+                outerDependencies.addAll(dependencies);
+            }
+        }
+        // If some nodes were cut off to avoid infinite recursion, the result depends on where the node was referenced,
+        // and cannot be reused
+        if (result != null && context.getRecursionCutoffs() == recursionCutoffs) {
+            this.nodes.put(key, new RememberedNode(result, dependencies));
+        }
+        return result;
+    }
+
+    /**
+     * How many times a serialization was reused.
+     *
+     * @return the number of reused serializations
+     */
+    public long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * How many times a node had to be serialized, since its serialization wasn't remembered.
+     *
+     * @return the number of new serializations
+     */
+    public long getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * Reports the number of reused and new serializations to the current query profile, invoked when the scope sharing
+     * these serializations is closed.
+     */
+    @Override
+    public void close()
+    {
+        final QueryProfile profile = QueryProfile.current();
+        if (profile != null && this.hits + this.misses > 0) {
+            profile.count("dereferenceHits", this.hits);
+            profile.count("dereferenceMisses", this.misses);
+        }
+    }
+}
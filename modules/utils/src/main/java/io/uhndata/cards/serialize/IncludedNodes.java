@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/**
+ * Normalized serialization, where nodes reached through references are serialized only once, in a separate
+ * {@code included} dictionary keyed by their identifier, while the referencing JSON only holds the identifier. This
+ * avoids repeating the same referenced questionnaire or subject in every form of a listing.
+ * <p>
+ * Normalization is {@link #enable enabled} for all the serializations done in a {@link SerializationScope scope}, and
+ * the included nodes are shared by all of them:
+ * </p>
+ *
+ * <pre>
+ * try (SerializationScope scope = new SerializationScope()) {
+ *     final IncludedNodes included = IncludedNodes.enable(scope);
+ *     resources.forEachRemaining(r -&gt; writer.write(r, json, scope));
+ *     json.write("included", included.toJson());
+ * }
+ * </pre>
+ *
+ * @version $Id$
+ */
+public final class IncludedNodes
+{
+    /** The serialized nodes, by identifier, in the order they were first referenced. */
+    private final Map<String, JsonValue> nodes = new LinkedHashMap<>();
+
+    private IncludedNodes()
+    {
+        // Instances are created with enable
+    }
+
+    /**
+     * Enables normalized serialization for all the serializations in a scope.
+     *
+     * @param scope the scope shared by the serializations to normalize
+     * @return the set of included nodes of the scope, empty if normalization was just enabled
+     */
+    public static IncludedNodes enable(final SerializationScope scope)
+    {
+        return scope.getState(IncludedNodes.class, IncludedNodes::new);
+    }
+
+    /**
+     * Gets the normalization enabled for a serialization.
+     *
+     * @param context the state of the current serialization
+     * @return the set of included nodes of its scope, or {@code null} if normalization is not enabled
+     */
+    public static IncludedNodes current(final SerializationContext context)
+    {
+        final SerializationScope scope = context.getScope();
+        return scope == null ? null : scope.getState(IncludedNodes.class);
+    }
+
+    /**
+     * Includes a referenced node, serializing it only if it wasn't already included.
+     *
+     * @param node the referenced node
+     * @param serializeNode the function serializing a node
+     * @return the value to use in place of the reference, the node's identifier
+     * @throws RepositoryException if accessing the node fails
+     */
+    public JsonValue include(final Node node, final Function<Node, JsonValue> serializeNode)
+        throws RepositoryException
+    {
+        final String identifier = node.getIdentifier();
+        if (!this.nodes.containsKey(identifier)) {
+            // Reserve the key first, so that circular references don't serialize the node again
+            this.nodes.put(identifier, JsonValue.NULL);
+            final JsonValue value = serializeNode.apply(node);
+            this.nodes.put(identifier, value == null ? JsonValue.NULL : value);
+        }
+        return Json.createValue(identifier);
+    }
+
+    /**
+     * Serializes the included nodes.
+     *
+     * @return a JSON object with the identifiers of the included nodes as keys, and their serialization as values
+     */
+    public JsonObject toJson()
+    {
+        final JsonObjectBuilder result = Json.createObjectBuilder();
+        this.nodes.forEach(result::add);
+        return result.build();
+    }
+}
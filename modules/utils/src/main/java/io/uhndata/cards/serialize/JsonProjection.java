@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.serialize.internal.PropertiesProcessor;
+
+/**
+ * Serializes only some fields of a resource into JSON, as a lighter alternative to the full serialization done by
+ * {@link ResourceToJsonAdapterFactory}, for example for listing many resources in a table. Only the requested
+ * properties are read from the repository.
+ * <p>
+ * Fields are property names, such as {@code jcr:created}, or paths of property names separated by {@code /} or
+ * {@code .}, such as {@code subject/fullIdentifier} or {@code questionnaire.title}, which go through a reference
+ * property, or a child node, and select fields of the referenced or child node. These are nested in the output just
+ * like in the full serialization, for example {@code {"subject": {"fullIdentifier": "P1"}}}. The special fields
+ * {@code @path} and {@code @name} identify the node. A reference property requested without sub-fields is output as
+ * the raw reference, while a child node requested without sub-fields is fully serialized. Missing or inaccessible
+ * fields are skipped.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class JsonProjection
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(JsonProjection.class);
+
+    private static final String PATH = "@path";
+
+    private static final String NAME = "@name";
+
+    /** The requested fields, each with its requested sub-fields, empty if the field must be fully serialized. */
+    private final Map<String, JsonProjection> fields = new LinkedHashMap<>();
+
+    private JsonProjection()
+    {
+        // Instances are created with parse
+    }
+
+    /**
+     * Parses a list of requested fields, usually the values of a request parameter.
+     *
+     * @param requestedFields the requested fields, each value can also hold several comma-separated fields, may be
+     *            {@code null}
+     * @return the projection, or {@code null} if no fields are requested, meaning that the full serialization should be
+     *         used instead
+     */
+    public static JsonProjection parse(final String... requestedFields)
+    {
+        if (requestedFields == null) {
+            return null;
+        }
+        final JsonProjection result = new JsonProjection();
+        for (String value : requestedFields) {
+            for (String field : value.split(",")) {
+                JsonProjection current = result;
+                for (String segment : field.trim().split("[/.]")) {
+                    if (!segment.isEmpty()) {
+                        current = current.fields.computeIfAbsent(segment, key -> new JsonProjection());
+                    }
+                }
+            }
+        }
+        return result.fields.isEmpty() ? null : result;
+    }
+
+    /**
+     * Serializes the requested fields of a resource.
+     *
+     * @param resource the resource to serialize
+     * @return a JSON object holding only the requested fields, empty if the resource isn't a JCR node
+     */
+    public JsonObject project(final Resource resource)
+    {
+        final Node node = resource.adaptTo(Node.class);
+        return node == null ? JsonValue.EMPTY_JSON_OBJECT : project(node, resource.getResourceResolver());
+    }
+
+    private JsonObject project(final Node node, final ResourceResolver resolver)
+    {
+        final JsonObjectBuilder result = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonProjection> field : this.fields.entrySet()) {
+            try {
+                final JsonValue value = field.getValue().projectField(node, field.getKey(), resolver);
+                if (value != null) {
+                    result.add(field.getKey(), value);
+                }
+            } catch (RepositoryException e) {
+                // Invalid names or inaccessible fields are skipped
+                LOGGER.debug("Cannot serialize field {} of {}: {}", field.getKey(), node, e.getMessage());
+            }
+        }
+        return result.build();
+    }
+
+    /**
+     * Serializes one field of a node, with this projection holding the requested sub-fields.
+     */
+    private JsonValue projectField(final Node node, final String name, final ResourceResolver resolver)
+        throws RepositoryException
+    {
+        if (PATH.equals(name)) {
+            return Json.createValue(node.getPath());
+        } else if (NAME.equals(name)) {
+            return Json.createValue(node.getName());
+        } else if (node.hasProperty(name)) {
+            final Property property = node.getProperty(name);
+            return this.fields.isEmpty() ? PropertiesProcessor.serializeProperty(property) : dereference(property,
+                resolver);
+        } else if (node.hasNode(name)) {
+            final Node child = node.getNode(name);
+            if (this.fields.isEmpty()) {
+                final Resource childResource = resolver.getResource(child.getPath());
+                return childResource == null ? null : childResource.adaptTo(JsonObject.class);
+            }
+            return project(child, resolver);
+        }
+        return null;
+    }
+
+    /**
+     * Serializes the requested sub-fields of the node(s) referenced by a property.
+     */
+    private JsonValue dereference(final Property property, final ResourceResolver resolver)
+        throws RepositoryException
+    {
+        final int type = property.getType();
+        if (type != PropertyType.REFERENCE && type != PropertyType.WEAKREFERENCE && type != PropertyType.PATH) {
+            // Only references have sub-fields
+            return null;
+        }
+        if (!property.isMultiple()) {
+            return project(property.getNode(), resolver);
+        }
+        final JsonArrayBuilder result = Json.createArrayBuilder();
+        for (Value value : property.getValues()) {
+            try {
+                final Node target;
+                if (type == PropertyType.PATH) {
+                    final String path = value.getString();
+                    target = path.charAt(0) == '/' ? property.getSession().getNode(path)
+                        : property.getParent().getNode(path);
+                } else {
+                    target = property.getSession().getNodeByIdentifier(value.getString());
+                }
+                result.add(project(target, resolver));
+            } catch (RepositoryException e) {
+                // Inaccessible nodes are skipped
+            }
+        }
+        return result.build();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+
+import org.apache.sling.api.resource.Resource;
+
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+
+/**
+ * Writes the JSON serialization of resources directly to a {@code JsonGenerator}, producing the same output as
+ * {@code resource.adaptTo(JsonObject.class)}, without building the whole JSON tree in memory first. This is meant for
+ * writing many or large resources in a response, such as listings and exports.
+ * <p>
+ * Resources are streamed only when all the {@link ResourceJsonProcessor processors} enabled for them
+ * {@link ResourceJsonProcessor#isStreamable() support streaming}, otherwise they are serialized in memory as usual, and
+ * the resulting JSON is written to the generator.
+ * </p>
+ * <p>
+ * Resources serialized together, for example the rows of a listing, can share state, such as the serializations of
+ * the nodes they reference, by passing the same {@link SerializationScope scope} to each call.
+ * </p>
+ *
+ * @version $Id$
+ */
+public interface ResourceJsonWriter
+{
+    /**
+     * Writes the JSON serialization of a resource as the next value of the generator, for example as the next item of
+     * an array being written.
+     *
+     * @param resource the resource to serialize, using the same selectors as {@code adaptTo(JsonObject.class)}
+     * @param json the generator where the serialization is written
+     */
+    default void write(Resource resource, JsonGenerator json)
+    {
+        write(resource, json, null);
+    }
+
+    /**
+     * Writes the JSON serialization of a resource as the next value of the generator, sharing state with the other
+     * serializations in the same scope.
+     *
+     * @param resource the resource to serialize, using the same selectors as {@code adaptTo(JsonObject.class)}
+     * @param json the generator where the serialization is written
+     * @param scope the scope shared with other serializations, may be {@code null}
+     */
+    void write(Resource resource, JsonGenerator json, SerializationScope scope);
+
+    /**
+     * Serializes a resource in memory, like {@code adaptTo(JsonObject.class)}, sharing state with the other
+     * serializations in the same scope.
+     *
+     * @param resource the resource to serialize, with the selectors to use
+     * @param scope the scope shared with other serializations, may be {@code null}
+     * @return the JSON serialization of the resource, or {@code null} if it cannot be serialized
+     */
+    JsonObject serialize(Resource resource, SerializationScope scope);
+}
@@ -20,8 +20,14 @@
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import javax.jcr.Node;
@@ -30,8 +36,10 @@
 import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.json.Json;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 
 import org.apache.sling.api.adapter.AdapterFactory;
 import org.apache.sling.api.resource.Resource;
@@ -43,6 +51,7 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.serialize.internal.JsonCache;
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
 
 /**
@@ -57,44 +66,62 @@
  * {@code identify}, and {@code dereference} processors; to disable them, use their name prefixed by {@code -} in the
  * selectors, e.g. {@code /path/to/resource.-dereference.json}.
  * <p>
- * This class uses ThreadLocal variables to maintain state, which means that nested invocations in the same thread are
- * not supported. If a processor needs to call {@code resource.adaptTo(JsonObject.class)}, it should do so in a new
- * Thread, for example:
+ * The state of each serialization is kept in a {@link SerializationContext} passed to the processors, so
+ * serializations can be nested in the same thread. If a processor needs to serialize other resources, it can use
+ * {@link SerializationContext#serialize(Resource)}.
+ * </p>
+ * <p>
+ * This class is also the {@link ResourceJsonWriter}, streaming resources to a {@code JsonGenerator} using the same
+ * processors.
+ * </p>
+ * <p>
+ * The serializations of some types of resources can be cached in a {@link JsonCache}, if all the enabled processors
+ * are {@link ResourceJsonProcessor#isCacheable() cacheable}. Normalized serializations, using {@link IncludedNodes},
+ * are never cached.
  * </p>
- * <code>
- * final Iterator&lt;Resource&gt; resources = ...;
- * final List&lt;JsonObject&gt; result = new ArrayList&lt;&gt;();
- * final Thread serializer = new Thread(() -&gt; resources
- *     .forEachRemaining(r -&gt; result.add(r.adaptTo(JsonObject.class))));
- * serializer.start();
- * serializer.join();
- * // Now result contains the serialized subresources
- * </code>
  *
  * @version $Id$
  */
 @Component(
-    service = { AdapterFactory.class },
+    service = { AdapterFactory.class, ResourceJsonWriter.class },
     property = { "adaptables=org.apache.sling.api.resource.Resource", "adapters=javax.json.JsonObject" })
 public class ResourceToJsonAdapterFactory
-    implements AdapterFactory
+    implements AdapterFactory, ResourceJsonWriter
 {
     /** Logging helper. */
     private static final Logger LOGGER = LoggerFactory.getLogger(ResourceToJsonAdapterFactory.class);
 
+    /**
+     * Splits selectors by unescaped dots. A backslash escapes a dot, but two backslashes are just one escaped
+     * backslash. Match by:
+     * <ul>
+     * <li>no preceding backslash, i.e. start counting at the first backslash {@code (?<!\)}</li>
+     * <li>an even number of backslashes, i.e. any number of groups of two backslashes {@code (?:\\)*}</li>
+     * <li>a literal dot {@code \.}</li>
+     * </ul>
+     * Each backslash, except the \., is escaped twice, once as a special escape char inside a Java string, and once as
+     * a special escape char inside a RegExp. The one before the dot is escaped only once as a special char inside a
+     * Java string, since it must retain its escaping meaning in the RegExp.
+     */
+    private static final Pattern SELECTOR_SEPARATOR = Pattern.compile("(?<!\\\\)(?:\\\\\\\\)*\\.");
+
+    /**
+     * How many processor chains are cached. Selectors come from request URLs, so the number of distinct keys must be
+     * limited.
+     */
+    private static final int MAX_CACHED_CHAINS = 1000;
+
     /** A list of all available processors. */
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, fieldOption = FieldOption.REPLACE,
         policy = ReferencePolicy.DYNAMIC)
     private volatile List<ResourceJsonProcessor> allProcessors;
 
-    /** The list of processors that are enabled for the current resource serialization. */
-    private ThreadLocal<List<ResourceJsonProcessor>> enabledProcessors = new ThreadLocal<>();
+    /** The processor chains already computed for the current {@link #allProcessors} list. */
+    private volatile ProcessorChains chains = new ProcessorChains(null);
 
-    /**
-     * To prevent infinite recursion in case of circular references among nodes, keep track of the nodes processed so
-     * far down the stack.
-     */
-    private ThreadLocal<Stack<String>> processedNodes = ThreadLocal.withInitial(Stack::new);
+    /** Serializations already computed. */
+    @Reference
+    private JsonCache cache;
 
     @Override
     public <A> A getAdapter(final Object adaptable, final Class<A> type)
@@ -103,21 +130,107 @@ public <A> A getAdapter(final Object adaptable, final Class<A> type)
             return null;
         }
         final Resource resource = (Resource) adaptable;
-        setupProcessors(resource);
+        final JsonValue result = serialize(resource, createContext(resource, null));
+        if (result != null) {
+            return type.cast(result);
+        }
+        return null;
+    }
 
-        try {
-            start(resource);
-            final Node node = resource.adaptTo(Node.class);
-            JsonValue result = serializeNode(node);
-            end(resource);
-            if (result != null) {
-                return type.cast(result);
+    @Override
+    public JsonObject serialize(final Resource resource, final SerializationScope scope)
+    {
+        if (resource == null) {
+            return null;
+        }
+        final JsonValue result = serialize(resource, createContext(resource, scope));
+        return result instanceof JsonObject ? (JsonObject) result : null;
+    }
+
+    @Override
+    public void write(final Resource resource, final JsonGenerator json, final SerializationScope scope)
+    {
+        final SerializationContext context = createContext(resource, scope);
+        final List<String> cacheKey = getCacheKey(resource, context);
+        if (cacheKey != null || !context.getProcessors().stream().allMatch(ResourceJsonProcessor::isStreamable)) {
+            // Cached serializations, and processors that need the full JSON tree, are built in memory
+            final JsonValue result = serialize(resource, context);
+            json.write(result == null ? JsonValue.NULL : result);
+            return;
+        }
+
+        start(resource, context);
+        final Node node = resource.adaptTo(Node.class);
+        if (node == null) {
+            json.writeNull();
+        } else {
+            streamNode(null, node, json, context);
+        }
+        end(resource, context);
+    }
+
+    /**
+     * Serializes a resource in memory, or gets its serialization from the cache, if available.
+     *
+     * @param resource the resource to serialize
+     * @param context the state of the serialization
+     * @return a JSON value, or {@code null} if the resource cannot be serialized
+     */
+    private JsonValue serialize(final Resource resource, final SerializationContext context)
+    {
+        final List<String> cacheKey = getCacheKey(resource, context);
+        if (cacheKey != null) {
+            final JsonValue cached = this.cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
             }
-        } finally {
-            this.processedNodes.remove();
-            this.enabledProcessors.remove();
         }
-        return null;
+        // Remember the state of the cache before reading the content, so that concurrent changes are detected
+        final long generation = this.cache.getGeneration();
+
+        start(resource, context);
+        final Node node = resource.adaptTo(Node.class);
+        final JsonValue result = serializeNode(node, context);
+        end(resource, context);
+        if (cacheKey != null && result != null) {
+            this.cache.put(cacheKey, result, context.getDependencies(), generation);
+        }
+        return result;
+    }
+
+    /**
+     * Checks if a serialization can be cached, and if so, starts collecting the nodes it depends on.
+     *
+     * @param resource the resource to serialize
+     * @param context the state of the serialization
+     * @return the key of the serialization in the cache, or {@code null} if it cannot be cached
+     */
+    private List<String> getCacheKey(final Resource resource, final SerializationContext context)
+    {
+        if (!this.cache.accepts(resource) || IncludedNodes.current(context) != null
+            || !context.getProcessors().stream().allMatch(ResourceJsonProcessor::isCacheable)) {
+            return null;
+        }
+        if (context.getDependencies() == null) {
+            context.setDependencies(new HashSet<>());
+        }
+        // Access rights may differ between users, so serializations are not shared
+        return Arrays.asList(resource.getPath(), resource.getResourceMetadata().getResolutionPathInfo(),
+            resource.getResourceResolver().getUserID());
+    }
+
+    /**
+     * Creates the context for serializing a resource, holding the processors enabled for it. Other resources
+     * serialized by the processors are serialized in the same scope.
+     *
+     * @param resource the resource to serialize
+     * @param scope the scope shared with other serializations, may be {@code null}
+     * @return a new serialization context
+     */
+    private SerializationContext createContext(final Resource resource, final SerializationScope scope)
+    {
+        return new SerializationContext(resource, setupProcessors(resource), scope,
+            other -> serialize(other, scope), this::serializeNode);
     }
 
     /**
@@ -125,31 +238,38 @@ public <A> A getAdapter(final Object adaptable, final Class<A> type)
      * recursion, it is also possible to be just the node's path as a simple string.
      *
      * @param node the node to serialize
+     * @param context the state of the current serialization
      * @return a JSON value, either a JsonObject or a JsonString
      */
-    private JsonValue serializeNode(final Node node)
+    private JsonValue serializeNode(final Node node, final SerializationContext context)
     {
         if (node == null) {
             return null;
         }
 
+        final Deque<String> processedNodes = context.getProcessedNodes();
         try {
-            final boolean alreadyProcessed = this.processedNodes.get().contains(node.getPath());
-            this.processedNodes.get().add(node.getPath());
+            final boolean alreadyProcessed = processedNodes.contains(node.getPath());
+            processedNodes.push(node.getPath());
+            if (context.getDependencies() != null) {
+                context.getDependencies().add(node.getPath());
+                context.getDependencies().add(node.getIdentifier());
+            }
             if (!alreadyProcessed) {
                 final JsonObjectBuilder result = Json.createObjectBuilder();
-                enterNode(node, result);
-                processProperties(node, result);
-                processChildren(node, result);
-                leaveNode(node, result);
+                enterNode(node, result, context);
+                processProperties(node, result, context);
+                processChildren(node, result, context);
+                leaveNode(node, result, context);
                 return result.build();
             }
             // If the node has already been processed, only include its path in the output
+            context.recordRecursionCutoff();
             return Json.createValue(node.getPath());
         } catch (RepositoryException e) {
             LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
         } finally {
-            this.processedNodes.get().pop();
+            processedNodes.pop();
         }
         return null;
     }
@@ -159,10 +279,11 @@ private JsonValue serializeNode(final Node node)
      * processors.
      *
      * @param resource the resource being serialized
+     * @param context the state of the current serialization
      */
-    private void start(Resource resource)
+    private void start(final Resource resource, final SerializationContext context)
     {
-        this.enabledProcessors.get().forEach(p -> p.start(resource));
+        context.getProcessors().forEach(p -> p.start(resource, context));
     }
 
     /**
@@ -170,10 +291,11 @@ private void start(Resource resource)
      *
      * @param node the node to serialize
      * @param json the JSON being built
+     * @param context the state of the current serialization
      */
-    private void enterNode(Node node, JsonObjectBuilder json)
+    private void enterNode(final Node node, final JsonObjectBuilder json, final SerializationContext context)
     {
-        this.enabledProcessors.get().forEach(p -> p.enter(node, json, this::serializeNode));
+        context.getProcessors().forEach(p -> p.enter(node, json, context.getNodeSerializer(), context));
     }
 
     /**
@@ -182,39 +304,58 @@ private void enterNode(Node node, JsonObjectBuilder json)
      *
      * @param node the node to serialize
      * @param json the JSON being built
+     * @param context the state of the current serialization
      * @throws RepositoryException if accessing the repository fails
      */
-    private void processProperties(Node node, JsonObjectBuilder json) throws RepositoryException
+    private void processProperties(final Node node, final JsonObjectBuilder json, final SerializationContext context)
+        throws RepositoryException
     {
         final PropertyIterator properties = node.getProperties();
         while (properties.hasNext()) {
             Property thisProp = properties.nextProperty();
-            JsonValue value = null;
-            for (ResourceJsonProcessor p : this.enabledProcessors.get()) {
-                value = p.processProperty(node, thisProp, value, this::serializeNode);
-            }
+            JsonValue value = processProperty(node, thisProp, context);
             if (value != null) {
                 json.add(thisProp.getName(), value);
             }
         }
     }
 
+    /**
+     * Computes the serialization of a property by invoking {@link ResourceJsonProcessor#processProperty} in all enabled
+     * processors.
+     *
+     * @param node the node whose property is serialized
+     * @param property the property to serialize
+     * @param context the state of the current serialization
+     * @return the outcome of the last processor, may be {@code null}
+     */
+    private JsonValue processProperty(final Node node, final Property property, final SerializationContext context)
+    {
+        JsonValue value = null;
+        for (ResourceJsonProcessor p : context.getProcessors()) {
+            value = p.processProperty(node, property, value, context.getNodeSerializer(), context);
+        }
+        return value;
+    }
+
     /**
      * Serialize the children of a node into a {@code JsonObjectBuilder} by invoking
      * {@link ResourceJsonProcessor#processChild} in all enabled processors.
      *
      * @param node the node to serialize
      * @param json the JSON being built
+     * @param context the state of the current serialization
      * @throws RepositoryException if accessing the repository fails
      */
-    private void processChildren(Node node, JsonObjectBuilder json) throws RepositoryException
+    private void processChildren(final Node node, final JsonObjectBuilder json, final SerializationContext context)
+        throws RepositoryException
     {
         final NodeIterator children = node.getNodes();
         while (children.hasNext()) {
             final Node child = children.nextNode();
             JsonValue value = null;
-            for (ResourceJsonProcessor p : this.enabledProcessors.get()) {
-                value = p.processChild(node, child, value, this::serializeNode);
+            for (ResourceJsonProcessor p : context.getProcessors()) {
+                value = p.processChild(node, child, value, context.getNodeSerializer(), context);
             }
             if (value != null) {
                 json.add(child.getName(), value);
@@ -228,10 +369,11 @@ private void processChildren(Node node, JsonObjectBuilder json) throws Repositor
      *
      * @param node the node to serialize
      * @param json the JSON being built
+     * @param context the state of the current serialization
      */
-    private void leaveNode(Node node, JsonObjectBuilder json)
+    private void leaveNode(final Node node, final JsonObjectBuilder json, final SerializationContext context)
     {
-        this.enabledProcessors.get().forEach(p -> p.leave(node, json, this::serializeNode));
+        context.getProcessors().forEach(p -> p.leave(node, json, context.getNodeSerializer(), context));
     }
 
     /**
@@ -239,39 +381,168 @@ private void leaveNode(Node node, JsonObjectBuilder json)
      * processors.
      *
      * @param resource the resource that was serialized
+     * @param context the state of the current serialization
+     */
+    private void end(final Resource resource, final SerializationContext context)
+    {
+        context.getProcessors().forEach(p -> p.end(resource, context));
+    }
+
+    /**
+     * Streams a Node to a JSON generator. Usually this will be a JSON object listing its items, but to avoid
+     * recursion, it is also possible to be just the node's path as a simple string.
+     *
+     * @param name the key under which the node is written, or {@code null} if it is written as a value, for example
+     *            in an array or at the top level
+     * @param node the node to serialize
+     * @param json the generator where the node is written
+     * @param context the state of the current serialization
+     */
+    private void streamNode(final String name, final Node node, final JsonGenerator json,
+        final SerializationContext context)
+    {
+        final String path;
+        try {
+            path = node.getPath();
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
+            return;
+        }
+        final Deque<String> processedNodes = context.getProcessedNodes();
+        if (processedNodes.contains(path)) {
+            // If the node has already been processed, only include its path in the output
+            context.recordRecursionCutoff();
+            if (name == null) {
+                json.write(path);
+            } else {
+                json.write(name, path);
+            }
+            return;
+        }
+
+        processedNodes.push(path);
+        if (name == null) {
+            json.writeStartObject();
+        } else {
+            json.writeStartObject(name);
+        }
+        try {
+            // Keys added by the processors are collected first, since processors may overwrite each other's keys
+            JsonObjectBuilder extra = Json.createObjectBuilder();
+            enterNode(node, extra, context);
+            extra.build().forEach(json::write);
+            streamProperties(node, json, context);
+            streamChildren(node, json, context);
+            extra = Json.createObjectBuilder();
+            leaveNode(node, extra, context);
+            extra.build().forEach(json::write);
+        } catch (RepositoryException e) {
+            // Whatever was already written can't be taken back, just end the object
+            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
+        } finally {
+            json.writeEnd();
+            processedNodes.pop();
+        }
+    }
+
+    /**
+     * Stream the properties of a node by invoking {@link ResourceJsonProcessor#processProperty} in all enabled
+     * processors, and writing the outcome right away.
+     *
+     * @param node the node to serialize
+     * @param json the generator where the node is written
+     * @param context the state of the current serialization
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private void streamProperties(final Node node, final JsonGenerator json, final SerializationContext context)
+        throws RepositoryException
+    {
+        final PropertyIterator properties = node.getProperties();
+        while (properties.hasNext()) {
+            Property thisProp = properties.nextProperty();
+            JsonValue value = processProperty(node, thisProp, context);
+            if (value != null) {
+                json.write(thisProp.getName(), value);
+            }
+        }
+    }
+
+    /**
+     * Stream the children of a node by invoking {@link ResourceJsonProcessor#processChild} in all enabled processors.
+     * Instead of the serialized node, the processors receive a {@link StreamedNode placeholder} from
+     * {@code serializeNode}, and if that is the outcome, the node is streamed in place.
+     *
+     * @param node the node to serialize
+     * @param json the generator where the node is written
+     * @param context the state of the current serialization
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private void streamChildren(final Node node, final JsonGenerator json, final SerializationContext context)
+        throws RepositoryException
+    {
+        final Function<Node, JsonValue> placeholder = StreamedNode::new;
+        final NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            JsonValue value = null;
+            for (ResourceJsonProcessor p : context.getProcessors()) {
+                value = p.processChild(node, child, value, placeholder, context);
+            }
+            if (value instanceof StreamedNode) {
+                streamNode(child.getName(), ((StreamedNode) value).node, json, context);
+            } else if (value != null) {
+                json.write(child.getName(), value);
+            }
+        }
+    }
+
+    /**
+     * Get the list of enabled processors for serializing a resource, reusing the chain computed for the previous
+     * resources with the same type and selectors.
+     *
+     * @param resource the resource to serialize
+     * @return the enabled processors, sorted by priority
      */
-    private void end(Resource resource)
+    private List<ResourceJsonProcessor> setupProcessors(final Resource resource)
     {
-        this.enabledProcessors.get().forEach(p -> p.end(resource));
+        final List<ResourceJsonProcessor> processors = this.allProcessors;
+        ProcessorChains current = this.chains;
+        if (current.processors != processors) {
+            // The available processors changed, forget the chains computed from the old ones
+            current = new ProcessorChains(processors);
+            this.chains = current;
+        }
+        final List<String> key =
+            Arrays.asList(resource.getResourceType(), resource.getResourceMetadata().getResolutionPathInfo());
+        List<ResourceJsonProcessor> enabled = current.chains.get(key);
+        if (enabled == null) {
+            enabled = computeProcessors(resource, processors);
+            if (current.chains.size() >= MAX_CACHED_CHAINS) {
+                current.chains.clear();
+            }
+            current.chains.put(key, enabled);
+        }
+        return enabled;
     }
 
     /**
-     * Compute the list of enabled processors using the resource's type and selectors. This method must be invoked only
-     * once at the start of the serialization process for a resource, and it will set the {@link #enabledProcessors}
-     * field.
+     * Compute the list of enabled processors using the resource's type and selectors.
      *
      * @param resource the resource to serialize
+     * @param processors all the available processors
+     * @return the enabled processors, sorted by priority
      */
-    private void setupProcessors(Resource resource)
+    private static List<ResourceJsonProcessor> computeProcessors(final Resource resource,
+        final List<ResourceJsonProcessor> processors)
     {
         // Compute the list of requested processor names:
         // These are enabled by default
-        final List<String> defaults = this.allProcessors.stream().filter(p -> p.isEnabledByDefault(resource))
+        final List<String> defaults = processors.stream().filter(p -> p.isEnabledByDefault(resource))
             .map(ResourceJsonProcessor::getName).collect(Collectors.toList());
         // These have been requested
+        final String selectors = resource.getResourceMetadata().getResolutionPathInfo();
         final List<String> requestedProcessors =
-            // Split by unescaped dots. A backslash escapes a dot, but two backslashes are just one escaped backslash.
-            // Match by:
-            // - no preceding backslash, i.e. start counting at the first backslash (?<!\)
-            // - an even number of backslashes, i.e. any number of groups of two backslashes (?:\\)*
-            // - a literal dot \.
-            // Each backslash, except the \., is escaped twice, once as a special escape char inside a Java string, and
-            // once as a special escape char inside a RegExp. The one before the dot is escaped only once as a special
-            // char inside a Java string, since it must retain its escaping meaning in the RegExp.
-            new ArrayList<>(resource.getResourceMetadata().getResolutionPathInfo() != null
-                ? Arrays
-                    .asList(resource.getResourceMetadata().getResolutionPathInfo().split("(?<!\\\\)(?:\\\\\\\\)*\\."))
-                : defaults);
+            new ArrayList<>(selectors != null ? Arrays.asList(SELECTOR_SEPARATOR.split(selectors)) : defaults);
         // Add the defaults, if not already selected and not explicitly excluded
         for (String def : defaults) {
             if (!requestedProcessors.contains(def) && !requestedProcessors.contains("-" + def)) {
@@ -280,12 +551,46 @@ private void setupProcessors(Resource resource)
         }
 
         // Build the enabled list using the requested names
-        final List<ResourceJsonProcessor> enabled = this.allProcessors.stream()
+        final List<ResourceJsonProcessor> enabled = processors.stream()
             .filter(p -> requestedProcessors.contains(p.getName()))
             .filter(p -> p.canProcess(resource))
             .collect(Collectors.toList());
         enabled.sort((o1, o2) -> o1.getPriority() - o2.getPriority());
+        return Collections.unmodifiableList(enabled);
+    }
+
+    /**
+     * Stands for a node that will be streamed, instead of its actual JSON serialization.
+     */
+    private static final class StreamedNode implements JsonValue
+    {
+        private final Node node;
+
+        StreamedNode(final Node node)
+        {
+            this.node = node;
+        }
 
-        this.enabledProcessors.set(enabled);
+        @Override
+        public ValueType getValueType()
+        {
+            return ValueType.OBJECT;
+        }
+    }
+
+    /**
+     * The processor chains computed from one version of the list of available processors, keyed by the resource type
+     * and the selectors.
+     */
+    private static final class ProcessorChains
+    {
+        private final List<ResourceJsonProcessor> processors;
+
+        private final Map<List<String>, List<ResourceJsonProcessor>> chains = new ConcurrentHashMap<>();
+
+        ProcessorChains(final List<ResourceJsonProcessor> processors)
+        {
+            this.processors = processors;
+        }
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.jcr.Node;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+import org.apache.sling.api.resource.Resource;
+
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+
+/**
+ * The state of one resource serialization, passed to all the {@link ResourceJsonProcessor processors} invoked while
+ * serializing that resource. Processors should keep any temporary state they need {@link #getState in the context},
+ * instead of in fields or ThreadLocal variables, so that several serializations can run at the same time, or one
+ * inside another, even in the same thread. State shared by several serializations done together is kept
+ * {@link #getSharedState in their scope}, if they have one.
+ *
+ * @version $Id$
+ */
+public final class SerializationContext
+{
+    /** The resource being serialized. */
+    private final Resource resource;
+
+    /** The processors enabled for this serialization, sorted by priority. */
+    private final List<ResourceJsonProcessor> processors;
+
+    /** The scope shared with other serializations, may be {@code null}. */
+    private final SerializationScope scope;
+
+    /** Serializes other resources, in new contexts. */
+    private final Function<Resource, JsonObject> serializer;
+
+    /** Serializes nodes in this context. */
+    private final Function<Node, JsonValue> nodeSerializer;
+
+    /**
+     * To prevent infinite recursion in case of circular references among nodes, keep track of the nodes processed so
+     * far down the stack.
+     */
+    private final Deque<String> processedNodes = new ArrayDeque<>();
+
+    /** How many times a node was only serialized as its path, to prevent infinite recursion. */
+    private int recursionCutoffs;
+
+    /** The temporary state of each processor, keyed by its owner. */
+    private final Map<Object, Object> states = new HashMap<>();
+
+    /** The paths and identifiers of the serialized nodes, collected only when the serialization will be cached. */
+    private Set<String> dependencies;
+
+    SerializationContext(final Resource resource, final List<ResourceJsonProcessor> processors,
+        final SerializationScope scope, final Function<Resource, JsonObject> serializer,
+        final BiFunction<Node, SerializationContext, JsonValue> nodeSerializer)
+    {
+        this.resource = resource;
+        this.processors = processors;
+        this.scope = scope;
+        this.serializer = serializer;
+        this.nodeSerializer = node -> nodeSerializer.apply(node, this);
+    }
+
+    /**
+     * The topmost resource being serialized.
+     *
+     * @return the resource whose serialization was requested
+     */
+    public Resource getResource()
+    {
+        return this.resource;
+    }
+
+    /**
+     * Gets the temporary state of a processor for this serialization, creating it the first time it is needed.
+     *
+     * @param <T> the type of the state
+     * @param owner the owner of the state, usually the processor itself
+     * @param initialState creates the state the first time it is requested
+     * @return the state of the owner, either already existing or just created
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getState(final Object owner, final Supplier<T> initialState)
+    {
+        return (T) this.states.computeIfAbsent(owner, k -> initialState.get());
+    }
+
+    /**
+     * Gets a state shared by all the serializations in the same {@link SerializationScope scope} as this one, creating
+     * it the first time it is needed. If this serialization has no scope, the state is only kept in this context, like
+     * with {@link #getState}.
+     *
+     * @param <T> the type of the state
+     * @param owner the owner of the state, usually the processor itself
+     * @param initialState creates the state the first time it is requested
+     * @return the state of the owner, either already existing or just created
+     */
+    public <T> T getSharedState(final Object owner, final Supplier<T> initialState)
+    {
+        return this.scope != null ? this.scope.getState(owner, initialState) : getState(owner, initialState);
+    }
+
+    /**
+     * Serializes another resource in a new, independent, context, in the current thread, in the same scope as this
+     * serialization. This can be used by processors that need to include the serialization of other resources, for
+     * example the forms of a subject.
+     *
+     * @param other the resource to serialize, with the selectors to use
+     * @return the JSON serialization of the resource, or {@code null} if it cannot be serialized
+     */
+    public JsonObject serialize(final Resource other)
+    {
+        return this.serializer.apply(other);
+    }
+
+    /**
+     * Counts how many times, so far, a node was serialized only as its path, because it was already being serialized
+     * higher in the tree. Processors reusing the serialization of a node can compare this before and after serializing
+     * it, to check whether the result depends on the nodes being serialized above it.
+     *
+     * @return the number of nodes serialized as a path instead of a JSON object, so far
+     */
+    public int getRecursionCutoffs()
+    {
+        return this.recursionCutoffs;
+    }
+
+    void recordRecursionCutoff()
+    {
+        ++this.recursionCutoffs;
+    }
+
+    SerializationScope getScope()
+    {
+        return this.scope;
+    }
+
+    Function<Node, JsonValue> getNodeSerializer()
+    {
+        return this.nodeSerializer;
+    }
+
+    List<ResourceJsonProcessor> getProcessors()
+    {
+        return this.processors;
+    }
+
+    Deque<String> getProcessedNodes()
+    {
+        return this.processedNodes;
+    }
+
+    Set<String> getDependencies()
+    {
+        return this.dependencies;
+    }
+
+    void setDependencies(final Set<String> dependencies)
+    {
+        this.dependencies = dependencies;
+    }
+}
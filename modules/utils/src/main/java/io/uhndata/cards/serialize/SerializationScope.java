@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+
+/**
+ * State shared by several serializations done together, for example by all the rows of a listing, passed explicitly
+ * to the {@link ResourceJsonWriter} for each of them. {@link ResourceJsonProcessor Processors} can keep state
+ * {@link SerializationContext#getSharedState in the scope} instead of in the context of a single serialization, for
+ * example {@link DereferencedNodes} to reuse the serialization of the nodes referenced by several resources. Without a
+ * scope, that state is only shared during the serialization of one resource.
+ * <p>
+ * A scope is not thread safe, it must only be used by one serialization at a time. When closed, the shared states that
+ * are {@link AutoCloseable} are closed as well:
+ * </p>
+ *
+ * <pre>
+ * try (SerializationScope scope = new SerializationScope()) {
+ *     resources.forEachRemaining(r -&gt; writer.write(r, json, scope));
+ * }
+ * </pre>
+ *
+ * @version $Id$
+ */
+public final class SerializationScope implements AutoCloseable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SerializationScope.class);
+
+    /** The shared states, keyed by their owner. */
+    private final Map<Object, Object> states = new HashMap<>();
+
+    /**
+     * Gets a state shared by all the serializations in this scope, creating it the first time it is needed.
+     *
+     * @param <T> the type of the state
+     * @param owner the owner of the state, usually the processor or the class using it
+     * @param initialState creates the state the first time it is requested
+     * @return the state of the owner, either already existing or just created
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getState(final Object owner, final Supplier<T> initialState)
+    {
+        return (T) this.states.computeIfAbsent(owner, k -> initialState.get());
+    }
+
+    /**
+     * Gets a state shared by all the serializations in this scope, if it was already created.
+     *
+     * @param <T> the type of the state
+     * @param owner the owner of the state
+     * @return the state of the owner, or {@code null} if there is none
+     */
+    @SuppressWarnings("unchecked")
+    <T> T getState(final Object owner)
+    {
+        return (T) this.states.get(owner);
+    }
+
+    @Override
+    public void close()
+    {
+        this.states.values().forEach(state -> {
+            if (state instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) state).close();
+                } catch (Exception e) {
+                    LOGGER.warn("Failed to close the serialization state {}: {}", state, e.getMessage());
+                }
+            }
+        });
+        this.states.clear();
+    }
+}
@@ -34,12 +34,12 @@
 import javax.json.JsonValue;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.sling.api.resource.Resource;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ServiceScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.serialize.SerializationContext;
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
 
 /**
@@ -54,8 +54,6 @@ public class BareProcessor implements ResourceJsonProcessor
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(BareProcessor.class);
 
-    private ThreadLocal<Integer> depth = ThreadLocal.withInitial(() -> 0);
-
     @Override
     public String getName()
     {
@@ -69,15 +67,15 @@ public int getPriority()
     }
 
     @Override
-    public void start(Resource resource)
+    public boolean isStreamable()
     {
-        this.depth.set(0);
+        return true;
     }
 
     @Override
-    public void enter(Node node, JsonObjectBuilder input, Function<Node, JsonValue> serializeNode)
+    public boolean isCacheable()
     {
-        this.depth.set(this.depth.get() + 1);
+        return true;
     }
 
     @Override
@@ -114,11 +112,17 @@ public JsonValue processChild(Node node, Node child, JsonValue input, Function<N
 
     @Override
     public void leave(final Node node, final JsonObjectBuilder json,
-        final Function<Node, JsonValue> serializeNode)
+        final Function<Node, JsonValue> serializeNode, final SerializationContext context)
     {
-        this.depth.set(this.depth.get() - 1);
-        addCreationDate(node, json);
-        addLastModifiedDate(node, json);
+        try {
+            // Dates are only added for the serialized resource, not for its descendants or referenced nodes
+            if (node.getPath().equals(context.getResource().getPath())) {
+                addCreationDate(node, json);
+                addLastModifiedDate(node, json);
+            }
+        } catch (RepositoryException e) {
+            // Should't happen, and fixing the date is not that critical
+        }
         addFileContent(node, json);
     }
 
@@ -141,27 +145,23 @@ private JsonValue removeJcrProperties(final Node node, final String propertyName
 
     private void addCreationDate(final Node node, final JsonObjectBuilder json)
     {
-        if (this.depth.get() == 0) {
-            try {
-                if (node.hasProperty("jcr:created")) {
-                    json.add("created", serializeDate(node.getProperty("jcr:created").getDate()));
-                }
-            } catch (RepositoryException e) {
-                // Should't happen, and fixing the date is not that critical
+        try {
+            if (node.hasProperty("jcr:created")) {
+                json.add("created", serializeDate(node.getProperty("jcr:created").getDate()));
             }
+        } catch (RepositoryException e) {
+            // Should't happen, and fixing the date is not that critical
         }
     }
 
     private void addLastModifiedDate(final Node node, final JsonObjectBuilder json)
     {
-        if (this.depth.get() == 0) {
-            try {
-                if (node.hasProperty("jcr:lastModified")) {
-                    json.add("lastModified", serializeDate(node.getProperty("jcr:lastModified").getDate()));
-                }
-            } catch (RepositoryException e) {
-                // Should't happen, and fixing the date is not that critical
+        try {
+            if (node.hasProperty("jcr:lastModified")) {
+                json.add("lastModified", serializeDate(node.getProperty("jcr:lastModified").getDate()));
             }
+        } catch (RepositoryException e) {
+            // Should't happen, and fixing the date is not that critical
         }
     }
 
@@ -47,6 +47,18 @@ public int getPriority()
         return 10;
     }
 
+    @Override
+    public boolean isStreamable()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable()
+    {
+        return true;
+    }
+
     @Override
     public JsonValue processChild(final Node node, final Node child, final JsonValue input,
         final Function<Node, JsonValue> serializeNode)
@@ -34,11 +34,18 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.serialize.DereferencedNodes;
+import io.uhndata.cards.serialize.IncludedNodes;
+import io.uhndata.cards.serialize.SerializationContext;
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
 
 /**
  * Dereference properties of type {@code REFERENCE}, {@code WEAKREFERENCE} or {@code PATH}: instead of printing the
- * internal UUID, serialize the referenced node. The name of this processor is {@code dereference}.
+ * internal UUID, serialize the referenced node. If {@link IncludedNodes normalization} is enabled, the referenced node
+ * is serialized only once, separately, and only its identifier is printed. Otherwise, the serialization of a
+ * referenced node is {@link DereferencedNodes reused} for all the further references to the same node, for example the
+ * question of each answer in a form, or the questionnaire of each form in a listing, so processors must not expect to
+ * be invoked again for each reference. The name of this processor is {@code dereference}.
  *
  * @version $Id$
  */
@@ -59,6 +66,18 @@ public int getPriority()
         return 10;
     }
 
+    @Override
+    public boolean isStreamable()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable()
+    {
+        return true;
+    }
+
     @Override
     public boolean isEnabledByDefault(Resource resource)
     {
@@ -67,13 +86,13 @@ public boolean isEnabledByDefault(Resource resource)
 
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final Function<Node, JsonValue> serializeNode, final SerializationContext context)
     {
         try {
             if (property.isMultiple()) {
-                return serializeMultiValuedProperty(property, input, serializeNode);
+                return serializeMultiValuedProperty(property, input, serializeNode, context);
             } else {
-                return serializeSingleValuedProperty(property, input, serializeNode);
+                return serializeSingleValuedProperty(property, input, serializeNode, context);
             }
         } catch (RepositoryException e) {
             LOGGER.warn("Unexpected error while serializing property {} of node {}: {}", property, node,
@@ -83,7 +102,7 @@ public JsonValue processProperty(final Node node, final Property property, final
     }
 
     private JsonValue serializeSingleValuedProperty(final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final Function<Node, JsonValue> serializeNode, final SerializationContext context)
         throws RepositoryException
     {
         switch (property.getType()) {
@@ -98,7 +117,7 @@ private JsonValue serializeSingleValuedProperty(final Property property, final J
                     if (property.getName().startsWith("jcr:")) {
                         return Json.createValue(node.getPath());
                     } else {
-                        return serializeNode.apply(node);
+                        return serializeReferencedNode(node, serializeNode, context);
                     }
                 } catch (RepositoryException e) {
                     // If we can't access the node, just leave the input unmodified
@@ -111,7 +130,7 @@ private JsonValue serializeSingleValuedProperty(final Property property, final J
     }
 
     private JsonValue serializeMultiValuedProperty(final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode) throws RepositoryException
+        final Function<Node, JsonValue> serializeNode, final SerializationContext context) throws RepositoryException
     {
         final JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
         final String name = property.getName();
@@ -126,7 +145,7 @@ private JsonValue serializeMultiValuedProperty(final Property property, final Js
                     if (name.startsWith("jcr:")) {
                         arrayBuilder.add(node.getPath());
                     } else {
-                        arrayBuilder.add(serializeNode.apply(node));
+                        arrayBuilder.add(serializeReferencedNode(node, serializeNode, context));
                     }
                 } catch (RepositoryException e) {
                     // If we can't access the node, just leave the input unmodified
@@ -139,7 +158,7 @@ private JsonValue serializeMultiValuedProperty(final Property property, final Js
                 try {
                     final Node node = path.charAt(0) == '/' ? property.getSession().getNode(path)
                         : property.getParent().getNode(path);
-                    arrayBuilder.add(serializeNode.apply(node));
+                    arrayBuilder.add(serializeReferencedNode(node, serializeNode, context));
                 } catch (RepositoryException e) {
                     // If we can't access a node, just add its path to the output
                     arrayBuilder.add(path);
@@ -151,4 +170,27 @@ private JsonValue serializeMultiValuedProperty(final Property property, final Js
         }
         return arrayBuilder.build();
     }
+
+    /**
+     * Serializes a referenced node, either in place, reusing its serialization if it was already dereferenced, or, if
+     * {@link IncludedNodes normalization} is enabled, only once among the included nodes, leaving just its identifier
+     * in place.
+     *
+     * @param node the referenced node
+     * @param serializeNode the function serializing a node
+     * @param context the state of the current serialization
+     * @return the JSON to use in place of the reference
+     * @throws RepositoryException if accessing the node fails
+     */
+    private JsonValue serializeReferencedNode(final Node node, final Function<Node, JsonValue> serializeNode,
+        final SerializationContext context)
+        throws RepositoryException
+    {
+        final IncludedNodes included = IncludedNodes.current(context);
+        if (included != null) {
+            return included.include(node, serializeNode);
+        }
+
+        return DereferencedNodes.current(context).dereference(node, serializeNode, context);
+    }
 }
@@ -51,6 +51,18 @@ public int getPriority()
         return 10;
     }
 
+    @Override
+    public boolean isStreamable()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable()
+    {
+        return true;
+    }
+
     @Override
     public boolean isEnabledByDefault(Resource resource)
     {
@@ -0,0 +1,406 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.jcr.PropertyType;
+import javax.json.JsonValue;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.sling.api.resource.Resource;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.serialize.ResourceToJsonAdapterFactory;
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+
+/**
+ * Caches the JSON serializations of resources that are read often and rarely change, such as questionnaires and
+ * vocabulary terms. Serializations are cached by {@link ResourceToJsonAdapterFactory} only when:
+ * <ul>
+ * <li>the cache is enabled, by setting the {@code JSON_CACHE_SIZE} environment variable to the maximum number of
+ * cached serializations; it is disabled by default</li>
+ * <li>the type of the resource is one of those listed, separated by commas, in the {@code JSON_CACHE_RESOURCE_TYPES}
+ * environment variable, by default {@value #DEFAULT_RESOURCE_TYPES}</li>
+ * <li>all the enabled processors are {@link ResourceJsonProcessor#isCacheable() cacheable}</li>
+ * </ul>
+ * Serializations are cached for each resource path, selectors and user, so they are never shared between users with
+ * different access rights. When the cache is full, the least recently used serialization is evicted.
+ * <p>
+ * Each cached serialization remembers the nodes it was computed from, including referenced nodes, and is invalidated
+ * as soon as a commit changes one of these nodes, adds or removes one of their children, or adds or removes a
+ * reference to one of them. Since access rights may change the serializations, all the cache is cleared when access
+ * control policies or group memberships change. Usage statistics are available through JMX.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { JsonCache.class, Observer.class, JsonCacheMBean.class }, immediate = true,
+    property = { "jmx.objectname=io.uhndata.cards:type=JsonCache" })
+public class JsonCache implements Observer, JsonCacheMBean
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(JsonCache.class);
+
+    private static final String DEFAULT_RESOURCE_TYPES = "cards/Questionnaire,cards/SubjectType,cards/VocabularyTerm";
+
+    private static final String PRIMARY_TYPE = "jcr:primaryType";
+
+    /** Node names whose changes do not affect serializations: hidden nodes, indexes, and version storage. */
+    private static final Set<String> IGNORED_NODES = new HashSet<>(Arrays.asList("oak:index", "jcr:system"));
+
+    /** Nodes holding access control policies, whose changes may alter what users can see. */
+    private static final Set<String> POLICY_NODES = new HashSet<>(Arrays.asList("rep:policy", "rep:repoPolicy"));
+
+    /** Authorizable node types, whose removal may alter what users can see. */
+    private static final Set<String> AUTHORIZABLE_TYPES =
+        new HashSet<>(Arrays.asList("rep:User", "rep:SystemUser", "rep:Group"));
+
+    /** The cached serializations, from least to most recently used. */
+    private final Map<List<String>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The keys of the cached serializations depending on each node, by node path and by node identifier. */
+    private final NavigableMap<String, Set<List<String>>> dependents = new TreeMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    private int maxSize;
+
+    private Set<String> resourceTypes;
+
+    /** Incremented for each commit, so that serializations computed while the content changed are not cached. */
+    private volatile long generation;
+
+    /** The repository state as of the previous commit, only accessed while processing a commit. */
+    private NodeState previous;
+
+    /** A cached serialization. */
+    private static final class Entry
+    {
+        private final JsonValue json;
+
+        private final Set<String> dependencies;
+
+        Entry(final JsonValue json, final Set<String> dependencies)
+        {
+            this.json = json;
+            this.dependencies = dependencies;
+        }
+    }
+
+    @Activate
+    protected void activate()
+    {
+        this.maxSize = getMaxSize("JSON_CACHE_SIZE");
+        final String types = System.getenv("JSON_CACHE_RESOURCE_TYPES");
+        this.resourceTypes = Arrays.stream((types == null ? DEFAULT_RESOURCE_TYPES : types).split(","))
+            .map(String::trim)
+            .filter(type -> !type.isEmpty())
+            .collect(Collectors.toSet());
+    }
+
+    /**
+     * Checks if the serializations of a resource may be cached, according to its type.
+     *
+     * @param resource the resource to serialize
+     * @return {@code true} if the cache is enabled for this type of resources
+     */
+    public boolean accepts(final Resource resource)
+    {
+        return this.maxSize > 0 && this.resourceTypes.contains(resource.getResourceType());
+    }
+
+    /**
+     * The current generation of the cache, to be passed back to {@link #put} when the serialization is done.
+     *
+     * @return an opaque number, which changes after each commit
+     */
+    public long getGeneration()
+    {
+        return this.generation;
+    }
+
+    /**
+     * Gets a cached serialization.
+     *
+     * @param key the resource path, selectors, and user
+     * @return the cached serialization, or {@code null} if it is not cached
+     */
+    public synchronized JsonValue get(final List<String> key)
+    {
+        final Entry entry = this.entries.get(key);
+        if (entry == null) {
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        return entry.json;
+    }
+
+    /**
+     * Caches a serialization, unless the content changed since it was started.
+     *
+     * @param key the resource path, selectors, and user
+     * @param json the serialization
+     * @param dependencies the paths and identifiers of the nodes used for computing the serialization
+     * @param startGeneration the {@link #getGeneration() generation} of the cache when the serialization was started
+     */
+    public synchronized void put(final List<String> key, final JsonValue json, final Set<String> dependencies,
+        final long startGeneration)
+    {
+        if (startGeneration != this.generation || this.maxSize <= 0) {
+            return;
+        }
+        remove(key);
+        this.entries.put(key, new Entry(json, dependencies));
+        dependencies.forEach(dependency -> this.dependents.computeIfAbsent(dependency, k -> new HashSet<>()).add(key));
+        final Iterator<Map.Entry<List<String>, Entry>> eldest = this.entries.entrySet().iterator();
+        while (this.entries.size() > this.maxSize) {
+            final Map.Entry<List<String>, Entry> evicted = eldest.next();
+            eldest.remove();
+            this.evictions.increment();
+            removeDependencies(evicted.getKey(), evicted.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void contentChanged(final NodeState root, final CommitInfo info)
+    {
+        ++this.generation;
+        if (this.previous != null && !this.entries.isEmpty()) {
+            root.compareAgainstBaseState(this.previous, new ChangesDiff(""));
+        }
+        this.previous = root;
+    }
+
+    @Override
+    public int getMaxSize()
+    {
+        return this.maxSize;
+    }
+
+    @Override
+    public synchronized int getSize()
+    {
+        return this.entries.size();
+    }
+
+    @Override
+    public long getHits()
+    {
+        return this.hits.sum();
+    }
+
+    @Override
+    public long getMisses()
+    {
+        return this.misses.sum();
+    }
+
+    @Override
+    public long getEvictions()
+    {
+        return this.evictions.sum();
+    }
+
+    @Override
+    public long getInvalidations()
+    {
+        return this.invalidations.sum();
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        this.invalidations.add(this.entries.size());
+        this.entries.clear();
+        this.dependents.clear();
+    }
+
+    /**
+     * Invalidates the serializations depending on a node that was added, removed, or changed: the node itself, its
+     * parent, whose children changed, and its descendants, which may have been removed along with it.
+     *
+     * @param path the path of the node
+     */
+    private void invalidateNode(final String path)
+    {
+        invalidate(path);
+        invalidate(path.substring(0, Math.max(path.lastIndexOf('/'), 1)));
+        new TreeMap<>(this.dependents.subMap(path + "/", path + "0")).keySet().forEach(this::invalidate);
+    }
+
+    /**
+     * Invalidates the serializations depending on a node.
+     *
+     * @param dependency the path or identifier of the node
+     */
+    private void invalidate(final String dependency)
+    {
+        final Set<List<String>> keys = this.dependents.get(dependency);
+        if (keys != null) {
+            new HashSet<>(keys).forEach(key -> {
+                remove(key);
+                this.invalidations.increment();
+            });
+        }
+    }
+
+    private void remove(final List<String> key)
+    {
+        removeDependencies(key, this.entries.remove(key));
+    }
+
+    private void removeDependencies(final List<String> key, final Entry entry)
+    {
+        if (entry == null) {
+            return;
+        }
+        for (String dependency : entry.dependencies) {
+            final Set<List<String>> keys = this.dependents.get(dependency);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    this.dependents.remove(dependency);
+                }
+            }
+        }
+    }
+
+    private static Iterable<String> getReferences(final PropertyState property)
+    {
+        final int type = property.getType().tag();
+        if (type != PropertyType.REFERENCE && type != PropertyType.WEAKREFERENCE) {
+            return Collections.emptyList();
+        }
+        return property.isArray() ? property.getValue(Type.STRINGS)
+            : Collections.singletonList(property.getValue(Type.STRING));
+    }
+
+    private static int getMaxSize(final String variable)
+    {
+        final String configured = System.getenv(variable);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return Math.max(0, Integer.parseInt(configured.trim()));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid {}, the JSON cache is disabled: {}", variable, configured);
+            }
+        }
+        return 0;
+    }
+
+    /** Invalidates the serializations depending on the nodes changed by a commit. */
+    private final class ChangesDiff extends DefaultNodeStateDiff
+    {
+        private final String path;
+
+        ChangesDiff(final String path)
+        {
+            this.path = path;
+        }
+
+        @Override
+        public boolean propertyAdded(final PropertyState after)
+        {
+            return propertyChanged(after);
+        }
+
+        @Override
+        public boolean propertyChanged(final PropertyState before, final PropertyState after)
+        {
+            return propertyChanged(before) && propertyChanged(after);
+        }
+
+        @Override
+        public boolean propertyDeleted(final PropertyState before)
+        {
+            return propertyChanged(before);
+        }
+
+        @Override
+        public boolean childNodeAdded(final String name, final NodeState after)
+        {
+            return childNodeChanged(name, EmptyNodeState.EMPTY_NODE, after);
+        }
+
+        @Override
+        public boolean childNodeDeleted(final String name, final NodeState before)
+        {
+            if (AUTHORIZABLE_TYPES.contains(before.getName(PRIMARY_TYPE))) {
+                clear();
+                return false;
+            }
+            return childNodeChanged(name, before, EmptyNodeState.EMPTY_NODE);
+        }
+
+        @Override
+        public boolean childNodeChanged(final String name, final NodeState before, final NodeState after)
+        {
+            if (name.startsWith(":") || IGNORED_NODES.contains(name)) {
+                return true;
+            }
+            if (POLICY_NODES.contains(name)) {
+                clear();
+                return false;
+            }
+            final String childPath = this.path + "/" + name;
+            invalidateNode(childPath);
+            // Look for changed references in the descendants
+            return after.compareAgainstBaseState(before, new ChangesDiff(childPath));
+        }
+
+        private boolean propertyChanged(final PropertyState property)
+        {
+            if ("rep:members".equals(property.getName())) {
+                clear();
+                return false;
+            }
+            invalidate(this.path.isEmpty() ? "/" : this.path);
+            // Adding or removing a reference changes whether the referenced node is referenced
+            getReferences(property).forEach(JsonCache.this::invalidate);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize.internal;
+
+/**
+ * Management interface of the {@link JsonCache}, exposing its usage statistics through JMX.
+ *
+ * @version $Id$
+ */
+public interface JsonCacheMBean
+{
+    /**
+     * The maximum number of cached serializations.
+     *
+     * @return the configured size, {@code 0} if the cache is disabled
+     */
+    int getMaxSize();
+
+    /**
+     * The number of currently cached serializations.
+     *
+     * @return a number between {@code 0} and {@link #getMaxSize()}
+     */
+    int getSize();
+
+    /**
+     * How many cacheable serializations were found in the cache.
+     *
+     * @return the number of hits since the cache was started
+     */
+    long getHits();
+
+    /**
+     * How many cacheable serializations were not found in the cache, and had to be computed.
+     *
+     * @return the number of misses since the cache was started
+     */
+    long getMisses();
+
+    /**
+     * How many serializations were removed from the cache to make room for new ones.
+     *
+     * @return the number of evictions since the cache was started
+     */
+    long getEvictions();
+
+    /**
+     * How many serializations were removed from the cache because the content they depend on changed.
+     *
+     * @return the number of invalidations since the cache was started
+     */
+    long getInvalidations();
+
+    /**
+     * Removes all the serializations from the cache.
+     */
+    void clear();
+}
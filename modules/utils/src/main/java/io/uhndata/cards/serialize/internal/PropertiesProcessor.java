@@ -64,6 +64,18 @@ public int getPriority()
         return 0;
     }
 
+    @Override
+    public boolean isStreamable()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable()
+    {
+        return true;
+    }
+
     @Override
     public boolean isEnabledByDefault(Resource resource)
     {
@@ -90,7 +102,15 @@ public JsonValue processProperty(final Node node, final Property property, final
         }
     }
 
-    private JsonValue serializeProperty(final Property property) throws RepositoryException
+    /**
+     * Serializes the value of a property as a simple JSON value, or an array of values for multi-valued properties.
+     * References are not followed.
+     *
+     * @param property the property to serialize
+     * @return the JSON representation of the property's value
+     * @throws RepositoryException if accessing the property fails
+     */
+    public static JsonValue serializeProperty(final Property property) throws RepositoryException
     {
         if (property.isMultiple()) {
             return serializeMultiValuedProperty(property);
@@ -99,7 +119,7 @@ private JsonValue serializeProperty(final Property property) throws RepositoryEx
         }
     }
 
-    private JsonValue serializeSingleValuedProperty(final Property property)
+    private static JsonValue serializeSingleValuedProperty(final Property property)
         throws RepositoryException
     {
         final Value value = property.getValue();
@@ -130,7 +150,7 @@ private JsonValue serializeSingleValuedProperty(final Property property)
         return result;
     }
 
-    private JsonValue serializeMultiValuedProperty(final Property property)
+    private static JsonValue serializeMultiValuedProperty(final Property property)
         throws RepositoryException
     {
         final JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
@@ -162,7 +182,7 @@ private JsonValue serializeMultiValuedProperty(final Property property)
         return arrayBuilder.build();
     }
 
-    private JsonValue serializeDate(final Calendar value)
+    private static JsonValue serializeDate(final Calendar value)
     {
         // Use the ISO 8601 date+time format
         final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
@@ -170,7 +190,7 @@ private JsonValue serializeDate(final Calendar value)
         return Json.createValue(sdf.format(value.getTime()));
     }
 
-    private JsonValue serializeInputStream(final InputStream value)
+    private static JsonValue serializeInputStream(final InputStream value)
     {
         try {
             // We're supposed to be transforming raw bytes into an Unicode string; ISO 8859-1 is a subset of Unicode
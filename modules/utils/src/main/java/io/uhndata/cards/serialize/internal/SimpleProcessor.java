@@ -56,6 +56,18 @@ public int getPriority()
         return 25;
     }
 
+    @Override
+    public boolean isStreamable()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable()
+    {
+        return true;
+    }
+
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
         final Function<Node, JsonValue> serializeNode)
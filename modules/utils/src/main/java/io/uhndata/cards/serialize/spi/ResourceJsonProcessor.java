@@ -27,7 +27,9 @@
 
 import org.apache.sling.api.resource.Resource;
 
+import io.uhndata.cards.serialize.ResourceJsonWriter;
 import io.uhndata.cards.serialize.ResourceToJsonAdapterFactory;
+import io.uhndata.cards.serialize.SerializationContext;
 
 /**
  * A service that can help serialize a node to JSON. Implementations of this interface will be invoked by
@@ -55,6 +57,16 @@
  * For each serialized node, first all its properties are serialized using {@link #processProperty}, then all its
  * children using {@link #processChild}, then the output is post-processed using {@link #leave}.
  * </p>
+ * <p>
+ * Resources can also be written directly to a JSON stream using {@link ResourceJsonWriter}, without building their
+ * whole JSON tree in memory, if all the enabled processors {@link #isStreamable() support it}.
+ * </p>
+ * <p>
+ * Each callback has a variant receiving the {@link SerializationContext} of the current serialization, which is the
+ * one actually invoked. By default, it calls the variant without a context. Processors that need to keep some state
+ * during a serialization should implement the variants with a context, and keep their state in the context, since
+ * serializations may be nested in the same thread.
+ * </p>
  *
  * @version $Id$
  */
@@ -82,7 +94,8 @@
      * resource being serialized, not for each of its children/descendants. If this method returns {@code true}, this
      * processor may be invoked, if selected. If this method returns {@code false}, this processor will not be invoked
      * when serializing the resource, even if explicitly requested. The default implementation returns {@code true} for
-     * all resources, implementations must override it to select which resources can be processed.
+     * all resources, implementations must override it to select which resources can be processed. The answer must only
+     * depend on the type of the resource, since it is cached for all the resources of the same type.
      *
      * @param resource the resource being serialized
      * @return {@code true} if this processor can be invoked when serializing this resource, {@code false} otherwise
@@ -94,7 +107,8 @@ default boolean canProcess(final Resource resource)
 
     /**
      * Reports whether this processor should be enabled by default for the given resource, even if not explicitly
-     * requested. The default implementation returns {@code false}.
+     * requested. The default implementation returns {@code false}. Like for {@link #canProcess(Resource)}, the answer
+     * must only depend on the type of the resource.
      *
      * @param resource the resource being serialized
      * @return {@code true} if this processor should be invoked when serializing the resource, even if not requested,
@@ -105,6 +119,39 @@ default boolean isEnabledByDefault(final Resource resource)
         return false;
     }
 
+    /**
+     * Reports whether this processor can be used when streaming a resource with {@link ResourceJsonWriter}. When
+     * streaming, properties and children are written as soon as they are processed, so a streamable processor must
+     * respect a few restrictions:
+     * <ul>
+     * <li>in {@link #processChild}, the value returned by {@code serializeNode} is only a placeholder for the node to
+     * stream, so it must be either returned unchanged or discarded, and it must not be inspected or copied</li>
+     * <li>{@link #enter} and {@link #leave} can only add new keys, since the JSON object they receive only holds the
+     * keys added by the processors for the current node, and not its properties and children</li>
+     * </ul>
+     * The default implementation returns {@code false}.
+     *
+     * @return {@code true} if this processor respects the streaming restrictions, {@code false} otherwise
+     */
+    default boolean isStreamable()
+    {
+        return false;
+    }
+
+    /**
+     * Reports whether the serializations produced with this processor may be cached. A cacheable processor must only
+     * output data read from the nodes being serialized, or from the nodes they reference, through the
+     * {@code serializeNode} function, so that the cached serializations can be invalidated when these nodes change.
+     * Processors outputting data computed from other nodes, for example counting search results, or from the current
+     * time, are not cacheable. The default implementation returns {@code false}.
+     *
+     * @return {@code true} if this processor's output only depends on the serialized nodes, {@code false} otherwise
+     */
+    default boolean isCacheable()
+    {
+        return false;
+    }
+
     /**
      * Called at the start of the serialization process for the topmost resource, in case the current processor needs to
      * initialize some temporary state.
@@ -116,6 +163,18 @@ default void start(final Resource resource)
         return;
     }
 
+    /**
+     * Called at the start of the serialization process for the topmost resource. The default implementation calls
+     * {@link #start(Resource)}.
+     *
+     * @param resource the resource being serialized
+     * @param context the state of the current serialization
+     */
+    default void start(final Resource resource, final SerializationContext context)
+    {
+        start(resource);
+    }
+
     /**
      * Called when a node's serialization begin. The processors will receive as input the JSON representation for the
      * node, starting with an empty JsonObjectBuilder, and modified by the previous processors, and any changes done to
@@ -132,6 +191,23 @@ default void enter(final Node node, final JsonObjectBuilder input, final Functio
         return;
     }
 
+    /**
+     * Called when a node's serialization begin. The default implementation calls
+     * {@link #enter(Node, JsonObjectBuilder, Function)}.
+     *
+     * @param node the node being serialized, may be other than the top resource
+     * @param input the JSON representation computed by the previous processors, may be an empty object but must not be
+     *            {@code null}
+     * @param serializeNode a function that can be invoked to serialize a new node, receiving a Node as input, and
+     *            returning a JSON representation
+     * @param context the state of the current serialization
+     */
+    default void enter(final Node node, final JsonObjectBuilder input, final Function<Node, JsonValue> serializeNode,
+        final SerializationContext context)
+    {
+        enter(node, input, serializeNode);
+    }
+
     /**
      * Called for each property of a serialized node, allows processing the JSON serialization of a property. The first
      * processor invoked will receive {@code null} as the JSON input, and each subsequent processor being invoked
@@ -154,6 +230,25 @@ default JsonValue processProperty(final Node node, final Property property, fina
         return input;
     }
 
+    /**
+     * Called for each property of a serialized node. The default implementation calls
+     * {@link #processProperty(Node, Property, JsonValue, Function)}.
+     *
+     * @param node the node whose property is serialized, may be other than the top resource
+     * @param property the property being serialized
+     * @param input the JSON representation computed by the previous processors, may be {@code null}
+     * @param serializeNode a function that can be invoked to serialize a new node, receiving a Node as input, and
+     *            returning a JSON representation
+     * @param context the state of the current serialization
+     * @return a JSON representation for the property value, may be {@code null} if the property should be skipped, or
+     *         any simple or complex JSON value, including arrays or objects
+     */
+    default JsonValue processProperty(final Node node, final Property property, final JsonValue input,
+        final Function<Node, JsonValue> serializeNode, final SerializationContext context)
+    {
+        return processProperty(node, property, input, serializeNode);
+    }
+
     /**
      * Called for each child node of a serialized node, allows processing the JSON serialization of a child node. The
      * first processor invoked will receive {@code null} as the JSON input, and each subsequent processor being invoked
@@ -176,6 +271,25 @@ default JsonValue processChild(final Node node, final Node child, final JsonValu
         return input;
     }
 
+    /**
+     * Called for each child node of a serialized node. The default implementation calls
+     * {@link #processChild(Node, Node, JsonValue, Function)}.
+     *
+     * @param node the node whose child is serialized, may be other than the top resource
+     * @param child the node being serialized
+     * @param input the JSON representation computed by the previous processors, may be {@code null}
+     * @param serializeNode a function that can be invoked to serialize a new node, receiving a Node as input, and
+     *            returning a JSON representation
+     * @param context the state of the current serialization
+     * @return a JSON representation for the child node, may be {@code null} if the child should be skipped, or any
+     *         simple or complex JSON value, including arrays or objects
+     */
+    default JsonValue processChild(final Node node, final Node child, final JsonValue input,
+        final Function<Node, JsonValue> serializeNode, final SerializationContext context)
+    {
+        return processChild(node, child, input, serializeNode);
+    }
+
     /**
      * Called at the end of node's serialization, allows further processing of the JSON serialization of a node. The
      * processor will receive the JSON representation computed using {@link #enter}, {@link #processProperty} and
@@ -193,6 +307,23 @@ default void leave(final Node node, final JsonObjectBuilder json, final Function
         return;
     }
 
+    /**
+     * Called at the end of node's serialization. The default implementation calls
+     * {@link #leave(Node, JsonObjectBuilder, Function)}.
+     *
+     * @param node the node being serialized, may be other than the top resource
+     * @param json the JSON representation computed by the previous processors, may be an empty object but must not be
+     *            {@code null}
+     * @param serializeNode a function that can be invoked to serialize a new node, receiving a Node as input, and
+     *            returning a JSON representation
+     * @param context the state of the current serialization
+     */
+    default void leave(final Node node, final JsonObjectBuilder json, final Function<Node, JsonValue> serializeNode,
+        final SerializationContext context)
+    {
+        leave(node, json, serializeNode);
+    }
+
     /**
      * Called at the end of the serialization process, in case the current processor needs to clean up any temporary
      * state.
@@ -203,4 +334,15 @@ default void end(final Resource resource)
     {
         return;
     }
+
+    /**
+     * Called at the end of the serialization process. The default implementation calls {@link #end(Resource)}.
+     *
+     * @param resource the resource being serialized
+     * @param context the state of the current serialization
+     */
+    default void end(final Resource resource, final SerializationContext context)
+    {
+        end(resource);
+    }
 }
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.uhndata.cards.utils;
+
+import java.text.ParsePosition;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.Year;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.SignStyle;
+import java.time.format.TextStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Parses dates in any of the formats commonly found in imported data:
+ * <ul>
+ * <li>ISO-like dates, such as {@code 2021-03-14}, optionally followed by a time, separated by either {@code T} or a
+ * space, with optional seconds and fractions of a second, and an optional time zone, as an offset such as
+ * {@code -05:00}, {@code -0500} or {@code Z}, or as a name such as {@code EST}</li>
+ * <li>US dates, such as {@code 3/14/2021} or {@code 3/14/21}</li>
+ * </ul>
+ * <p>
+ * Dates without a time zone are considered to be in the default time zone. Like the formats previously used for
+ * importing data, any text following a complete date is ignored.
+ * </p>
+ * <p>
+ * Parsing uses immutable {@code java.time} formatters, so instances can be safely shared between threads. Values that
+ * cannot be parsed are rejected without throwing exceptions. Since all the values of a data column usually have the
+ * same format, each instance remembers the format of the last successfully parsed value and tries it first, so a
+ * separate instance should be used for each column, or for each source of dates.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class DateParser
+{
+    /** ISO-like dates, with optional time and time zone. */
+    private static final DateTimeFormatter ISO_FORMAT = new DateTimeFormatterBuilder()
+        .appendValue(ChronoField.YEAR, 4)
+        .appendLiteral('-')
+        .appendValue(ChronoField.MONTH_OF_YEAR, 1, 2, SignStyle.NOT_NEGATIVE)
+        .appendLiteral('-')
+        .appendValue(ChronoField.DAY_OF_MONTH, 1, 2, SignStyle.NOT_NEGATIVE)
+        .optionalStart()
+        .optionalStart().appendLiteral('T').optionalEnd()
+        .optionalStart().appendLiteral(' ').optionalEnd()
+        .appendValue(ChronoField.HOUR_OF_DAY, 1, 2, SignStyle.NOT_NEGATIVE)
+        .appendLiteral(':')
+        .appendValue(ChronoField.MINUTE_OF_HOUR, 2)
+        .optionalStart()
+        .appendLiteral(':')
+        .appendValue(ChronoField.SECOND_OF_MINUTE, 2)
+        .optionalStart().appendFraction(ChronoField.NANO_OF_SECOND, 1, 9, true).optionalEnd()
+        .optionalEnd()
+        .optionalStart().appendOffset("+HH:MM", "Z").optionalEnd()
+        .optionalStart().appendOffset("+HHMM", "Z").optionalEnd()
+        .optionalStart().appendZoneText(TextStyle.SHORT).optionalEnd()
+        .optionalEnd()
+        .toFormatter(Locale.ROOT);
+
+    /** US dates, with two-digit years interpreted as being within 80 years before and 20 years after today. */
+    private static final DateTimeFormatter US_FORMAT = new DateTimeFormatterBuilder()
+        .appendValue(ChronoField.MONTH_OF_YEAR, 1, 2, SignStyle.NOT_NEGATIVE)
+        .appendLiteral('/')
+        .appendValue(ChronoField.DAY_OF_MONTH, 1, 2, SignStyle.NOT_NEGATIVE)
+        .appendLiteral('/')
+        .appendValueReduced(ChronoField.YEAR, 2, 4, LocalDate.now().minusYears(80))
+        .toFormatter(Locale.ROOT);
+
+    /** All the supported formats, the most common first. */
+    private static final List<DateTimeFormatter> FORMATS = Arrays.asList(ISO_FORMAT, US_FORMAT);
+
+    /** The position in {@link #FORMATS} of the format that was last used successfully. */
+    private volatile int preferredFormat;
+
+    /**
+     * Parses a date, trying all the supported formats. When parsing many dates with the same format, an instance of
+     * this class should be used instead.
+     *
+     * @param value the serialized date to parse
+     * @return the parsed date, or {@code null} if the value is not a valid date in any of the supported formats
+     */
+    public static Calendar parseDate(final String value)
+    {
+        if (value == null) {
+            return null;
+        }
+        final String text = value.trim();
+        for (DateTimeFormatter format : FORMATS) {
+            final Calendar result = parse(text, format);
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a date, trying first the format of the previously parsed date, then all the other supported formats.
+     *
+     * @param value the serialized date to parse
+     * @return the parsed date, or {@code null} if the value is not a valid date in any of the supported formats
+     */
+    public Calendar parse(final String value)
+    {
+        if (value == null) {
+            return null;
+        }
+        final String text = value.trim();
+        final int preferred = this.preferredFormat;
+        Calendar result = parse(text, FORMATS.get(preferred));
+        for (int i = 0; result == null && i < FORMATS.size(); ++i) {
+            if (i != preferred) {
+                result = parse(text, FORMATS.get(i));
+                if (result != null) {
+                    this.preferredFormat = i;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses a date using a specific format, without throwing exceptions for invalid values.
+     *
+     * @param text the serialized date to parse
+     * @param format the format to use
+     * @return the parsed date, or {@code null} if the value is not a valid date in the requested format
+     */
+    private static Calendar parse(final String text, final DateTimeFormatter format)
+    {
+        final ParsePosition position = new ParsePosition(0);
+        final TemporalAccessor parsed = format.parseUnresolved(text, position);
+        if (parsed == null || position.getErrorIndex() >= 0) {
+            return null;
+        }
+        return toCalendar(parsed);
+    }
+
+    /**
+     * Converts the raw fields of a parsed date into a calendar, checking that they form a valid date.
+     *
+     * @param parsed the raw fields, as parsed from the text
+     * @return the date, or {@code null} if the fields don't form a valid date
+     */
+    private static Calendar toCalendar(final TemporalAccessor parsed)
+    {
+        final long year = parsed.getLong(ChronoField.YEAR);
+        final long month = parsed.getLong(ChronoField.MONTH_OF_YEAR);
+        final long day = parsed.getLong(ChronoField.DAY_OF_MONTH);
+        final long hour = getField(parsed, ChronoField.HOUR_OF_DAY);
+        final long minute = getField(parsed, ChronoField.MINUTE_OF_HOUR);
+        final long second = getField(parsed, ChronoField.SECOND_OF_MINUTE);
+        final long nano = getField(parsed, ChronoField.NANO_OF_SECOND);
+        if (!ChronoField.YEAR.range().isValidValue(year) || !ChronoField.MONTH_OF_YEAR.range().isValidValue(month)
+            || day < 1 || day > Month.of((int) month).length(Year.isLeap(year))
+            || !ChronoField.HOUR_OF_DAY.range().isValidValue(hour)
+            || !ChronoField.MINUTE_OF_HOUR.range().isValidValue(minute)
+            || !ChronoField.SECOND_OF_MINUTE.range().isValidValue(second)) {
+            return null;
+        }
+
+        final ZoneId zone = parsed.query(TemporalQueries.zone());
+        final Calendar result = zone == null ? Calendar.getInstance() : Calendar.getInstance(TimeZone.getTimeZone(zone));
+        result.clear();
+        result.set((int) year, (int) month - 1, (int) day, (int) hour, (int) minute, (int) second);
+        result.set(Calendar.MILLISECOND, (int) (nano / 1_000_000));
+        return result;
+    }
+
+    private static long getField(final TemporalAccessor parsed, final ChronoField field)
+    {
+        return parsed.isSupported(field) ? parsed.getLong(field) : 0;
+    }
+}
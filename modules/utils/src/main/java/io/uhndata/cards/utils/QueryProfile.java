@@ -0,0 +1,494 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Profiling of the queries executed while handling a request: the executed statements, their Oak plans, how many rows
+ * were read from each result, and how much time was spent preparing, executing and fetching the results of queries,
+ * the rest being spent mostly on serializing the results. Other code working on behalf of the request may also
+ * {@link #count count} events, such as cache hits and misses.
+ * <p>
+ * Profiling is enabled for all the queries executed by the current thread between {@link #start} and {@link #close()}.
+ * Query endpoints start a profile for every request, since it is cheap, and include the {@link #toJson() profile} in
+ * their response when the request has the {@code debug=explain} parameter. The slow query log is disabled by default;
+ * when the {@code SLOW_QUERY_THRESHOLD} environment variable is set to a positive number of milliseconds, requests
+ * taking longer are logged with their timings and the shape of their queries. Since statements may hold search terms
+ * and identifiers, the logged statements have their literal values replaced by {@code ?}, and their plans are left
+ * out; queries are never explained just for the log.
+ * </p>
+ *
+ * <pre>
+ * try (QueryProfile profile = QueryProfile.start("search",
+ *     QueryProfile.isExplainRequested(request.getParameter("debug")))) {
+ *     Iterator&lt;Resource&gt; results = QueryProfile.findResources(resolver, statement, "JCR-SQL2");
+ *     ...
+ *     if (profile.isExplain()) {
+ *         result.add("debug", profile.toJson());
+ *     }
+ * }
+ * </pre>
+ *
+ * @version $Id$
+ */
+public final class QueryProfile implements AutoCloseable
+{
+    /** The phase where queries are parsed and prepared. */
+    public static final String PREPARE = "prepare";
+
+    /** The phase where queries are executed, until their results are available. */
+    public static final String EXECUTE = "execute";
+
+    /** The phase where the results of queries are read. */
+    public static final String FETCH = "fetch";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryProfile.class);
+
+    private static final ThreadLocal<QueryProfile> CURRENT = new ThreadLocal<>();
+
+    /** The slow query threshold, in milliseconds, or {@code 0} if the slow query log is disabled. */
+    private static final long THRESHOLD = getThreshold();
+
+    /** Quoted strings, with quotes escaped by doubling them, and numbers, in a query statement. */
+    private static final Pattern LITERALS =
+        Pattern.compile("'(?:[^']|'')*+'|\"(?:[^\"]|\"\")*+\"|\\b\\d+(?:\\.\\d+)?\\b");
+
+    private final String endpoint;
+
+    private final boolean explain;
+
+    private final long startTime = System.nanoTime();
+
+    /** Time spent in each phase, in nanoseconds. */
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    private final List<QueryRecord> queries = new ArrayList<>();
+
+    /** Other events, by name. */
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+
+    /** The profile that was active when this one started, restored when this one is closed. */
+    private final QueryProfile previous;
+
+    /**
+     * Measures the time spent in a phase, until {@link #stop() stopped}.
+     */
+    public final class Timer
+    {
+        private final String phase;
+
+        private final long start = System.nanoTime();
+
+        private Timer(final String phase)
+        {
+            this.phase = phase;
+        }
+
+        /**
+         * Ends the phase, adding the time elapsed since this timer was started to the phase. Should be called in a
+         * {@code finally} block, so that the time is recorded even when the phase fails.
+         */
+        public void stop()
+        {
+            addTime(this.phase, System.nanoTime() - this.start);
+        }
+    }
+
+    /**
+     * Enables a profile in another thread, until {@link #detach() detached}.
+     */
+    @FunctionalInterface
+    public interface Scope
+    {
+        /**
+         * Restores the profile that was active in the thread before this one was attached. Should be called in a
+         * {@code finally} block.
+         */
+        void detach();
+    }
+
+    /**
+     * A query executed while profiling.
+     */
+    private static final class QueryRecord
+    {
+        private final String statement;
+
+        private final String language;
+
+        private final Session session;
+
+        private final Map<String, Value> bindings;
+
+        private long rows;
+
+        private String plan;
+
+        QueryRecord(final String statement, final String language, final Session session,
+            final Map<String, Value> bindings)
+        {
+            this.statement = statement;
+            this.language = language;
+            this.session = session;
+            this.bindings = bindings;
+        }
+
+        JsonObject toJson(final boolean redacted)
+        {
+            final JsonObjectBuilder result = Json.createObjectBuilder()
+                .add("statement", redacted ? redact(this.statement) : this.statement)
+                .add("language", this.language);
+            if (!redacted) {
+                result.add("plan", this.plan != null ? this.plan : explain());
+            }
+            return result.add("rows", this.rows).build();
+        }
+
+        private String explain()
+        {
+            if (this.session == null || !this.session.isLive()) {
+                return "";
+            }
+            try {
+                final Query query = this.session.getWorkspace().getQueryManager()
+                    .createQuery("explain " + this.statement, this.language);
+                for (Map.Entry<String, Value> binding : this.bindings.entrySet()) {
+                    query.bindValue(binding.getKey(), binding.getValue());
+                }
+                final RowIterator rows = query.execute().getRows();
+                if (rows.hasNext()) {
+                    final Row row = rows.nextRow();
+                    return row.getValue("plan").getString();
+                }
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to explain query {}: {}", this.statement, e.getMessage());
+            }
+            return "";
+        }
+    }
+
+    private QueryProfile(final String endpoint, final boolean explain, final QueryProfile previous)
+    {
+        this.endpoint = endpoint;
+        this.explain = explain;
+        this.previous = previous;
+    }
+
+    /**
+     * Starts profiling the queries executed by the current thread, until the returned object is closed.
+     *
+     * @param endpoint the name of the query endpoint handling the request, used in logs
+     * @param explain whether the profile was requested, and will be included in the response
+     * @return a new profile
+     */
+    public static QueryProfile start(final String endpoint, final boolean explain)
+    {
+        final QueryProfile result = new QueryProfile(endpoint, explain, CURRENT.get());
+        CURRENT.set(result);
+        return result;
+    }
+
+    /**
+     * Gets the profile active in the current thread.
+     *
+     * @return the current profile, or {@code null} if profiling is not enabled
+     */
+    public static QueryProfile current()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Checks if a request asks for the query profile to be included in the response, with the {@code debug=explain}
+     * parameter.
+     *
+     * @param debugParameter the value of the {@code debug} request parameter, may be {@code null}
+     * @return {@code true} if the profile was requested
+     */
+    public static boolean isExplainRequested(final String debugParameter)
+    {
+        return "explain".equals(debugParameter);
+    }
+
+    /**
+     * Executes a query through a resource resolver, profiling it if profiling is enabled in the current thread.
+     *
+     * @param resolver the resource resolver to query
+     * @param statement the query statement
+     * @param language the query language, for example {@code JCR-SQL2} or {@code xpath}
+     * @return the matching resources
+     */
+    public static Iterator<Resource> findResources(final ResourceResolver resolver, final String statement,
+        final String language)
+    {
+        final QueryProfile profile = current();
+        if (profile == null) {
+            return resolver.findResources(statement, language);
+        }
+        profile.addQuery(statement, language, resolver.adaptTo(Session.class), null);
+        final Iterator<Resource> results;
+        final Timer timer = profile.time(EXECUTE);
+        try {
+            results = resolver.findResources(statement, language);
+        } finally {
+            timer.stop();
+        }
+        return profile.fetch(results);
+    }
+
+    /**
+     * Enables this profile in the current thread too, for queries executed by another thread on behalf of the same
+     * request, until the returned scope is closed.
+     *
+     * @return a scope, to detach when the work done on behalf of the request is finished
+     */
+    public Scope attach()
+    {
+        final QueryProfile attachedTo = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (attachedTo == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(attachedTo);
+            }
+        };
+    }
+
+    /**
+     * Explains the queries recorded for a session right away, for sessions that will be closed before the profile is
+     * {@link #toJson() serialized}. Does nothing unless the profile was requested.
+     *
+     * @param session the session that executed the queries
+     */
+    public synchronized void explainQueries(final Session session)
+    {
+        if (this.explain) {
+            this.queries.stream()
+                .filter(query -> query.session == session && query.plan == null)
+                .forEach(query -> query.plan = query.explain());
+        }
+    }
+
+    /**
+     * Whether the profile was requested, and should be included in the response.
+     *
+     * @return {@code true} if the profile was requested
+     */
+    public boolean isExplain()
+    {
+        return this.explain;
+    }
+
+    /**
+     * Starts measuring the time spent in a phase. Times measured several times for the same phase are added.
+     *
+     * @param phase the name of the phase, for example {@link #PREPARE} or {@link #EXECUTE}
+     * @return a timer, to stop at the end of the phase
+     */
+    public Timer time(final String phase)
+    {
+        return new Timer(phase);
+    }
+
+    /**
+     * Counts events that happened while handling the request. Counts recorded several times for the same counter are
+     * added.
+     *
+     * @param counter the name of the counter, for example {@code dereferenceHits}
+     * @param amount how many events happened
+     */
+    public synchronized void count(final String counter, final long amount)
+    {
+        this.counters.merge(counter, amount, Long::sum);
+    }
+
+    /**
+     * Records a query about to be executed. The rows read from its result are counted if the result is
+     * {@link #fetch wrapped}.
+     *
+     * @param statement the query statement
+     * @param language the query language, for example {@code JCR-SQL2} or {@code xpath}
+     * @param session the session where the query is executed, used for explaining it
+     * @param bindings the values bound to the query's variables, may be {@code null}
+     */
+    public synchronized void addQuery(final String statement, final String language, final Session session,
+        final Map<String, Value> bindings)
+    {
+        this.queries.add(new QueryRecord(statement, language, session,
+            bindings == null ? Collections.emptyMap() : bindings));
+    }
+
+    /**
+     * Wraps the result of the last recorded query, so that the time spent reading results and the number of rows read
+     * are recorded.
+     *
+     * @param <T> the type of the results
+     * @param results the results of the last recorded query
+     * @return an iterator over the same results
+     */
+    public synchronized <T> Iterator<T> fetch(final Iterator<T> results)
+    {
+        final QueryRecord query = this.queries.isEmpty() ? null : this.queries.get(this.queries.size() - 1);
+        return new Iterator<T>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                final Timer timer = time(FETCH);
+                try {
+                    return results.hasNext();
+                } finally {
+                    timer.stop();
+                }
+            }
+
+            @Override
+            public T next()
+            {
+                final Timer timer = time(FETCH);
+                try {
+                    final T result = results.next();
+                    if (query != null) {
+                        synchronized (QueryProfile.this) {
+                            ++query.rows;
+                        }
+                    }
+                    return result;
+                } finally {
+                    timer.stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * Serializes this profile, explaining the recorded queries.
+     *
+     * @return a JSON object with the total time, the time spent in each phase, the recorded queries, and the counters
+     */
+    public JsonObject toJson()
+    {
+        return toJson(false);
+    }
+
+    /**
+     * Serializes this profile.
+     *
+     * @param redacted if {@code true}, the literal values in the statements are redacted, and the queries are not
+     *            explained, for logging; otherwise the statements are complete, and the queries are explained
+     * @return a JSON object with the total time, the time spent in each phase, the recorded queries, and the counters
+     */
+    private synchronized JsonObject toJson(final boolean redacted)
+    {
+        final long total = System.nanoTime() - this.startTime;
+        final JsonObjectBuilder phasesJson = Json.createObjectBuilder();
+        long profiled = 0;
+        for (Map.Entry<String, Long> phase : this.phases.entrySet()) {
+            phasesJson.add(phase.getKey(), toMillis(phase.getValue()));
+            profiled += phase.getValue();
+        }
+        // Everything else is mostly serialization
+        phasesJson.add("serialize", toMillis(Math.max(0, total - profiled)));
+        final JsonArrayBuilder queriesJson = Json.createArrayBuilder();
+        this.queries.forEach(query -> queriesJson.add(query.toJson(redacted)));
+        final JsonObjectBuilder countersJson = Json.createObjectBuilder();
+        this.counters.forEach(countersJson::add);
+        return Json.createObjectBuilder()
+            .add("endpoint", this.endpoint)
+            .add("time", toMillis(total))
+            .add("phases", phasesJson)
+            .add("queries", queriesJson)
+            .add("counters", countersJson)
+            .build();
+    }
+
+    @Override
+    public void close()
+    {
+        if (THRESHOLD > 0 && System.nanoTime() - this.startTime >= TimeUnit.MILLISECONDS.toNanos(THRESHOLD)) {
+            LOGGER.warn("Slow query: {}", toJson(true));
+        }
+        if (CURRENT.get() == this) {
+            if (this.previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(this.previous);
+            }
+        }
+    }
+
+    private synchronized void addTime(final String phase, final long nanos)
+    {
+        this.phases.merge(phase, nanos, Long::sum);
+    }
+
+    private static double toMillis(final long nanos)
+    {
+        return nanos / 1_000_000.0;
+    }
+
+    /**
+     * Replaces the literal values in a query statement, which may be search terms or identifiers, with {@code ?}.
+     *
+     * @param statement a query statement
+     * @return the statement without literal values
+     */
+    private static String redact(final String statement)
+    {
+        return LITERALS.matcher(statement).replaceAll("?");
+    }
+
+    private static long getThreshold()
+    {
+        final String configured = System.getenv("SLOW_QUERY_THRESHOLD");
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return Math.max(0, Long.parseLong(configured.trim()));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid SLOW_QUERY_THRESHOLD, the slow query log is disabled: {}", configured);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link JsonProjection}.
+ *
+ * @version $Id$
+ */
+public class JsonProjectionTest
+{
+    /** What a node requested without sub-fields is serialized as. */
+    private static final JsonObject FULL = Json.createObjectBuilder().add("full", true).build();
+
+    /**
+     * A node without properties, recording the properties looked up by the projection.
+     */
+    private static final class FakeNode
+    {
+        private final String path;
+
+        private final Map<String, Node> children = new LinkedHashMap<>();
+
+        private final List<String> lookups = new ArrayList<>();
+
+        private final Node node;
+
+        FakeNode(final String path)
+        {
+            this.path = path;
+            this.node = (Node) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Node.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getPath":
+                        case "toString":
+                            return this.path;
+                        case "hasProperty":
+                            this.lookups.add((String) args[0]);
+                            return false;
+                        case "hasNode":
+                            return this.children.containsKey(args[0]);
+                        case "getNode":
+                            return this.children.get(args[0]);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        }
+
+        FakeNode addChild(final String name)
+        {
+            final FakeNode child = new FakeNode(this.path + "/" + name);
+            this.children.put(name, child.node);
+            return child;
+        }
+    }
+
+    @Test
+    public void noFieldsMeansFullSerialization()
+    {
+        Assert.assertNull(JsonProjection.parse((String[]) null));
+        Assert.assertNull(JsonProjection.parse());
+        Assert.assertNull(JsonProjection.parse(""));
+        Assert.assertNull(JsonProjection.parse(" , ,"));
+        Assert.assertNull(JsonProjection.parse("/", "."));
+    }
+
+    @Test
+    public void fieldsAreReadInTheRequestedOrder()
+    {
+        final FakeNode form = new FakeNode("/Forms/f1");
+        JsonProjection.parse("b,a", "c").project(resource(form.node));
+        Assert.assertEquals(Arrays.asList("b", "a", "c"), form.lookups);
+    }
+
+    @Test
+    public void fieldsAreTrimmed()
+    {
+        final FakeNode form = new FakeNode("/Forms/f1");
+        JsonProjection.parse(" jcr:created , subject ").project(resource(form.node));
+        Assert.assertEquals(Arrays.asList("jcr:created", "subject"), form.lookups);
+    }
+
+    @Test
+    public void repeatedFieldsAreReadOnce()
+    {
+        final FakeNode form = new FakeNode("/Forms/f1");
+        JsonProjection.parse("a,b", "a").project(resource(form.node));
+        Assert.assertEquals(Arrays.asList("a", "b"), form.lookups);
+    }
+
+    @Test
+    public void subFieldsAreReadFromChildNodes()
+    {
+        final FakeNode form = new FakeNode("/Forms/f1");
+        final FakeNode subject = form.addChild("subject");
+        final JsonProjection projection =
+            JsonProjection.parse("subject/identifier", "subject.type", "questionnaire.title");
+        final JsonObject result = projection.project(resource(form.node));
+        Assert.assertEquals(Arrays.asList("subject", "questionnaire"), form.lookups);
+        Assert.assertEquals(Arrays.asList("identifier", "type"), subject.lookups);
+        // The missing sub-fields are skipped, but the child node is still output
+        Assert.assertEquals(Json.createObjectBuilder().add("subject", JsonObject.EMPTY_JSON_OBJECT).build(), result);
+    }
+
+    @Test
+    public void childWithoutSubFieldsIsFullySerialized()
+    {
+        final FakeNode form = new FakeNode("/Forms/f1");
+        final FakeNode subject = form.addChild("subject");
+        final JsonObject result = JsonProjection.parse("subject").project(resource(form.node));
+        Assert.assertTrue(subject.lookups.isEmpty());
+        Assert.assertEquals(Json.createObjectBuilder().add("subject", FULL).build(), result);
+    }
+
+    @Test
+    public void missingFieldsAreSkipped()
+    {
+        final FakeNode form = new FakeNode("/Forms/f1");
+        Assert.assertTrue(JsonProjection.parse("missing", "missing/child").project(resource(form.node)).isEmpty());
+    }
+
+    @Test
+    public void resourceWithoutNodeIsEmpty()
+    {
+        Assert.assertTrue(JsonProjection.parse("a").project(resource(null)).isEmpty());
+    }
+
+    /**
+     * A resource adapting to a node, with a resolver returning resources fully serialized as {@link #FULL}.
+     */
+    private static Resource resource(final Node node)
+    {
+        final ResourceResolver resolver = (ResourceResolver) Proxy.newProxyInstance(
+            JsonProjectionTest.class.getClassLoader(), new Class<?>[] { ResourceResolver.class },
+            (proxy, method, args) -> {
+                if ("getResource".equals(method.getName())) {
+                    return resource(null);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+        return (Resource) Proxy.newProxyInstance(JsonProjectionTest.class.getClassLoader(),
+            new Class<?>[] { Resource.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "adaptTo":
+                        if (Node.class.equals(args[0])) {
+                            return node;
+                        }
+                        return JsonObject.class.equals(args[0]) ? FULL : null;
+                    case "getResourceResolver":
+                        return resolver;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.uhndata.cards.utils;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link DateParser}.
+ *
+ * @version $Id$
+ */
+public class DateParserTest
+{
+    @Test
+    public void isoDate()
+    {
+        assertDate(DateParser.parseDate("2021-03-14"), 2021, Calendar.MARCH, 14);
+        assertDate(DateParser.parseDate("2021-3-4"), 2021, Calendar.MARCH, 4);
+    }
+
+    @Test
+    public void isoDateIsInTheDefaultTimeZone()
+    {
+        final Calendar result = DateParser.parseDate("2021-03-14");
+        Assert.assertEquals(TimeZone.getDefault().getID(), result.getTimeZone().getID());
+        Assert.assertEquals(0, result.get(Calendar.HOUR_OF_DAY));
+        Assert.assertEquals(0, result.get(Calendar.MINUTE));
+    }
+
+    @Test
+    public void isoDateTime()
+    {
+        final Calendar result = DateParser.parseDate("2021-03-14T10:15");
+        assertDate(result, 2021, Calendar.MARCH, 14);
+        Assert.assertEquals(10, result.get(Calendar.HOUR_OF_DAY));
+        Assert.assertEquals(15, result.get(Calendar.MINUTE));
+        Assert.assertEquals(0, result.get(Calendar.SECOND));
+    }
+
+    @Test
+    public void isoDateTimeWithSpaceSecondsAndFraction()
+    {
+        final Calendar result = DateParser.parseDate("2021-03-14 10:15:30.123");
+        assertDate(result, 2021, Calendar.MARCH, 14);
+        Assert.assertEquals(10, result.get(Calendar.HOUR_OF_DAY));
+        Assert.assertEquals(30, result.get(Calendar.SECOND));
+        Assert.assertEquals(123, result.get(Calendar.MILLISECOND));
+    }
+
+    @Test
+    public void isoDateTimeWithOffset()
+    {
+        final long minusFiveHours = TimeUnit.HOURS.toMillis(-5);
+        Assert.assertEquals(minusFiveHours,
+            DateParser.parseDate("2021-03-14T10:15:00-05:00").getTimeZone().getRawOffset());
+        Assert.assertEquals(minusFiveHours,
+            DateParser.parseDate("2021-03-14T10:15:00-0500").getTimeZone().getRawOffset());
+        Assert.assertEquals(0, DateParser.parseDate("2021-03-14T10:15:00Z").getTimeZone().getRawOffset());
+        Assert.assertEquals(DateParser.parseDate("2021-03-14T15:15:00Z").getTimeInMillis(),
+            DateParser.parseDate("2021-03-14T10:15:00-05:00").getTimeInMillis());
+    }
+
+    @Test
+    public void usDate()
+    {
+        assertDate(DateParser.parseDate("3/14/2021"), 2021, Calendar.MARCH, 14);
+        assertDate(DateParser.parseDate("03/04/2021"), 2021, Calendar.MARCH, 4);
+    }
+
+    @Test
+    public void usDateWithTwoDigitYear()
+    {
+        assertDate(DateParser.parseDate("3/14/21"), 2021, Calendar.MARCH, 14);
+    }
+
+    @Test
+    public void surroundingSpacesAndTrailingTextAreIgnored()
+    {
+        assertDate(DateParser.parseDate("  2021-03-14  "), 2021, Calendar.MARCH, 14);
+        assertDate(DateParser.parseDate("2021-03-14 (approximate)"), 2021, Calendar.MARCH, 14);
+    }
+
+    @Test
+    public void leapDays()
+    {
+        assertDate(DateParser.parseDate("2020-02-29"), 2020, Calendar.FEBRUARY, 29);
+        Assert.assertNull(DateParser.parseDate("2021-02-29"));
+        Assert.assertNull(DateParser.parseDate("2/29/2021"));
+    }
+
+    @Test
+    public void invalidDatesAreRejected()
+    {
+        Assert.assertNull(DateParser.parseDate(null));
+        Assert.assertNull(DateParser.parseDate(""));
+        Assert.assertNull(DateParser.parseDate("not a date"));
+        Assert.assertNull(DateParser.parseDate("2021-13-01"));
+        Assert.assertNull(DateParser.parseDate("2021-04-31"));
+        Assert.assertNull(DateParser.parseDate("13/01/2021"));
+        Assert.assertNull(DateParser.parseDate("2021-03-14T25:00"));
+    }
+
+    @Test
+    public void instanceParsesAllFormats()
+    {
+        final DateParser parser = new DateParser();
+        assertDate(parser.parse("3/14/2021"), 2021, Calendar.MARCH, 14);
+        // The preferred format changed, but the other formats are still tried
+        assertDate(parser.parse("2021-03-15"), 2021, Calendar.MARCH, 15);
+        assertDate(parser.parse("3/16/2021"), 2021, Calendar.MARCH, 16);
+        Assert.assertNull(parser.parse("not a date"));
+        Assert.assertNull(parser.parse(null));
+    }
+
+    private static void assertDate(final Calendar actual, final int year, final int month, final int day)
+    {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(year, actual.get(Calendar.YEAR));
+        Assert.assertEquals(month, actual.get(Calendar.MONTH));
+        Assert.assertEquals(day, actual.get(Calendar.DAY_OF_MONTH));
+    }
+}
@@ -40,8 +40,12 @@
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.log.LogService;
 
+import io.uhndata.cards.utils.QueryProfile;
+
 /**
- * A servlet that performs full text match and lucene queries on vocabulary terms.
+ * A servlet that performs full text match and lucene queries on vocabulary terms. If the {@code debug} parameter is
+ * {@code explain}, the response also holds a {@code debug} object with the executed query, its plan, the number of rows
+ * read, and the time spent in each phase; see {@link QueryProfile}.
  *
  * @version $Id$
  */
@@ -74,20 +78,27 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         // To avoid overloading the server, we set a limit on the number of nodes that can be returned
         limit = Math.min(limit, MAX_LIMIT);
 
-        // Parse and execute the given suggest or query
-        String parentPath = request.getResource().getPath();
-        String oakQuery = constructQuery(suggest, query, filter, sort, parentPath);
-        Iterator<Resource> results = request.getResourceResolver().findResources(oakQuery, "JCR-SQL2");
+        try (QueryProfile profile = QueryProfile.start("vocabulary search",
+            QueryProfile.isExplainRequested(request.getParameter("debug")))) {
+            // Parse and execute the given suggest or query
+            String parentPath = request.getResource().getPath();
+            String oakQuery = constructQuery(suggest, query, filter, sort, parentPath);
+            Iterator<Resource> results =
+                QueryProfile.findResources(request.getResourceResolver(), oakQuery, "JCR-SQL2");
 
-        // Write the output
-        // The writer doesn't need to be explicitly closed since the auto-closed jsonGen will also close the writer
-        response.setContentType("application/json");
-        final Writer out = response.getWriter();
-        try (JsonGenerator jsonGen = Json.createGenerator(out)) {
-            jsonGen.writeStartObject();
-            long[] limits = writeNodes(jsonGen, results, offset, limit);
-            writeSummary(jsonGen, request, limits, oakQuery);
-            jsonGen.writeEnd().flush();
+            // Write the output
+            // The writer doesn't need to be explicitly closed since the auto-closed jsonGen will also close the writer
+            response.setContentType("application/json");
+            final Writer out = response.getWriter();
+            try (JsonGenerator jsonGen = Json.createGenerator(out)) {
+                jsonGen.writeStartObject();
+                long[] limits = writeNodes(jsonGen, results, offset, limit);
+                writeSummary(jsonGen, request, limits, oakQuery);
+                if (profile.isExplain()) {
+                    jsonGen.write("debug", profile.toJson());
+                }
+                jsonGen.writeEnd().flush();
+            }
         }
     }
 
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.uhndata.cards.it;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.sling.testing.clients.SlingClient;
+import org.apache.sling.testing.clients.util.FormEntityBuilder;
+import org.apache.sling.testing.clients.util.poller.Polling;
+import org.apache.sling.testing.junit.rules.SlingInstanceRule;
+import org.apache.sling.testing.junit.rules.SlingRule;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.apache.http.HttpStatus.SC_CREATED;
+import static org.apache.http.HttpStatus.SC_OK;
+
+public class QuickSearchIT
+{
+    @ClassRule
+    public static SlingInstanceRule slingInstanceRule = new SlingInstanceRule();
+
+    private static SlingClient client;
+
+    @Rule
+    public SlingRule slingMethodRule = new SlingRule();
+
+    @BeforeClass
+    public static void waitForStartup() throws TimeoutException, InterruptedException
+    {
+        client = slingInstanceRule.defaultInstance.getClient(SlingClient.class, "admin", "admin");
+
+        Polling p = new Polling()
+        {
+            @Override
+            public Boolean call() throws Exception
+            {
+                return QuickSearchIT.client.doGet("/login").getStatusLine().getStatusCode() == SC_OK;
+            }
+
+            @Override
+            protected String message()
+            {
+                return "Server did not correctly start after %1$d ms";
+            }
+        };
+
+        // Poll every 200 milliseconds for at most 60 seconds
+        p.poll(60000, 200);
+    }
+
+    @Test
+    public void subjectIsFoundBySubstringOfItsIdentifier() throws Exception
+    {
+        final String suffix = String.valueOf(System.currentTimeMillis() % 100000);
+        final String identifier = "QuickSearchIT" + suffix;
+        final String path = "/Subjects/" + identifier;
+        client.doPost(path, FormEntityBuilder.create()
+            .addParameter("jcr:primaryType", "cards:Subject")
+            .addParameter("identifier", identifier)
+            .addParameter("type", "/SubjectTypes/Patient")
+            .addParameter("type@TypeHint", "Reference")
+            .build(), SC_OK, SC_CREATED);
+        try {
+            // A substring from the middle of the identifier, in a different case
+            final String substring = "ICKSEARCHIT" + suffix;
+            Polling p = new Polling()
+            {
+                @Override
+                public Boolean call() throws Exception
+                {
+                    return QuickSearchIT.client.doGet("/query", Arrays.asList(
+                        new BasicNameValuePair("quick", substring),
+                        new BasicNameValuePair("allowedResourceTypes", "cards:Subject")), SC_OK)
+                        .getContent().contains(path);
+                }
+
+                @Override
+                protected String message()
+                {
+                    return "Quick search did not find the subject by a substring of its identifier after %1$d ms";
+                }
+            };
+
+            // The quickSearch index is updated asynchronously, so the subject is not found right away
+            p.poll(60000, 1000);
+        } finally {
+            client.deletePath(path, SC_OK);
+        }
+    }
+}